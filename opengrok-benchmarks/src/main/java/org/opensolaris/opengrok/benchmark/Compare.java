@@ -0,0 +1,187 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.benchmark;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares two benchmark reports written by JMH in CSV format (options
+ * {@code -rf csv -rff <file>}) and reports the benchmarks, which got slower
+ * by more than a given percentage and by more than the error margins of both
+ * runs. Exits with status 1 if there are any such regressions, so it can be
+ * used to fail a build.
+ * <p>
+ * Usage: {@code Compare <baseline.csv> <current.csv> [<threshold percent>]}
+ */
+public final class Compare {
+
+    /** default percentage a benchmark may get slower without failing */
+    private static final double DEFAULT_THRESHOLD = 10.0;
+
+    private Compare() {
+        // only main()
+    }
+
+    /** a single line of a report */
+    private static final class Result {
+
+        String mode;
+        double score;
+        double error;
+        String unit;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: Compare <baseline.csv> <current.csv> "
+                    + "[<threshold percent>]");
+            System.exit(2);
+        }
+        double threshold = args.length == 3
+                ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+        Map<String, Result> baseline = read(args[0]);
+        Map<String, Result> current = read(args[1]);
+        int regressions = 0;
+        for (Map.Entry<String, Result> e : current.entrySet()) {
+            Result cur = e.getValue();
+            Result base = baseline.get(e.getKey());
+            if (base == null || !base.unit.equals(cur.unit)) {
+                System.out.println(String.format(Locale.ENGLISH,
+                        "%-70s %12.3f %s (new)", e.getKey(), cur.score,
+                        cur.unit));
+                continue;
+            }
+            // higher is better for throughput, lower for all other modes
+            double diff = "thrpt".equals(cur.mode)
+                    ? base.score - cur.score : cur.score - base.score;
+            double percent = base.score == 0 ? 0 : diff * 100 / base.score;
+            boolean regression = percent > threshold
+                    && diff > base.error + cur.error;
+            if (regression) {
+                regressions++;
+            }
+            System.out.println(String.format(Locale.ENGLISH,
+                    "%-70s %12.3f -> %12.3f %s %+7.1f%%%s", e.getKey(),
+                    base.score, cur.score, cur.unit, percent,
+                    regression ? "  REGRESSION" : ""));
+        }
+        System.out.println(regressions + " regression(s) beyond "
+                + threshold + "%");
+        System.exit(regressions == 0 ? 0 : 1);
+    }
+
+    /**
+     * Read a JMH CSV report.
+     *
+     * @param file the report to read
+     * @return the results keyed by benchmark name and parameters
+     */
+    private static Map<String, Result> read(String file) throws IOException {
+        Map<String, Result> ret = new LinkedHashMap<String, Result>();
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            List<String> header = split(in.readLine());
+            int name = header.indexOf("Benchmark");
+            int mode = header.indexOf("Mode");
+            int score = header.indexOf("Score");
+            int error = header.indexOf("Score Error (99.9%)");
+            int unit = header.indexOf("Unit");
+            if (name < 0 || score < 0 || unit < 0) {
+                throw new IOException(file + " is not a JMH CSV report");
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                List<String> cols = split(line);
+                if (cols.size() < header.size()) {
+                    continue;
+                }
+                StringBuilder key = new StringBuilder(cols.get(name));
+                for (int i = 0; i < header.size(); i++) {
+                    if (header.get(i).startsWith("Param: ")
+                            && cols.get(i).length() > 0) {
+                        key.append(' ').append(header.get(i).substring(7))
+                                .append('=').append(cols.get(i));
+                    }
+                }
+                Result r = new Result();
+                r.mode = mode < 0 ? "" : cols.get(mode);
+                r.score = parse(cols.get(score));
+                r.error = error < 0 ? 0 : parse(cols.get(error));
+                r.unit = cols.get(unit);
+                ret.put(key.toString(), r);
+            }
+        } finally {
+            in.close();
+        }
+        return ret;
+    }
+
+    private static double parse(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            // e.g. NaN written as an empty column
+            return 0;
+        }
+    }
+
+    /**
+     * Split a CSV line into its columns, removing the quotes.
+     */
+    private static List<String> split(String line) {
+        List<String> cols = new ArrayList<String>();
+        if (line == null) {
+            return cols;
+        }
+        StringBuilder col = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length()
+                        && line.charAt(i + 1) == '"') {
+                    col.append(c);
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                cols.add(col.toString());
+                col.setLength(0);
+            } else {
+                col.append(c);
+            }
+        }
+        cols.add(col.toString());
+        return cols;
+    }
+}
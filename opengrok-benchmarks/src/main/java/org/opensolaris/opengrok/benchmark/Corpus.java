@@ -0,0 +1,349 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import org.opensolaris.opengrok.configuration.Project;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.index.Indexer;
+import org.opensolaris.opengrok.index.IndexerException;
+import org.opensolaris.opengrok.search.QueryBuilder;
+import org.opensolaris.opengrok.web.SearchHelper;
+import org.opensolaris.opengrok.web.SortOrder;
+
+/**
+ * A synthetic, indexed multi-project source tree the benchmarks run against.
+ * The tree gets generated from a fixed seed, so every run (and every JVM
+ * forked by JMH) sees exactly the same sources, definitions and history,
+ * which keeps the results of different runs comparable.
+ * <p>
+ * Each file gets an RCS history, which is read in-process, so no SCM
+ * binaries are needed. Exuberant ctags is required for indexing the
+ * definitions and references (see {@link #CTAGS_PROPERTY}).
+ * <p>
+ * The corpus gets created in a temporary directory, which is removed when
+ * the JVM exits. If the system property {@link #DIR_PROPERTY} names a
+ * directory, the corpus is kept there and reused by subsequent runs.
+ */
+public final class Corpus {
+
+    /** system property naming the directory to keep the corpus in */
+    public static final String DIR_PROPERTY =
+            "org.opensolaris.opengrok.benchmark.corpus";
+    /** system property naming the exuberant ctags binary to use */
+    public static final String CTAGS_PROPERTY =
+            "org.opensolaris.opengrok.configuration.ctags";
+    /** the query shapes known by {@link #createBuilder(String)} */
+    public static final String[] SHAPES =
+            {"full", "defs", "refs", "path", "hist", "wildcard"};
+    /** the number of hits per page */
+    public static final int PAGE_SIZE = 25;
+
+    private static final long SEED = 20121001L;
+    private static final int PROJECTS = 4;
+    private static final int DIRS = 8;
+    private static final int FILES = 25;
+    private static final int FUNCTIONS = 12;
+    private static final int REVISIONS = 3;
+    private static final String[] VERBS = {"get", "set", "init", "free",
+        "parse", "read", "write", "lookup", "update", "flush"};
+    private static final String[] NOUNS = {"Buffer", "Node", "Entry", "Table",
+        "Cache", "Index", "Stream", "Token", "Lock", "Queue"};
+    private static final String[] WORDS = {"the", "a", "of", "to", "and",
+        "when", "if", "not", "all", "each", "returns", "handles", "fixes",
+        "checks", "allocates", "releases", "before", "after", "error", "size",
+        "pointer", "length", "count", "state", "memory", "overflow", "race",
+        "leak", "regression", "performance"};
+    private static Corpus instance;
+    private final File root;
+    private final File sourceRoot;
+    private final File dataRoot;
+    private final SortedSet<String> projects = new TreeSet<String>();
+
+    private Corpus(File root) {
+        this.root = root;
+        sourceRoot = new File(root, "src");
+        dataRoot = new File(root, "data");
+    }
+
+    /**
+     * Get the corpus, generating and indexing it on first use.
+     *
+     * @return the corpus to benchmark against
+     * @throws IOException if the corpus could not be written or indexed
+     */
+    public static synchronized Corpus getInstance() throws IOException {
+        if (instance == null) {
+            String dir = System.getProperty(DIR_PROPERTY);
+            Corpus c;
+            if (dir == null) {
+                final File tmp = File.createTempFile("opengrok-corpus", "");
+                if (!tmp.delete() || !tmp.mkdir()) {
+                    throw new IOException("Could not create " + tmp);
+                }
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+
+                    @Override
+                    public void run() {
+                        remove(tmp);
+                    }
+                });
+                c = new Corpus(tmp);
+            } else {
+                c = new Corpus(new File(dir));
+            }
+            c.open();
+            instance = c;
+        }
+        return instance;
+    }
+
+    /**
+     * Get the names of all projects in the corpus.
+     *
+     * @return a sorted set of project names
+     */
+    public SortedSet<String> getProjects() {
+        return projects;
+    }
+
+    /**
+     * Get the source root of the corpus.
+     *
+     * @return the directory containing the projects
+     */
+    public File getSourceRoot() {
+        return sourceRoot;
+    }
+
+    /**
+     * Get the data root of the corpus.
+     *
+     * @return the directory containing the index and the xrefs
+     */
+    public File getDataRoot() {
+        return dataRoot;
+    }
+
+    /**
+     * Create a query builder for the given query shape. The terms searched
+     * for are part of the generated vocabulary, so all shapes have hits.
+     *
+     * @param shape one of {@link #SHAPES}
+     * @return a query builder with the corresponding field set
+     * @throws IllegalArgumentException if the shape is unknown
+     */
+    public static QueryBuilder createBuilder(String shape) {
+        QueryBuilder builder = new QueryBuilder();
+        if ("full".equals(shape)) {
+            builder.setFreetext("memory overflow");
+        } else if ("defs".equals(shape)) {
+            builder.setDefs("lookupCache");
+        } else if ("refs".equals(shape)) {
+            builder.setRefs("initTable");
+        } else if ("path".equals(shape)) {
+            builder.setPath("dir3");
+        } else if ("hist".equals(shape)) {
+            builder.setHist("regression");
+        } else if ("wildcard".equals(shape)) {
+            builder.setFreetext("pars*");
+        } else {
+            throw new IllegalArgumentException("Unknown query shape: " + shape);
+        }
+        return builder;
+    }
+
+    /**
+     * Create a search helper, which has executed the given query against
+     * all projects and is ready to render the first page of hits. The caller
+     * has to {@link SearchHelper#destroy() destroy} it when done.
+     *
+     * @param builder the query to execute
+     * @return the search helper
+     */
+    public SearchHelper search(QueryBuilder builder) {
+        SearchHelper sh = new SearchHelper();
+        sh.dataRoot = dataRoot;
+        sh.sourceRoot = sourceRoot;
+        sh.contextPath = "/source";
+        sh.builder = builder;
+        sh.order = SortOrder.RELEVANCY;
+        sh.maxItems = PAGE_SIZE;
+        sh.compressed = RuntimeEnvironment.getInstance().isCompressXref();
+        return sh.prepareExec(projects).executeQuery().prepareSummary();
+    }
+
+    private void open() throws IOException {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        File config = new File(dataRoot, "configuration.xml");
+        if (config.isFile()) {
+            env.readConfiguration(config);
+        } else {
+            generate();
+            env.setSourceRoot(sourceRoot.getPath());
+            env.setDataRoot(dataRoot.getPath());
+            env.setCtags(System.getProperty(CTAGS_PROPERTY, "ctags"));
+            env.setVerbose(false);
+            if (!env.validateExuberantCtags()) {
+                throw new IOException("No exuberant ctags found, set "
+                        + CTAGS_PROPERTY + " to its path");
+            }
+            try {
+                Indexer.getInstance().prepareIndexer(env, true, true, null,
+                        null, false, false, false, null, null,
+                        new ArrayList<String>(), false);
+                Indexer.getInstance().doIndexerExecution(true,
+                        Runtime.getRuntime().availableProcessors(), null, null);
+            } catch (IndexerException e) {
+                IOException ioe = new IOException(e.getMessage());
+                ioe.initCause(e);
+                throw ioe;
+            }
+            env.writeConfiguration(config);
+        }
+        for (Project p : env.getProjects()) {
+            projects.add(p.getDescription());
+        }
+    }
+
+    private void generate() throws IOException {
+        Random rnd = new Random(SEED);
+        for (int p = 0; p < PROJECTS; p++) {
+            for (int d = 0; d < DIRS; d++) {
+                File dir = new File(sourceRoot, "proj" + p + "/dir" + d);
+                File rcsDir = new File(dir, "RCS");
+                if (!rcsDir.mkdirs()) {
+                    throw new IOException("Could not create " + rcsDir);
+                }
+                for (int f = 0; f < FILES; f++) {
+                    String name = "file" + f + ".c";
+                    String[] lines = source(rnd);
+                    write(new File(dir, name), join(lines, 0));
+                    write(new File(rcsDir, name + ",v"), rcs(rnd, lines));
+                }
+            }
+        }
+    }
+
+    /**
+     * Pick an element, preferring the ones at the start of the array, so
+     * that terms have a skewed frequency like in real code.
+     */
+    private static String pick(Random rnd, String[] words) {
+        return words[rnd.nextInt(rnd.nextInt(words.length) + 1)];
+    }
+
+    private static String identifier(Random rnd) {
+        return pick(rnd, VERBS) + pick(rnd, NOUNS);
+    }
+
+    private static String sentence(Random rnd, int words) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            sb.append(i == 0 ? "" : " ").append(pick(rnd, WORDS));
+        }
+        return sb.toString();
+    }
+
+    private static String[] source(Random rnd) {
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add("/* " + sentence(rnd, 8) + " */");
+        lines.add("#include <stdlib.h>");
+        for (int i = 0; i < FUNCTIONS; i++) {
+            lines.add("");
+            lines.add("/* " + sentence(rnd, 6 + rnd.nextInt(6)) + " */");
+            lines.add("int " + identifier(rnd) + "(int n) {");
+            for (int k = rnd.nextInt(4); k >= 0; k--) {
+                lines.add("    n += " + identifier(rnd) + "(n - " + k + ");");
+            }
+            lines.add("    return n;");
+            lines.add("}");
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    private static String join(String[] lines, int from) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = from; i < lines.length; i++) {
+            sb.append(lines[i]).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Create the content of an RCS file for the given head revision. Each
+     * older revision lacks the first line of its successor.
+     */
+    private static String rcs(Random rnd, String[] head) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("head\t1.").append(REVISIONS).append(";\n")
+                .append("access;\nsymbols;\nlocks; strict;\n")
+                .append("comment\t@ * @;\n\n");
+        for (int r = REVISIONS; r > 0; r--) {
+            sb.append("\n1.").append(r).append('\n')
+                    .append("date\t2012.0").append(r).append(".01.12.00.00;\t")
+                    .append("author bench;\tstate Exp;\nbranches;\nnext\t")
+                    .append(r > 1 ? "1." + (r - 1) : "").append(";\n");
+        }
+        sb.append("\n\ndesc\n@@\n");
+        for (int r = REVISIONS; r > 0; r--) {
+            sb.append("\n\n1.").append(r).append("\nlog\n@")
+                    .append(sentence(rnd, 4 + rnd.nextInt(6)))
+                    .append("\n@\ntext\n@");
+            if (r == REVISIONS) {
+                sb.append(join(head, 0).replace("@", "@@"));
+            } else {
+                sb.append("d1 1\n");
+            }
+            sb.append("@\n");
+        }
+        return sb.toString();
+    }
+
+    private static void remove(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                remove(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Query;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensolaris.opengrok.search.QueryBuilder;
+import org.opensolaris.opengrok.web.SearchHelper;
+
+/**
+ * Benchmarks parsing and executing queries of the different
+ * {@link Corpus#SHAPES shapes} against all projects of the {@link Corpus}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+
+    @Param({"full", "defs", "refs", "path", "hist", "wildcard"})
+    public String shape;
+    private Corpus corpus;
+    private QueryBuilder builder;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpus = Corpus.getInstance();
+        builder = Corpus.createBuilder(shape);
+    }
+
+    /**
+     * Measure {@link QueryBuilder#build()}.
+     *
+     * @return the query built, so that it does not get optimized away
+     * @throws ParseException if the query is invalid
+     */
+    @Benchmark
+    public Query build() throws ParseException {
+        return builder.build();
+    }
+
+    /**
+     * Measure {@link SearchHelper#executeQuery()} including opening the
+     * index readers of all projects, i.e. what every search request pays.
+     *
+     * @return the number of hits
+     */
+    @Benchmark
+    public int executeQuery() {
+        SearchHelper sh = corpus.search(builder);
+        try {
+            if (sh.errorMsg != null) {
+                throw new IllegalStateException(sh.errorMsg);
+            }
+            return sh.totalHits;
+        } finally {
+            sh.destroy();
+        }
+    }
+}
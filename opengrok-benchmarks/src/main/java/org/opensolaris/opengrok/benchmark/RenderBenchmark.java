@@ -0,0 +1,153 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexableField;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensolaris.opengrok.analysis.Definitions;
+import org.opensolaris.opengrok.analysis.TagFilter;
+import org.opensolaris.opengrok.search.Results;
+import org.opensolaris.opengrok.search.Summary;
+import org.opensolaris.opengrok.web.Prefix;
+import org.opensolaris.opengrok.web.SearchHelper;
+
+/**
+ * Benchmarks rendering the results of a search: the context of a single
+ * hit, the summary of a single hit and the whole first page of hits.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+
+    @Param({"full", "defs", "refs"})
+    public String shape;
+    private SearchHelper sh;
+    private File source;
+    private String path;
+    private Definitions tags;
+    private String xrefText;
+    private int end;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ClassNotFoundException {
+        sh = Corpus.getInstance().search(Corpus.createBuilder(shape));
+        if (sh.errorMsg != null || sh.hits == null || sh.hits.length == 0) {
+            throw new IllegalStateException("No hits for " + shape + ": "
+                    + sh.errorMsg);
+        }
+        end = Math.min(sh.hits.length, sh.maxItems);
+        Document doc = sh.searcher.doc(sh.hits[0].doc);
+        path = doc.get("path");
+        source = new File(sh.sourceRoot, path);
+        IndexableField tagsField = doc.getField("tags");
+        if (tagsField != null) {
+            tags = Definitions.deserialize(tagsField.binaryValue().bytes);
+        }
+        // the same text Results feeds into the summarizer
+        File xref = new File(sh.dataRoot, Prefix.XREF_P + path);
+        Reader in = new TagFilter(new BufferedReader(sh.compressed
+                ? new InputStreamReader(new GZIPInputStream(new FileInputStream(
+                    xref.getPath() + ".gz")))
+                : new FileReader(xref)));
+        try {
+            char[] buf = new char[1024 * 8];
+            int len = in.read(buf);
+            xrefText = new String(buf, 0, Math.max(len, 0));
+        } finally {
+            in.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sh.destroy();
+    }
+
+    /**
+     * Measure {@link org.opensolaris.opengrok.search.context.Context#getContext}
+     * for the best hit.
+     *
+     * @return the rendered context
+     * @throws IOException if the source could not be read
+     */
+    @Benchmark
+    public String getContext() throws IOException {
+        StringWriter out = new StringWriter();
+        sh.sourceContext.getContext(new FileReader(source), out,
+                sh.contextPath + Prefix.XREF_P, sh.contextPath + Prefix.MORE_P,
+                path, tags, true, null);
+        return out.toString();
+    }
+
+    /**
+     * Measure {@link org.opensolaris.opengrok.search.Summarizer#getSummary}
+     * for the best hit.
+     *
+     * @return the summary
+     * @throws IOException if the text could not be analyzed
+     */
+    @Benchmark
+    public Summary getSummary() throws IOException {
+        return sh.summerizer.getSummary(xrefText);
+    }
+
+    /**
+     * Measure {@link Results#prettyPrint} for the first page of hits.
+     *
+     * @return the rendered page
+     * @throws Exception if rendering fails
+     */
+    @Benchmark
+    public String prettyPrint() throws Exception {
+        StringWriter out = new StringWriter();
+        Results.prettyPrint(out, sh, 0, end);
+        return out.toString();
+    }
+}
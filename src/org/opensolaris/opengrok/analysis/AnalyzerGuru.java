@@ -23,6 +23,7 @@
 package org.opensolaris.opengrok.analysis;
 
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
@@ -30,12 +31,19 @@ import java.io.StringReader;
 import java.io.Writer;
 import java.util.*;
 import java.util.logging.Level;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.DateTools;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.LongDocValuesField;
+import org.apache.lucene.document.SortedBytesDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
 import org.opensolaris.opengrok.OpenGrokLogger;
 import org.opensolaris.opengrok.analysis.FileAnalyzer.Genre;
 import org.opensolaris.opengrok.analysis.archive.BZip2AnalyzerFactory;
@@ -66,10 +74,14 @@ import org.opensolaris.opengrok.analysis.sql.SQLAnalyzerFactory;
 import org.opensolaris.opengrok.analysis.tcl.TclAnalyzerFactory;
 import org.opensolaris.opengrok.analysis.vb.VBAnalyzerFactory;
 import org.opensolaris.opengrok.configuration.Project;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 import org.opensolaris.opengrok.history.Annotation;
 import org.opensolaris.opengrok.history.HistoryException;
 import org.opensolaris.opengrok.history.HistoryGuru;
 import org.opensolaris.opengrok.history.HistoryReader;
+import org.opensolaris.opengrok.search.QueryBuilder;
+import org.opensolaris.opengrok.search.Trigrams;
+import org.opensolaris.opengrok.util.IOUtils;
 import org.opensolaris.opengrok.web.Util;
 
 /**
@@ -114,6 +126,8 @@ public class AnalyzerGuru {
     public static final String dummyS = "";
     public static final FieldType string_ft_stored_nanalyzed_norms = new FieldType(StringField.TYPE_STORED);
     public static final FieldType string_ft_nstored_nanalyzed_norms = new FieldType(StringField.TYPE_NOT_STORED);
+    /** type of the fields holding reversed tokens: presence matters only */
+    public static final FieldType text_ft_nstored_docs_only = new FieldType(TextField.TYPE_NOT_STORED);
 
     /*
      * If you write your own analyzer please register it here
@@ -156,6 +170,9 @@ public class AnalyzerGuru {
         
         string_ft_stored_nanalyzed_norms.setOmitNorms(false);
         string_ft_nstored_nanalyzed_norms.setOmitNorms(false);
+        text_ft_nstored_docs_only.setIndexOptions(IndexOptions.DOCS_ONLY);
+        text_ft_nstored_docs_only.setOmitNorms(true);
+        text_ft_nstored_docs_only.freeze();
         
     }
 
@@ -248,7 +265,11 @@ public class AnalyzerGuru {
             string_ft_nstored_nanalyzed_norms));
 
         try {
-            HistoryReader hr = HistoryGuru.getInstance().getHistoryReader(file);
+            // changesets in the history index need not be indexed per file
+            HistoryReader hr = RuntimeEnvironment.getInstance().isHistoryIndex()
+                    && HistoryGuru.getInstance().hasHistoryIndex(file)
+                    ? null
+                    : HistoryGuru.getInstance().getHistoryReader(file);
             if (hr != null) {
                 doc.add(new TextField("hist", hr));
                 // date = hr.getLastCommentDate() //RFE
@@ -257,7 +278,12 @@ public class AnalyzerGuru {
             OpenGrokLogger.getLogger().log(Level.WARNING, "An error occurred while reading history: ", e);
         }    
         doc.add(new Field("date", date, string_ft_stored_nanalyzed_norms));
+        // per document values to sort on without uninverting the whole index
+        doc.add(new LongDocValuesField(QueryBuilder.SORT_DATE,
+            file.lastModified()));
         if (path != null) {
+            doc.add(new SortedBytesDocValuesField(QueryBuilder.SORT_PATH,
+                new BytesRef(path)));
             doc.add(new Field("path", path, TextField.TYPE_STORED));
             Project project = Project.getProject(path);
             if (project != null) {
@@ -273,11 +299,73 @@ public class AnalyzerGuru {
                     ));
             }                   
             fa.analyze(doc, in);
+            RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+            if (env.isIndexReversedTokens()) {
+                addReversedFields(doc, fa);
+            }
+            if (env.isIndexTrigrams() && g == Genre.PLAIN) {
+                addTrigrams(doc, file);
+            }
         }
 
         return doc;
     }
 
+    /**
+     * Add the distinct trigrams of the lines of the given file to the
+     * document (see {@link Trigrams}).
+     *
+     * @param doc the document to populate
+     * @param file the plain text file to read
+     * @throws IOException if the file could not be read
+     */
+    private static void addTrigrams(Document doc, File file)
+        throws IOException {
+        Reader r = new FileReader(file);
+        try {
+            doc.add(new Field(QueryBuilder.TRIGRAMS,
+                new IteratorTokenStream(Trigrams.extract(r)),
+                text_ft_nstored_docs_only));
+        } finally {
+            IOUtils.close(r);
+        }
+    }
+
+    /**
+     * Add the distinct reversed tokens of the full, defs and refs fields of
+     * the given document as separate fields (see
+     * {@link QueryBuilder#REVERSED_SUFFIX}). Since they are used for
+     * wildcard queries only, neither positions nor frequencies get indexed.
+     *
+     * @param doc the document as populated by the given analyzer
+     * @param fa the analyzer used to tokenize the fields of the document
+     * @throws IOException if the fields could not be tokenized
+     */
+    private static void addReversedFields(Document doc, FileAnalyzer fa)
+        throws IOException {
+        for (String name : QueryBuilder.REVERSIBLE_FIELDS) {
+            IndexableField field = doc.getField(name);
+            if (field == null || field.stringValue() == null) {
+                continue;
+            }
+            Set<String> terms = new TreeSet<String>();
+            TokenStream ts =
+                fa.tokenStream(name, new StringReader(field.stringValue()));
+            CharTermAttribute term = ts.addAttribute(CharTermAttribute.class);
+            try {
+                ts.reset();
+                while (ts.incrementToken()) {
+                    terms.add(new StringBuilder(term).reverse().toString());
+                }
+                ts.end();
+            } finally {
+                ts.close();
+            }
+            doc.add(new Field(name + QueryBuilder.REVERSED_SUFFIX,
+                new IteratorTokenStream(terms), text_ft_nstored_docs_only));
+        }
+    }
+
     /**
      * Get the content type for a named file.
      *
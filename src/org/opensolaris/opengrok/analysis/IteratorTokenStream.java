@@ -0,0 +1,58 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.analysis;
+
+import java.util.Iterator;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+
+/**
+ * A token stream, which emits the given terms as they are, one token per
+ * term. It can be consumed only once.
+ */
+public final class IteratorTokenStream extends TokenStream {
+
+    private final CharTermAttribute termAtt =
+            addAttribute(CharTermAttribute.class);
+    private final Iterator<String> terms;
+
+    /**
+     * Create a new token stream.
+     *
+     * @param terms the terms to emit
+     */
+    public IteratorTokenStream(Iterable<String> terms) {
+        this.terms = terms.iterator();
+    }
+
+    @Override
+    public boolean incrementToken() {
+        clearAttributes();
+        if (!terms.hasNext()) {
+            return false;
+        }
+        termAtt.setEmpty();
+        termAtt.append(terms.next());
+        return true;
+    }
+}
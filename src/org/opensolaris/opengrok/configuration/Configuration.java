@@ -73,6 +73,7 @@ public final class Configuration {
      * Should the history cache be stored in a database?
      */
     private boolean historyCacheInDB;
+    private boolean historyCacheInLogStore;
 
     private List<Project> projects;
     private String sourceRoot;
@@ -111,6 +112,84 @@ public final class Configuration {
     private boolean tagsEnabled;
     private int hitsPerPage;
     private int cachePages;
+    /**
+     * Time in milliseconds the web application may spend on rendering the
+     * context of all hits of a result page in parallel. If {@code <= 0}, the
+     * context gets rendered sequentially without any time limit.
+     */
+    private int searchContextTimeout;
+    /**
+     * Time in milliseconds a single search may take before it gets stopped
+     * and the hits found so far are returned. If {@code <= 0}, searches are
+     * not limited.
+     */
+    private int searchTimeout;
+    /**
+     * Max. number of distinct terms a single wildcard or prefix query may
+     * expand to. If {@code <= 0}, there is no limit.
+     */
+    private int maxExpandedTerms;
+    /**
+     * If {@code true}, the tokens of the full, defs and refs fields get also
+     * indexed in reversed form, so that queries with a leading wildcard do
+     * not need to scan the whole term dictionary.
+     */
+    private boolean indexReversedTokens;
+    /**
+     * If {@code true}, the trigrams of plain text files get indexed to
+     * support regular expression searches.
+     */
+    private boolean indexTrigrams;
+    /**
+     * If {@code true}, a search over multiple projects searches each project
+     * index on its own (in parallel) and merges the top hits afterwards.
+     */
+    private boolean federatedSearch;
+    /**
+     * Time in milliseconds a search may take before it gets logged as slow
+     * query. If {@code <= 0}, slow queries are not logged.
+     */
+    private int slowQueryThreshold;
+    /**
+     * Max. number of recent queries replayed to warm up a newly opened index
+     * searcher. If {@code <= 0}, searchers are not warmed up.
+     */
+    private int searchWarmupQueries;
+    /**
+     * Max. time in milliseconds spent on warming up a newly opened index
+     * searcher. If {@code <= 0}, the warm-up is not limited.
+     */
+    private int searchWarmupTimeout;
+    /**
+     * If {@code true}, the history gets indexed once per changeset in a
+     * separate index instead of once per file in the {@code hist} field.
+     */
+    private boolean historyIndex;
+    /**
+     * Number of changesets written to the database history cache per JDBC
+     * batch and transaction.
+     */
+    private int historyCacheBatchSize;
+    /**
+     * Max. size in MB of the objects kept in memory by the database history
+     * cache. If {@code <= 0}, nothing is kept in memory.
+     */
+    private int historyMemoryCacheSize;
+    /**
+     * Max. size in MB of the annotations kept on disk by the annotation
+     * cache. If {@code <= 0}, annotations are not cached.
+     */
+    private int annotationCacheSize;
+    /**
+     * Max. number of completion FSTs kept in memory by the webapp. If
+     * {@code <= 0}, there is room for the FSTs of all projects.
+     */
+    private int completionCacheSize;
+    /**
+     * Should the annotations of the current revisions be added to the
+     * annotation cache when files get indexed?
+     */
+    private boolean precomputeAnnotations;
     private String databaseDriver;
     private String databaseUrl;
     private String CTagsExtraOptionsFile;
@@ -170,6 +249,7 @@ public final class Configuration {
         setHistoryCache(true);
         setHistoryCacheTime(30);
         setHistoryCacheInDB(false);
+        setHistoryCacheInLogStore(false);
         setProjects(new ArrayList<Project>());
         setRepositories(new ArrayList<RepositoryInfo>());
         setUrlPrefix("/source/s?");
@@ -197,6 +277,14 @@ public final class Configuration {
         setTagsEnabled(false);
         setHitsPerPage(25);
         setCachePages(5);
+        setSearchContextTimeout(3000);
+        setSearchWarmupQueries(20);
+        setSearchWarmupTimeout(10000);
+        setHistoryCacheBatchSize(1000);
+        setHistoryMemoryCacheSize(16);
+        setAnnotationCacheSize(64);
+        setCompletionCacheSize(0);
+        setPrecomputeAnnotations(false);
         setScanningDepth(3); // default depth of scanning for repositories
         setAllowedSymlinks(new HashSet<String>());
         //setTabSize(4);
@@ -253,6 +341,126 @@ public final class Configuration {
         this.hitsPerPage = hitsPerPage;
     }
 
+    public int getSearchContextTimeout() {
+        return searchContextTimeout;
+    }
+
+    public void setSearchContextTimeout(int searchContextTimeout) {
+        this.searchContextTimeout = searchContextTimeout;
+    }
+
+    public int getSearchTimeout() {
+        return searchTimeout;
+    }
+
+    public void setSearchTimeout(int searchTimeout) {
+        this.searchTimeout = searchTimeout;
+    }
+
+    public int getMaxExpandedTerms() {
+        return maxExpandedTerms;
+    }
+
+    public void setMaxExpandedTerms(int maxExpandedTerms) {
+        this.maxExpandedTerms = maxExpandedTerms;
+    }
+
+    public boolean isIndexReversedTokens() {
+        return indexReversedTokens;
+    }
+
+    public void setIndexReversedTokens(boolean indexReversedTokens) {
+        this.indexReversedTokens = indexReversedTokens;
+    }
+
+    public boolean isIndexTrigrams() {
+        return indexTrigrams;
+    }
+
+    public void setIndexTrigrams(boolean indexTrigrams) {
+        this.indexTrigrams = indexTrigrams;
+    }
+
+    public boolean isFederatedSearch() {
+        return federatedSearch;
+    }
+
+    public void setFederatedSearch(boolean federatedSearch) {
+        this.federatedSearch = federatedSearch;
+    }
+
+    public int getSlowQueryThreshold() {
+        return slowQueryThreshold;
+    }
+
+    public void setSlowQueryThreshold(int slowQueryThreshold) {
+        this.slowQueryThreshold = slowQueryThreshold;
+    }
+
+    public int getSearchWarmupQueries() {
+        return searchWarmupQueries;
+    }
+
+    public void setSearchWarmupQueries(int searchWarmupQueries) {
+        this.searchWarmupQueries = searchWarmupQueries;
+    }
+
+    public int getSearchWarmupTimeout() {
+        return searchWarmupTimeout;
+    }
+
+    public void setSearchWarmupTimeout(int searchWarmupTimeout) {
+        this.searchWarmupTimeout = searchWarmupTimeout;
+    }
+
+    public boolean isHistoryIndex() {
+        return historyIndex;
+    }
+
+    public void setHistoryIndex(boolean historyIndex) {
+        this.historyIndex = historyIndex;
+    }
+
+    public int getHistoryCacheBatchSize() {
+        return historyCacheBatchSize;
+    }
+
+    public void setHistoryCacheBatchSize(int historyCacheBatchSize) {
+        this.historyCacheBatchSize = historyCacheBatchSize;
+    }
+
+    public int getHistoryMemoryCacheSize() {
+        return historyMemoryCacheSize;
+    }
+
+    public void setHistoryMemoryCacheSize(int historyMemoryCacheSize) {
+        this.historyMemoryCacheSize = historyMemoryCacheSize;
+    }
+
+    public int getAnnotationCacheSize() {
+        return annotationCacheSize;
+    }
+
+    public void setAnnotationCacheSize(int annotationCacheSize) {
+        this.annotationCacheSize = annotationCacheSize;
+    }
+
+    public int getCompletionCacheSize() {
+        return completionCacheSize;
+    }
+
+    public void setCompletionCacheSize(int completionCacheSize) {
+        this.completionCacheSize = completionCacheSize;
+    }
+
+    public boolean isPrecomputeAnnotations() {
+        return precomputeAnnotations;
+    }
+
+    public void setPrecomputeAnnotations(boolean precomputeAnnotations) {
+        this.precomputeAnnotations = precomputeAnnotations;
+    }
+
     /**
      * Should the history log be cached?
      *
@@ -317,6 +525,30 @@ public final class Configuration {
         this.historyCacheInDB = historyCacheInDB;
     }
 
+    /**
+     * Should the history cache be stored in an embedded log-structured store
+     * below the data root? If yes, and the history cache is not stored in a
+     * database, {@code LogHistoryCache} will be used to cache the history.
+     *
+     * @return whether the history cache should be stored in a log-structured
+     * store
+     */
+    public boolean isHistoryCacheInLogStore() {
+        return historyCacheInLogStore;
+    }
+
+    /**
+     * Set whether the history cache should be stored in an embedded
+     * log-structured store, and {@code LogHistoryCache} should be used
+     * instead of {@code FileHistoryCache}.
+     *
+     * @param historyCacheInLogStore whether the history cache should be
+     * stored in a log-structured store
+     */
+    public void setHistoryCacheInLogStore(boolean historyCacheInLogStore) {
+        this.historyCacheInLogStore = historyCacheInLogStore;
+    }
+
     public List<Project> getProjects() {
         return projects;
     }
@@ -30,23 +30,44 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.NoLockFactory;
 import org.opensolaris.opengrok.OpenGrokLogger;
 import org.opensolaris.opengrok.history.HistoryGuru;
 import org.opensolaris.opengrok.history.RepositoryInfo;
 import org.opensolaris.opengrok.index.Filter;
+import org.opensolaris.opengrok.index.HistoryIndex;
 import org.opensolaris.opengrok.index.IgnoredNames;
+import org.opensolaris.opengrok.index.IndexGenerations;
 import org.opensolaris.opengrok.util.Executor;
 import org.opensolaris.opengrok.util.IOUtils;
+import org.opensolaris.opengrok.web.SearcherWarmer;
 
 /**
  * The RuntimeEnvironment class is used as a placeholder for the current
@@ -58,6 +79,17 @@ public final class RuntimeEnvironment {
     private final ThreadLocal<Configuration> threadConfig;
     private static final Logger log = Logger.getLogger(RuntimeEnvironment.class.getName());
     private static RuntimeEnvironment instance = new RuntimeEnvironment();
+    private ExecutorService searchExecutor;
+    private final Map<File, SearcherManager> searcherManagers =
+            new HashMap<File, SearcherManager>();
+    /** the index generation read by the managers in {@link #searcherManagers} */
+    private final Map<File, File> searcherGenerations = new HashMap<File, File>();
+    /**
+     * the searcher managers currently being opened, keyed by the index
+     * generation they read. Guarded by the lock on {@link #searcherManagers}.
+     */
+    private final Map<File, FutureTask<SearcherManager>> openingManagers =
+            new HashMap<File, FutureTask<SearcherManager>>();
 
     /**
      * Get the one and only instance of the RuntimeEnvironment
@@ -287,6 +319,536 @@ public final class RuntimeEnvironment {
         threadConfig.get().setHitsPerPage(hitsPerPage);
     }
 
+    /**
+     * Get the time the web application may spend on rendering the context of
+     * the hits shown on a result page.
+     *
+     * @return the deadline in milliseconds, or {@code <= 0} if the context
+     * should be rendered sequentially without a deadline.
+     */
+    public int getSearchContextTimeout() {
+        return threadConfig.get().getSearchContextTimeout();
+    }
+
+    /**
+     * Set the time the web application may spend on rendering the context of
+     * the hits shown on a result page.
+     *
+     * @param timeout deadline in milliseconds. Use {@code 0} to render the
+     * context sequentially without a deadline.
+     */
+    public void setSearchContextTimeout(int timeout) {
+        threadConfig.get().setSearchContextTimeout(timeout);
+    }
+
+    /**
+     * Get the time a single search may take in the web application. If a
+     * search takes longer, it gets stopped and the hits found so far are
+     * shown.
+     *
+     * @return the time limit in milliseconds, or {@code <= 0} if searches are
+     * not limited.
+     */
+    public int getSearchTimeout() {
+        return threadConfig.get().getSearchTimeout();
+    }
+
+    /**
+     * Set the time a single search may take in the web application.
+     *
+     * @param timeout time limit in milliseconds. Use {@code 0} to disable.
+     */
+    public void setSearchTimeout(int timeout) {
+        threadConfig.get().setSearchTimeout(timeout);
+    }
+
+    /**
+     * Get the max. number of distinct terms a single wildcard or prefix query
+     * may expand to. If a query matches more terms, the remaining ones are
+     * ignored and the search result is marked as truncated.
+     *
+     * @return the max. number of terms, or {@code <= 0} if there is no limit.
+     */
+    public int getMaxExpandedTerms() {
+        return threadConfig.get().getMaxExpandedTerms();
+    }
+
+    /**
+     * Set the max. number of distinct terms a single wildcard or prefix query
+     * may expand to. Note that the limit can't exceed the max. number of
+     * clauses lucene allows for a boolean query (1024 by default).
+     *
+     * @param maxTerms max. number of terms. Use {@code 0} to disable.
+     */
+    public void setMaxExpandedTerms(int maxTerms) {
+        threadConfig.get().setMaxExpandedTerms(maxTerms);
+    }
+
+    /**
+     * Should the indexer add the reversed tokens of the full, defs and refs
+     * fields to the index? Queries with a leading (but no trailing) wildcard
+     * get answered using these fields, if all segments of the index have
+     * them.
+     *
+     * @return {@code true} if reversed tokens should be indexed
+     */
+    public boolean isIndexReversedTokens() {
+        return threadConfig.get().isIndexReversedTokens();
+    }
+
+    /**
+     * Set whether the indexer should add the reversed tokens of the full,
+     * defs and refs fields to the index. Existing documents get re-added on
+     * the next index update, if enabled.
+     *
+     * @param indexReversedTokens {@code true} to index reversed tokens
+     */
+    public void setIndexReversedTokens(boolean indexReversedTokens) {
+        threadConfig.get().setIndexReversedTokens(indexReversedTokens);
+    }
+
+    /**
+     * Should the indexer add the trigrams of plain text files to the index?
+     * They are required for regular expression searches.
+     *
+     * @return {@code true} if trigrams should be indexed
+     */
+    public boolean isIndexTrigrams() {
+        return threadConfig.get().isIndexTrigrams();
+    }
+
+    /**
+     * Set whether the indexer should add the trigrams of plain text files to
+     * the index. Existing documents get re-added on the next index update,
+     * if enabled.
+     *
+     * @param indexTrigrams {@code true} to index trigrams
+     */
+    public void setIndexTrigrams(boolean indexTrigrams) {
+        threadConfig.get().setIndexTrigrams(indexTrigrams);
+    }
+
+    /**
+     * Should searches over multiple projects search each project index on
+     * its own? The indexes get searched in parallel and only the top hits of
+     * each get merged, which also yields the number of hits per project.
+     * Relevance scores are computed per project in this mode.
+     *
+     * @return {@code true} if federated search is enabled
+     */
+    public boolean isFederatedSearch() {
+        return threadConfig.get().isFederatedSearch();
+    }
+
+    /**
+     * Set whether searches over multiple projects should search each project
+     * index on its own.
+     *
+     * @param federatedSearch {@code true} to enable federated search
+     */
+    public void setFederatedSearch(boolean federatedSearch) {
+        threadConfig.get().setFederatedSearch(federatedSearch);
+    }
+
+    /**
+     * Should the history be indexed per changeset in a separate index (see
+     * {@link org.opensolaris.opengrok.index.HistoryIndex})? If so, the
+     * {@code hist} field is not added to the documents of files, and
+     * history searches are answered from the separate index.
+     *
+     * @return {@code true} if the history index is used
+     */
+    public boolean isHistoryIndex() {
+        return threadConfig.get().isHistoryIndex();
+    }
+
+    /**
+     * Set whether the history should be indexed per changeset in a separate
+     * index. The index gets filled when the history cache is created or
+     * updated, so the history cache needs to be recreated after enabling it.
+     *
+     * @param historyIndex {@code true} to use the history index
+     */
+    public void setHistoryIndex(boolean historyIndex) {
+        threadConfig.get().setHistoryIndex(historyIndex);
+    }
+
+    /**
+     * Get the time a search may take before it gets logged with its phase
+     * breakdown to the slow query log (see
+     * {@link org.opensolaris.opengrok.search.SearchStatistics}).
+     *
+     * @return the threshold in milliseconds, or {@code <= 0} if slow queries
+     * are not logged.
+     */
+    public int getSlowQueryThreshold() {
+        return threadConfig.get().getSlowQueryThreshold();
+    }
+
+    /**
+     * Set the time a search may take before it gets logged to the slow query
+     * log.
+     *
+     * @param threshold threshold in milliseconds. Use {@code 0} to disable.
+     */
+    public void setSlowQueryThreshold(int threshold) {
+        threadConfig.get().setSlowQueryThreshold(threshold);
+    }
+
+    /**
+     * Get the max. number of recent queries, which get replayed to warm up
+     * a newly opened index searcher before it is used by requests (see
+     * {@link org.opensolaris.opengrok.web.SearcherWarmer}).
+     *
+     * @return the number of queries, or {@code <= 0} if searchers are not
+     * warmed up.
+     */
+    public int getSearchWarmupQueries() {
+        return threadConfig.get().getSearchWarmupQueries();
+    }
+
+    /**
+     * Set the max. number of recent queries, which get replayed to warm up
+     * a newly opened index searcher.
+     *
+     * @param queries number of queries. Use {@code 0} to disable warm-up.
+     */
+    public void setSearchWarmupQueries(int queries) {
+        threadConfig.get().setSearchWarmupQueries(queries);
+    }
+
+    /**
+     * Get the max. time spent on warming up a newly opened index searcher.
+     * Replays still running once it is over get stopped, and the remaining
+     * ones are skipped.
+     *
+     * @return the time in milliseconds, or {@code <= 0} if the warm-up is
+     * not limited.
+     */
+    public int getSearchWarmupTimeout() {
+        return threadConfig.get().getSearchWarmupTimeout();
+    }
+
+    /**
+     * Set the max. time spent on warming up a newly opened index searcher.
+     *
+     * @param timeout time in milliseconds. Use {@code 0} for no limit.
+     */
+    public void setSearchWarmupTimeout(int timeout) {
+        threadConfig.get().setSearchWarmupTimeout(timeout);
+    }
+
+    /**
+     * Get the executor shared by all searches of this execution context. It
+     * gets used to search multiple index databases in parallel as well as to
+     * render the context of search results. The executor gets created on the
+     * first call and lives until {@link #shutdownSearchExecutor()} gets
+     * called.
+     *
+     * @return the shared executor
+     */
+    public synchronized ExecutorService getSearchExecutor() {
+        if (searchExecutor == null) {
+            //TODO there might be a better way for counting this
+            int noThreads = 2 + (2 * Runtime.getRuntime().availableProcessors());
+            searchExecutor = Executors.newFixedThreadPool(noThreads,
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r,
+                                    "search-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return searchExecutor;
+    }
+
+    /**
+     * Shutdown the executor shared by all searches (if any). A subsequent call
+     * to {@link #getSearchExecutor()} creates a new one.
+     */
+    public synchronized void shutdownSearchExecutor() {
+        if (searchExecutor != null) {
+            searchExecutor.shutdownNow();
+            searchExecutor = null;
+        }
+    }
+
+    /**
+     * Acquire a searcher of the given index directory. The searchers are
+     * shared by all users of this execution context, so that index readers
+     * do not need to be opened per request. Each index directory gets a
+     * searcher manager, which gets created on the first call and refreshed to
+     * the latest commit of the index on each call. If a new generation of the
+     * index has been published (see {@link IndexGenerations}), a new manager
+     * replaces the current one, whose generation gets removed once its last
+     * searcher has been released. New searchers get warmed up by the
+     * {@link SearcherWarmer} before they are handed out; this does not block
+     * callers asking for other indexes. The searcher must be given back via
+     * {@link #releaseSearcher(IndexSearcher)}.
+     *
+     * @param indexDir the directory containing the index
+     * @return {@code null} if there is no index in the given directory,
+     * a searcher of the latest commit of the index otherwise.
+     * @throws IOException if the index could not be opened or refreshed
+     */
+    public IndexSearcher acquireSearcher(File indexDir) throws IOException {
+        for (;;) {
+            SearcherManager mgr = getSearcherManager(indexDir);
+            if (mgr == null) {
+                return null;
+            }
+            try {
+                mgr.maybeRefresh();
+            } catch (AlreadyClosedException e) {
+                // retired by another caller in the meantime
+                continue;
+            } catch (IOException e) {
+                File generation;
+                synchronized (searcherManagers) {
+                    generation = searcherManagers.get(indexDir) == mgr
+                            ? searcherGenerations.get(indexDir) : null;
+                }
+                if (generation != null && isCurrent(indexDir, generation)) {
+                    throw e;
+                }
+                // The generation of the manager has been replaced and
+                // removed, the next lookup retires the manager.
+                continue;
+            }
+            synchronized (searcherManagers) {
+                // Managers only get closed after they have been removed from
+                // the map, so the current one can be acquired safely.
+                if (searcherManagers.get(indexDir) == mgr) {
+                    return mgr.acquire();
+                }
+            }
+        }
+    }
+
+    /**
+     * Give back a searcher obtained via {@link #acquireSearcher(File)}. The
+     * searcher must not be used afterwards.
+     *
+     * @param searcher the searcher to release
+     * @throws IOException if the index reader of a retired searcher could
+     * not be closed
+     */
+    public void releaseSearcher(IndexSearcher searcher) throws IOException {
+        // the same as SearcherManager.release(), which works whether the
+        // manager has been closed or not
+        searcher.getIndexReader().decRef();
+    }
+
+    /**
+     * Get the current searcher manager of the given index directory, and
+     * create it if needed. The manager may get retired by other callers any
+     * time after it has been returned, so only
+     * {@link #acquireSearcher(File)} may use it.
+     *
+     * @return {@code null} if there is no index in the given directory
+     */
+    private SearcherManager getSearcherManager(File indexDir)
+            throws IOException {
+        for (;;) {
+            File generation = IndexGenerations.getCurrent(indexDir);
+            try {
+                SearcherManager mgr = getSearcherManager(indexDir, generation);
+                if (mgr != null || isCurrent(indexDir, generation)) {
+                    return mgr;
+                }
+            } catch (IOException e) {
+                if (isCurrent(indexDir, generation)) {
+                    throw e;
+                }
+            }
+            // The generation has been replaced and removed while opening
+            // it, so try the new one.
+        }
+    }
+
+    /**
+     * Check whether the given generation is still the current one of an
+     * index directory.
+     */
+    private static boolean isCurrent(File indexDir, File generation) {
+        return generation.equals(IndexGenerations.getCurrent(indexDir));
+    }
+
+    /**
+     * Get the searcher manager of the given index directory, and create it
+     * for the given generation if needed. Only one caller opens and warms up
+     * the manager of a generation, concurrent callers wait for it.
+     */
+    private SearcherManager getSearcherManager(final File indexDir,
+            final File generation) throws IOException {
+        SearcherManager mgr;
+        SearcherManager retired = null;
+        File retiredGeneration = null;
+        FutureTask<SearcherManager> task = null;
+        boolean owner = false;
+        synchronized (searcherManagers) {
+            mgr = searcherManagers.get(indexDir);
+            if (mgr != null
+                    && !generation.equals(searcherGenerations.get(indexDir))) {
+                retired = mgr;
+                retiredGeneration = searcherGenerations.get(indexDir);
+                searcherManagers.remove(indexDir);
+                searcherGenerations.remove(indexDir);
+                mgr = null;
+            }
+            if (mgr == null) {
+                task = openingManagers.get(generation);
+                if (task == null) {
+                    task = new FutureTask<SearcherManager>(
+                            new Callable<SearcherManager>() {
+
+                        @Override
+                        public SearcherManager call() throws IOException {
+                            return openAndPublish(indexDir, generation);
+                        }
+                    });
+                    openingManagers.put(generation, task);
+                    owner = true;
+                }
+            }
+        }
+        if (retired != null) {
+            retire(indexDir, retiredGeneration, retired);
+        }
+        if (mgr != null) {
+            return mgr;
+        }
+        if (owner) {
+            task.run();
+        }
+        return getOpened(task);
+    }
+
+    /**
+     * Open the searcher manager of an index generation, and publish it
+     * unless another caller has published one for the index directory in the
+     * meantime.
+     *
+     * @return the published manager, or {@code null} if there is no index in
+     * the given directory
+     */
+    private SearcherManager openAndPublish(File indexDir, File generation)
+            throws IOException {
+        SearcherManager mgr = null;
+        SearcherManager created = null;
+        try {
+            // Open and warm up the new searcher without holding the lock, so
+            // that searches of other indexes don't have to wait for it.
+            created = openSearcherManager(generation);
+        } finally {
+            synchronized (searcherManagers) {
+                openingManagers.remove(generation);
+                if (created != null) {
+                    mgr = searcherManagers.get(indexDir);
+                    if (mgr == null) {
+                        searcherManagers.put(indexDir, created);
+                        searcherGenerations.put(indexDir, generation);
+                        mgr = created;
+                        created = null;
+                    }
+                }
+            }
+        }
+        if (created != null) {
+            // Another caller has been faster. Its manager may read another
+            // generation, which gets sorted out by the next call.
+            created.close();
+        }
+        return mgr;
+    }
+
+    /**
+     * Open a searcher manager, which warms up its searchers, for the given
+     * index generation.
+     *
+     * @return {@code null} if there is no index in the given directory
+     */
+    private static SearcherManager openSearcherManager(File generation)
+            throws IOException {
+        FSDirectory dir = FSDirectory.open(generation,
+                NoLockFactory.getNoLockFactory());
+        if (!generation.exists() || !DirectoryReader.indexExists(dir)) {
+            dir.close();
+            return null;
+        }
+        return new SearcherManager(dir, SearcherWarmer.getInstance());
+    }
+
+    /**
+     * Wait for a searcher manager being opened by
+     * {@link #openSearcherManager(File)}.
+     */
+    private static SearcherManager getOpened(Future<SearcherManager> task)
+            throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while waiting for the index to be opened");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Close a searcher manager reading an index generation, which is not the
+     * current one anymore. The generation gets removed once the last searcher
+     * of the manager has been released.
+     */
+    private static void retire(final File indexDir, final File generation,
+            SearcherManager mgr) throws IOException {
+        IndexSearcher searcher = mgr.acquire();
+        try {
+            searcher.getIndexReader().addReaderClosedListener(
+                    new IndexReader.ReaderClosedListener() {
+
+                @Override
+                public void onClose(IndexReader reader) {
+                    IndexGenerations.retire(indexDir, generation);
+                }
+            });
+        } finally {
+            mgr.release(searcher);
+        }
+        mgr.close();
+    }
+
+    /**
+     * Close all searcher managers used by
+     * {@link #acquireSearcher(File)}, and the one of the
+     * {@link HistoryIndex}. Searchers currently in use stay valid until they
+     * get released.
+     */
+    public void closeSearcherManagers() {
+        synchronized (searcherManagers) {
+            for (SearcherManager mgr : searcherManagers.values()) {
+                IOUtils.close(mgr);
+            }
+            searcherManagers.clear();
+            searcherGenerations.clear();
+        }
+        HistoryIndex.close();
+    }
+
     /**
      * Validate that I have a Exuberant ctags program I may use
      *
@@ -366,6 +928,133 @@ public final class RuntimeEnvironment {
         threadConfig.get().setHistoryCacheInDB(store);
     }
 
+    /**
+     * Should the history cache be stored in an embedded log-structured store
+     * instead of in XML files? Has no effect if the cache is stored in a
+     * database.
+     *
+     * @return {@code true} if the cache should be stored in a log-structured
+     * store
+     */
+    public boolean storeHistoryCacheInLogStore() {
+        return threadConfig.get().isHistoryCacheInLogStore();
+    }
+
+    /**
+     * Set whether the history cache should be stored in an embedded
+     * log-structured store.
+     *
+     * @param store {@code true} if the cache should be stored in a
+     * log-structured store
+     */
+    public void setStoreHistoryCacheInLogStore(boolean store) {
+        threadConfig.get().setHistoryCacheInLogStore(store);
+    }
+
+    /**
+     * Get the number of changesets written to the database history cache
+     * at once, i.e. per JDBC batch and per transaction.
+     *
+     * @return the number of changesets per batch
+     */
+    public int getHistoryCacheBatchSize() {
+        return threadConfig.get().getHistoryCacheBatchSize();
+    }
+
+    /**
+     * Set the number of changesets written to the database history cache
+     * at once. If writing a batch fails, the whole batch gets retried.
+     *
+     * @param size the number of changesets per batch
+     */
+    public void setHistoryCacheBatchSize(int size) {
+        threadConfig.get().setHistoryCacheBatchSize(size);
+    }
+
+    /**
+     * Get the max. size of the history kept in memory by the database
+     * history cache, so that frequently requested history does not need to
+     * be queried again.
+     *
+     * @return the max. size in MB, {@code <= 0} if nothing is kept in memory
+     */
+    public int getHistoryMemoryCacheSize() {
+        return threadConfig.get().getHistoryMemoryCacheSize();
+    }
+
+    /**
+     * Set the max. size of the history kept in memory by the database
+     * history cache. The setting is read when the cache gets created.
+     *
+     * @param size the max. size in MB, {@code <= 0} to keep nothing in
+     * memory
+     */
+    public void setHistoryMemoryCacheSize(int size) {
+        threadConfig.get().setHistoryMemoryCacheSize(size);
+    }
+
+    /**
+     * Get the max. size of the annotations kept on disk below the data root,
+     * so that files don't need to be annotated again by the SCM.
+     *
+     * @return the max. size in MB, {@code <= 0} if annotations are not
+     * cached
+     */
+    public int getAnnotationCacheSize() {
+        return threadConfig.get().getAnnotationCacheSize();
+    }
+
+    /**
+     * Set the max. size of the annotations kept on disk.
+     *
+     * @param size the max. size in MB, {@code <= 0} to not cache annotations
+     */
+    public void setAnnotationCacheSize(int size) {
+        threadConfig.get().setAnnotationCacheSize(size);
+    }
+
+    /**
+     * Get the max. number of completion FSTs kept in memory by the webapp.
+     *
+     * @return the max. number of FSTs, {@code <= 0} if there should be room
+     * for the FSTs of all projects
+     */
+    public int getCompletionCacheSize() {
+        return threadConfig.get().getCompletionCacheSize();
+    }
+
+    /**
+     * Set the max. number of completion FSTs kept in memory by the webapp.
+     *
+     * @param size the max. number of FSTs, {@code <= 0} to make room for the
+     * FSTs of all projects
+     */
+    public void setCompletionCacheSize(int size) {
+        threadConfig.get().setCompletionCacheSize(size);
+    }
+
+    /**
+     * Should the indexer annotate the current revisions of the files it
+     * indexes, and add the annotations to the annotation cache? Has no effect
+     * if annotations are not cached.
+     *
+     * @return {@code true} if the annotations should be precomputed
+     */
+    public boolean isPrecomputeAnnotations() {
+        return threadConfig.get().isPrecomputeAnnotations();
+    }
+
+    /**
+     * Set whether the indexer should precompute the annotations of the
+     * current revisions.
+     *
+     * @param precompute {@code true} if the annotations should be
+     * precomputed
+     */
+    public void setPrecomputeAnnotations(boolean precompute) {
+        threadConfig.get().setPrecomputeAnnotations(precompute);
+    }
+
     /**
      * Should we generate HTML or not during the indexing phase
      *
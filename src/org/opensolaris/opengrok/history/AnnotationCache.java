@@ -0,0 +1,353 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.opensolaris.opengrok.OpenGrokLogger;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+
+/**
+ * A disk based LRU cache for annotations, so that the SCM does not need to
+ * annotate a file again for each request. The annotations are stored below
+ * the data root, one compressed file per source file and revision. The
+ * total size of the files is bounded by
+ * {@link RuntimeEnvironment#getAnnotationCacheSize()}; when it gets exceeded,
+ * the least recently used annotations are removed.
+ * <p>
+ * Annotations of the current revision ({@code null}) are stored with the
+ * modification time of the source file, and are ignored once the file has
+ * changed. Annotations of other revisions never change, as long as the
+ * revision identifies a changeset. Symbolic revisions like {@code HEAD},
+ * {@code tip} or branch names don't, so their annotations are not cached.
+ * <p>
+ * Other processes, e.g. the indexer precomputing annotations, may add files
+ * to the cache as well. They get counted once they are read, or when the
+ * cache directory gets read again after {@link #RELOAD_INTERVAL}.
+ * <p>
+ * Only the lines of the annotations get cached. The descriptions of the
+ * revisions come from the history cache.
+ */
+final class AnnotationCache {
+
+    /** version of the format of the cache files */
+    private static final int VERSION = 1;
+    private static final String HEAD = "head";
+    /**
+     * Revisions which identify a changeset: numbers like {@code 42} or
+     * {@code 1.3.2.1} (Subversion, CVS, RCS, SCCS), {@code local:hash}
+     * (Mercurial) and hashes (Git, Mercurial, Monotone).
+     */
+    private static final Pattern CHANGESET_ID = Pattern.compile(
+            "\\d+(\\.\\d+)*|\\d+:[0-9a-fA-F]+|[0-9a-fA-F]{7,}");
+    /**
+     * time in milliseconds after which the cache directory gets read again,
+     * to account for the files added and removed by other processes
+     */
+    static final long RELOAD_INTERVAL = 10 * 60 * 1000;
+
+    /** the directory of the cache the access order was read for */
+    private File root;
+    /** the sizes of the cache files, least recently used first */
+    private LinkedHashMap<File, Long> files =
+            new LinkedHashMap<File, Long>(256, 0.75f, true);
+    /** the total size of {@link #files} */
+    private long size;
+    /** when the cache directory has been read the last time */
+    private long loaded;
+
+    /**
+     * Get the root directory of the cache.
+     *
+     * @return the directory, or {@code null} if annotations should not be
+     * cached
+     */
+    private static File getRoot() {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        if (env.getAnnotationCacheSize() <= 0
+                || env.getDataRootPath() == null) {
+            return null;
+        }
+        return new File(env.getDataRootFile(), "annotationcache");
+    }
+
+    /**
+     * Check whether the annotation of a revision can be cached, i.e. whether
+     * the revision is the current one or identifies a changeset.
+     */
+    static boolean isCacheable(String revision) {
+        return revision == null || CHANGESET_ID.matcher(revision).matches();
+    }
+
+    /**
+     * Get the cache file for a revision of a file.
+     */
+    private static File getCacheFile(File root, File file, String revision)
+            throws IOException {
+        String path = RuntimeEnvironment.getInstance()
+                .getPathRelativeToSourceRoot(file, 0);
+        String name = revision == null ? HEAD
+                : "r-" + URLEncoder.encode(revision, "UTF-8");
+        return new File(new File(root, path), name);
+    }
+
+    /**
+     * Get a cached annotation.
+     *
+     * @param file the annotated file
+     * @param revision the annotated revision, or {@code null} for the
+     * current revision
+     * @return the annotation, or {@code null} if it is not in the cache
+     */
+    Annotation get(File file, String revision) {
+        File root = getRoot();
+        if (root == null || !isCacheable(revision)) {
+            return null;
+        }
+        try {
+            File cacheFile = getCacheFile(root, file, revision);
+            Annotation annotation = read(file, revision, cacheFile);
+            if (annotation != null) {
+                used(root, cacheFile);
+            }
+            return annotation;
+        } catch (IOException e) {
+            OpenGrokLogger.getLogger().log(Level.WARNING,
+                    "Failed to read cached annotation of " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Add an annotation to the cache. Empty annotations are not cached,
+     * since most SCMs report failures by writing nothing to the output, and
+     * a failed annotation should not be served until the file changes.
+     *
+     * @param file the annotated file
+     * @param revision the annotated revision, or {@code null} for the
+     * current revision
+     * @param annotation the annotation
+     */
+    void put(File file, String revision, Annotation annotation) {
+        File root = getRoot();
+        if (root == null || annotation.size() == 0
+                || !isCacheable(revision)) {
+            return;
+        }
+        try {
+            long lastModified = revision == null ? file.lastModified() : 0;
+            File cacheFile = getCacheFile(root, file, revision);
+            File dir = cacheFile.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Could not create directory " + dir);
+            }
+            // Write to a temporary file first, so that readers never see a
+            // partially written annotation.
+            File tmp = File.createTempFile(cacheFile.getName(), ".tmp", dir);
+            try {
+                write(annotation, lastModified, tmp);
+                if (!tmp.renameTo(cacheFile)) {
+                    // some platforms don't replace existing files
+                    if (!cacheFile.delete() || !tmp.renameTo(cacheFile)) {
+                        throw new IOException("Could not rename " + tmp
+                                + " to " + cacheFile);
+                    }
+                }
+            } finally {
+                if (tmp.exists() && !tmp.delete()) {
+                    OpenGrokLogger.getLogger().log(Level.WARNING,
+                            "Could not remove {0}", tmp);
+                }
+            }
+            added(root, cacheFile, cacheFile.length());
+        } catch (IOException e) {
+            OpenGrokLogger.getLogger().log(Level.WARNING,
+                    "Failed to cache annotation of " + file, e);
+        }
+    }
+
+    /**
+     * Mark a file read from the cache as recently used. Files written by
+     * other processes get counted when they are seen for the first time.
+     */
+    private synchronized void used(File root, File cacheFile) {
+        ensureLoaded(root);
+        if (files.get(cacheFile) == null) {
+            long length = cacheFile.length();
+            files.put(cacheFile, length);
+            size += length;
+        }
+    }
+
+    /**
+     * Remember a file added to the cache, and remove the least recently used
+     * files if the cache has become too big.
+     */
+    private synchronized void added(File root, File cacheFile, long length) {
+        ensureLoaded(root);
+        Long old = files.put(cacheFile, length);
+        size += length - (old == null ? 0 : old);
+        long maxSize = RuntimeEnvironment.getInstance()
+                .getAnnotationCacheSize() * 1024L * 1024L;
+        for (Iterator<Map.Entry<File, Long>> it = files.entrySet().iterator();
+                size > maxSize && it.hasNext();) {
+            Map.Entry<File, Long> eldest = it.next();
+            it.remove();
+            size -= eldest.getValue();
+            if (!eldest.getKey().delete() && eldest.getKey().exists()) {
+                OpenGrokLogger.getLogger().log(Level.WARNING,
+                        "Could not remove {0}", eldest.getKey());
+            }
+        }
+    }
+
+    /**
+     * Read the files of the given cache directory, if they have not been
+     * read yet or not for {@link #RELOAD_INTERVAL}.
+     */
+    private void ensureLoaded(File root) {
+        long now = System.currentTimeMillis();
+        if (!root.equals(this.root) || now - loaded > RELOAD_INTERVAL) {
+            load(root);
+            loaded = now;
+        }
+    }
+
+    /**
+     * Read the files of a cache. Since the access times are not stored, the
+     * files written least recently are considered least recently used,
+     * unless this instance has used them since.
+     */
+    private void load(File root) {
+        LinkedHashMap<File, Long> used = root.equals(this.root) ? files
+                : new LinkedHashMap<File, Long>();
+        this.root = root;
+        files = new LinkedHashMap<File, Long>(256, 0.75f, true);
+        size = 0;
+        List<File> list = new ArrayList<File>();
+        list(root, list);
+        final Map<File, Long> times = new LinkedHashMap<File, Long>();
+        for (File f : list) {
+            times.put(f, f.lastModified());
+        }
+        Collections.sort(list, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return times.get(f1).compareTo(times.get(f2));
+            }
+        });
+        for (File f : list) {
+            long length = f.length();
+            files.put(f, length);
+            size += length;
+        }
+        for (File f : used.keySet()) {
+            // mark it as recently used, if it still exists
+            files.get(f);
+        }
+    }
+
+    private static void list(File dir, List<File> list) {
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File f : children) {
+                if (f.isDirectory()) {
+                    list(f, list);
+                } else if (!f.getName().endsWith(".tmp")) {
+                    list.add(f);
+                }
+            }
+        }
+    }
+
+    private static void write(Annotation annotation, long lastModified,
+            File cacheFile) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(cacheFile))));
+        try {
+            out.writeInt(VERSION);
+            out.writeLong(lastModified);
+            out.writeInt(annotation.size());
+            for (int i = 1; i <= annotation.size(); i++) {
+                out.writeUTF(annotation.getRevision(i));
+                out.writeUTF(annotation.getAuthor(i));
+                out.writeBoolean(annotation.isEnabled(i));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read an annotation from a cache file.
+     *
+     * @return the annotation, or {@code null} if the file does not exist or
+     * is out of date
+     */
+    private static Annotation read(File file, String revision, File cacheFile)
+            throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new GZIPInputStream(new FileInputStream(cacheFile))));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            long lastModified = in.readLong();
+            if (revision == null && lastModified != file.lastModified()) {
+                return null;
+            }
+            Annotation annotation = new Annotation(file.getName());
+            for (int lines = in.readInt(); lines > 0; lines--) {
+                annotation.addLine(in.readUTF(), in.readUTF(),
+                        in.readBoolean());
+            }
+            return annotation;
+        } finally {
+            in.close();
+        }
+    }
+}
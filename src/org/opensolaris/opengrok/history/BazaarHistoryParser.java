@@ -31,6 +31,7 @@ import java.io.InputStreamReader;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.logging.Level;
@@ -46,6 +47,14 @@ class BazaarHistoryParser implements Executor.StreamHandler {
     private String myDir;
     private List<HistoryEntry> entries = new ArrayList<HistoryEntry>(); //NOPMD
     private BazaarRepository repository=new BazaarRepository(); //NOPMD
+    /** receives the history in chunks, if it is read in chronological order */
+    private HistoryChunkHandler handler;
+    private int chunkSize;
+    private int chunks;
+    /** the revision expected first in a chronological log, if any */
+    private String since;
+    /** the error reported by {@link #handler}, if any */
+    private HistoryException failure;
 
     BazaarHistoryParser(BazaarRepository repository) {
         this.repository = repository;
@@ -53,10 +62,63 @@ class BazaarHistoryParser implements Executor.StreamHandler {
     }
 
     History parse(File file, String sinceRevision) throws HistoryException {
+        read(file, sinceRevision, false);
+
+        // If a changeset to start from is specified, remove that changeset
+        // from the list, since only the ones following it should be returned.
+        // Also check that the specified changeset was found, otherwise throw
+        // an exception.
+        if (sinceRevision != null) {
+            repository.removeAndVerifyOldestChangeset(entries, sinceRevision);
+        }
+
+        return new History(entries);
+    }
+
+    /**
+     * Parse the history of a file or directory in chronological order, and
+     * pass it to a handler in chunks while it is being read.
+     *
+     * @param file the file or directory to parse history for
+     * @param sinceRevision the revision right before the first one to read,
+     * or {@code null} to read the full history
+     * @param chunkSize the max. number of changesets in a chunk
+     * @param handler the handler to pass the chunks to
+     * @throws HistoryException if the history cannot be read, or if the
+     * handler fails
+     */
+    void parse(File file, String sinceRevision, int chunkSize,
+            HistoryChunkHandler handler) throws HistoryException {
+        this.handler = handler;
+        this.chunkSize = chunkSize;
+        since = sinceRevision;
+        read(file, sinceRevision, true);
+
+        if (since != null) {
+            // the log is empty, so the revision was not found
+            repository.removeAndVerifyOldestChangeset(entries, since);
+        }
+        // The last chunk is only passed on once the log has been read
+        // successfully, so that a failing command doesn't leave an empty
+        // history behind.
+        if (chunks == 0 || !entries.isEmpty()) {
+            flush();
+        }
+    }
+
+    /**
+     * Run the log command and parse its output.
+     */
+    private void read(File file, String sinceRevision, boolean reverse)
+            throws HistoryException {
         try {
-            Executor executor = repository.getHistoryLogExecutor(file, sinceRevision);
+            Executor executor =
+                    repository.getHistoryLogExecutor(file, sinceRevision, reverse);
             int status = executor.exec(true, this);
 
+            if (failure != null) {
+                throw failure;
+            }
             if (status != 0) {
                 throw new HistoryException("Failed to get history for: \"" +
                                            file.getAbsolutePath() + "\" Exit code: " + status);
@@ -65,16 +127,49 @@ class BazaarHistoryParser implements Executor.StreamHandler {
             throw new HistoryException("Failed to get history for: \"" +
                                        file.getAbsolutePath() + "\"", e);
         }
+    }
 
-        // If a changeset to start from is specified, remove that changeset
-        // from the list, since only the ones following it should be returned.
-        // Also check that the specified changeset was found, otherwise throw
-        // an exception.
-        if (sinceRevision != null) {
-            repository.removeAndVerifyOldestChangeset(entries, sinceRevision);
+    /**
+     * Add a changeset to the list of changesets read. If the history is
+     * passed to a handler, the changesets get passed on once there are
+     * enough of them.
+     */
+    private void add(HistoryEntry entry) throws IOException {
+        if (handler == null) {
+            entries.add(entry);
+            return;
         }
+        try {
+            if (since != null) {
+                // The log starts with the revision right before the ones to
+                // read, check that it is the expected one.
+                List<HistoryEntry> first = new ArrayList<HistoryEntry>(1);
+                first.add(entry);
+                repository.removeAndVerifyOldestChangeset(first, since);
+                since = null;
+                return;
+            }
+            entries.add(entry);
+            if (entries.size() >= chunkSize) {
+                flush();
+            }
+        } catch (HistoryException e) {
+            // stop reading, parse() reports the error
+            failure = e;
+            throw new IOException("Failed to handle history", e);
+        }
+    }
 
-        return new History(entries);
+    /**
+     * Pass the changesets read to the handler, and remove them from the list.
+     */
+    private void flush() throws HistoryException {
+        // the log is in chronological order, but chunks are not
+        List<HistoryEntry> chunk = new ArrayList<HistoryEntry>(entries);
+        Collections.reverse(chunk);
+        entries.clear();
+        chunks++;
+        handler.handle(new History(chunk));
     }
 
     /**
@@ -97,7 +192,7 @@ class BazaarHistoryParser implements Executor.StreamHandler {
         while ((s = in.readLine()) != null) {
             if ("------------------------------------------------------------".equals(s)) {
                 if (entry != null && state > 2) {
-                    entries.add(entry);
+                    add(entry);
                 }
                 entry = new HistoryEntry();
                 entry.setActive(true);
@@ -171,7 +266,7 @@ class BazaarHistoryParser implements Executor.StreamHandler {
         }
 
         if (entry != null && state > 2) {
-            entries.add(entry);
+            add(entry);
         }
     }
 
@@ -60,6 +60,20 @@ public class BazaarRepository extends Repository {
      */
     Executor getHistoryLogExecutor(final File file, final String sinceRevision)
         throws IOException
+    {
+        return getHistoryLogExecutor(file, sinceRevision, false);
+    }
+
+    /**
+     * Get an executor to be used for retrieving the history log for the
+     * named file.
+     *
+     * @param file The file to retrieve history for
+     * @param reverse If {@code true}, the log is in chronological order
+     * @return An Executor ready to be started
+     */
+    Executor getHistoryLogExecutor(final File file, final String sinceRevision,
+            boolean reverse) throws IOException
     {
         String abs = file.getCanonicalPath();
         String filename = "";
@@ -75,6 +89,9 @@ public class BazaarRepository extends Repository {
         if (file.isDirectory()) {
            cmd.add("-v");
        }
+       if (reverse) {
+           cmd.add("--forward");
+       }
        cmd.add(filename);
 
        if (sinceRevision != null) {
@@ -269,6 +286,19 @@ public class BazaarRepository extends Repository {
         return getHistory(file, null);
     }
 
+    @Override
+    void streamHistory(File directory, String sinceRevision, int chunkSize,
+            HistoryChunkHandler handler) throws HistoryException {
+        if (RuntimeEnvironment.getInstance().isTagsEnabled()) {
+            // Tags get assigned to changesets from the most recent one, so
+            // the complete history is needed.
+            super.streamHistory(directory, sinceRevision, chunkSize, handler);
+        } else {
+            new BazaarHistoryParser(this).parse(directory, sinceRevision,
+                    chunkSize, handler);
+        }
+    }
+
     @Override
     boolean hasFileBasedTags() {
         return true;
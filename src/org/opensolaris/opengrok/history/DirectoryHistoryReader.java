@@ -35,7 +35,7 @@ import java.util.TreeSet;
 import java.util.logging.Level;
 import org.apache.lucene.document.DateTools;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
@@ -48,6 +48,7 @@ import org.opensolaris.opengrok.OpenGrokLogger;
 import org.opensolaris.opengrok.analysis.CompatibleAnalyser;
 import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 import org.opensolaris.opengrok.index.IndexDatabase;
+import org.opensolaris.opengrok.search.QueryBuilder;
 import org.opensolaris.opengrok.search.SearchEngine;
 
 /**
@@ -60,6 +61,22 @@ import org.opensolaris.opengrok.search.SearchEngine;
  */
 public class DirectoryHistoryReader {
 
+    /** max. number of files the history gets assembled from */
+    static final int MAX_RESULTS = 40;
+    /** max. number of paths whose history gets cached */
+    private static final int CACHE_SIZE = 100;
+    /** the history per path and the version of the index it was read from */
+    private static final Map<String, CachedHistory> cache =
+            new LinkedHashMap<String, CachedHistory>(CACHE_SIZE / 4, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, CachedHistory> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
     private final Map<Date, Map<String, Map<String, SortedSet<String>>>> hash =
             new LinkedHashMap<Date, Map<String, Map<String, SortedSet<String>>>>();
     Iterator<Date> diter;
@@ -71,82 +88,145 @@ public class DirectoryHistoryReader {
     HistoryEntry currentEntry;
     History history;
 
+    private static final class CachedHistory {
+
+        final long version;
+        final History history;
+
+        CachedHistory(long version, History history) {
+            this.version = version;
+            this.history = history;
+        }
+    }
+
+    /**
+     * Create the recent history of the given path. If the history cache can
+     * provide the latest changesets of the directory, they get used.
+     * Otherwise the history is assembled from the history of the
+     * {@value #MAX_RESULTS} most recently modified files below the path.
+     * The result gets cached until the index gets updated.
+     *
+     * @param path the source root relative path of the directory. Several
+     * paths may be given separated by a space.
+     * @throws IOException if the index could not be read
+     */
     public DirectoryHistoryReader(String path) throws IOException {
-        //TODO can we introduce paging here ???  this class is used just for rss.jsp !
-        int hitsPerPage = RuntimeEnvironment.getInstance().getHitsPerPage();
-        int cachePages = RuntimeEnvironment.getInstance().getCachePages();
-        IndexReader ireader = null;
-        IndexSearcher searcher;
+        File indexDir = IndexDatabase.getIndexDir(path);
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        IndexSearcher searcher =
+                indexDir == null ? null : env.acquireSearcher(indexDir);
+        if (searcher == null) {
+            throw new IOException("Could not locate index database");
+        }
         try {
-            String src_root = RuntimeEnvironment.getInstance().getSourceRootPath();
-            ireader = IndexDatabase.getIndexReader(path);
-            if (ireader == null) {
-                throw new IOException("Could not locate index database");
+            long version =
+                    ((DirectoryReader) searcher.getIndexReader()).getVersion();
+            synchronized (cache) {
+                CachedHistory cached = cache.get(path);
+                if (cached != null && cached.version == version) {
+                    history = cached.history;
+                    return;
+                }
             }
-            searcher = new IndexSearcher(ireader);
-            SortField sfield = new SortField("date", SortField.Type.STRING, true);
-            Sort sort = new Sort(sfield);
-            QueryParser qparser = new QueryParser(SearchEngine.LUCENE_VERSION, "path", new CompatibleAnalyser());
-            Query query;
-            ScoreDoc[] hits = null;
-            try {
-                query = qparser.parse(path);
-                TopFieldDocs fdocs = searcher.search(query, null, hitsPerPage * cachePages, sort);
-                fdocs = searcher.search(query, null, fdocs.totalHits, sort);
-                hits = fdocs.scoreDocs;
-            } catch (ParseException e) {
-                OpenGrokLogger.getLogger().log(Level.WARNING, "An error occured while parsing search query", e);
+            history = getLatestChangesets(path);
+            if (history == null) {
+                history = readFromIndex(searcher, path);
             }
-            if (hits != null) {
-                for (int i = 0; i < 40 && i < hits.length; i++) {
-                    int docId = hits[i].doc;
-                    Document doc = searcher.doc(docId);
-                    String rpath = doc.get("path");
-                    if (!rpath.startsWith(path)) {
-                        continue;
-                    }
-                    Date cdate;
-                    try {
-                        cdate = DateTools.stringToDate(doc.get("date"));
-                    } catch (java.text.ParseException ex) {
-                        OpenGrokLogger.getLogger().log(Level.WARNING, "Could not get date for " + path, ex);
-                        cdate = new Date();
-                    }
-                    int ls = rpath.lastIndexOf('/');
-                    if (ls != -1) {
-                        String rparent = rpath.substring(0, ls);
-                        String rbase = rpath.substring(ls + 1);
-                        History hist = null;
-                        try {
-                            File f = new File(src_root + rparent, rbase);
-                            hist = HistoryGuru.getInstance().getHistory(f);
-                        } catch (HistoryException e) {
-                            OpenGrokLogger.getLogger().log(Level.WARNING, "An error occured while getting history reader", e);
-                        }
-                        if (hist == null) {
-                            put(cdate, "-", "", rpath);
-                        } else {
-                            readFromHistory(hist, rpath);
-                        }
-                    }
-                }
+            synchronized (cache) {
+                cache.put(path, new CachedHistory(version, history));
             }
+        } finally {
+            env.releaseSearcher(searcher);
+        }
+    }
 
-            ArrayList<HistoryEntry> entries = new ArrayList<HistoryEntry>();
-            while (next()) {
-                entries.add(currentEntry);
-            }
+    /**
+     * Get the latest changesets of the given directory from the history
+     * cache.
+     *
+     * @return {@code null} if the history cache cannot provide them
+     */
+    private static History getLatestChangesets(String path) {
+        if (path.indexOf(' ') >= 0) {
+            return null;
+        }
+        File dir = new File(
+                RuntimeEnvironment.getInstance().getSourceRootFile(), path);
+        try {
+            return HistoryGuru.getInstance().getLatestHistory(dir, MAX_RESULTS);
+        } catch (HistoryException e) {
+            OpenGrokLogger.getLogger().log(Level.WARNING,
+                    "An error occured while getting the history of " + path, e);
+            return null;
+        }
+    }
 
-            history = new History(entries);
-        } finally {
-            if (ireader != null) {
+    /**
+     * Assemble the history from the most recently modified files below the
+     * given path. Only the top {@value #MAX_RESULTS} documents get collected,
+     * sorted by the per document date values if the index has them.
+     */
+    private History readFromIndex(IndexSearcher searcher, String path)
+            throws IOException {
+        String src_root = RuntimeEnvironment.getInstance().getSourceRootPath();
+        SortField sfield;
+        if (IndexDatabase.hasSortFields(searcher.getIndexReader())) {
+            sfield = new SortField(QueryBuilder.SORT_DATE, SortField.Type.INT, true);
+            sfield.setUseIndexValues(true);
+        } else {
+            sfield = new SortField(QueryBuilder.DATE, SortField.Type.STRING, true);
+        }
+        Sort sort = new Sort(sfield);
+        QueryParser qparser = new QueryParser(SearchEngine.LUCENE_VERSION, "path", new CompatibleAnalyser());
+        Query query;
+        ScoreDoc[] hits = null;
+        try {
+            query = qparser.parse(path);
+            TopFieldDocs fdocs = searcher.search(query, null, MAX_RESULTS, sort);
+            hits = fdocs.scoreDocs;
+        } catch (ParseException e) {
+            OpenGrokLogger.getLogger().log(Level.WARNING, "An error occured while parsing search query", e);
+        }
+        if (hits != null) {
+            for (int i = 0; i < hits.length; i++) {
+                int docId = hits[i].doc;
+                Document doc = searcher.doc(docId);
+                String rpath = doc.get("path");
+                if (!rpath.startsWith(path)) {
+                    continue;
+                }
+                Date cdate;
                 try {
-                    ireader.close();
-                } catch (Exception ex) {
-                    OpenGrokLogger.getLogger().log(Level.WARNING, "An error occured while closing reader", ex);
+                    cdate = DateTools.stringToDate(doc.get("date"));
+                } catch (java.text.ParseException ex) {
+                    OpenGrokLogger.getLogger().log(Level.WARNING, "Could not get date for " + path, ex);
+                    cdate = new Date();
+                }
+                int ls = rpath.lastIndexOf('/');
+                if (ls != -1) {
+                    String rparent = rpath.substring(0, ls);
+                    String rbase = rpath.substring(ls + 1);
+                    History hist = null;
+                    try {
+                        File f = new File(src_root + rparent, rbase);
+                        hist = HistoryGuru.getInstance().getHistory(f);
+                    } catch (HistoryException e) {
+                        OpenGrokLogger.getLogger().log(Level.WARNING, "An error occured while getting history reader", e);
+                    }
+                    if (hist == null) {
+                        put(cdate, "-", "", rpath);
+                    } else {
+                        readFromHistory(hist, rpath);
+                    }
                 }
             }
         }
+
+        ArrayList<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        while (next()) {
+            entries.add(currentEntry);
+        }
+        return new History(entries);
     }
 
     public History getHistory() {
@@ -23,23 +23,31 @@
 
 package org.opensolaris.opengrok.history;
 
-import java.beans.Encoder;
-import java.beans.Expression;
-import java.beans.PersistenceDelegate;
-import java.beans.XMLDecoder;
-import java.beans.XMLEncoder;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -48,15 +56,13 @@ import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 import org.opensolaris.opengrok.util.IOUtils;
 
 class FileHistoryCache implements HistoryCache {
-    private final Object lock = new Object();
-
-    static class FilePersistenceDelegate extends PersistenceDelegate {
-        @Override
-        protected Expression instantiate(Object oldInstance, Encoder out) {
-            File f = (File)oldInstance;
-            return new Expression(oldInstance, f.getClass(), "new", new Object[] {f.toString()});
-        }
-    }
+    /**
+     * Name of the file in the cache directory of a repository, which
+     * contains the latest revision in the cache.
+     */
+    private static final String LATEST_REV = "OpenGroklatestRev";
+    /** max. number of cache files written by one task */
+    private static final int STORE_BATCH_SIZE = 100;
 
     @Override
     public void initialize() {
@@ -74,6 +80,26 @@ class FileHistoryCache implements HistoryCache {
         return true;
     }
 
+    /**
+     * Get the directory containing the cache files of a repository.
+     *
+     * @param repository the repository
+     * @return the cache directory of the repository
+     */
+    private static File getRepositoryCacheDir(Repository repository)
+            throws HistoryException {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        File dir = new File(env.getDataRootFile(), "historycache");
+        try {
+            return new File(dir, env.getPathRelativeToSourceRoot(
+                    new File(repository.getDirectoryName()), 0));
+        } catch (IOException e) {
+            throw new HistoryException("Could not resolve "
+                    + repository.getDirectoryName()
+                    + " relative to source root", e);
+        }
+    }
+
     /**
      * Get a <code>File</code> object describing the cache file.
      *
@@ -103,72 +129,130 @@ class FileHistoryCache implements HistoryCache {
     }
 
     /**
-     * Read history from a file.
+     * Read history from a cache file. Cache files written by older versions
+     * in the XML format get rewritten in the binary format if read
+     * completely.
+     *
+     * @param file the file the history belongs to
+     * @param cache the cache file
+     * @param max the max. number of entries to read, {@code 0} for all
+     * @see HistoryCodec
      */
-    private static History readCache(File file) throws IOException {
-        final FileInputStream in = new FileInputStream(file);
+    private History readCache(File file, File cache, int max)
+            throws IOException {
+        final History history;
+        final boolean binary;
+        final FileInputStream in = new FileInputStream(cache);
         try {
-            XMLDecoder d = new XMLDecoder(
-                    new BufferedInputStream(new GZIPInputStream(in)));
-            Object obj = d.readObject();
-            d.close();
-            return (History) obj;
+            BufferedInputStream bin =
+                    new BufferedInputStream(new GZIPInputStream(in));
+            binary = HistoryCodec.hasHeader(bin);
+            history = HistoryCodec.read(bin, max);
         } finally {
             IOUtils.close(in);
         }
+        if (!binary && max == 0) {
+            try {
+                storeFile(history, file);
+            } catch (HistoryException e) {
+                OpenGrokLogger.getLogger().log(Level.WARNING,
+                        "Failed to convert history cache file " + cache, e);
+            }
+        }
+        return history;
     }
 
+    /**
+     * Store the history of a single file in its cache file.
+     */
     private void storeFile(History history, File file) throws HistoryException {
-
         File cache = getCachedFile(file);
-
         File dir = cache.getParentFile();
-        if (!dir.isDirectory() && !dir.mkdirs()) {
+        createDirectory(dir);
+        commit(writeTemporary(history, dir), cache);
+    }
+
+    private static void createDirectory(File dir) throws HistoryException {
+        // another thread may create it at the same time
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
             throw new HistoryException(
                     "Unable to create cache directory '" + dir + "'.");
         }
+    }
 
-        // We have a problem that multiple threads may access the cache layer
-        // at the same time. Since I would like to avoid read-locking, I just
-        // serialize the write access to the cache file. The generation of the
-        // cache file would most likely be executed during index generation, and
-        // that happens sequencial anyway....
-        // Generate the file with a temporary name and move it into place when
-        // I'm done so I don't have to protect the readers for partially updated
-        // files...
-        final File output;
+    /**
+     * Write a history to a new temporary file in the given directory.
+     *
+     * @return the temporary file
+     */
+    private static File writeTemporary(History history, File dir)
+            throws HistoryException {
+        // Readers must never see partially written cache files, so the
+        // history gets written to a temporary file, which then replaces the
+        // cache file via commit().
+        File output = null;
         try {
             output = File.createTempFile("oghist", null, dir);
             final FileOutputStream out = new FileOutputStream(output);
             try {
-                XMLEncoder e = new XMLEncoder(
-                        new BufferedOutputStream(new GZIPOutputStream(out)));
-                e.setPersistenceDelegate(File.class, new FilePersistenceDelegate());
-                e.writeObject(history);
-                e.close();
+                GZIPOutputStream gz = new GZIPOutputStream(
+                        new BufferedOutputStream(out));
+                HistoryCodec.write(history, gz);
+                gz.close();
             } finally {
                 IOUtils.close(out);
             }
+            return output;
         } catch (IOException ioe) {
+            if (output != null && !output.delete()) {
+                OpenGrokLogger.getLogger().log(Level.WARNING, "Failed to remove temporary history cache file");
+            }
             throw new HistoryException("Failed to write history", ioe);
         }
-        synchronized (lock) {
-            if (!cache.delete() && cache.exists()) {
-                if (!output.delete()) {
-                    OpenGrokLogger.getLogger().log(Level.WARNING, "Failed to remove temporary history cache file");
-                }
-                throw new HistoryException(
-                        "Cachefile exists, and I could not delete it.");
+    }
+
+    /**
+     * Atomically replace a cache file with a temporary file written by
+     * {@link #writeTemporary(History, File)}.
+     */
+    private static void commit(File output, File cache)
+            throws HistoryException {
+        try {
+            try {
+                Files.move(output.toPath(), cache.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(output.toPath(), cache.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
             }
-            if (!output.renameTo(cache)) {
-                if (!output.delete()) {
-                    OpenGrokLogger.getLogger().log(Level.WARNING, "Failed to remove temporary history cache file");
-                }
-                throw new HistoryException("Failed to rename cache tmpfile.");
+        } catch (IOException e) {
+            if (!output.delete()) {
+                OpenGrokLogger.getLogger().log(Level.WARNING, "Failed to remove temporary history cache file");
             }
+            throw new HistoryException("Failed to rename cache tmpfile.", e);
         }
     }
 
+    /**
+     * Get the number of threads to use for writing the cache files of a
+     * repository.
+     */
+    private static int getWriterThreads() {
+        int num = Runtime.getRuntime().availableProcessors();
+        String threads = System.getProperty(
+                "org.opensolaris.opengrok.history.NumCacheWriterThreads");
+        if (threads != null) {
+            try {
+                num = Integer.parseInt(threads);
+            } catch (NumberFormatException e) {
+                OpenGrokLogger.getLogger().log(Level.WARNING,
+                        "Failed to parse the number of cache writer threads", e);
+            }
+        }
+        return Math.max(1, num);
+    }
+
     @Override
     public void store(History history, Repository repository)
             throws HistoryException {
@@ -178,6 +262,13 @@ class FileHistoryCache implements HistoryCache {
             return;
         }
 
+        // If the cache knows its latest revision, the history only contains
+        // the changesets after it, which get merged into the cached history.
+        // Otherwise it is the complete history, e.g. when the cache gets
+        // created or has been cleared.
+        final boolean merge = getLatestCachedRevision(repository) != null;
+        final boolean tags = env.isTagsEnabled() && repository.hasFileBasedTags();
+
         HashMap<String, List<HistoryEntry>> map =
                 new HashMap<String, List<HistoryEntry>>();
 
@@ -189,7 +280,7 @@ class FileHistoryCache implements HistoryCache {
                     map.put(s, list);
                 }
                 // We need to do deep copy in order to have different tags per each commit
-                if (env.isTagsEnabled() && repository.hasFileBasedTags()) {
+                if (tags) {
                     list.add(new HistoryEntry(e));
                 } else {
                     list.add(e);
@@ -197,22 +288,175 @@ class FileHistoryCache implements HistoryCache {
             }
         }
 
-        File root = RuntimeEnvironment.getInstance().getSourceRootFile();
+        // Group the files by directory, so that each directory gets created
+        // only once and its cache files get replaced together. The entries
+        // get stripped here since they may be shared by files written by
+        // different threads.
+        File root = env.getSourceRootFile();
+        HashMap<File, List<File>> dirs = new HashMap<File, List<File>>();
+        HashMap<File, List<HistoryEntry>> files =
+                new HashMap<File, List<HistoryEntry>>();
         for (Map.Entry<String, List<HistoryEntry>> e : map.entrySet()) {
             for (HistoryEntry ent : e.getValue()) {
                 ent.strip();
             }
-            History hist = new History();
-            hist.setHistoryEntries(e.getValue());
+            File file = new File(root, e.getKey());
+            if (file.isDirectory()) {
+                continue;
+            }
+            files.put(file, e.getValue());
+            List<File> list = dirs.get(file.getParentFile());
+            if (list == null) {
+                list = new ArrayList<File>();
+                dirs.put(file.getParentFile(), list);
+            }
+            list.add(file);
+        }
 
-            // Assign tags to changesets they represent
-            if (env.isTagsEnabled() && repository.hasFileBasedTags()) {
-                repository.assignTagsInHistory(hist);
+        List<StoreTask> tasks = new ArrayList<StoreTask>();
+        for (List<File> list : dirs.values()) {
+            for (int i = 0; i < list.size(); i += STORE_BATCH_SIZE) {
+                tasks.add(new StoreTask(repository, list.subList(i,
+                        Math.min(list.size(), i + STORE_BATCH_SIZE)), files,
+                        merge, tags));
             }
+        }
+        runAll(tasks);
 
-            File file = new File(root, e.getKey());
-            if (!file.isDirectory()) {
-                storeFile(hist, file);
+        List<HistoryEntry> entries = history.getHistoryEntries();
+        if (!entries.isEmpty() && entries.get(0).getRevision() != null) {
+            storeLatestCachedRevision(repository,
+                    entries.get(0).getRevision());
+        }
+    }
+
+    /**
+     * Run the given tasks in a pool of at most {@link #getWriterThreads()}
+     * threads.
+     *
+     * @throws HistoryException the first error reported by a task
+     */
+    private static void runAll(List<StoreTask> tasks) throws HistoryException {
+        int threads = Math.min(getWriterThreads(), tasks.size());
+        if (threads <= 1) {
+            for (StoreTask task : tasks) {
+                task.call();
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (StoreTask task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<Void> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof HistoryException) {
+                        throw (HistoryException) e.getCause();
+                    }
+                    throw new HistoryException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new HistoryException(e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes the cache files of some files in the same directory. All of
+     * them get encoded first, then the cache files get replaced.
+     */
+    private class StoreTask implements Callable<Void> {
+
+        private final Repository repository;
+        private final List<File> files;
+        private final Map<File, List<HistoryEntry>> entries;
+        private final boolean merge;
+        private final boolean tags;
+
+        StoreTask(Repository repository, List<File> files,
+                Map<File, List<HistoryEntry>> entries, boolean merge,
+                boolean tags) {
+            this.repository = repository;
+            this.files = files;
+            this.entries = entries;
+            this.merge = merge;
+            this.tags = tags;
+        }
+
+        @Override
+        public Void call() throws HistoryException {
+            List<File> caches = new ArrayList<File>(files.size());
+            List<File> outputs = new ArrayList<File>(files.size());
+            try {
+                for (File file : files) {
+                    History hist = new History(entries.get(file));
+                    if (merge) {
+                        mergeCached(hist, file);
+                    }
+                    // Assign tags to changesets they represent
+                    if (tags) {
+                        repository.assignTagsInHistory(hist);
+                    }
+                    File cache = getCachedFile(file);
+                    if (caches.isEmpty()) {
+                        createDirectory(cache.getParentFile());
+                    }
+                    caches.add(cache);
+                    outputs.add(writeTemporary(hist, cache.getParentFile()));
+                }
+                for (int i = 0; i < outputs.size(); i++) {
+                    commit(outputs.get(i), caches.get(i));
+                }
+            } finally {
+                for (File output : outputs) {
+                    if (output.exists() && !output.delete()) {
+                        OpenGrokLogger.getLogger().log(Level.WARNING, "Failed to remove temporary history cache file");
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Append the cached history of a file to the given, more recent history
+     * entries. Cached entries with a revision contained in the new entries
+     * get replaced, so that storing the same changesets again, e.g. after
+     * an interrupted update, does not duplicate them.
+     *
+     * @param history the new entries of the file
+     * @param file the file
+     */
+    private void mergeCached(History history, File file)
+            throws HistoryException {
+        File cache = getCachedFile(file);
+        if (!cache.exists()) {
+            return;
+        }
+        List<HistoryEntry> cached;
+        try {
+            cached = readCache(file, cache, 0).getHistoryEntries();
+        } catch (IOException e) {
+            throw new HistoryException(
+                    "Failed to read history cache file " + cache, e);
+        }
+        List<HistoryEntry> entries = history.getHistoryEntries();
+        HashSet<String> revisions = new HashSet<String>();
+        for (HistoryEntry ent : entries) {
+            revisions.add(ent.getRevision());
+        }
+        for (HistoryEntry ent : cached) {
+            if (!revisions.contains(ent.getRevision())) {
+                // tags get assigned to the whole history again
+                ent.setTags(null);
+                entries.add(ent);
             }
         }
     }
@@ -223,7 +467,7 @@ class FileHistoryCache implements HistoryCache {
         File cache = getCachedFile(file);
         if (isUpToDate(file, cache)) {
             try {
-                return readCache(cache);
+                return readCache(file, cache, 0);
             } catch (Exception e) {
                 OpenGrokLogger.getLogger().log(Level.WARNING,
                         "Error when reading cache file '" + cache, e);
@@ -285,20 +529,74 @@ class FileHistoryCache implements HistoryCache {
         if (repos == null) {
             return true;
         }
-        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
-        File dir = env.getDataRootFile();
-        dir = new File(dir, "historycache");
+        return getRepositoryCacheDir(repos).exists();
+    }
+
+    @Override
+    public History getLatest(File directory, Repository repository, int max)
+            throws HistoryException {
+        // The history of a directory is not stored separately, it would have
+        // to be assembled from the history of all files.
+        if (directory.isDirectory()) {
+            return null;
+        }
+        // The history of a file can be read partially.
+        File cache = getCachedFile(directory);
+        if (isUpToDate(directory, cache)) {
+            try {
+                return readCache(directory, cache, max);
+            } catch (Exception e) {
+                OpenGrokLogger.getLogger().log(Level.WARNING,
+                        "Error when reading cache file '" + cache, e);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getLatestCachedRevision(Repository repository)
+            throws HistoryException {
+        File file = new File(getRepositoryCacheDir(repository), LATEST_REV);
+        if (!file.isFile()) {
+            return null;
+        }
         try {
-            dir = new File(dir, env.getPathRelativeToSourceRoot(new File(repos.getDirectoryName()), 0));
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), "UTF-8"));
+            try {
+                String rev = in.readLine();
+                return rev == null || rev.length() == 0 ? null : rev;
+            } finally {
+                IOUtils.close(in);
+            }
         } catch (IOException e) {
-            throw new HistoryException("Could not resolve "+repos.getDirectoryName()+" relative to source root", e);
+            throw new HistoryException("Failed to read " + file, e);
         }
-        return dir.exists();
     }
 
-    @Override
-    public String getLatestCachedRevision(Repository repository) {
-        return null;
+    /**
+     * Remember the latest revision stored in the cache of a repository.
+     */
+    private static void storeLatestCachedRevision(Repository repository,
+            String revision) throws HistoryException {
+        File dir = getRepositoryCacheDir(repository);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new HistoryException(
+                    "Unable to create cache directory '" + dir + "'.");
+        }
+        File file = new File(dir, LATEST_REV);
+        try {
+            Writer out = new OutputStreamWriter(
+                    new FileOutputStream(file), "UTF-8");
+            try {
+                out.write(revision);
+                out.write('\n');
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new HistoryException("Failed to write " + file, e);
+        }
     }
 
     @Override
@@ -311,10 +609,25 @@ class FileHistoryCache implements HistoryCache {
     }
 
     @Override
-    public void clear(Repository repository) {
-        // We only expect this method to be called if the cache supports
-        // incremental update, so it's not implemented here for now.
-        throw new UnsupportedOperationException();
+    public void clear(Repository repository) throws HistoryException {
+        File dir = getRepositoryCacheDir(repository);
+        remove(dir);
+        if (dir.exists()) {
+            throw new HistoryException("Failed to remove " + dir);
+        }
+    }
+
+    private static void remove(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                remove(child);
+            }
+        }
+        if (!file.delete() && file.exists()) {
+            OpenGrokLogger.getLogger().log(Level.WARNING,
+                    "Failed to remove {0}", file);
+        }
     }
 
     @Override
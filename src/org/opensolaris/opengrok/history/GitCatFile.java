@@ -0,0 +1,377 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import org.opensolaris.opengrok.OpenGrokLogger;
+
+/**
+ * Reads objects from a Git repository through long-lived
+ * {@code git cat-file --batch} processes, instead of starting a new process
+ * for each of them. Each repository gets a pool of at most
+ * {@link #getMaxProcesses()} such helper processes, which are started when
+ * needed. Helpers which have died get replaced, and helpers which have been
+ * idle for {@link HelperProcesses#IDLE_TIMEOUT} get stopped. All of them get
+ * stopped by {@link #closeAll()}.
+ */
+final class GitCatFile {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /**
+     * Max. size of the requests written to a helper before reading the
+     * responses, so that neither the helper nor we block on a full pipe.
+     */
+    private static final int MAX_PIPELINED = 4096;
+
+    /** the pools of all repositories, by command and directory */
+    private static final Map<String, GitCatFile> pools =
+            new HashMap<String, GitCatFile>();
+    /** stops idle helpers while there are pools. Guarded by {@link #pools}. */
+    private static TimerTask reaper;
+
+    private final String cmd;
+    private final File directory;
+    private final int maxProcesses;
+    private final Deque<Helper> idle = new ArrayDeque<Helper>();
+    /** the number of helpers, idle or in use */
+    private int processes;
+    /** whether the helpers get stopped once they are released */
+    private boolean closed;
+
+    private GitCatFile(String cmd, File directory, int maxProcesses) {
+        this.cmd = cmd;
+        this.directory = directory;
+        this.maxProcesses = maxProcesses;
+    }
+
+    /**
+     * Get the pool of helper processes for a repository.
+     *
+     * @param cmd the git command
+     * @param directory the root directory of the repository
+     * @return the pool
+     */
+    static GitCatFile getInstance(String cmd, File directory) {
+        String key = cmd + File.pathSeparator + directory.getAbsolutePath();
+        synchronized (pools) {
+            GitCatFile pool = pools.get(key);
+            if (pool == null) {
+                pool = new GitCatFile(cmd, directory, getMaxProcesses());
+                pools.put(key, pool);
+            }
+            if (reaper == null) {
+                reaper = new TimerTask() {
+
+                    @Override
+                    public void run() {
+                        reapAll(HelperProcesses.IDLE_TIMEOUT);
+                    }
+                };
+                HelperProcesses.scheduleReaper(reaper);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Stop the helpers of all repositories which have been idle for the
+     * given time.
+     *
+     * @param maxIdle time in milliseconds
+     */
+    static void reapAll(long maxIdle) {
+        List<GitCatFile> all;
+        synchronized (pools) {
+            all = new ArrayList<GitCatFile>(pools.values());
+        }
+        for (GitCatFile pool : all) {
+            pool.reap(maxIdle);
+        }
+    }
+
+    /**
+     * Stop the helpers of all repositories. Helpers currently in use get
+     * stopped once they are done. New ones get started when needed.
+     */
+    static void closeAll() {
+        synchronized (pools) {
+            for (GitCatFile pool : pools.values()) {
+                pool.close();
+            }
+            pools.clear();
+            if (reaper != null) {
+                HelperProcesses.cancelReaper(reaper);
+                reaper = null;
+            }
+        }
+    }
+
+    /**
+     * Get the number of running helpers of this repository, idle or in use.
+     *
+     * @return the number of processes
+     */
+    synchronized int getProcesses() {
+        return processes;
+    }
+
+    /**
+     * Get the max. number of helper processes per repository.
+     */
+    private static int getMaxProcesses() {
+        int num = 4;
+        String max = System.getProperty(
+                "org.opensolaris.opengrok.history.git.CatFileProcesses");
+        if (max != null) {
+            try {
+                num = Integer.parseInt(max);
+            } catch (NumberFormatException e) {
+                OpenGrokLogger.getLogger().log(Level.WARNING,
+                        "Failed to parse the number of git cat-file processes",
+                        e);
+            }
+        }
+        return Math.max(1, num);
+    }
+
+    /**
+     * Read the contents of a blob.
+     *
+     * @param object the name of the object, e.g. {@code revision:path}
+     * @return the contents, or {@code null} if there is no such blob
+     * @throws IOException if the helper processes fail
+     */
+    byte[] read(String object) throws IOException {
+        return read(Arrays.asList(object)).get(0);
+    }
+
+    /**
+     * Read the contents of several blobs. The requests get pipelined, so that
+     * the helper does not wait for each of them.
+     *
+     * @param objects the names of the objects
+     * @return the contents of the blobs in the same order, {@code null} for
+     * objects which are not blobs or don't exist
+     * @throws IOException if the helper processes fail
+     */
+    List<byte[]> read(List<String> objects) throws IOException {
+        for (String object : objects) {
+            if (object.indexOf('\n') >= 0) {
+                throw new IOException("Invalid object name: " + object);
+            }
+        }
+        try {
+            for (int attempt = 0;; attempt++) {
+                Helper helper = acquire();
+                try {
+                    List<byte[]> contents = helper.read(objects);
+                    release(helper);
+                    return contents;
+                } catch (IOException e) {
+                    // The helper is probably dead, so replace it. If a new
+                    // one fails too, something else is wrong.
+                    discard(helper);
+                    if (attempt > 0) {
+                        throw e;
+                    }
+                    OpenGrokLogger.getLogger().log(Level.FINE,
+                            "Restarting git cat-file in " + directory, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for git cat-file",
+                    e);
+        }
+    }
+
+    private Helper acquire() throws IOException, InterruptedException {
+        synchronized (this) {
+            while (idle.isEmpty() && processes >= maxProcesses) {
+                wait();
+            }
+            if (!idle.isEmpty()) {
+                return idle.pop();
+            }
+            processes++;
+        }
+        try {
+            return new Helper();
+        } catch (IOException e) {
+            synchronized (this) {
+                processes--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private synchronized void release(Helper helper) {
+        if (closed) {
+            discard(helper);
+            return;
+        }
+        helper.lastUsed = System.currentTimeMillis();
+        idle.push(helper);
+        notifyAll();
+    }
+
+    /**
+     * Stop the helpers which have been idle for the given time.
+     */
+    private synchronized void reap(long maxIdle) {
+        long now = System.currentTimeMillis();
+        // the least recently used helpers are at the end
+        while (!idle.isEmpty() && now - idle.peekLast().lastUsed >= maxIdle) {
+            discard(idle.removeLast());
+        }
+    }
+
+    /**
+     * Stop the idle helpers, and the ones in use once they are released.
+     */
+    private synchronized void close() {
+        closed = true;
+        while (!idle.isEmpty()) {
+            discard(idle.pop());
+        }
+    }
+
+    private synchronized void discard(Helper helper) {
+        helper.destroy();
+        processes--;
+        notifyAll();
+    }
+
+    /** A {@code git cat-file --batch} process. */
+    private final class Helper {
+
+        private final Process process;
+        private final OutputStream requests;
+        private final InputStream responses;
+        /** when the helper has been released the last time */
+        long lastUsed;
+
+        Helper() throws IOException {
+            ProcessBuilder pb = new ProcessBuilder(cmd, "cat-file", "--batch");
+            pb.directory(directory);
+            pb.redirectErrorStream(false);
+            process = pb.start();
+            HelperProcesses.drainErrors(process, "git cat-file in " + directory);
+            requests = new BufferedOutputStream(process.getOutputStream());
+            responses = new BufferedInputStream(process.getInputStream());
+        }
+
+        List<byte[]> read(List<String> objects) throws IOException {
+            List<byte[]> contents = new ArrayList<byte[]>(objects.size());
+            int next = 0;
+            while (next < objects.size()) {
+                // write as many requests as fit in the pipe, then read the
+                // responses to them
+                int first = next;
+                int size = 0;
+                do {
+                    byte[] request = (objects.get(next) + '\n').getBytes(UTF8);
+                    requests.write(request);
+                    size += request.length;
+                    next++;
+                } while (next < objects.size() && size < MAX_PIPELINED);
+                requests.flush();
+                for (int i = first; i < next; i++) {
+                    contents.add(readResponse());
+                }
+            }
+            return contents;
+        }
+
+        /**
+         * Read the response to a request: a header line with the name, type
+         * and size of the object, followed by its contents and a newline.
+         * For objects which don't exist, only a header line saying
+         * {@code missing} (or {@code ambiguous}) is written.
+         */
+        private byte[] readResponse() throws IOException {
+            String header = readLine();
+            // the name of the object may contain spaces, so check the end
+            if (header.endsWith(" missing") || header.endsWith(" ambiguous")) {
+                return null;
+            }
+            String[] fields = header.split(" ");
+            int size;
+            try {
+                if (fields.length != 3) {
+                    throw new NumberFormatException();
+                }
+                size = Integer.parseInt(fields[2]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Unexpected git cat-file output: "
+                        + header, e);
+            }
+            byte[] content = new byte[size];
+            for (int pos = 0; pos < size;) {
+                int len = responses.read(content, pos, size - pos);
+                if (len < 0) {
+                    throw new EOFException("Unexpected end of git cat-file output");
+                }
+                pos += len;
+            }
+            if (responses.read() != '\n') {
+                throw new IOException("Unexpected git cat-file output");
+            }
+            return "blob".equals(fields[1]) ? content : null;
+        }
+
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = responses.read()) != '\n') {
+                if (b < 0) {
+                    throw new EOFException("Unexpected end of git cat-file output");
+                }
+                line.write(b);
+            }
+            return new String(line.toByteArray(), UTF8);
+        }
+
+        void destroy() {
+            process.destroy();
+        }
+    }
+}
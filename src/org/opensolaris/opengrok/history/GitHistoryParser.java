@@ -31,6 +31,8 @@ import java.io.InputStream;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Level;
 import org.opensolaris.opengrok.OpenGrokLogger;
 import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
@@ -50,6 +52,12 @@ class GitHistoryParser implements Executor.StreamHandler {
     private String myDir;
     private History history;
     private GitRepository repository = new GitRepository();
+    /** receives the history in chunks, if it is read in chronological order */
+    private HistoryChunkHandler handler;
+    private int chunkSize;
+    private int chunks;
+    /** the error reported by {@link #handler}, if any */
+    private HistoryException failure;
 
     /**
      * Process the output from the log command and insert the HistoryEntries
@@ -83,7 +91,7 @@ class GitHistoryParser implements Executor.StreamHandler {
 
                 if (s.startsWith("commit")) {
                     if (entry != null) {
-                        entries.add(entry);
+                        add(entries, entry);
                     }
                     entry = new HistoryEntry();
                     entry.setActive(true);
@@ -137,12 +145,43 @@ class GitHistoryParser implements Executor.StreamHandler {
         }
 
         if (entry != null) {
-            entries.add(entry);
+            add(entries, entry);
         }
 
         history.setHistoryEntries(entries);
     }
 
+    /**
+     * Add a changeset to the list of changesets read. If the history is
+     * passed to a handler, the changesets get passed on once there are
+     * enough of them.
+     */
+    private void add(List<HistoryEntry> entries, HistoryEntry entry)
+            throws IOException {
+        entries.add(entry);
+        if (handler != null && entries.size() >= chunkSize) {
+            try {
+                flush(entries);
+            } catch (HistoryException e) {
+                // stop reading, parse() reports the error
+                failure = e;
+                throw new IOException("Failed to handle history", e);
+            }
+        }
+    }
+
+    /**
+     * Pass the changesets read to the handler, and remove them from the list.
+     */
+    private void flush(List<HistoryEntry> entries) throws HistoryException {
+        // the log is in chronological order, but chunks are not
+        List<HistoryEntry> chunk = new ArrayList<HistoryEntry>(entries);
+        Collections.reverse(chunk);
+        entries.clear();
+        chunks++;
+        handler.handle(new History(chunk));
+    }
+
     /**
      * Parse the history for the specified file.
      *
@@ -169,6 +208,51 @@ class GitHistoryParser implements Executor.StreamHandler {
         return history;
     }
 
+    /**
+     * Parse the history of a file or directory in chronological order, and
+     * pass it to a handler in chunks while it is being read.
+     *
+     * @param file the file or directory to parse history for
+     * @param repos the repository the file belongs to
+     * @param sinceRevision the revision right before the first one to read,
+     * or {@code null} to read the full history
+     * @param chunkSize the max. number of changesets in a chunk
+     * @param handler the handler to pass the chunks to
+     * @throws HistoryException if the history cannot be read, or if the
+     * handler fails
+     */
+    void parse(File file, Repository repos, String sinceRevision,
+            int chunkSize, HistoryChunkHandler handler)
+            throws HistoryException {
+        myDir = repos.getDirectoryName() + File.separator;
+        repository = (GitRepository) repos;
+        this.handler = handler;
+        this.chunkSize = chunkSize;
+        try {
+            Executor executor = repository.getHistoryLogExecutor(
+                    file, sinceRevision, true);
+            int status = executor.exec(true, this);
+
+            if (failure != null) {
+                throw failure;
+            }
+            if (status != 0) {
+                throw new HistoryException("Failed to get history for: \"" +
+                        file.getAbsolutePath() + "\" Exit code: " + status);
+            }
+        } catch (IOException e) {
+            throw new HistoryException("Failed to get history for: \"" +
+                    file.getAbsolutePath() + "\"", e);
+        }
+
+        // The last chunk is only passed on once the log has been read
+        // successfully, so that a failing command doesn't leave an empty
+        // history behind.
+        if (chunks == 0 || !history.getHistoryEntries().isEmpty()) {
+            flush(history.getHistoryEntries());
+        }
+    }
+
     /**
      * Parse the given string.
      *
@@ -116,6 +116,20 @@ public class GitRepository extends Repository {
      */
     Executor getHistoryLogExecutor(final File file, String sinceRevision)
         throws IOException
+    {
+        return getHistoryLogExecutor(file, sinceRevision, false);
+    }
+
+    /**
+     * Get an executor to be used for retrieving the history log for the
+     * named file.
+     *
+     * @param file The file to retrieve history for
+     * @param reverse If {@code true}, the log is in chronological order
+     * @return An Executor ready to be started
+     */
+    Executor getHistoryLogExecutor(final File file, String sinceRevision,
+            boolean reverse) throws IOException
     {
         String abs = file.getCanonicalPath();
         String filename = "";
@@ -129,6 +143,9 @@ public class GitRepository extends Repository {
         cmd.add("log");
         cmd.add("--name-only");
         cmd.add("--pretty=fuller");
+        if (reverse) {
+            cmd.add("--reverse");
+        }
 
         if (sinceRevision != null) {
             cmd.add(sinceRevision + "..");
@@ -158,6 +175,35 @@ public class GitRepository extends Repository {
 
     @Override
     public InputStream getHistoryGet(String parent, String basename, String rev)
+    {
+        try {
+            String filename = (new File(parent, basename)).getCanonicalPath()
+                .substring(directoryName.length() + 1)
+                .replace(File.separatorChar, '/');
+            ensureCommand(CMD_PROPERTY_KEY, CMD_FALLBACK);
+            GitCatFile catFile =
+                    GitCatFile.getInstance(cmd, new File(directoryName));
+            byte[] content = catFile.read(rev + ":" + filename);
+            if (content == null) {
+                // the file may have been renamed since
+                String path = getCorrectPath(filename, rev);
+                content = catFile.read(rev + ":" + path);
+            }
+            return new ByteArrayInputStream(
+                    content == null ? new byte[0] : content);
+        } catch (IOException exp) {
+            OpenGrokLogger.getLogger().log(Level.WARNING,
+                "Failed to get history with git cat-file, trying git show",
+                exp);
+        }
+        return getHistoryGetWithShow(parent, basename, rev);
+    }
+
+    /**
+     * Get the contents of a revision by running {@code git show}.
+     */
+    private InputStream getHistoryGetWithShow(String parent, String basename,
+            String rev)
     {
         InputStream ret = null;
 
@@ -404,6 +450,19 @@ public class GitRepository extends Repository {
         return result;
     }
 
+    @Override
+    void streamHistory(File directory, String sinceRevision, int chunkSize,
+            HistoryChunkHandler handler) throws HistoryException {
+        if (RuntimeEnvironment.getInstance().isTagsEnabled()) {
+            // Tags get assigned to changesets from the most recent one, so
+            // the complete history is needed.
+            super.streamHistory(directory, sinceRevision, chunkSize, handler);
+        } else {
+            new GitHistoryParser().parse(directory, this, sinceRevision,
+                    chunkSize, handler);
+        }
+    }
+
     @Override
     boolean hasFileBasedTags() {
         return true;
@@ -0,0 +1,113 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import org.opensolaris.opengrok.OpenGrokLogger;
+
+/**
+ * Support for the long-lived helper processes kept by some repositories,
+ * like {@link GitCatFile} and {@link HgCommandServer}: their error output
+ * gets logged, and the helpers which have been idle for
+ * {@link #IDLE_TIMEOUT} get stopped by a shared timer.
+ */
+final class HelperProcesses {
+
+    /** time in milliseconds after which idle helper processes get stopped */
+    static final long IDLE_TIMEOUT = 60 * 1000;
+    private static Timer timer;
+    /** the number of tasks scheduled on {@link #timer} */
+    private static int reapers;
+
+    private HelperProcesses() {
+        // utility class
+    }
+
+    /**
+     * Read the error output of a helper process in the background, so that
+     * the process does not block on a full pipe, and log it.
+     *
+     * @param process the helper process
+     * @param name the name of the helper to log the output with
+     */
+    static void drainErrors(Process process, final String name) {
+        final InputStream errors = process.getErrorStream();
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    BufferedReader in = new BufferedReader(
+                            new InputStreamReader(errors));
+                    try {
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            OpenGrokLogger.getLogger().log(Level.FINE,
+                                    "{0}: {1}", new Object[]{name, line});
+                        }
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    // the process has been destroyed
+                }
+            }
+        }, name + " stderr");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Run a task every {@link #IDLE_TIMEOUT} to stop idle helper processes,
+     * until it gets cancelled via {@link #cancelReaper(TimerTask)}.
+     *
+     * @param task the task to run
+     */
+    static synchronized void scheduleReaper(TimerTask task) {
+        if (timer == null) {
+            timer = new Timer("Helper process reaper", true);
+        }
+        timer.schedule(task, IDLE_TIMEOUT, IDLE_TIMEOUT);
+        reapers++;
+    }
+
+    /**
+     * Cancel a task scheduled via {@link #scheduleReaper(TimerTask)}. The
+     * timer thread gets stopped along with the last task.
+     *
+     * @param task the task to cancel
+     */
+    static synchronized void cancelReaper(TimerTask task) {
+        task.cancel();
+        if (--reapers == 0) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import org.opensolaris.opengrok.OpenGrokLogger;
+
+/**
+ * Runs Mercurial commands through long-lived command servers
+ * ({@code hg serve --cmdserver pipe}), instead of starting a new hg process,
+ * and with it a new Python interpreter, for each of them. Each repository
+ * gets a pool of at most {@link #getMaxProcesses()} servers, which are
+ * started when needed. Servers which have died get replaced, and servers
+ * which have been idle for {@link HelperProcesses#IDLE_TIMEOUT} get stopped.
+ * All of them get stopped by {@link #closeAll()}.
+ * <p>
+ * If no server can be started, e.g. because hg is too old to have a command
+ * server, {@link #isAvailable()} returns {@code false} for a while and the
+ * callers are expected to run the commands the usual way. The wait until the
+ * next attempt grows with each failed one.
+ */
+final class HgCommandServer {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /** time in milliseconds to wait after the first failed start */
+    private static final long MIN_BACKOFF = 60 * 1000;
+    /** max. time in milliseconds to wait after a failed start */
+    private static final long MAX_BACKOFF = 60 * 60 * 1000;
+
+    /** the pools of all repositories, by command and directory */
+    private static final Map<String, HgCommandServer> pools =
+            new HashMap<String, HgCommandServer>();
+    /** stops idle servers while there are pools. Guarded by {@link #pools}. */
+    private static TimerTask reaper;
+
+    private final String cmd;
+    private final File directory;
+    private final int maxProcesses;
+    private final Deque<Server> idle = new ArrayDeque<Server>();
+    /** the number of servers, idle or in use */
+    private int processes;
+    /** whether the servers get stopped once they are released */
+    private boolean closed;
+    /**
+     * the time before which no server gets started, because starting one
+     * failed
+     */
+    private volatile long retryTime;
+    /** the time to wait after the next failed start */
+    private long backoff = MIN_BACKOFF;
+
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalTime = new AtomicLong();
+    private final AtomicLong maxTime = new AtomicLong();
+
+    private HgCommandServer(String cmd, File directory, int maxProcesses) {
+        this.cmd = cmd;
+        this.directory = directory;
+        this.maxProcesses = maxProcesses;
+    }
+
+    /**
+     * Get the pool of command servers for a repository.
+     *
+     * @param cmd the hg command
+     * @param directory the root directory of the repository
+     * @return the pool
+     */
+    static HgCommandServer getInstance(String cmd, File directory) {
+        String key = cmd + File.pathSeparator + directory.getAbsolutePath();
+        synchronized (pools) {
+            HgCommandServer pool = pools.get(key);
+            if (pool == null) {
+                pool = new HgCommandServer(cmd, directory, getMaxProcesses());
+                pools.put(key, pool);
+            }
+            if (reaper == null) {
+                reaper = new TimerTask() {
+
+                    @Override
+                    public void run() {
+                        reapAll(HelperProcesses.IDLE_TIMEOUT);
+                    }
+                };
+                HelperProcesses.scheduleReaper(reaper);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Stop the servers of all repositories which have been idle for the
+     * given time.
+     *
+     * @param maxIdle time in milliseconds
+     */
+    static void reapAll(long maxIdle) {
+        List<HgCommandServer> all;
+        synchronized (pools) {
+            all = new ArrayList<HgCommandServer>(pools.values());
+        }
+        for (HgCommandServer pool : all) {
+            pool.reap(maxIdle);
+        }
+    }
+
+    /**
+     * Stop the servers of all repositories. Servers currently in use get
+     * stopped once they are done. New ones get started when needed.
+     */
+    static void closeAll() {
+        synchronized (pools) {
+            for (HgCommandServer pool : pools.values()) {
+                pool.close();
+            }
+            pools.clear();
+            if (reaper != null) {
+                HelperProcesses.cancelReaper(reaper);
+                reaper = null;
+            }
+        }
+    }
+
+    /**
+     * Get the number of running servers of this repository, idle or in use.
+     *
+     * @return the number of processes
+     */
+    synchronized int getProcesses() {
+        return processes;
+    }
+
+    /**
+     * Get the max. number of command servers per repository. Zero disables
+     * the command servers.
+     */
+    private static int getMaxProcesses() {
+        int num = 2;
+        String max = System.getProperty(
+                "org.opensolaris.opengrok.history.hg.CommandServerProcesses");
+        if (max != null) {
+            try {
+                num = Integer.parseInt(max);
+            } catch (NumberFormatException e) {
+                OpenGrokLogger.getLogger().log(Level.WARNING,
+                        "Failed to parse the number of hg command servers", e);
+            }
+        }
+        return Math.max(0, num);
+    }
+
+    /**
+     * Check whether commands can be run through command servers.
+     *
+     * @return {@code false} if the command servers are disabled, or if
+     * starting one has failed recently
+     */
+    boolean isAvailable() {
+        return maxProcesses > 0 && System.currentTimeMillis() >= retryTime;
+    }
+
+    /**
+     * Run a command, like {@code hg <args>} in the root directory of the
+     * repository.
+     *
+     * @param args the arguments of the command, without the hg command
+     * @param output the stream to write the output of the command to
+     * @return the exit code of the command
+     * @throws IOException if the command could not be run through a command
+     * server
+     */
+    int runCommand(List<String> args, ByteArrayOutputStream output)
+            throws IOException {
+        long start = System.nanoTime();
+        try {
+            for (int attempt = 0;; attempt++) {
+                Server server = acquire();
+                output.reset();
+                try {
+                    int status = server.runCommand(args, output);
+                    release(server);
+                    record(System.nanoTime() - start);
+                    return status;
+                } catch (IOException e) {
+                    // The server is probably dead, so replace it. If a new
+                    // one fails too, something else is wrong.
+                    discard(server);
+                    if (attempt > 0) {
+                        throw e;
+                    }
+                    OpenGrokLogger.getLogger().log(Level.FINE,
+                            "Restarting hg command server in " + directory, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failures.incrementAndGet();
+            throw new IOException(
+                    "Interrupted while waiting for hg command server", e);
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the number of commands run successfully.
+     *
+     * @return the number of commands
+     */
+    long getCommands() {
+        return commands.get();
+    }
+
+    /**
+     * Get the number of commands that could not be run through a command
+     * server, and had to be run the usual way.
+     *
+     * @return the number of failed commands
+     */
+    long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Get the total time spent in the commands run successfully, including
+     * waiting for a server.
+     *
+     * @return the time in milliseconds
+     */
+    long getTotalTime() {
+        return totalTime.get() / 1000000;
+    }
+
+    /**
+     * Get the time spent in the slowest command.
+     *
+     * @return the time in milliseconds
+     */
+    long getMaxTime() {
+        return maxTime.get() / 1000000;
+    }
+
+    private void record(long nanos) {
+        commands.incrementAndGet();
+        totalTime.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxTime.get())
+                && !maxTime.compareAndSet(max, nanos)) {
+            // another thread updated the maximum, try again
+        }
+        if (OpenGrokLogger.getLogger().isLoggable(Level.FINER)) {
+            OpenGrokLogger.getLogger().log(Level.FINER,
+                    "hg command server in {0}: {1} commands, {2} ms total, "
+                    + "{3} ms max, {4} failures",
+                    new Object[]{directory, getCommands(), getTotalTime(),
+                        getMaxTime(), getFailures()});
+        }
+    }
+
+    private Server acquire() throws IOException, InterruptedException {
+        synchronized (this) {
+            if (!isAvailable()) {
+                throw new IOException("No hg command server available");
+            }
+            while (idle.isEmpty() && processes >= maxProcesses) {
+                wait();
+            }
+            if (!idle.isEmpty()) {
+                return idle.pop();
+            }
+            processes++;
+        }
+        try {
+            Server server = new Server();
+            synchronized (this) {
+                backoff = MIN_BACKOFF;
+            }
+            return server;
+        } catch (IOException e) {
+            synchronized (this) {
+                processes--;
+                if (processes == 0) {
+                    // No server is running, the installed hg may not have a
+                    // command server. Don't try again for a while.
+                    retryTime = System.currentTimeMillis() + backoff;
+                    OpenGrokLogger.getLogger().log(Level.WARNING,
+                            "Could not start hg command server in "
+                            + directory + ", running hg commands for the next "
+                            + backoff / 1000 + " s instead", e);
+                    backoff = Math.min(2 * backoff, MAX_BACKOFF);
+                }
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private synchronized void release(Server server) {
+        if (closed) {
+            discard(server);
+            return;
+        }
+        server.lastUsed = System.currentTimeMillis();
+        idle.push(server);
+        notifyAll();
+    }
+
+    /**
+     * Stop the servers which have been idle for the given time.
+     */
+    private synchronized void reap(long maxIdle) {
+        long now = System.currentTimeMillis();
+        // the least recently used servers are at the end
+        while (!idle.isEmpty() && now - idle.peekLast().lastUsed >= maxIdle) {
+            discard(idle.removeLast());
+        }
+    }
+
+    /**
+     * Stop the idle servers, and the ones in use once they are released.
+     */
+    private synchronized void close() {
+        closed = true;
+        while (!idle.isEmpty()) {
+            discard(idle.pop());
+        }
+    }
+
+    private synchronized void discard(Server server) {
+        server.destroy();
+        processes--;
+        notifyAll();
+    }
+
+    /**
+     * A command server process. The server writes messages consisting of a
+     * channel byte, a four byte length and the data. Lower case channels
+     * carry output; upper case channels ask for input.
+     */
+    private final class Server {
+
+        private final Process process;
+        private final DataOutputStream requests;
+        private final DataInputStream responses;
+        /** when the server has been released the last time */
+        long lastUsed;
+
+        Server() throws IOException {
+            ProcessBuilder pb = new ProcessBuilder(
+                    cmd, "serve", "--cmdserver", "pipe");
+            pb.directory(directory);
+            process = pb.start();
+            // Errors of the commands are written to the error channel, the
+            // server only writes to stderr when it fails to start.
+            HelperProcesses.drainErrors(process,
+                    "hg command server in " + directory);
+            requests = new DataOutputStream(
+                    new BufferedOutputStream(process.getOutputStream()));
+            responses = new DataInputStream(
+                    new BufferedInputStream(process.getInputStream()));
+            try {
+                // the hello message tells the capabilities of the server
+                if (responses.readUnsignedByte() != 'o') {
+                    throw new IOException("Unexpected hg command server output");
+                }
+                byte[] hello = new byte[responses.readInt()];
+                responses.readFully(hello);
+                if (!new String(hello, UTF8).matches(
+                        "(?s).*capabilities:[^\n]* runcommand\\b.*")) {
+                    throw new IOException(
+                            "hg command server cannot run commands");
+                }
+            } catch (IOException e) {
+                destroy();
+                throw e;
+            }
+        }
+
+        int runCommand(List<String> args, ByteArrayOutputStream output)
+                throws IOException {
+            ByteArrayOutputStream command = new ByteArrayOutputStream();
+            for (int i = 0; i < args.size(); i++) {
+                if (i > 0) {
+                    command.write(0);
+                }
+                command.write(args.get(i).getBytes(UTF8));
+            }
+            requests.write("runcommand\n".getBytes(UTF8));
+            requests.writeInt(command.size());
+            command.writeTo(requests);
+            requests.flush();
+
+            for (;;) {
+                int channel = responses.read();
+                if (channel < 0) {
+                    throw new EOFException(
+                            "Unexpected end of hg command server output");
+                }
+                int length = responses.readInt();
+                switch (channel) {
+                    case 'o':
+                        copy(length, output);
+                        break;
+                    case 'r':
+                        if (length != 4) {
+                            throw new IOException(
+                                    "Unexpected hg command server result");
+                        }
+                        return responses.readInt();
+                    case 'I':
+                    case 'L':
+                        // no input available
+                        requests.writeInt(0);
+                        requests.flush();
+                        break;
+                    default:
+                        if (Character.isUpperCase(channel)) {
+                            throw new IOException("Unsupported hg command "
+                                    + "server channel: " + (char) channel);
+                        }
+                        // error and debug output
+                        copy(length, null);
+                }
+            }
+        }
+
+        private void copy(int length, ByteArrayOutputStream output)
+                throws IOException {
+            byte[] buffer = new byte[Math.min(length, 32 * 1024)];
+            for (int left = length; left > 0;) {
+                int len = responses.read(buffer, 0,
+                        Math.min(left, buffer.length));
+                if (len < 0) {
+                    throw new EOFException(
+                            "Unexpected end of hg command server output");
+                }
+                if (output != null) {
+                    output.write(buffer, 0, len);
+                }
+                left -= len;
+            }
+        }
+
+        void destroy() {
+            process.destroy();
+        }
+    }
+}
@@ -63,6 +63,22 @@ interface HistoryCache {
     History get(File file, Repository repository, boolean withFiles)
             throws HistoryException;
 
+    /**
+     * Get the latest changesets touching the given file or the files under
+     * the given directory, if the cache can find them without reading the
+     * complete history.
+     *
+     * @param directory the file or directory to get the changesets for
+     * @param repository the repository in which the directory lives
+     * @param max the max. number of changesets to return
+     * @return the latest changesets in reverse chronological order including
+     * the files touched by them, or {@code null} if this cache cannot provide
+     * them
+     * @throws HistoryException if the history cannot be fetched
+     */
+    History getLatest(File directory, Repository repository, int max)
+            throws HistoryException;
+
     /**
      * Store the history for a repository.
      *
@@ -0,0 +1,41 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+/**
+ * Receives the history of a repository in chunks while it is being read,
+ * see {@link Repository#streamHistory(java.io.File, String, int,
+ * HistoryChunkHandler)}.
+ */
+interface HistoryChunkHandler {
+
+    /**
+     * Handle the next chunk of the history.
+     *
+     * @param history changesets in reverse chronological order, which are
+     * all more recent than the changesets of the chunks handled before
+     * @throws HistoryException if the chunk cannot be handled, which aborts
+     * reading the history
+     */
+    void handle(History history) throws HistoryException;
+}
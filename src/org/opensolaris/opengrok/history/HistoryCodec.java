@@ -0,0 +1,362 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.beans.XMLDecoder;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Reads and writes the history of a file in the compact binary format used
+ * by {@link FileHistoryCache}. A stream starts with {@link #MAGIC} and the
+ * format version, followed by the number of entries and the entries
+ * themselves, most recent first. Numbers are written as variable length
+ * integers, dates as the difference to the date of the previous entry.
+ * Authors, tags, file names and change requests are written only once per
+ * stream: the first occurrence adds them to a string table, all others
+ * refer to it. Since the table is built while reading, the first entries can
+ * be read without reading the rest of the stream.
+ * <p>
+ * Streams without the header are expected to contain a {@link History}
+ * written via {@link java.beans.XMLEncoder}, as done by older versions.
+ */
+final class HistoryCodec {
+
+    /** the first bytes of a stream in the binary format */
+    static final byte[] MAGIC = {'O', 'G', 'H', 'C'};
+    /** the version of the format written */
+    static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int ACTIVE = 1;
+    private static final int HAS_DATE = 2;
+    /** string table reference for {@code null} */
+    private static final int NULL = 0;
+    /** string table reference for a new string, which follows */
+    private static final int NEW = 1;
+
+    private HistoryCodec() {
+        // utility class
+    }
+
+    /**
+     * Write a history in the binary format.
+     *
+     * @param history the history to write
+     * @param out the stream to write to
+     * @throws IOException if an error occurs while writing
+     */
+    static void write(History history, OutputStream out) throws IOException {
+        Writer w = new Writer(out);
+        out.write(MAGIC);
+        w.writeInt(VERSION);
+        List<HistoryEntry> entries = history.getHistoryEntries();
+        w.writeInt(entries.size());
+        long last = 0;
+        for (HistoryEntry e : entries) {
+            Date date = e.getDate();
+            w.writeInt((e.isActive() ? ACTIVE : 0)
+                    | (date == null ? 0 : HAS_DATE));
+            w.writeString(e.getRevision());
+            if (date != null) {
+                w.writeLong(date.getTime() - last);
+                last = date.getTime();
+            }
+            w.writeShared(e.getAuthor());
+            w.writeShared(e.getTags());
+            w.writeString(e.getMessage());
+            w.writeInt(e.getFiles().size());
+            for (String file : e.getFiles()) {
+                w.writeShared(file);
+            }
+            List<String> crs = e.getChangeRequests();
+            w.writeInt(crs == null ? 0 : crs.size());
+            if (crs != null) {
+                for (String cr : crs) {
+                    w.writeShared(cr);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Check if a stream starts with the header of the binary format. The
+     * stream is positioned at its start again afterwards.
+     *
+     * @param in a stream supporting {@link InputStream#mark(int)}
+     * @return {@code true} if the stream is in the binary format, or
+     * {@code false} if it is expected to be in the XML format
+     * @throws IOException if an error occurs while reading
+     */
+    static boolean hasHeader(InputStream in) throws IOException {
+        in.mark(MAGIC.length);
+        try {
+            for (byte b : MAGIC) {
+                if (in.read() != b) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Read a history written in the binary or the XML format.
+     *
+     * @param in the stream to read from
+     * @param max the max. number of entries to read, {@code 0} for all.
+     * The binary format stops reading after them.
+     * @return the history read
+     * @throws IOException if the stream is not in a supported format
+     */
+    static History read(InputStream in, int max) throws IOException {
+        InputStream input = in.markSupported() ? in
+                : new BufferedInputStream(in);
+        History history = hasHeader(input) ? readBinary(input, max)
+                : readXML(input);
+        List<HistoryEntry> entries = history.getHistoryEntries();
+        if (max > 0 && entries.size() > max) {
+            history.setHistoryEntries(
+                    new ArrayList<HistoryEntry>(entries.subList(0, max)));
+        }
+        return history;
+    }
+
+    private static History readBinary(InputStream in, int max)
+            throws IOException {
+        Reader r = new Reader(in);
+        for (int i = 0; i < MAGIC.length; i++) {
+            r.readByte();
+        }
+        int version = r.readInt();
+        if (version > VERSION) {
+            throw new IOException(
+                    "Unsupported history cache format version " + version);
+        }
+        int count = r.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid number of entries " + count);
+        }
+        if (max > 0) {
+            count = Math.min(count, max);
+        }
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>(count);
+        long last = 0;
+        for (int i = 0; i < count; i++) {
+            HistoryEntry e = new HistoryEntry();
+            int flags = r.readInt();
+            e.setActive((flags & ACTIVE) != 0);
+            e.setRevision(r.readString());
+            if ((flags & HAS_DATE) != 0) {
+                last += r.readLong();
+                e.setDate(new Date(last));
+            }
+            e.setAuthor(r.readShared());
+            e.setTags(r.readShared());
+            e.setMessage(r.readString());
+            int files = r.readInt();
+            if (files > 0) {
+                TreeSet<String> set = new TreeSet<String>();
+                for (int j = 0; j < files; j++) {
+                    set.add(r.readShared());
+                }
+                e.setFiles(set);
+            }
+            int crs = r.readInt();
+            for (int j = 0; j < crs; j++) {
+                e.addChangeRequest(r.readShared());
+            }
+            entries.add(e);
+        }
+        return new History(entries);
+    }
+
+    private static History readXML(InputStream in) throws IOException {
+        XMLDecoder d = new XMLDecoder(in);
+        try {
+            Object obj = d.readObject();
+            if (!(obj instanceof History)) {
+                throw new IOException("No history found");
+            }
+            return (History) obj;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // thrown by XMLDecoder if the stream contains no object
+            throw new IOException("No history found", e);
+        } finally {
+            d.close();
+        }
+    }
+
+    /**
+     * Writes the primitive values of the binary format.
+     */
+    private static class Writer {
+
+        private final OutputStream out;
+        private final Map<String, Integer> table = new HashMap<String, Integer>();
+
+        Writer(OutputStream out) {
+            this.out = out;
+        }
+
+        void writeInt(int value) throws IOException {
+            int v = value;
+            while ((v & ~0x7F) != 0) {
+                out.write((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out.write(v);
+        }
+
+        /** Write a signed value in zig-zag encoding. */
+        void writeLong(long value) throws IOException {
+            long v = (value << 1) ^ (value >> 63);
+            while ((v & ~0x7FL) != 0) {
+                out.write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.write((int) v);
+        }
+
+        /** Write a string prefixed with its length + 1, {@code 0} for null. */
+        void writeString(String s) throws IOException {
+            if (s == null) {
+                writeInt(0);
+            } else {
+                byte[] bytes = s.getBytes(UTF8);
+                writeInt(bytes.length + 1);
+                out.write(bytes);
+            }
+        }
+
+        /** Write a string via the string table. */
+        void writeShared(String s) throws IOException {
+            if (s == null) {
+                writeInt(NULL);
+                return;
+            }
+            Integer ref = table.get(s);
+            if (ref == null) {
+                table.put(s, table.size());
+                writeInt(NEW);
+                writeString(s);
+            } else {
+                writeInt(ref + 2);
+            }
+        }
+    }
+
+    /**
+     * Reads the primitive values of the binary format.
+     */
+    private static class Reader {
+
+        private final InputStream in;
+        private final List<String> table = new ArrayList<String>();
+        private byte[] buf = new byte[256];
+
+        Reader(InputStream in) {
+            this.in = in;
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            return b;
+        }
+
+        int readInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Invalid variable length integer");
+        }
+
+        long readLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return (value >>> 1) ^ -(value & 1);
+                }
+            }
+            throw new IOException("Invalid variable length integer");
+        }
+
+        String readString() throws IOException {
+            int len = readInt() - 1;
+            if (len < 0) {
+                return null;
+            }
+            if (buf.length < len) {
+                buf = new byte[Math.max(len, 2 * buf.length)];
+            }
+            int off = 0;
+            while (off < len) {
+                int n = in.read(buf, off, len - off);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                off += n;
+            }
+            return new String(buf, 0, len, UTF8);
+        }
+
+        String readShared() throws IOException {
+            int ref = readInt();
+            if (ref == NULL) {
+                return null;
+            }
+            if (ref == NEW) {
+                String s = readString();
+                table.add(s);
+                return s;
+            }
+            if (ref - 2 >= table.size()) {
+                throw new IOException("Invalid string table reference");
+            }
+            return table.get(ref - 2);
+        }
+    }
+}
@@ -40,6 +40,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.opensolaris.opengrok.OpenGrokLogger;
 import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.index.HistoryIndex;
 import org.opensolaris.opengrok.index.IgnoredNames;
 
 /**
@@ -57,6 +58,9 @@ public final class HistoryGuru {
     /** The history cache to use */
     private final HistoryCache historyCache;
 
+    /** The cache of annotations */
+    private final AnnotationCache annotationCache = new AnnotationCache();
+
     private Map<String, Repository> repositories =
         new HashMap<String, Repository>();
     private final int scanningDepth;
@@ -72,6 +76,8 @@ public final class HistoryGuru {
         if (env.useHistoryCache()) {
             if (env.storeHistoryCacheInDB()) {
                 cache = new JDBCHistoryCache();
+            } else if (env.storeHistoryCacheInLogStore()) {
+                cache = new LogHistoryCache();
             } else {
                 cache = new FileHistoryCache();
             }
@@ -128,10 +134,16 @@ public final class HistoryGuru {
 
         Repository repos = getRepository(file);
         if (repos != null) {
-            ret = repos.annotate(file, rev);
+            ret = annotationCache.get(file, rev);
+            if (ret == null) {
+                ret = repos.annotate(file, rev);
+                if (ret != null) {
+                    annotationCache.put(file, rev, ret);
+                }
+            }
             History hist = null;
             try {
-                hist = repos.getHistory(file);
+                hist = getHistory(file, false);
             } catch (HistoryException ex) {
                 Logger.getLogger(HistoryGuru.class.getName()).log(Level.FINEST,
                     "Cannot get messages for tooltip: ", ex);
@@ -162,6 +174,29 @@ public final class HistoryGuru {
         return ret;
     }
 
+    /**
+     * Annotate the current revision of a file and add the annotation to the
+     * annotation cache, unless it is there already, so that later requests
+     * don't need to wait for the SCM.
+     *
+     * @param file the file to annotate
+     */
+    public void precomputeAnnotation(File file) {
+        if (RuntimeEnvironment.getInstance().getAnnotationCacheSize() <= 0
+                || !hasAnnotation(file)
+                || annotationCache.get(file, null) != null) {
+            return;
+        }
+        try {
+            Annotation annotation = getRepository(file).annotate(file, null);
+            if (annotation != null) {
+                annotationCache.put(file, null, annotation);
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to annotate " + file, e);
+        }
+    }
+
     /**
      * Get the appropriate history reader for the file specified by parent and
      * basename.
@@ -252,6 +287,21 @@ public final class HistoryGuru {
                     || !repos.isRemote());
     }
 
+    /**
+     * Are the changesets touching the specified file added to the
+     * {@link HistoryIndex}? This is the case if the history cache is used and
+     * the repository of the file supports history for directories, which is
+     * required to create the cache per repository.
+     *
+     * @param file the file to check
+     * @return {@code true} if the history of the file is available from the
+     * history index (once it has been created)
+     */
+    public boolean hasHistoryIndex(File file) {
+        Repository repos = getRepository(file);
+        return repos != null && useCache() && repos.hasHistoryForDirectories();
+    }
+
     /**
      * Check if we can annotate the specified file.
      *
@@ -287,6 +337,29 @@ public final class HistoryGuru {
         return Collections.emptyMap();
     }
 
+    /**
+     * Get the latest changesets touching the specified file or the files
+     * under the specified directory from the history cache, if the cache can
+     * answer this without reading the complete history.
+     *
+     * @param directory the file or directory to get the changesets for
+     * @param max the max. number of changesets to return
+     * @return the latest changesets in reverse chronological order including
+     * the files touched by them, or {@code null} if not available
+     * @throws HistoryException on error when accessing the history
+     */
+    public History getLatestHistory(File directory, int max)
+            throws HistoryException {
+        Repository repository = getRepository(directory);
+        if (repository != null && repository.isWorking() && useCache()
+                && (!directory.isDirectory()
+                    || repository.hasHistoryForDirectories())
+                && historyCache.supportsRepository(repository)) {
+            return historyCache.getLatest(directory, repository, max);
+        }
+        return null;
+    }
+
     private void addRepositories(File[] files, Collection<RepositoryInfo> repos,
             IgnoredNames ignoredNames, int depth)
     {
@@ -549,6 +622,9 @@ public final class HistoryGuru {
             if (RuntimeEnvironment.getInstance().storeHistoryCacheInDB()) {
                 cache = new JDBCHistoryCache();
                 cache.initialize();
+            } else if (RuntimeEnvironment.getInstance()
+                    .storeHistoryCacheInLogStore()) {
+                cache = new LogHistoryCache();
             } else {
                 cache = new FileHistoryCache();
             }
@@ -556,10 +632,16 @@ public final class HistoryGuru {
         for (Repository r : repos) {
             try {
                 cache.clear(r);
+                if (RuntimeEnvironment.getInstance().isHistoryIndex()) {
+                    HistoryIndex.clear(r.getDirectoryName());
+                }
                 log.info("History cache for " + r.getDirectoryName() + " cleared.");
             } catch (HistoryException e) {
                 log.warning("Clearing history cache for repository " +
                     r.getDirectoryName() + " failed: " + e.getLocalizedMessage());
+            } catch (IOException e) {
+                log.warning("Clearing history index for repository " +
+                    r.getDirectoryName() + " failed: " + e.getLocalizedMessage());
             }
         }
         invalidateRepositories(repos);
@@ -651,6 +733,16 @@ public final class HistoryGuru {
         return null;
     }
 
+    /**
+     * Stop the helper processes kept running to read from repositories, e.g.
+     * the {@code git cat-file} processes and the hg command servers. New ones
+     * get started when needed.
+     */
+    public void stopHelperProcesses() {
+        GitCatFile.closeAll();
+        HgCommandServer.closeAll();
+    }
+
     /**
      * Invalidate the current list of known repositories!
      *
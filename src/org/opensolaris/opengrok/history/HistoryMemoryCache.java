@@ -0,0 +1,256 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A memory bounded LRU cache for the results of the queries of
+ * {@link JDBCHistoryCache}: the history of files and directories, and the
+ * last modified times of the files in directories. The size of the cached
+ * objects gets estimated from the length of their strings.
+ * <p>
+ * Entries belong to a repository and get invalidated per repository. To
+ * avoid caching results read before an invalidation, a result may only be
+ * added if the {@link #getGeneration(String) generation} of its repository
+ * has not changed since the caller started reading it.
+ * <p>
+ * The cache hands out and keeps copies, since callers may modify the objects
+ * returned.
+ */
+final class HistoryMemoryCache {
+
+    /** estimated size of the objects besides the characters of strings */
+    private static final int OVERHEAD = 64;
+
+    private final long maxSize;
+    private long size;
+    private final LinkedHashMap<String, Object> map =
+            new LinkedHashMap<String, Object>(256, 0.75f, true);
+    private final HashMap<String, Long> sizes = new HashMap<String, Long>();
+    private final HashMap<String, Long> generations = new HashMap<String, Long>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Create a new cache.
+     *
+     * @param maxSize the max. estimated size of the cached objects in bytes
+     */
+    HistoryMemoryCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    private static String key(String repository, char type, String path) {
+        return repository + '\0' + type + path;
+    }
+
+    /**
+     * Get the cached history of a file or directory.
+     *
+     * @param repository the path of the repository
+     * @param path the path of the file or directory
+     * @param withFiles whether the file lists of the entries are required
+     * @return a copy of the cached history, or {@code null}
+     */
+    History getHistory(String repository, String path, boolean withFiles) {
+        History history;
+        synchronized (this) {
+            history = (History) map.get(key(repository, 'F', path));
+            if (history == null && !withFiles) {
+                history = (History) map.get(key(repository, 'H', path));
+            }
+        }
+        count(history != null);
+        return history == null ? null : copy(history);
+    }
+
+    /**
+     * Add the history of a file or directory.
+     *
+     * @param repository the path of the repository
+     * @param path the path of the file or directory
+     * @param withFiles whether the history contains the file lists
+     * @param history the history to add
+     * @param generation the generation of the repository when the caller
+     * started to read the history
+     */
+    void putHistory(String repository, String path, boolean withFiles,
+            History history, long generation) {
+        long estimate = OVERHEAD + path.length() * 2L;
+        for (HistoryEntry e : history.getHistoryEntries()) {
+            estimate += OVERHEAD + 2L * (length(e.getRevision())
+                    + length(e.getAuthor()) + length(e.getTags())
+                    + e.getMessage().length());
+            for (String file : e.getFiles()) {
+                estimate += OVERHEAD + file.length() * 2L;
+            }
+        }
+        put(repository, key(repository, withFiles ? 'F' : 'H', path),
+                copy(history), estimate, generation);
+    }
+
+    /**
+     * Get the cached last modified times of the files in a directory.
+     *
+     * @param repository the path of the repository
+     * @param path the path of the directory
+     * @return a copy of the cached times, or {@code null}
+     */
+    Map<String, Date> getLastModifiedTimes(String repository, String path) {
+        Map<String, Date> times;
+        synchronized (this) {
+            @SuppressWarnings("unchecked")
+            Map<String, Date> cached =
+                    (Map<String, Date>) map.get(key(repository, 'M', path));
+            times = cached;
+        }
+        count(times != null);
+        return times == null ? null : copy(times);
+    }
+
+    /**
+     * Add the last modified times of the files in a directory.
+     *
+     * @param repository the path of the repository
+     * @param path the path of the directory
+     * @param times the times to add
+     * @param generation the generation of the repository when the caller
+     * started to read the times
+     */
+    void putLastModifiedTimes(String repository, String path,
+            Map<String, Date> times, long generation) {
+        long estimate = OVERHEAD + path.length() * 2L;
+        for (String name : times.keySet()) {
+            estimate += 2 * OVERHEAD + name.length() * 2L;
+        }
+        put(repository, key(repository, 'M', path), copy(times), estimate,
+                generation);
+    }
+
+    /**
+     * Get the current generation of a repository, which changes whenever
+     * the entries of the repository get invalidated.
+     *
+     * @param repository the path of the repository
+     * @return the generation
+     */
+    synchronized long getGeneration(String repository) {
+        Long gen = generations.get(repository);
+        return gen == null ? 0 : gen;
+    }
+
+    /**
+     * Remove all entries of a repository.
+     *
+     * @param repository the path of the repository
+     */
+    synchronized void invalidate(String repository) {
+        generations.put(repository, getGeneration(repository) + 1);
+        String prefix = repository + '\0';
+        for (Iterator<String> it = map.keySet().iterator(); it.hasNext();) {
+            String key = it.next();
+            if (key.startsWith(prefix)) {
+                it.remove();
+                size -= sizes.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Get the number of lookups answered from the cache.
+     *
+     * @return the number of hits
+     */
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of lookups not answered from the cache.
+     *
+     * @return the number of misses
+     */
+    long getMisses() {
+        return misses.get();
+    }
+
+    private synchronized void put(String repository, String key, Object value,
+            long estimate, long generation) {
+        if (estimate > maxSize || generation != getGeneration(repository)) {
+            return;
+        }
+        if (map.put(key, value) != null) {
+            size -= sizes.get(key);
+        }
+        sizes.put(key, estimate);
+        size += estimate;
+        // remove the least recently used entries
+        for (Iterator<String> it = map.keySet().iterator();
+                size > maxSize && it.hasNext();) {
+            String eldest = it.next();
+            it.remove();
+            size -= sizes.remove(eldest);
+        }
+    }
+
+    private void count(boolean hit) {
+        if (hit) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    private static History copy(History history) {
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>(
+                history.getHistoryEntries().size());
+        for (HistoryEntry e : history.getHistoryEntries()) {
+            HistoryEntry copy = new HistoryEntry(e.getRevision(), e.getDate(),
+                    e.getAuthor(), e.getTags(), e.getMessage(), e.isActive());
+            copy.setFiles(new TreeSet<String>(e.getFiles()));
+            entries.add(copy);
+        }
+        return new History(entries);
+    }
+
+    private static Map<String, Date> copy(Map<String, Date> times) {
+        Map<String, Date> copy = new HashMap<String, Date>(times.size());
+        for (Map.Entry<String, Date> e : times.entrySet()) {
+            copy.put(e.getKey(), new Date(e.getValue().getTime()));
+        }
+        return copy;
+    }
+}
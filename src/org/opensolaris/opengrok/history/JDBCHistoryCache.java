@@ -65,6 +65,18 @@ class JDBCHistoryCache implements HistoryCache {
         "DIRECTORIES", "DIRCHANGES"
     };
 
+    /**
+     * The tables written for each changeset, in the order they are
+     * written.
+     */
+    private static final String[] CHANGE_TABLES = {
+        "CHANGESETS", "FILECHANGES", "DIRCHANGES"
+    };
+
+    /** The class name of the embedded Derby driver. */
+    private static final String EMBEDDED_DRIVER =
+            "org.apache.derby.jdbc.EmbeddedDriver";
+
     /**
      * The number of times to retry an operation that failed in a way that
      * indicates that it may succeed if it's tried again.
@@ -100,6 +112,28 @@ class JDBCHistoryCache implements HistoryCache {
     /** Info string to return from {@link #getInfo()}. */
     private String info;
 
+    /**
+     * How often (in milliseconds) to check whether the cached history of a
+     * repository has been changed by another process.
+     */
+    private static final long VALIDATION_INTERVAL = 1000;
+
+    /**
+     * The history read recently, or {@code null} if nothing is kept in
+     * memory.
+     */
+    private final HistoryMemoryCache memoryCache;
+
+    /**
+     * The latest revision in the database of each repository when
+     * {@link #memoryCache} was last validated, and the time of the
+     * validation.
+     */
+    private final Map<String, String> validatedRevisions =
+            new HashMap<String, String>();
+    private final Map<String, Long> validationTimes =
+            new HashMap<String, Long>();
+
     /** SQL queries used by this class. */
     private static final Properties QUERIES = new Properties();
     static {
@@ -133,6 +167,9 @@ class JDBCHistoryCache implements HistoryCache {
     JDBCHistoryCache(String jdbcDriverClass, String url) {
         this.jdbcDriverClass = jdbcDriverClass;
         this.jdbcConnectionURL = url;
+        int size = RuntimeEnvironment.getInstance().getHistoryMemoryCacheSize();
+        this.memoryCache =
+                size > 0 ? new HistoryMemoryCache(size * 1024L * 1024L) : null;
     }
 
     /**
@@ -540,7 +577,36 @@ class JDBCHistoryCache implements HistoryCache {
         try {
             for (int i = 0;; i++) {
                 try {
-                    return getHistory(file, repository, withFiles);
+                    if (memoryCache == null) {
+                        return getHistory(file, repository, withFiles, 0);
+                    }
+                    String reposPath = toUnixPath(repository.getDirectoryName());
+                    String filePath = getSourceRootRelativePath(file);
+                    long generation = validateMemoryCache(repository, reposPath);
+                    History history = memoryCache.getHistory(
+                            reposPath, filePath, withFiles);
+                    if (history == null) {
+                        history = getHistory(file, repository, withFiles, 0);
+                        memoryCache.putHistory(reposPath, filePath, withFiles,
+                                history, generation);
+                    }
+                    return history;
+                } catch (SQLException sqle) {
+                    handleSQLException(sqle, i);
+                }
+            }
+        } catch (SQLException sqle) {
+            throw new HistoryException(sqle);
+        }
+    }
+
+    @Override
+    public History getLatest(File directory, Repository repository, int max)
+            throws HistoryException {
+        try {
+            for (int i = 0;; i++) {
+                try {
+                    return getHistory(directory, repository, true, max);
                 } catch (SQLException sqle) {
                     handleSQLException(sqle, i);
                 }
@@ -551,10 +617,13 @@ class JDBCHistoryCache implements HistoryCache {
     }
 
     /**
-     * Helper for {@link #get(File, Repository)}.
+     * Helper for {@link #get(File, Repository)} and
+     * {@link #getLatest(File, Repository, int)}.
+     *
+     * @param max the max. number of changesets to fetch, {@code 0} for all
      */
     private History getHistory(
-            File file, Repository repository, boolean withFiles)
+            File file, Repository repository, boolean withFiles, int max)
             throws HistoryException, SQLException {
         final String filePath = getSourceRootRelativePath(file);
         final String reposPath = toUnixPath(repository.getDirectoryName());
@@ -574,6 +643,8 @@ class JDBCHistoryCache implements HistoryCache {
                 ps.setString(3, getBaseName(filePath));
             }
             ps.setString(1, reposPath);
+            // the statement is reused, so always reset the limit
+            ps.setMaxRows(max);
 
             final PreparedStatement filePS =
                     withFiles ? conn.getStatement(GET_CS_FILES) : null;
@@ -636,14 +707,15 @@ class JDBCHistoryCache implements HistoryCache {
                 storeHistory(conn, history, repository);
             } finally {
                 connectionManager.releaseConnection(conn);
+                invalidateMemoryCache(repository);
             }
         } catch (SQLException sqle) {
             throw new HistoryException(sqle);
         }
     }
 
-    private static final InsertQuery ADD_CHANGESET =
-            new InsertQuery(getQuery("addChangeset"));
+    private static final PreparedQuery ADD_CHANGESET =
+            new PreparedQuery(getQuery("addChangeset"));
 
     private static final PreparedQuery ADD_DIRCHANGE =
             new PreparedQuery(getQuery("addDirchange"));
@@ -662,9 +734,14 @@ class JDBCHistoryCache implements HistoryCache {
         PreparedStatement addChangeset = null;
         PreparedStatement addDirchange = null;
         PreparedStatement addFilechange = null;
+        Boolean initial = null;
 
         for (int i = 0;; i++) {
             try {
+                if (initial == null) {
+                    initial = getLatestRevisionForRepository(repository) == null;
+                }
+
                 if (reposId == null) {
                     reposId = getRepositoryId(conn, repository);
                     conn.commit();
@@ -710,71 +787,53 @@ class JDBCHistoryCache implements HistoryCache {
             }
         }
 
-        addChangeset.setInt(1, reposId);
+        // When the cache of a repository gets created, lots of rows get
+        // inserted into the same tables. With the embedded driver, the
+        // database is not used by anyone else while indexing, so lock the
+        // tables up front instead of acquiring (and eventually escalating)
+        // row locks for each of them.
+        final boolean lockTables = initial
+                && EMBEDDED_DRIVER.equals(jdbcDriverClass);
+        final int batchSize = Math.max(1,
+                RuntimeEnvironment.getInstance().getHistoryCacheBatchSize());
 
         // getHistoryEntries() returns the entries in reverse chronological
         // order, but we want to insert them in chronological order so that
         // their auto-generated identity column can be used as a chronological
         // ordering column. Otherwise, incremental updates will make the
         // identity column unusable for chronological ordering. So therefore
-        // we walk the list backwards.
+        // we walk the list backwards, batchSize entries per transaction.
         List<HistoryEntry> entries = history.getHistoryEntries();
-        for (ListIterator<HistoryEntry> it =
-                entries.listIterator(entries.size());
-                it.hasPrevious();) {
-            HistoryEntry entry = it.previous();
+        for (int end = entries.size(); end > 0; end -= batchSize) {
+            List<HistoryEntry> batch =
+                    entries.subList(Math.max(0, end - batchSize), end);
             retry:
             for (int i = 0;; i++) {
                 try {
-                    addChangeset.setString(2, entry.getRevision());
-                    addChangeset.setInt(3, authors.get(entry.getAuthor()));
-                    if (entry.getTags() != null) {
-                        addChangeset.setInt(4, tags.get(entry.getTags()));
-                    } else {
-                        addChangeset.setNull(4, java.sql.Types.INTEGER);
+                    if (lockTables) {
+                        lockTables(conn);
                     }
-                    addChangeset.setTimestamp(5,
-                            new Timestamp(entry.getDate().getTime()));
-                    String msg = entry.getMessage();
-                    // Truncate the message if it can't fit in a VARCHAR
-                    // (bug #11663).
-                    if (msg.length() > MAX_MESSAGE_LENGTH) {
-                        msg = truncate(msg, MAX_MESSAGE_LENGTH);
+                    for (ListIterator<HistoryEntry> it =
+                            batch.listIterator(batch.size());
+                            it.hasPrevious();) {
+                        addChangeset(it.previous(), reposId, authors, tags,
+                                files, directories, addChangeset,
+                                addDirchange, addFilechange);
                     }
-                    addChangeset.setString(6, msg);
-                    int changesetId = nextChangesetId.getAndIncrement();
-                    addChangeset.setInt(7, changesetId);
-                    addChangeset.executeUpdate();
-
-                    // Add one row for each file in FILECHANGES, and one row
-                    // for each path element of the directories in DIRCHANGES.
-                    Set<String> addedDirs = new HashSet<String>();
-                    addDirchange.setInt(1, changesetId);
-                    addFilechange.setInt(1, changesetId);
-                    for (String file : entry.getFiles()) {
-                        String fullPath = toUnixPath(file);
-                        int fileId = files.get(fullPath);
-                        addFilechange.setInt(2, fileId);
-                        addFilechange.executeUpdate();
-                        String[] pathElts = splitPath(fullPath);
-                        for (int j = 0; j < pathElts.length; j++) {
-                            String dir = unsplitPath(pathElts, j);
-                            // Only add to DIRCHANGES if we haven't already
-                            // added this dir/changeset combination.
-                            if (!addedDirs.contains(dir)) {
-                                addDirchange.setInt(2, directories.get(dir));
-                                addDirchange.executeUpdate();
-                                addedDirs.add(dir);
-                            }
-                        }
-                    }
-
+                    // The rows of the changesets need to exist before the
+                    // rows referring to them.
+                    addChangeset.executeBatch();
+                    addFilechange.executeBatch();
+                    addDirchange.executeBatch();
                     conn.commit();
 
-                    // Successfully added the entry. Break out of retry loop.
+                    // Successfully added the batch. Break out of retry loop.
                     break retry;
 
                 } catch (SQLException sqle) {
+                    addChangeset.clearBatch();
+                    addFilechange.clearBatch();
+                    addDirchange.clearBatch();
                     handleSQLException(sqle, i);
                     conn.rollback();
                 }
@@ -782,6 +841,76 @@ class JDBCHistoryCache implements HistoryCache {
         }
     }
 
+    /**
+     * Add the rows of a changeset to the batches of the given statements.
+     */
+    private void addChangeset(HistoryEntry entry, int reposId,
+            Map<String, Integer> authors, Map<String, Integer> tags,
+            Map<String, Integer> files, Map<String, Integer> directories,
+            PreparedStatement addChangeset, PreparedStatement addDirchange,
+            PreparedStatement addFilechange) throws SQLException {
+        addChangeset.setInt(1, reposId);
+        addChangeset.setString(2, entry.getRevision());
+        addChangeset.setInt(3, authors.get(entry.getAuthor()));
+        if (entry.getTags() != null) {
+            addChangeset.setInt(4, tags.get(entry.getTags()));
+        } else {
+            addChangeset.setNull(4, java.sql.Types.INTEGER);
+        }
+        addChangeset.setTimestamp(5,
+                new Timestamp(entry.getDate().getTime()));
+        String msg = entry.getMessage();
+        // Truncate the message if it can't fit in a VARCHAR
+        // (bug #11663).
+        if (msg.length() > MAX_MESSAGE_LENGTH) {
+            msg = truncate(msg, MAX_MESSAGE_LENGTH);
+        }
+        addChangeset.setString(6, msg);
+        int changesetId = nextChangesetId.getAndIncrement();
+        addChangeset.setInt(7, changesetId);
+        addChangeset.addBatch();
+
+        // Add one row for each file in FILECHANGES, and one row
+        // for each path element of the directories in DIRCHANGES.
+        Set<String> addedDirs = new HashSet<String>();
+        addDirchange.setInt(1, changesetId);
+        addFilechange.setInt(1, changesetId);
+        for (String file : entry.getFiles()) {
+            String fullPath = toUnixPath(file);
+            int fileId = files.get(fullPath);
+            addFilechange.setInt(2, fileId);
+            addFilechange.addBatch();
+            String[] pathElts = splitPath(fullPath);
+            for (int j = 0; j < pathElts.length; j++) {
+                String dir = unsplitPath(pathElts, j);
+                // Only add to DIRCHANGES if we haven't already
+                // added this dir/changeset combination.
+                if (!addedDirs.contains(dir)) {
+                    addDirchange.setInt(2, directories.get(dir));
+                    addDirchange.addBatch();
+                    addedDirs.add(dir);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lock the tables written by {@code storeHistory()} exclusively until
+     * the end of the current transaction.
+     */
+    private static void lockTables(ConnectionResource conn)
+            throws SQLException {
+        Statement s = conn.createStatement();
+        try {
+            for (String table : CHANGE_TABLES) {
+                s.execute("LOCK TABLE " + SCHEMA + "." + table
+                        + " IN EXCLUSIVE MODE");
+            }
+        } finally {
+            s.close();
+        }
+    }
+
     /**
      * Optimize how the cache is stored on disk. In particular, make sure
      * index cardinality statistics are up to date, and perform a checkpoint
@@ -1211,8 +1340,22 @@ class JDBCHistoryCache implements HistoryCache {
         try {
             for (int i = 0;; i++) {
                 try {
-                    return getLastModifiedTimesForAllFiles(
-                            directory, repository);
+                    if (memoryCache == null) {
+                        return getLastModifiedTimesForAllFiles(
+                                directory, repository);
+                    }
+                    String reposPath = toUnixPath(repository.getDirectoryName());
+                    String dirPath = getSourceRootRelativePath(directory);
+                    long generation = validateMemoryCache(repository, reposPath);
+                    Map<String, Date> times =
+                            memoryCache.getLastModifiedTimes(reposPath, dirPath);
+                    if (times == null) {
+                        times = getLastModifiedTimesForAllFiles(
+                                directory, repository);
+                        memoryCache.putLastModifiedTimes(
+                                reposPath, dirPath, times, generation);
+                    }
+                    return times;
                 } catch (SQLException sqle) {
                     handleSQLException(sqle, i);
                 }
@@ -1258,6 +1401,7 @@ class JDBCHistoryCache implements HistoryCache {
             for (int i = 0;; i++) {
                 try {
                     clearHistoryForRepository(repository);
+                    invalidateMemoryCache(repository);
                     return;
                 } catch (SQLException sqle) {
                     handleSQLException(sqle, i);
@@ -1292,8 +1436,55 @@ class JDBCHistoryCache implements HistoryCache {
         }
     }
 
+    /**
+     * Make sure that {@link #memoryCache} does not contain history of a
+     * repository that has been changed by another process since it was read.
+     * The latest revision of the repository in the database gets checked at
+     * most once per {@link #VALIDATION_INTERVAL}.
+     *
+     * @return the generation of the repository in the memory cache before
+     * anything gets read from the database
+     */
+    private long validateMemoryCache(Repository repository, String reposPath)
+            throws SQLException {
+        long generation = memoryCache.getGeneration(reposPath);
+        long now = System.currentTimeMillis();
+        synchronized (validationTimes) {
+            Long last = validationTimes.get(reposPath);
+            if (last != null && now - last < VALIDATION_INTERVAL) {
+                return generation;
+            }
+        }
+        String revision = getLatestRevisionForRepository(repository);
+        synchronized (validationTimes) {
+            if (validationTimes.containsKey(reposPath)) {
+                String old = validatedRevisions.get(reposPath);
+                if (revision == null ? old != null : !revision.equals(old)) {
+                    memoryCache.invalidate(reposPath);
+                }
+            }
+            validatedRevisions.put(reposPath, revision);
+            validationTimes.put(reposPath, now);
+        }
+        return generation;
+    }
+
+    /**
+     * Remove the history of a repository from {@link #memoryCache} after it
+     * has been changed.
+     */
+    private void invalidateMemoryCache(Repository repository) {
+        if (memoryCache != null) {
+            memoryCache.invalidate(toUnixPath(repository.getDirectoryName()));
+        }
+    }
+
     @Override
     public String getInfo() {
-        return info;
+        if (memoryCache == null) {
+            return info;
+        }
+        return info + "Memory cache: " + memoryCache.getHits() + " hits, "
+                + memoryCache.getMisses() + " misses\n";
     }
 }
@@ -0,0 +1,234 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+
+/**
+ * History cache which keeps the history of each repository in an embedded
+ * {@link LogHistoryStore} below the data root. Like {@link JDBCHistoryCache},
+ * it stores the complete history of repositories that can provide the
+ * history of a directory at once, and it can answer queries for directories,
+ * but it does not need a database server.
+ */
+class LogHistoryCache implements HistoryCache {
+
+    /**
+     * The number of changesets that may be added to a store before its index
+     * gets rewritten.
+     */
+    private static final int COMPACT_THRESHOLD = 1000;
+
+    private final int compactThreshold;
+    private final Map<File, LogHistoryStore> stores =
+            new HashMap<File, LogHistoryStore>();
+
+    LogHistoryCache() {
+        this(COMPACT_THRESHOLD);
+    }
+
+    /**
+     * Create a new cache instance.
+     *
+     * @param compactThreshold the number of changesets that may be added to
+     * a store before its index gets rewritten
+     */
+    LogHistoryCache(int compactThreshold) {
+        this.compactThreshold = compactThreshold;
+    }
+
+    @Override
+    public void initialize() {
+        // nothing to do, the stores get created when needed
+    }
+
+    /**
+     * Check whether this cache implementation can store history for the given
+     * repository. Only repositories that support retrieval of history for the
+     * whole directory at once are supported.
+     */
+    @Override
+    public boolean supportsRepository(Repository repository) {
+        return repository.hasHistoryForDirectories();
+    }
+
+    /**
+     * Get the store of a repository.
+     */
+    private LogHistoryStore getStore(Repository repository)
+            throws HistoryException {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        File dir;
+        try {
+            // The suffix keeps the files of the store apart from the stores
+            // of repositories in subdirectories.
+            dir = new File(new File(env.getDataRootFile(), "historylog"),
+                    env.getPathRelativeToSourceRoot(
+                    new File(repository.getDirectoryName()), 0) + ".d");
+        } catch (IOException e) {
+            throw new HistoryException("Could not resolve "
+                    + repository.getDirectoryName()
+                    + " relative to source root", e);
+        }
+        synchronized (stores) {
+            LogHistoryStore store = stores.get(dir);
+            if (store == null) {
+                store = new LogHistoryStore(dir);
+                stores.put(dir, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Get the path used by the stores for a file or directory.
+     */
+    private static String getPath(File file) throws HistoryException {
+        String path;
+        try {
+            path = RuntimeEnvironment.getInstance()
+                    .getPathRelativeToSourceRoot(file, 0)
+                    .replace(File.separatorChar, '/');
+        } catch (IOException e) {
+            throw new HistoryException("Failed to get path relative to "
+                    + "source root for " + file, e);
+        }
+        return file.isDirectory() ? path + "/" : path;
+    }
+
+    @Override
+    public History get(File file, Repository repository, boolean withFiles)
+            throws HistoryException {
+        try {
+            return new History(getStore(repository).get(
+                    getPath(file), withFiles, 0));
+        } catch (IOException e) {
+            throw new HistoryException("Failed to read history of " + file, e);
+        }
+    }
+
+    @Override
+    public History getLatest(File directory, Repository repository, int max)
+            throws HistoryException {
+        try {
+            return new History(getStore(repository).get(
+                    getPath(directory), true, max));
+        } catch (IOException e) {
+            throw new HistoryException(
+                    "Failed to read history of " + directory, e);
+        }
+    }
+
+    @Override
+    public void store(History history, Repository repository)
+            throws HistoryException {
+        List<HistoryEntry> entries = history.getHistoryEntries();
+        if (entries == null) {
+            entries = new ArrayList<HistoryEntry>();
+        }
+        try {
+            getStore(repository).append(entries, compactThreshold);
+        } catch (IOException e) {
+            throw new HistoryException("Failed to store history of "
+                    + repository.getDirectoryName(), e);
+        }
+    }
+
+    /**
+     * Rewrite the indexes of the stores used by this instance, so that they
+     * cover all changesets.
+     */
+    @Override
+    public void optimize() throws HistoryException {
+        List<LogHistoryStore> list;
+        synchronized (stores) {
+            list = new ArrayList<LogHistoryStore>(stores.values());
+        }
+        for (LogHistoryStore store : list) {
+            try {
+                store.compact();
+            } catch (IOException e) {
+                throw new HistoryException("Failed to optimize history", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean hasCacheForDirectory(File directory, Repository repository)
+            throws HistoryException {
+        assert directory.isDirectory();
+        try {
+            return getStore(repository).contains(getPath(directory));
+        } catch (IOException e) {
+            throw new HistoryException(
+                    "Failed to read history of " + directory, e);
+        }
+    }
+
+    @Override
+    public String getLatestCachedRevision(Repository repository)
+            throws HistoryException {
+        try {
+            return getStore(repository).getLatestRevision();
+        } catch (IOException e) {
+            throw new HistoryException("Failed to read history of "
+                    + repository.getDirectoryName(), e);
+        }
+    }
+
+    @Override
+    public Map<String, Date> getLastModifiedTimes(
+            File directory, Repository repository)
+        throws HistoryException
+    {
+        try {
+            return getStore(repository).getLastModifiedTimes(
+                    getPath(directory));
+        } catch (IOException e) {
+            throw new HistoryException(
+                    "Failed to read history of " + directory, e);
+        }
+    }
+
+    @Override
+    public void clear(Repository repository) throws HistoryException {
+        try {
+            getStore(repository).delete();
+        } catch (IOException e) {
+            throw new HistoryException("Failed to clear history of "
+                    + repository.getDirectoryName(), e);
+        }
+    }
+
+    @Override
+    public String getInfo() {
+        return getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,1240 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import org.opensolaris.opengrok.OpenGrokLogger;
+import org.opensolaris.opengrok.util.IOUtils;
+
+/**
+ * The history of a repository, stored in a single directory by
+ * {@link LogHistoryCache}. The directory contains
+ * <ul>
+ * <li>{@code changesets}, the log of changesets in the order they were
+ * added. Changesets only get appended to it.</li>
+ * <li>{@code offsets}, the position in the log and the date of each
+ * changeset.</li>
+ * <li>{@code paths}, the table of file names referred to by the
+ * changesets, which also only gets appended to.</li>
+ * <li>{@code index-<generation>}, a sorted table mapping the path of each
+ * file and directory to the numbers of the changesets touching it. It is
+ * memory-mapped when read.</li>
+ * <li>{@code head}, which tells how much of the other files is valid, and
+ * which index is the current one.</li>
+ * </ul>
+ * New changesets only get appended to the log, and the head gets replaced
+ * afterwards. Changesets not covered by the index get scanned when reading.
+ * Once there are enough of them, the index gets rewritten to include them
+ * (compaction) under a new generation. The previous generation is kept for
+ * readers which have just read the previous head, older ones get removed.
+ * <p>
+ * Since the valid parts of the files never change, any number of readers
+ * can work on the snapshot described by the head they have read, while one
+ * writer appends to the store. Writers get serialized by a lock on the
+ * {@code lock} file of the store.
+ * <p>
+ * Paths in the store are relative to the source root and use '/' as the
+ * separator. The paths of directories end with '/'.
+ */
+final class LogHistoryStore {
+
+    private static final byte[] MAGIC = {'O', 'G', 'H', 'L'};
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String HEAD = "head";
+    private static final String LOG = "changesets";
+    private static final String OFFSETS = "offsets";
+    private static final String PATHS = "paths";
+    private static final String LOCK = "lock";
+    private static final String INDEX = "index-";
+
+    /** size of an entry in the offsets file: position and date */
+    private static final int OFFSET_SIZE = 16;
+    /** size of the header of an index file */
+    private static final int INDEX_HEADER_SIZE = 20;
+    /**
+     * size of an entry in the key table of an index: position and length of
+     * the key, position and number of the postings
+     */
+    private static final int KEY_SIZE = 16;
+    /**
+     * max. number of changesets whose keys get collected in memory at once
+     * during a compaction
+     */
+    static final int RUN_SIZE = 10000;
+    /**
+     * Compactions triggered by {@code append()} wait until the changesets not
+     * covered by the index amount to at least 1/COMPACT_RATIO of the ones
+     * covered. So while a big history gets added in chunks, the index gets
+     * rewritten a logarithmic number of times instead of once per chunk.
+     */
+    private static final int COMPACT_RATIO = 4;
+    /** stored instead of the date of a changeset without date */
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    /** the writers of this process, per store directory */
+    private static final Map<File, Object> WRITE_LOCKS =
+            new HashMap<File, Object>();
+
+    private final File dir;
+
+    // Read caches, see open(). They get reset if the store gets recreated.
+    private long created;
+    private String[] pathTable = new String[0];
+    private int pathCount;
+    private long pathsLength;
+    private ByteBuffer offsets;
+    private int offsetCount;
+    private Index index;
+
+    /**
+     * Create an object to access the store in the given directory.
+     *
+     * @param dir the directory of the store, which gets created when the
+     * first changesets get added
+     */
+    LogHistoryStore(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Get the revision of the changeset added last.
+     *
+     * @return the latest revision, or {@code null} if the store does not
+     * exist or the revision is unknown
+     * @throws IOException if the store cannot be read
+     */
+    String getLatestRevision() throws IOException {
+        Head head = readHead();
+        return head == null ? null : head.latestRevision;
+    }
+
+    /**
+     * Get the changesets touching a file or the files under a directory.
+     *
+     * @param path the path of the file, or of the directory ending with '/'
+     * @param withFiles whether to include the files touched by the changesets
+     * @param max the max. number of changesets to return, {@code 0} for all
+     * @return the changesets, most recent first
+     * @throws IOException if the store cannot be read
+     */
+    List<HistoryEntry> get(String path, boolean withFiles, int max)
+            throws IOException {
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        View view = open();
+        if (view == null) {
+            return entries;
+        }
+        FileChannel log = openLog();
+        try {
+            // the changesets not indexed yet are the most recent ones
+            for (int r = view.head.recordCount - 1; r >= view.head.indexCount
+                    && (max == 0 || entries.size() < max); r--) {
+                ByteBuffer record = readRecord(log, view, r);
+                if (touches(record, view.paths, path)) {
+                    record.rewind();
+                    entries.add(decode(record, view, r, withFiles));
+                }
+            }
+            Index idx = view.index;
+            int i = idx == null ? -1 : idx.find(path);
+            if (i >= 0) {
+                for (int j = idx.getPostingCount(i) - 1;
+                        j >= 0 && (max == 0 || entries.size() < max); j--) {
+                    int r = idx.getPosting(i, j);
+                    entries.add(decode(readRecord(log, view, r), view, r,
+                            withFiles));
+                }
+            }
+        } finally {
+            log.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Check whether any changeset touches the files under a directory.
+     *
+     * @param path the path of the directory ending with '/'
+     * @return {@code true} if the directory is known to the store
+     * @throws IOException if the store cannot be read
+     */
+    boolean contains(String path) throws IOException {
+        View view = open();
+        if (view == null) {
+            return false;
+        }
+        if (view.index != null && view.index.find(path) >= 0) {
+            return true;
+        }
+        FileChannel log = openLog();
+        try {
+            for (int r = view.head.indexCount; r < view.head.recordCount; r++) {
+                if (touches(readRecord(log, view, r), view.paths, path)) {
+                    return true;
+                }
+            }
+        } finally {
+            log.close();
+        }
+        return false;
+    }
+
+    /**
+     * Get the date of the latest changeset touching each of the files and
+     * subdirectories of a directory.
+     *
+     * @param path the path of the directory ending with '/'
+     * @return a map from the names of the files and subdirectories to dates
+     * @throws IOException if the store cannot be read
+     */
+    Map<String, Date> getLastModifiedTimes(String path) throws IOException {
+        Map<String, Date> times = new HashMap<String, Date>();
+        View view = open();
+        if (view == null) {
+            return times;
+        }
+        Index idx = view.index;
+        if (idx != null) {
+            int i = idx.lowerBound(path);
+            while (i < idx.keyCount) {
+                String key = idx.getKey(i);
+                if (!key.startsWith(path)) {
+                    break;
+                }
+                String rest = key.substring(path.length());
+                int slash = rest.indexOf('/');
+                String name = slash < 0 ? rest : rest.substring(0, slash);
+                if (name.length() > 0) {
+                    int count = idx.getPostingCount(i);
+                    // postings are sorted, the last one is the latest
+                    addTime(times, name, getDate(view,
+                            idx.getPosting(i, count - 1)));
+                }
+                if (slash < 0 || name.length() == 0) {
+                    i++;
+                } else {
+                    // the key of the subdirectory covers everything below
+                    // it, so skip to the first key after them
+                    i = idx.lowerBound(path + name + (char) ('/' + 1));
+                }
+            }
+        }
+        FileChannel log = openLog();
+        try {
+            for (int r = view.head.indexCount; r < view.head.recordCount; r++) {
+                for (int id : getFileIds(readRecord(log, view, r))) {
+                    String file = view.paths[id];
+                    if (file.startsWith(path)) {
+                        String rest = file.substring(path.length());
+                        int slash = rest.indexOf('/');
+                        addTime(times, slash < 0 ? rest
+                                : rest.substring(0, slash), getDate(view, r));
+                    }
+                }
+            }
+        } finally {
+            log.close();
+        }
+        return times;
+    }
+
+    private static void addTime(Map<String, Date> times, String name,
+            Date date) {
+        if (date != null) {
+            Date old = times.get(name);
+            if (old == null || old.before(date)) {
+                times.put(name, date);
+            }
+        }
+    }
+
+    /**
+     * Append changesets to the store. The index gets rewritten if the
+     * number of changesets not covered by it reaches the given threshold,
+     * and a fraction of the number of changesets covered by it.
+     *
+     * @param entries the changesets to add, most recent first, each of them
+     * with the files it touches
+     * @param compactThreshold the max. number of changesets not covered by
+     * the index
+     * @throws IOException if the changesets cannot be written
+     */
+    void append(List<HistoryEntry> entries, int compactThreshold)
+            throws IOException {
+        synchronized (getWriteLock()) {
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Unable to create history store '"
+                        + dir + "'.");
+            }
+            RandomAccessFile lockFile =
+                    new RandomAccessFile(new File(dir, LOCK), "rw");
+            try {
+                FileLock lock = lockFile.getChannel().lock();
+                try {
+                    Head head = readHead();
+                    if (head == null) {
+                        head = new Head();
+                        head.created = System.currentTimeMillis();
+                    }
+                    appendLocked(head, entries);
+                    int unindexed = head.recordCount - head.indexCount;
+                    if (unindexed >= compactThreshold && unindexed
+                            >= head.indexCount / COMPACT_RATIO) {
+                        compactLocked(head);
+                    }
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockFile.close();
+            }
+        }
+    }
+
+    /**
+     * Rewrite the index to cover all changesets in the store.
+     *
+     * @throws IOException if the index cannot be written
+     */
+    void compact() throws IOException {
+        synchronized (getWriteLock()) {
+            if (!new File(dir, HEAD).exists()) {
+                return;
+            }
+            RandomAccessFile lockFile =
+                    new RandomAccessFile(new File(dir, LOCK), "rw");
+            try {
+                FileLock lock = lockFile.getChannel().lock();
+                try {
+                    Head head = readHead();
+                    if (head != null && head.recordCount > head.indexCount) {
+                        compactLocked(head);
+                    }
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockFile.close();
+            }
+        }
+    }
+
+    /**
+     * Remove the store.
+     *
+     * @throws IOException if the store could not be removed
+     */
+    void delete() throws IOException {
+        synchronized (getWriteLock()) {
+            remove(dir);
+            if (dir.exists()) {
+                throw new IOException("Failed to remove " + dir);
+            }
+            synchronized (this) {
+                reset(0);
+            }
+        }
+    }
+
+    private static void remove(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                remove(child);
+            }
+        }
+        if (!file.delete() && file.exists()) {
+            OpenGrokLogger.getLogger().log(Level.WARNING,
+                    "Failed to remove {0}", file);
+        }
+    }
+
+    private Object getWriteLock() {
+        synchronized (WRITE_LOCKS) {
+            Object lock = WRITE_LOCKS.get(dir);
+            if (lock == null) {
+                lock = new Object();
+                WRITE_LOCKS.put(dir, lock);
+            }
+            return lock;
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Writing
+
+    private void appendLocked(Head head, List<HistoryEntry> entries)
+            throws IOException {
+        List<String> table = new ArrayList<String>(head.pathCount);
+        readPaths(head, 0, table);
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        for (int i = 0; i < table.size(); i++) {
+            ids.put(table.get(i), i);
+        }
+
+        // Anything after the valid part of the files has been left behind
+        // by a writer that failed, and gets overwritten.
+        FileOutputStream logFile = openAppend(LOG, head.logLength);
+        FileOutputStream offsetsFile =
+                openAppend(OFFSETS, (long) head.recordCount * OFFSET_SIZE);
+        FileOutputStream pathsFile = openAppend(PATHS, head.pathsLength);
+        try {
+            DataOutputStream log = new DataOutputStream(
+                    new BufferedOutputStream(logFile));
+            DataOutputStream offs = new DataOutputStream(
+                    new BufferedOutputStream(offsetsFile));
+            DataOutputStream paths = new DataOutputStream(
+                    new BufferedOutputStream(pathsFile));
+
+            // oldest first, so that changeset numbers grow with time
+            for (ListIterator<HistoryEntry> it =
+                    entries.listIterator(entries.size()); it.hasPrevious();) {
+                HistoryEntry entry = it.previous();
+                List<String> files = entry.getFiles() == null
+                        ? new ArrayList<String>()
+                        : new ArrayList<String>(entry.getFiles());
+                int[] fileIds = new int[files.size()];
+                for (int i = 0; i < fileIds.length; i++) {
+                    String file = files.get(i).replace(File.separatorChar, '/');
+                    Integer id = ids.get(file);
+                    if (id == null) {
+                        id = head.pathCount++;
+                        ids.put(file, id);
+                        byte[] bytes = file.getBytes(UTF8);
+                        paths.writeInt(bytes.length);
+                        paths.write(bytes);
+                        head.pathsLength += 4 + bytes.length;
+                    }
+                    fileIds[i] = id;
+                }
+                byte[] record = encode(entry, fileIds);
+                log.write(record);
+                offs.writeLong(head.logLength);
+                offs.writeLong(entry.getDate() == null
+                        ? NO_DATE : entry.getDate().getTime());
+                head.logLength += record.length;
+                head.recordCount++;
+            }
+
+            log.flush();
+            offs.flush();
+            paths.flush();
+            // the head must not refer to data that may get lost
+            logFile.getFD().sync();
+            offsetsFile.getFD().sync();
+            pathsFile.getFD().sync();
+        } finally {
+            IOUtils.close(logFile);
+            IOUtils.close(offsetsFile);
+            IOUtils.close(pathsFile);
+        }
+
+        if (!entries.isEmpty() && entries.get(0).getRevision() != null) {
+            head.latestRevision = entries.get(0).getRevision();
+        }
+        writeHead(head);
+    }
+
+    private FileOutputStream openAppend(String name, long length)
+            throws IOException {
+        File file = new File(dir, name);
+        if (file.length() > length) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(length);
+            } finally {
+                raf.close();
+            }
+        }
+        return new FileOutputStream(file, true);
+    }
+
+    private void compactLocked(Head head) throws IOException {
+        Index old = head.indexGen == 0
+                ? null : new Index(getIndexFile(head.indexGen));
+        List<String> table = new ArrayList<String>(head.pathCount);
+        readPaths(head, 0, table);
+        String[] paths = table.toArray(new String[table.size()]);
+
+        long gen = Math.max(head.indexGen + 1, System.currentTimeMillis());
+        List<File> runs = new ArrayList<File>();
+        File keysFile = File.createTempFile("keys", null, dir);
+        File postingsFile = File.createTempFile("postings", null, dir);
+        File indexFile = File.createTempFile("compact", null, dir);
+        try {
+            // Collect the keys of the changesets not indexed yet, in sorted
+            // runs of a bounded number of changesets, so that the memory
+            // needed does not grow with the size of the repository.
+            View view = new View(head, paths, mapOffsets(head.recordCount),
+                    old);
+            FileChannel log = openLog();
+            try {
+                for (int start = head.indexCount; start < head.recordCount;
+                        start += RUN_SIZE) {
+                    int end = Math.min(head.recordCount, start + RUN_SIZE);
+                    File run = File.createTempFile("run", null, dir);
+                    runs.add(run);
+                    writeRun(log, view, start, end, run);
+                }
+            } finally {
+                log.close();
+            }
+
+            // Merge the runs with the old index in one pass. The keys and
+            // the postings are written to temporary files first, since the
+            // size of the key table is not known in advance.
+            IntList keyTable = new IntList();
+            int keyBytes = 0;
+            int postingBytes = 0;
+            List<Cursor> cursors = new ArrayList<Cursor>(runs.size() + 1);
+            DataOutputStream keys = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(keysFile)));
+            DataOutputStream postings = new DataOutputStream(
+                    new BufferedOutputStream(
+                    new FileOutputStream(postingsFile)));
+            try {
+                // the postings of the old index come first, then the ones
+                // of the runs in the order of the changesets
+                if (old != null) {
+                    cursors.add(new IndexCursor(old));
+                }
+                for (File run : runs) {
+                    cursors.add(new RunCursor(run, cursors.size()));
+                }
+                PriorityQueue<Cursor> queue =
+                        new PriorityQueue<Cursor>(cursors.size() + 1);
+                for (Cursor c : cursors) {
+                    if (c.next()) {
+                        queue.add(c);
+                    }
+                }
+                while (!queue.isEmpty()) {
+                    String key = queue.peek().key;
+                    int count = 0;
+                    while (!queue.isEmpty() && queue.peek().key.equals(key)) {
+                        Cursor c = queue.poll();
+                        count += c.writePostings(postings);
+                        if (c.next()) {
+                            queue.add(c);
+                        }
+                    }
+                    byte[] bytes = key.getBytes(UTF8);
+                    keys.write(bytes);
+                    keyTable.add(keyBytes);
+                    keyTable.add(bytes.length);
+                    keyTable.add(postingBytes);
+                    keyTable.add(count);
+                    keyBytes += bytes.length;
+                    postingBytes += count * 4;
+                    if (keyBytes < 0 || postingBytes < 0) {
+                        throw new IOException("History index too large");
+                    }
+                }
+            } finally {
+                keys.close();
+                postings.close();
+                for (Cursor c : cursors) {
+                    c.close();
+                }
+            }
+
+            FileOutputStream indexOut = new FileOutputStream(indexFile);
+            try {
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(indexOut));
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(head.recordCount);
+                out.writeInt(keyTable.size() / 4);
+                out.writeInt(keyBytes);
+                for (int j = 0; j < keyTable.size(); j++) {
+                    out.writeInt(keyTable.get(j));
+                }
+                Files.copy(keysFile.toPath(), out);
+                Files.copy(postingsFile.toPath(), out);
+                out.flush();
+                indexOut.getFD().sync();
+            } finally {
+                indexOut.close();
+            }
+            move(indexFile, getIndexFile(gen));
+        } finally {
+            runs.add(keysFile);
+            runs.add(postingsFile);
+            runs.add(indexFile);
+            for (File f : runs) {
+                if (f.exists() && !f.delete()) {
+                    OpenGrokLogger.getLogger().log(Level.WARNING,
+                            "Failed to remove temporary file {0}", f);
+                }
+            }
+        }
+
+        long previous = head.indexGen;
+        head.indexGen = gen;
+        head.indexCount = head.recordCount;
+        writeHead(head);
+
+        // Readers of this process map the new index when they see the new
+        // head. The previous index is kept until the next compaction, since
+        // readers may just have read the previous head. Older indexes still
+        // mapped by other processes may not be removable on some platforms,
+        // they get removed later.
+        String current = getIndexFile(gen).getName();
+        String kept = getIndexFile(previous).getName();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().startsWith(INDEX)
+                        && !f.getName().equals(current)
+                        && !f.getName().equals(kept) && !f.delete()) {
+                    OpenGrokLogger.getLogger().log(Level.FINE,
+                            "Failed to remove old history index {0}", f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the keys of the changesets {@code start} to {@code end}
+     * (exclusive) with their postings to a run file, sorted by key.
+     */
+    private static void writeRun(FileChannel log, View view, int start,
+            int end, File run) throws IOException {
+        TreeMap<String, IntList> added = new TreeMap<String, IntList>();
+        for (int r = start; r < end; r++) {
+            Set<String> keys = new HashSet<String>();
+            for (int id : getFileIds(readRecord(log, view, r))) {
+                addKeys(view.paths[id], keys);
+            }
+            for (String key : keys) {
+                IntList list = added.get(key);
+                if (list == null) {
+                    list = new IntList();
+                    added.put(key, list);
+                }
+                list.add(r);
+            }
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(run)));
+        try {
+            out.writeInt(added.size());
+            for (Map.Entry<String, IntList> e : added.entrySet()) {
+                byte[] bytes = e.getKey().getBytes(UTF8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                IntList list = e.getValue();
+                out.writeInt(list.size());
+                for (int j = 0; j < list.size(); j++) {
+                    out.writeInt(list.get(j));
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Add the keys of a file to a set: the path of the file and the paths
+     * of all its parent directories.
+     */
+    private static void addKeys(String path, Set<String> keys) {
+        keys.add(path);
+        for (int i = path.indexOf('/'); i >= 0 && i < path.length() - 1;
+                i = path.indexOf('/', i + 1)) {
+            keys.add(path.substring(0, i + 1));
+        }
+    }
+
+    private static byte[] encode(HistoryEntry entry, int[] fileIds)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, entry.getRevision());
+        writeString(out, entry.getAuthor());
+        writeString(out, entry.getTags());
+        writeString(out, entry.getMessage());
+        out.writeBoolean(entry.isActive());
+        out.writeInt(fileIds.length);
+        for (int id : fileIds) {
+            out.writeInt(id);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private void writeHead(Head head) throws IOException {
+        File tmp = File.createTempFile(HEAD, null, dir);
+        try {
+            FileOutputStream file = new FileOutputStream(tmp);
+            try {
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(file));
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(head.created);
+                out.writeInt(head.recordCount);
+                out.writeLong(head.logLength);
+                out.writeInt(head.pathCount);
+                out.writeLong(head.pathsLength);
+                out.writeLong(head.indexGen);
+                out.writeInt(head.indexCount);
+                out.writeBoolean(head.latestRevision != null);
+                if (head.latestRevision != null) {
+                    out.writeUTF(head.latestRevision);
+                }
+                out.flush();
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+            move(tmp, new File(dir, HEAD));
+        } finally {
+            if (tmp.exists() && !tmp.delete()) {
+                OpenGrokLogger.getLogger().log(Level.WARNING,
+                        "Failed to remove temporary file {0}", tmp);
+            }
+        }
+    }
+
+    private static void move(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Reading
+
+    private Head readHead() throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(new File(dir, HEAD))));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            checkHeader(in);
+            Head head = new Head();
+            head.created = in.readLong();
+            head.recordCount = in.readInt();
+            head.logLength = in.readLong();
+            head.pathCount = in.readInt();
+            head.pathsLength = in.readLong();
+            head.indexGen = in.readLong();
+            head.indexCount = in.readInt();
+            head.latestRevision = in.readBoolean() ? in.readUTF() : null;
+            return head;
+        } finally {
+            IOUtils.close(in);
+        }
+    }
+
+    private void checkHeader(DataInputStream in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a history store: " + dir);
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported version " + version
+                    + " of history store " + dir);
+        }
+    }
+
+    /**
+     * Get a consistent view of the current state of the store, and update
+     * the read caches to it.
+     *
+     * @return the view, or {@code null} if the store does not exist
+     */
+    private synchronized View open() throws IOException {
+        for (int attempt = 0;; attempt++) {
+            try {
+                return openHead();
+            } catch (FileNotFoundException | NoSuchFileException e) {
+                // The index named by the head has been removed by two
+                // compactions since the head has been read. Try again with
+                // the new head.
+                if (attempt >= 2) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private View openHead() throws IOException {
+        Head head = readHead();
+        if (head == null) {
+            return null;
+        }
+        if (head.created != created) {
+            reset(head.created);
+        }
+        if (head.pathCount > pathCount) {
+            List<String> added = new ArrayList<String>();
+            readPaths(head, pathsLength, added);
+            if (pathCount + added.size() > pathTable.length) {
+                pathTable = Arrays.copyOf(pathTable,
+                        Math.max(pathCount + added.size(), pathTable.length * 2));
+            }
+            for (String path : added) {
+                pathTable[pathCount++] = path;
+            }
+            pathsLength = head.pathsLength;
+        }
+        if (head.recordCount > offsetCount) {
+            offsets = mapOffsets(head.recordCount);
+            offsetCount = head.recordCount;
+        }
+        if (head.indexGen != 0
+                && (index == null || index.gen != head.indexGen)) {
+            index = new Index(getIndexFile(head.indexGen));
+        }
+        return new View(head, pathTable, offsets,
+                head.indexGen == 0 ? null : index);
+    }
+
+    private void reset(long created) {
+        this.created = created;
+        pathTable = new String[0];
+        pathCount = 0;
+        pathsLength = 0;
+        offsets = null;
+        offsetCount = 0;
+        index = null;
+    }
+
+    /**
+     * Read the paths added to the path table after the given position.
+     */
+    private void readPaths(Head head, long from, List<String> paths)
+            throws IOException {
+        if (head.pathsLength <= from) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(dir, PATHS))));
+        try {
+            long skip = from;
+            while (skip > 0) {
+                long n = in.skip(skip);
+                if (n <= 0) {
+                    throw new EOFException("Truncated path table in " + dir);
+                }
+                skip -= n;
+            }
+            for (long pos = from; pos < head.pathsLength;) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                paths.add(new String(bytes, UTF8));
+                pos += 4 + bytes.length;
+            }
+        } finally {
+            IOUtils.close(in);
+        }
+    }
+
+    private ByteBuffer mapOffsets(int count) throws IOException {
+        FileChannel ch = FileChannel.open(new File(dir, OFFSETS).toPath(),
+                StandardOpenOption.READ);
+        try {
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0,
+                    (long) count * OFFSET_SIZE);
+        } finally {
+            ch.close();
+        }
+    }
+
+    private FileChannel openLog() throws IOException {
+        return FileChannel.open(new File(dir, LOG).toPath(),
+                StandardOpenOption.READ);
+    }
+
+    private File getIndexFile(long gen) {
+        return new File(dir, INDEX + gen);
+    }
+
+    private static ByteBuffer readRecord(FileChannel log, View view, int r)
+            throws IOException {
+        long start = view.offsets.getLong(r * OFFSET_SIZE);
+        long end = r + 1 < view.head.recordCount
+                ? view.offsets.getLong((r + 1) * OFFSET_SIZE)
+                : view.head.logLength;
+        ByteBuffer buf = ByteBuffer.allocate((int) (end - start));
+        while (buf.hasRemaining()) {
+            if (log.read(buf, start + buf.position()) < 0) {
+                throw new EOFException("Truncated history log");
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static Date getDate(View view, int r) {
+        long time = view.offsets.getLong(r * OFFSET_SIZE + 8);
+        return time == NO_DATE ? null : new Date(time);
+    }
+
+    private static HistoryEntry decode(ByteBuffer record, View view, int r,
+            boolean withFiles) {
+        String revision = readString(record);
+        String author = readString(record);
+        String tags = readString(record);
+        String message = readString(record);
+        boolean active = record.get() != 0;
+        HistoryEntry entry = new HistoryEntry(revision, getDate(view, r),
+                author, tags, message, active);
+        if (withFiles) {
+            for (int i = record.getInt(); i > 0; i--) {
+                entry.addFile(view.paths[record.getInt()]);
+            }
+        }
+        return entry;
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0) {
+            return null;
+        }
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(),
+                len, UTF8);
+        buf.position(buf.position() + len);
+        return s;
+    }
+
+    private static int[] getFileIds(ByteBuffer record) {
+        for (int i = 0; i < 4; i++) {
+            int len = record.getInt();
+            if (len > 0) {
+                record.position(record.position() + len);
+            }
+        }
+        record.get();
+        int[] ids = new int[record.getInt()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = record.getInt();
+        }
+        return ids;
+    }
+
+    /**
+     * Check whether a changeset touches a file, or a file under a directory.
+     */
+    private static boolean touches(ByteBuffer record, String[] paths,
+            String path) {
+        boolean dir = path.endsWith("/");
+        for (int id : getFileIds(record)) {
+            if (dir ? paths[id].startsWith(path) : paths[id].equals(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The valid part of the store files as described by a head. */
+    private static final class Head {
+        /** when the store was created, identifies it */
+        long created;
+        int recordCount;
+        long logLength;
+        int pathCount;
+        long pathsLength;
+        /** generation of the current index, {@code 0} if there is none */
+        long indexGen;
+        /** the number of changesets covered by the index */
+        int indexCount;
+        String latestRevision;
+    }
+
+    /** A snapshot of the store used by a reader. */
+    private static final class View {
+        final Head head;
+        final String[] paths;
+        final ByteBuffer offsets;
+        final Index index;
+
+        View(Head head, String[] paths, ByteBuffer offsets, Index index) {
+            this.head = head;
+            this.paths = paths;
+            this.offsets = offsets;
+            this.index = index;
+        }
+    }
+
+    /** A memory-mapped index file. */
+    private static final class Index {
+        final long gen;
+        final ByteBuffer buf;
+        final int keyCount;
+        final int keysStart;
+        final int postingsStart;
+
+        Index(File file) throws IOException {
+            FileChannel ch = FileChannel.open(file.toPath(),
+                    StandardOpenOption.READ);
+            try {
+                if (ch.size() > Integer.MAX_VALUE) {
+                    throw new IOException("History index too large: " + file);
+                }
+                buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            } finally {
+                ch.close();
+            }
+            byte[] magic = new byte[MAGIC.length];
+            buf.duplicate().get(magic);
+            if (!Arrays.equals(magic, MAGIC)
+                    || buf.getInt(MAGIC.length) != VERSION) {
+                throw new IOException("Unsupported history index " + file);
+            }
+            gen = Long.parseLong(file.getName().substring(INDEX.length()));
+            keyCount = buf.getInt(12);
+            keysStart = INDEX_HEADER_SIZE + keyCount * KEY_SIZE;
+            postingsStart = keysStart + buf.getInt(16);
+        }
+
+        String getKey(int i) {
+            int entry = INDEX_HEADER_SIZE + i * KEY_SIZE;
+            byte[] bytes = new byte[buf.getInt(entry + 4)];
+            ByteBuffer b = buf.duplicate();
+            b.position(keysStart + buf.getInt(entry));
+            b.get(bytes);
+            return new String(bytes, UTF8);
+        }
+
+        int getPostingCount(int i) {
+            return buf.getInt(INDEX_HEADER_SIZE + i * KEY_SIZE + 12);
+        }
+
+        int getPosting(int i, int j) {
+            int entry = INDEX_HEADER_SIZE + i * KEY_SIZE;
+            return buf.getInt(postingsStart + buf.getInt(entry + 8) + j * 4);
+        }
+
+        /** Get the position of the first key not less than the given key. */
+        int lowerBound(String key) {
+            int lo = 0;
+            int hi = keyCount;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (getKey(mid).compareTo(key) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /** Get the position of a key, or -1 if it is not in the index. */
+        int find(String key) {
+            int i = lowerBound(key);
+            return i < keyCount && getKey(i).equals(key) ? i : -1;
+        }
+    }
+
+    /**
+     * Iterates over the keys of a sorted source of postings during a
+     * compaction. Cursors on the same key are ordered by their source, so
+     * that the postings get merged in ascending order.
+     */
+    private abstract static class Cursor implements Comparable<Cursor> {
+        /** the position of the source among all sources */
+        private final int order;
+        /** the current key */
+        String key;
+
+        Cursor(int order) {
+            this.order = order;
+        }
+
+        /**
+         * Move to the next key. The postings of the current key must have
+         * been written before.
+         *
+         * @return {@code false} if there are no more keys
+         */
+        abstract boolean next() throws IOException;
+
+        /**
+         * Write the postings of the current key.
+         *
+         * @return the number of postings written
+         */
+        abstract int writePostings(DataOutputStream out) throws IOException;
+
+        void close() {
+            // nothing to release by default
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            int cmp = key.compareTo(other.key);
+            return cmp != 0 ? cmp : order < other.order ? -1
+                    : order == other.order ? 0 : 1;
+        }
+    }
+
+    /** A cursor on the keys of an index, which is always the first source. */
+    private static final class IndexCursor extends Cursor {
+        private final Index index;
+        private int i = -1;
+
+        IndexCursor(Index index) {
+            super(0);
+            this.index = index;
+        }
+
+        @Override
+        boolean next() {
+            if (++i >= index.keyCount) {
+                return false;
+            }
+            key = index.getKey(i);
+            return true;
+        }
+
+        @Override
+        int writePostings(DataOutputStream out) throws IOException {
+            int count = index.getPostingCount(i);
+            for (int j = 0; j < count; j++) {
+                out.writeInt(index.getPosting(i, j));
+            }
+            return count;
+        }
+    }
+
+    /** A cursor on the keys of a run file written by {@code writeRun()}. */
+    private static final class RunCursor extends Cursor {
+        private final DataInputStream in;
+        private int remaining;
+
+        RunCursor(File run, int order) throws IOException {
+            super(order);
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(run)));
+            remaining = in.readInt();
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            key = new String(bytes, UTF8);
+            return true;
+        }
+
+        @Override
+        int writePostings(DataOutputStream out) throws IOException {
+            int count = in.readInt();
+            for (int j = 0; j < count; j++) {
+                out.writeInt(in.readInt());
+            }
+            return count;
+        }
+
+        @Override
+        void close() {
+            IOUtils.close(in);
+        }
+    }
+
+    /** A growable list of ints. */
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int i) {
+            return values[i];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
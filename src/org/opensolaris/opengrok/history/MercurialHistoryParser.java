@@ -24,6 +24,8 @@
 package org.opensolaris.opengrok.history;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -32,6 +34,7 @@ import java.io.InputStreamReader;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.logging.Level;
@@ -50,6 +53,14 @@ class MercurialHistoryParser implements Executor.StreamHandler {
     private List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
     private final MercurialRepository repository;
     private final String mydir;
+    /** receives the history in chunks, if it is read in chronological order */
+    private HistoryChunkHandler handler;
+    private int chunkSize;
+    private int chunks;
+    /** the changeset expected first in a chronological log, if any */
+    private String since;
+    /** the error reported by {@link #handler}, if any */
+    private HistoryException failure;
 
     MercurialHistoryParser(MercurialRepository repository) {
         this.repository = repository;
@@ -68,10 +79,90 @@ class MercurialHistoryParser implements Executor.StreamHandler {
      * @throws HistoryException if an error happens when parsing the history
      */
     History parse(File file, String changeset) throws HistoryException {
+        read(file, changeset, false);
+
+        // If a changeset to start from is specified, remove that changeset
+        // from the list, since only the ones following it should be returned.
+        // Also check that the specified changeset was found, otherwise throw
+        // an exception.
+        if (changeset != null) {
+            repository.removeAndVerifyOldestChangeset(entries, changeset);
+        }
+
+        return new History(entries);
+    }
+
+    /**
+     * Parse the history of a file or directory in chronological order, and
+     * pass it to a handler in chunks while it is being read.
+     *
+     * @param file the file or directory to parse history for
+     * @param changeset the changeset right before the first one to read, or
+     * {@code null} to read the full history
+     * @param chunkSize the max. number of changesets in a chunk
+     * @param handler the handler to pass the chunks to
+     * @throws HistoryException if the history cannot be read, or if the
+     * handler fails
+     */
+    void parse(File file, String changeset, int chunkSize,
+            HistoryChunkHandler handler) throws HistoryException {
+        this.handler = handler;
+        this.chunkSize = chunkSize;
+        since = changeset;
+        read(file, changeset, true);
+
+        if (since != null) {
+            // the log is empty, so the changeset was not found
+            repository.removeAndVerifyOldestChangeset(entries, since);
+        }
+        // The last chunk is only passed on once the log has been read
+        // successfully, so that a failing command doesn't leave an empty
+        // history behind.
+        if (chunks == 0 || !entries.isEmpty()) {
+            flush();
+        }
+    }
+
+    /**
+     * Run the log command and parse its output.
+     */
+    private void read(File file, String changeset, boolean reverse)
+            throws HistoryException {
         try {
-            Executor executor = repository.getHistoryLogExecutor(file, changeset);
+            // Incremental updates are small, and benefit the most from not
+            // starting hg for each of them.
+            HgCommandServer server =
+                    changeset == null ? null : repository.getCommandServer();
+            if (server != null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try {
+                    int status = server.runCommand(
+                            repository.getHistoryLogArguments(
+                                file, changeset, reverse),
+                            out);
+                    if (status != 0) {
+                        throw new HistoryException(
+                                "Failed to get history for: \"" +
+                                file.getAbsolutePath() + "\" Exit code: " +
+                                status);
+                    }
+                    processStream(new ByteArrayInputStream(out.toByteArray()));
+                    return;
+                } catch (IOException e) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    OpenGrokLogger.getLogger().log(Level.WARNING,
+                        "Failed to get history with hg command server", e);
+                }
+            }
+            Executor executor =
+                    repository.getHistoryLogExecutor(file, changeset, reverse);
             int status = executor.exec(true, this);
 
+            if (failure != null) {
+                throw failure;
+            }
             if (status != 0) {
                 throw new HistoryException("Failed to get history for: \"" +
                                            file.getAbsolutePath() + "\" Exit code: " + status);
@@ -80,16 +171,49 @@ class MercurialHistoryParser implements Executor.StreamHandler {
             throw new HistoryException("Failed to get history for: \"" +
                                        file.getAbsolutePath() + "\"", e);
         }
+    }
 
-        // If a changeset to start from is specified, remove that changeset
-        // from the list, since only the ones following it should be returned.
-        // Also check that the specified changeset was found, otherwise throw
-        // an exception.
-        if (changeset != null) {
-            repository.removeAndVerifyOldestChangeset(entries, changeset);
+    /**
+     * Add a changeset to the list of changesets read. If the history is
+     * passed to a handler, the changesets get passed on once there are
+     * enough of them.
+     */
+    private void add(HistoryEntry entry) throws IOException {
+        if (handler == null) {
+            entries.add(entry);
+            return;
+        }
+        try {
+            if (since != null) {
+                // The log starts with the changeset right before the ones
+                // to read, check that it is the expected one.
+                List<HistoryEntry> first = new ArrayList<HistoryEntry>(1);
+                first.add(entry);
+                repository.removeAndVerifyOldestChangeset(first, since);
+                since = null;
+                return;
+            }
+            entries.add(entry);
+            if (entries.size() >= chunkSize) {
+                flush();
+            }
+        } catch (HistoryException e) {
+            // stop reading, parse() reports the error
+            failure = e;
+            throw new IOException("Failed to handle history", e);
         }
+    }
 
-        return new History(entries);
+    /**
+     * Pass the changesets read to the handler, and remove them from the list.
+     */
+    private void flush() throws HistoryException {
+        // the log is in chronological order, but chunks are not
+        List<HistoryEntry> chunk = new ArrayList<HistoryEntry>(entries);
+        Collections.reverse(chunk);
+        entries.clear();
+        chunks++;
+        handler.handle(new History(chunk));
     }
 
     /**
@@ -109,8 +233,10 @@ class MercurialHistoryParser implements Executor.StreamHandler {
         HistoryEntry entry = null;
         while ((s = in.readLine()) != null) {
             if (s.startsWith("changeset:")) {
+                if (entry != null) {
+                    add(entry);
+                }
                 entry = new HistoryEntry();
-                entries.add(entry);
                 entry.setActive(true);
                 entry.setRevision(s.substring("changeset:".length()).trim());
             } else if (s.startsWith("user:") && entry != null) {
@@ -140,6 +266,9 @@ class MercurialHistoryParser implements Executor.StreamHandler {
                 entry.setMessage(decodeDescription(s));
             }
         }
+        if (entry != null) {
+            add(entry);
+        }
     }
 
     /**
@@ -87,6 +87,57 @@ public class MercurialRepository extends Repository {
      */
     Executor getHistoryLogExecutor(File file, String changeset)
              throws HistoryException, IOException
+    {
+        return getHistoryLogExecutor(file, changeset, false);
+    }
+
+    /**
+     * Get an executor to be used for retrieving the history log for the
+     * named file.
+     *
+     * @param file The file to retrieve history for
+     * @param changeset the oldest changeset to return from the executor,
+     * or {@code null} if all changesets should be returned
+     * @param reverse If {@code true}, the log is in chronological order
+     * @return An Executor ready to be started
+     */
+    Executor getHistoryLogExecutor(File file, String changeset,
+            boolean reverse) throws HistoryException, IOException
+    {
+        List<String> cmd = new ArrayList<String>();
+        ensureCommand(CMD_PROPERTY_KEY, CMD_FALLBACK);
+        cmd.add(this.cmd);
+        cmd.addAll(getHistoryLogArguments(file, changeset, reverse));
+        return new Executor(cmd, new File(directoryName));
+    }
+
+    /**
+     * Get the arguments of the hg command which retrieves the history log
+     * for the named file, relative to the root of the repository.
+     *
+     * @param file The file to retrieve history for
+     * @param changeset the oldest changeset to return, or {@code null} if all
+     * changesets should be returned
+     * @return the arguments, without the hg command itself
+     */
+    List<String> getHistoryLogArguments(File file, String changeset)
+             throws HistoryException, IOException
+    {
+        return getHistoryLogArguments(file, changeset, false);
+    }
+
+    /**
+     * Get the arguments of the hg command which retrieves the history log
+     * for the named file, relative to the root of the repository.
+     *
+     * @param file The file to retrieve history for
+     * @param changeset the oldest changeset to return, or {@code null} if all
+     * changesets should be returned
+     * @param reverse If {@code true}, the log is in chronological order
+     * @return the arguments, without the hg command itself
+     */
+    List<String> getHistoryLogArguments(File file, String changeset,
+            boolean reverse) throws HistoryException, IOException
     {
         String abs = file.getCanonicalPath();
         String filename = "";
@@ -95,8 +146,6 @@ public class MercurialRepository extends Repository {
         }
 
         List<String> cmd = new ArrayList<String>();
-        ensureCommand(CMD_PROPERTY_KEY, CMD_FALLBACK);
-        cmd.add(this.cmd);
         cmd.add("log");
         if (!file.isDirectory()) { cmd.add("-f"); }
 
@@ -104,19 +153,36 @@ public class MercurialRepository extends Repository {
             cmd.add("-r");
             String[] parts = changeset.split(":");
             if (parts.length == 2) {
-                cmd.add("tip:" + parts[0]);
+                cmd.add(reverse ? parts[0] + ":tip" : "tip:" + parts[0]);
             } else {
                 throw new HistoryException(
                         "Don't know how to parse changeset identifier: " +
                         changeset);
             }
+        } else if (reverse) {
+            // unlike 0:tip, this doesn't fail in an empty repository
+            cmd.add("-r");
+            cmd.add("all()");
         }
 
         cmd.add("--template");
         cmd.add(file.isDirectory() ? DIR_TEMPLATE : TEMPLATE);
         cmd.add(filename);
 
-        return new Executor(cmd, new File(directoryName));
+        return cmd;
+    }
+
+    /**
+     * Get the pool of command servers of this repository.
+     *
+     * @return the pool, or {@code null} if the command servers are not
+     * available
+     */
+    HgCommandServer getCommandServer() {
+        ensureCommand(CMD_PROPERTY_KEY, CMD_FALLBACK);
+        HgCommandServer server =
+                HgCommandServer.getInstance(cmd, new File(directoryName));
+        return server.isAvailable() ? server : null;
     }
 
     @Override
@@ -136,6 +202,24 @@ public class MercurialRepository extends Repository {
         try {
             String filename =  (new File(parent, basename)).getCanonicalPath()
                 .substring(directoryName.length() + 1);
+            HgCommandServer server = getCommandServer();
+            if (server != null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try {
+                    int status = server.runCommand(
+                            Arrays.asList("cat", "-r", revision, filename),
+                            out);
+                    if (status == 0) {
+                        return new ByteArrayInputStream(out.toByteArray());
+                    }
+                    OpenGrokLogger.getLogger().log(Level.WARNING,
+                        "hg cat with hg command server failed with exit "
+                        + "code {0}, running hg instead", status);
+                } catch (IOException e) {
+                    OpenGrokLogger.getLogger().log(Level.WARNING,
+                        "Failed to get history with hg command server", e);
+                }
+            }
             ensureCommand(CMD_PROPERTY_KEY, CMD_FALLBACK);
             String argv[] = {cmd, "cat", "-r", revision, filename};
             process = Runtime.getRuntime().exec(argv, null, directory);
@@ -185,8 +269,6 @@ public class MercurialRepository extends Repository {
     @Override
     public Annotation annotate(File file, String revision) throws IOException {
         ArrayList<String> argv = new ArrayList<String>();
-        ensureCommand(CMD_PROPERTY_KEY, CMD_FALLBACK);
-        argv.add(cmd);
         argv.add("annotate");
         argv.add("-n");
         if (revision != null) {
@@ -197,12 +279,8 @@ public class MercurialRepository extends Repository {
                 argv.add(revision.substring(0, revision.indexOf(':')));
             }
         }
-        argv.add(file.getName());
-        ProcessBuilder pb = new ProcessBuilder(argv);
-        pb.directory(file.getParentFile());
         Process process = null;
         BufferedReader in = null;
-        Annotation ret = null;
         HashMap<String,HistoryEntry> revs = new HashMap<String,HistoryEntry>();
 
         // Construct hash map for history entries from history cache. This is
@@ -222,30 +300,37 @@ public class MercurialRepository extends Repository {
             return null;
         }
 
+        HgCommandServer server = getCommandServer();
+        if (server != null) {
+            ArrayList<String> args = new ArrayList<String>(argv);
+            args.add(file.getCanonicalPath()
+                    .substring(directoryName.length() + 1));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                int status = server.runCommand(args, out);
+                if (status == 0) {
+                    return parseAnnotation(file, revs, new BufferedReader(
+                            new InputStreamReader(
+                            new ByteArrayInputStream(out.toByteArray()))));
+                }
+                OpenGrokLogger.getLogger().log(Level.WARNING,
+                    "hg annotate with hg command server failed with exit "
+                    + "code {0}, running hg instead", status);
+            } catch (IOException e) {
+                OpenGrokLogger.getLogger().log(Level.WARNING,
+                    "Failed to annotate with hg command server", e);
+            }
+        }
+
+        ensureCommand(CMD_PROPERTY_KEY, CMD_FALLBACK);
+        argv.add(0, cmd);
+        argv.add(file.getName());
+        ProcessBuilder pb = new ProcessBuilder(argv);
+        pb.directory(file.getParentFile());
         try {
             process = pb.start();
             in = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            ret = new Annotation(file.getName());
-            String line;
-            int lineno = 0;
-            Matcher matcher = ANNOTATION_PATTERN.matcher("");
-            while ((line = in.readLine()) != null) {
-                ++lineno;
-                matcher.reset(line);
-                if (matcher.find()) {
-                    String rev = matcher.group(1);
-                    String author = "N/A";
-                    // Use the history index hash map to get the author.
-                    if (revs.get(rev) != null) {
-                         author = revs.get(rev).getAuthor();
-                    }
-                    ret.addLine(rev, Util.getEmail(author.trim()), true);
-                } else {
-                    OpenGrokLogger.getLogger().log(Level.SEVERE,
-                        "Error: did not find annotation in line "
-                        + lineno + ": [" + line + "]");
-                }
-            }
+            return parseAnnotation(file, revs, in);
         } finally {
             IOUtils.close(in);
             if (process != null) {
@@ -257,6 +342,40 @@ public class MercurialRepository extends Repository {
                 }
             }
         }
+    }
+
+    /**
+     * Parse the output of hg annotate.
+     *
+     * @param file the annotated file
+     * @param revs the history entries of the file, by revision number
+     * @param in the output of hg annotate
+     * @return file annotation
+     */
+    private Annotation parseAnnotation(File file,
+            Map<String, HistoryEntry> revs, BufferedReader in)
+            throws IOException {
+        Annotation ret = new Annotation(file.getName());
+        String line;
+        int lineno = 0;
+        Matcher matcher = ANNOTATION_PATTERN.matcher("");
+        while ((line = in.readLine()) != null) {
+            ++lineno;
+            matcher.reset(line);
+            if (matcher.find()) {
+                String rev = matcher.group(1);
+                String author = "N/A";
+                // Use the history index hash map to get the author.
+                if (revs.get(rev) != null) {
+                     author = revs.get(rev).getAuthor();
+                }
+                ret.addLine(rev, Util.getEmail(author.trim()), true);
+            } else {
+                OpenGrokLogger.getLogger().log(Level.SEVERE,
+                    "Error: did not find annotation in line "
+                    + lineno + ": [" + line + "]");
+            }
+        }
         return ret;
     }
 
@@ -347,6 +466,19 @@ public class MercurialRepository extends Repository {
         }
         return result;
     }
+
+    @Override
+    void streamHistory(File directory, String sinceRevision, int chunkSize,
+            HistoryChunkHandler handler) throws HistoryException {
+        if (RuntimeEnvironment.getInstance().isTagsEnabled()) {
+            // Tags get assigned to changesets from the most recent one, so
+            // the complete history is needed.
+            super.streamHistory(directory, sinceRevision, chunkSize, handler);
+        } else {
+            new MercurialHistoryParser(this).parse(directory, sinceRevision,
+                    chunkSize, handler);
+        }
+    }
     
     /**
      * We need to create list of all tags prior to creation of HistoryEntries
@@ -32,6 +32,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.opensolaris.opengrok.OpenGrokLogger;
 import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.index.HistoryIndex;
 import org.opensolaris.opengrok.util.Executor;
 
 /**
@@ -41,6 +42,12 @@ import org.opensolaris.opengrok.util.Executor;
  */
 public abstract class Repository extends RepositoryInfo {
 
+    /**
+     * The max. number of changesets passed to the history cache at once when
+     * the cache gets created.
+     */
+    private static final int CACHE_CHUNK_SIZE = 10000;
+
     /**
      * The command with which to access the external repository. Can be
      * {@code null} if the repository isn't accessed via a CLI, or if it
@@ -251,7 +258,7 @@ public abstract class Repository extends RepositoryInfo {
 
     /**
      * Create a history log cache for all of the files in this repository.
-     * {@code getHistory()} is used to fetch the history for the entire
+     * {@code streamHistory()} is used to fetch the history for the entire
      * repository. If {@code hasHistoryForDirectories()} returns {@code false},
      * this method is a no-op.
      *
@@ -281,34 +288,159 @@ public abstract class Repository extends RepositoryInfo {
 
         File directory = new File(getDirectoryName());
 
-        History history;
+        boolean clear = false;
+        if (sinceRevision != null
+                && RuntimeEnvironment.getInstance().isHistoryIndex()
+                && !hasHistoryIndex()) {
+            // The history index has been enabled after the history cache got
+            // created, so read the full history to add the older changesets
+            // to the index as well.
+            OpenGrokLogger.getLogger().log(Level.INFO,
+                    "No changesets of {0} in the history index, reading "
+                    + "the full history.", getDirectoryName());
+            sinceRevision = null;
+            clear = true;
+        }
+
+        boolean index = RuntimeEnvironment.getInstance().isHistoryIndex();
+        if (index) {
+            // all chunks get committed to the history index at once
+            HistoryIndex.begin();
+        }
+        boolean done = false;
         try {
-            history = getHistory(directory, sinceRevision);
-        } catch (HistoryException he) {
-            if (sinceRevision == null) {
-                // Failed to get full history, so fail.
-                throw he;
+            CacheWriter writer =
+                    new CacheWriter(cache, sinceRevision == null, clear);
+            try {
+                streamHistory(directory, sinceRevision, CACHE_CHUNK_SIZE, writer);
+            } catch (HistoryException he) {
+                if (sinceRevision == null || writer.chunks > 0) {
+                    // Failed to get full history, so fail. If some chunks have
+                    // been stored, the cache is consistent up to the latest of
+                    // them, and the next update continues from there.
+                    throw he;
+                }
+                // Failed to get partial history. This may have been caused
+                // by changes in the revision numbers since the last update
+                // (bug #14724) so we'll try to regenerate the cache from
+                // scratch instead.
+                OpenGrokLogger.getLogger().log(Level.INFO,
+                        "Failed to get partial history. Attempting to " +
+                        "recreate the history cache from scratch.", he);
+                // The history cache gets cleared once the first chunk of the
+                // full history has been read successfully.
+                streamHistory(directory, null, CACHE_CHUNK_SIZE,
+                        new CacheWriter(cache, true, true));
             }
-            // Failed to get partial history. This may have been caused
-            // by changes in the revision numbers since the last update
-            // (bug #14724) so we'll try to regenerate the cache from
-            // scratch instead.
-            OpenGrokLogger.getLogger().log(Level.INFO,
-                    "Failed to get partial history. Attempting to " +
-                    "recreate the history cache from scratch.", he);
-            history = null;
+            done = true;
+        } finally {
+            if (index) {
+                finishHistoryIndex(done);
+            }
+        }
+    }
+
+    /**
+     * Commit the chunks added to the history index by {@code createCache()}.
+     *
+     * @param fail whether to throw an exception if they could not be
+     * committed, or to just log it, because another one is on its way
+     */
+    private void finishHistoryIndex(boolean fail) throws HistoryException {
+        try {
+            HistoryIndex.finish();
+        } catch (IOException e) {
+            if (fail) {
+                throw new HistoryException("Failed to commit the history of "
+                        + getDirectoryName() + " to the history index", e);
+            }
+            OpenGrokLogger.getLogger().log(Level.WARNING,
+                    "Failed to commit the history of " + getDirectoryName()
+                    + " to the history index", e);
+        }
+    }
+
+    /**
+     * Check whether the history index contains changesets of this
+     * repository.
+     */
+    private boolean hasHistoryIndex() throws HistoryException {
+        try {
+            return HistoryIndex.hasRepository(getDirectoryName());
+        } catch (IOException e) {
+            throw new HistoryException("Failed to read the history index", e);
         }
+    }
 
-        if (sinceRevision != null && history == null) {
-            // Failed to get partial history, now get full history instead.
-            history = getHistory(directory);
-            // Got full history successfully. Clear the history cache so that
-            // we can recreate it from scratch.
-            cache.clear(this);
+    /**
+     * Stores the chunks of the history read by {@code createCache()}.
+     */
+    private final class CacheWriter implements HistoryChunkHandler {
+
+        private final HistoryCache cache;
+        /** whether the next chunk is the beginning of the full history */
+        private boolean full;
+        /** whether to clear the cache before storing the next chunk */
+        private boolean clear;
+        /** the number of chunks stored */
+        int chunks;
+
+        CacheWriter(HistoryCache cache, boolean full) {
+            this(cache, full, false);
         }
 
+        CacheWriter(HistoryCache cache, boolean full, boolean clear) {
+            this.cache = cache;
+            this.full = full;
+            this.clear = clear;
+        }
+
+        @Override
+        public void handle(History history) throws HistoryException {
+            if (clear) {
+                cache.clear(Repository.this);
+                clear = false;
+            }
+            if (RuntimeEnvironment.getInstance().isHistoryIndex()) {
+                // before storing it, since the cache may strip the entries
+                try {
+                    HistoryIndex.add(getDirectoryName(), history, full);
+                } catch (IOException e) {
+                    throw new HistoryException("Failed to add the history of "
+                            + getDirectoryName() + " to the history index", e);
+                }
+            }
+            cache.store(history, Repository.this);
+            full = false;
+            chunks++;
+        }
+    }
+
+    /**
+     * Read the history of a directory and pass it to a handler in chunks,
+     * oldest chunk first, so that the complete history of a big repository
+     * never needs to be kept in memory. Each chunk gets handled like an
+     * incremental update of the chunks before it.
+     * <p>
+     * The default implementation reads the history with
+     * {@link #getHistory(File, String)} and passes all of it as one chunk.
+     * Subclasses which can read their history in chronological order should
+     * override it.
+     * </p>
+     *
+     * @param directory the directory to get the history for
+     * @param sinceRevision the revision right before the first one to read,
+     * or {@code null} to read the full history
+     * @param chunkSize the max. number of changesets in a chunk
+     * @param handler the handler to pass the chunks to
+     * @throws HistoryException on error accessing the history, or if the
+     * handler fails
+     */
+    void streamHistory(File directory, String sinceRevision, int chunkSize,
+            HistoryChunkHandler handler) throws HistoryException {
+        History history = getHistory(directory, sinceRevision);
         if (history != null) {
-            cache.store(history, this);
+            handler.handle(history);
         }
     }
 
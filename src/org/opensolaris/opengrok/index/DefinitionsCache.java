@@ -0,0 +1,161 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.opensolaris.opengrok.analysis.Definitions;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.search.QueryBuilder;
+
+/**
+ * Provides the definitions of indexed files. Lookups are done using the
+ * searchers shared via {@link RuntimeEnvironment#acquireSearcher(File)}
+ * and the results are kept in a LRU cache keyed by the path of the file and
+ * the version of the index they have been read from. So repeated lookups of
+ * the same file are answered from memory until the index gets updated.
+ * <p>
+ * The returned definitions are shared and must not be modified.
+ */
+public final class DefinitionsCache {
+
+    /** default max. number of cached entries */
+    static final int DEFAULT_SIZE = 1000;
+    /** max. number of hits to check for the exact path of a file */
+    private static final int MAX_CANDIDATES = 10;
+    /** marker for files without definitions */
+    private static final Definitions NONE = new Definitions();
+    private static final DefinitionsCache instance =
+            new DefinitionsCache(DEFAULT_SIZE);
+    private final Map<String, Definitions> cache;
+
+    DefinitionsCache(final int size) {
+        cache = new LinkedHashMap<String, Definitions>(size / 4, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Definitions> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    /**
+     * Get the one and only instance of this cache.
+     *
+     * @return the shared cache
+     */
+    public static DefinitionsCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Get the latest definitions for a file from the index.
+     *
+     * @param path the path of the file relative to the source root
+     * @return definitions for the file, or {@code null} if they could not be
+     * found
+     * @throws IOException if an error happens when accessing the index
+     * @throws ParseException if an error happens when building the Lucene query
+     * @throws ClassNotFoundException if the class for the stored definitions
+     * instance cannot be found
+     */
+    public Definitions get(String path)
+            throws IOException, ParseException, ClassNotFoundException {
+        File indexDir = IndexDatabase.getIndexDir(path);
+        if (indexDir == null) {
+            return null;
+        }
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        IndexSearcher searcher = env.acquireSearcher(indexDir);
+        if (searcher == null) {
+            // No index, no definitions...
+            return null;
+        }
+        try {
+            long version =
+                    ((DirectoryReader) searcher.getIndexReader()).getVersion();
+            String key = indexDir.getPath() + ':' + version + ':' + path;
+            Definitions defs;
+            synchronized (cache) {
+                defs = cache.get(key);
+            }
+            if (defs == null) {
+                defs = lookup(searcher, path);
+                if (defs == null) {
+                    defs = NONE;
+                }
+                synchronized (cache) {
+                    cache.put(key, defs);
+                }
+            }
+            return defs == NONE ? null : defs;
+        } finally {
+            env.releaseSearcher(searcher);
+        }
+    }
+
+    /**
+     * Drop all cached entries.
+     */
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private static Definitions lookup(IndexSearcher searcher, String path)
+            throws IOException, ParseException, ClassNotFoundException {
+        // Search for the path as a phrase, so that the query parser does not
+        // take slashes for the delimiters of a regular expression.
+        String phrase = '"' + path.replace("\\", "\\\\").replace("\"", "\\\"")
+                + '"';
+        Query q = new QueryBuilder().setPath(phrase).build();
+        // Other files may contain the same path components, e.g. /a/b.c
+        // and /b/a/b.c, so look at a few hits.
+        TopDocs top = searcher.search(q, MAX_CANDIDATES);
+        for (ScoreDoc sd : top.scoreDocs) {
+            Document doc = searcher.doc(sd.doc);
+            // Only use the definitions if we found an exact match.
+            if (path.equals(doc.get(QueryBuilder.PATH))) {
+                IndexableField tags = doc.getField(QueryBuilder.TAGS);
+                return tags == null ? null
+                        : Definitions.deserialize(tags.binaryValue().bytes);
+            }
+        }
+        // Didn't find any definitions.
+        return null;
+    }
+}
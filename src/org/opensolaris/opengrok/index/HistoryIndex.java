@@ -0,0 +1,468 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.store.FSDirectory;
+import org.opensolaris.opengrok.analysis.HistoryAnalyzer;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.history.History;
+import org.opensolaris.opengrok.history.HistoryEntry;
+import org.opensolaris.opengrok.search.QueryBuilder;
+import org.opensolaris.opengrok.search.SearchEngine;
+import org.opensolaris.opengrok.util.IOUtils;
+
+/**
+ * The history index contains one document per changeset with its message,
+ * author, date and the files it touched. It gets filled when the history
+ * cache of a repository is created or updated, if enabled via
+ * {@link RuntimeEnvironment#isHistoryIndex()}. In that case the documents of
+ * files lack the {@code hist} field, which otherwise contains the whole
+ * history of each file, i.e. the message of a changeset gets indexed once
+ * instead of once per file touched. History searches get answered via
+ * {@link #getFiles(Query)} and the history shown for their hits via
+ * {@link #getHistory(String)}.
+ * <p>
+ * The index is located in {@code DATA_ROOT/historyIndex}.
+ */
+public final class HistoryIndex {
+
+    /** name of the index directory in the data root */
+    public static final String DIR_NAME = "historyIndex";
+    /** the repository the changeset belongs to (relative to source root) */
+    static final String REPOSITORY = "repository";
+    /** repository and revision, which identify a changeset */
+    static final String ID = "id";
+    static final String REVISION = "revision";
+    static final String AUTHOR = "author";
+    static final String MESSAGE = "message";
+    /** the files touched (relative to source root), multi-valued */
+    static final String FILES = "files";
+    private static final Object lock = new Object();
+    /**
+     * the writer shared by the running series of updates (see
+     * {@link #begin()}). Guarded by {@link #lock}.
+     */
+    private static IndexWriter writer;
+    /** the number of running series of updates. Guarded by {@link #lock}. */
+    private static int sessions;
+    /**
+     * The searcher manager of the history index. It does not use the
+     * {@link org.opensolaris.opengrok.web.SearcherWarmer}: the warm-up
+     * queries may contain history queries, which would need the very
+     * searcher being warmed up.
+     */
+    private static SearcherManager searcherManager;
+    /** the directory read by {@link #searcherManager} */
+    private static File searcherDir;
+
+    private HistoryIndex() {
+        // utility class
+    }
+
+    /**
+     * Get the directory of the history index.
+     *
+     * @return the index directory
+     */
+    public static File getIndexDir() {
+        return new File(RuntimeEnvironment.getInstance().getDataRootFile(),
+                DIR_NAME);
+    }
+
+    /**
+     * Start a series of updates of the history index, e.g. the chunks of the
+     * history of a repository. Until the matching call of
+     * {@link #finish()}, the updates share one index writer instead of
+     * committing each of them separately.
+     */
+    public static void begin() {
+        synchronized (lock) {
+            sessions++;
+        }
+    }
+
+    /**
+     * End a series of updates started with {@link #begin()}: commit them,
+     * and close the index writer if no other series is still running.
+     *
+     * @throws IOException if the updates could not be committed
+     */
+    public static void finish() throws IOException {
+        synchronized (lock) {
+            sessions--;
+            if (writer == null) {
+                return;
+            }
+            if (sessions > 0) {
+                writer.commit();
+                return;
+            }
+            IndexWriter w = writer;
+            writer = null;
+            releaseWriter(w);
+        }
+    }
+
+    /**
+     * Add the changesets of a repository to the history index. Changesets
+     * already in the index get replaced.
+     *
+     * @param repository the root directory of the repository
+     * @param history the changesets to add (with the files they touched)
+     * @param replace if {@code true}, all changesets of the repository get
+     * removed from the index first, e.g. because the whole history has been
+     * read again
+     * @throws IOException if the index could not be written
+     */
+    public static void add(String repository, History history,
+            boolean replace) throws IOException {
+        String repo = RuntimeEnvironment.getInstance()
+                .getPathRelativeToSourceRoot(new File(repository), 0);
+        synchronized (lock) {
+            IndexWriter w = getWriter();
+            try {
+                if (replace) {
+                    w.deleteDocuments(new Term(REPOSITORY, repo));
+                }
+                for (HistoryEntry e : history.getHistoryEntries()) {
+                    if (e.getRevision() == null || e.getDate() == null) {
+                        continue;
+                    }
+                    String id = repo + '@' + e.getRevision();
+                    w.updateDocument(new Term(ID, id), createDocument(
+                            repo, id, e));
+                }
+            } finally {
+                releaseWriter(w);
+            }
+        }
+    }
+
+    /**
+     * Remove all changesets of a repository from the history index.
+     *
+     * @param repository the root directory of the repository
+     * @throws IOException if the index could not be written
+     */
+    public static void clear(String repository) throws IOException {
+        if (!getIndexDir().isDirectory()) {
+            return;
+        }
+        String repo = RuntimeEnvironment.getInstance()
+                .getPathRelativeToSourceRoot(new File(repository), 0);
+        synchronized (lock) {
+            IndexWriter w = getWriter();
+            try {
+                w.deleteDocuments(new Term(REPOSITORY, repo));
+            } finally {
+                releaseWriter(w);
+            }
+        }
+    }
+
+    /**
+     * Get the files touched by the changesets matching the given query.
+     *
+     * @param query a query against the {@code hist} field
+     * @return the paths of the files relative to the source root, or
+     * {@code null} if there is no history index
+     * @throws IOException if the index could not be read
+     */
+    public static Set<String> getFiles(Query query) throws IOException {
+        return getFiles(query, 0);
+    }
+
+    /**
+     * Get the files touched by the changesets matching the given query, but
+     * stop reading them once more than the given number of files have been
+     * found.
+     *
+     * @param query a query against the {@code hist} field
+     * @param maxFiles the max. number of files wanted. {@code 0} means no
+     * limit.
+     * @return the paths of the files relative to the source root, or
+     * {@code null} if there is no history index. If there are more than
+     * {@code maxFiles}, the set contains at least one more.
+     * @throws IOException if the index could not be read
+     */
+    public static Set<String> getFiles(Query query, int maxFiles)
+            throws IOException {
+        SearcherManager mgr = getSearcherManager();
+        if (mgr == null) {
+            return null;
+        }
+        IndexSearcher searcher = mgr.acquire();
+        try {
+            final List<Integer> docs = new ArrayList<Integer>();
+            searcher.search(query, new Collector() {
+
+                private int docBase;
+
+                @Override
+                public void setScorer(Scorer scorer) {
+                    // not needed
+                }
+
+                @Override
+                public void collect(int doc) {
+                    docs.add(docBase + doc);
+                }
+
+                @Override
+                public void setNextReader(AtomicReaderContext context) {
+                    docBase = context.docBase;
+                }
+
+                @Override
+                public boolean acceptsDocsOutOfOrder() {
+                    return true;
+                }
+            });
+            // in index order, so that the same files get read every time
+            Collections.sort(docs);
+            Set<String> files = new HashSet<String>();
+            Set<String> fields = Collections.singleton(FILES);
+            IndexReader reader = searcher.getIndexReader();
+            for (int doc : docs) {
+                if (maxFiles > 0 && files.size() > maxFiles) {
+                    break;
+                }
+                for (IndexableField f : reader.document(doc, fields).getFields()) {
+                    files.add(f.stringValue());
+                }
+            }
+            return files;
+        } finally {
+            mgr.release(searcher);
+        }
+    }
+
+    /**
+     * Get the history of a file from the history index.
+     *
+     * @param path the path of the file relative to the source root
+     * @return the changesets touching the file, most recent first, or
+     * {@code null} if there is no history index
+     * @throws IOException if the index could not be read
+     */
+    public static History getHistory(String path) throws IOException {
+        SearcherManager mgr = getSearcherManager();
+        if (mgr == null) {
+            return null;
+        }
+        IndexSearcher searcher = mgr.acquire();
+        try {
+            Term term = new Term(FILES, path);
+            int n = searcher.getIndexReader().docFreq(term);
+            List<HistoryEntry> entries = new ArrayList<HistoryEntry>(n);
+            if (n > 0) {
+                TopFieldDocs top = searcher.search(new TermQuery(term), null,
+                        n, new Sort(new SortField(QueryBuilder.DATE,
+                        SortField.Type.STRING, true)));
+                for (int i = 0; i < top.scoreDocs.length; i++) {
+                    entries.add(createEntry(searcher.doc(top.scoreDocs[i].doc)));
+                }
+            }
+            History history = new History();
+            history.setHistoryEntries(entries);
+            return history;
+        } finally {
+            mgr.release(searcher);
+        }
+    }
+
+    /**
+     * Check whether the history index contains changesets of a repository.
+     *
+     * @param repository the root directory of the repository
+     * @return {@code true} if there is at least one changeset of the
+     * repository in the index
+     * @throws IOException if the index could not be read
+     */
+    public static boolean hasRepository(String repository)
+            throws IOException {
+        SearcherManager mgr = getSearcherManager();
+        if (mgr == null) {
+            return false;
+        }
+        String repo = RuntimeEnvironment.getInstance()
+                .getPathRelativeToSourceRoot(new File(repository), 0);
+        IndexSearcher searcher = mgr.acquire();
+        try {
+            return searcher.getIndexReader().docFreq(
+                    new Term(REPOSITORY, repo)) > 0;
+        } finally {
+            mgr.release(searcher);
+        }
+    }
+
+    /**
+     * Close the searcher of the history index. Searchers currently in use
+     * stay valid until they get released.
+     */
+    public static void close() {
+        synchronized (HistoryIndex.class) {
+            IOUtils.close(searcherManager);
+            searcherManager = null;
+            searcherDir = null;
+        }
+    }
+
+    /**
+     * Get the searcher manager of the history index, refreshed to its
+     * latest commit.
+     *
+     * @return {@code null} if there is no history index
+     */
+    private static SearcherManager getSearcherManager() throws IOException {
+        File indexDir = getIndexDir();
+        SearcherManager mgr;
+        synchronized (HistoryIndex.class) {
+            if (searcherManager != null && !indexDir.equals(searcherDir)) {
+                // the data root has changed
+                close();
+            }
+            if (searcherManager == null) {
+                FSDirectory dir = FSDirectory.open(indexDir);
+                if (!DirectoryReader.indexExists(dir)) {
+                    dir.close();
+                    return null;
+                }
+                // opening it is cheap without warm-up
+                searcherManager = new SearcherManager(dir, null);
+                searcherDir = indexDir;
+                return searcherManager;
+            }
+            mgr = searcherManager;
+        }
+        mgr.maybeRefresh();
+        return mgr;
+    }
+
+    /**
+     * Get the writer to update the index with. Must be called while holding
+     * {@link #lock}, and paired with {@link #releaseWriter(IndexWriter)}.
+     */
+    private static IndexWriter getWriter() throws IOException {
+        if (writer != null) {
+            return writer;
+        }
+        IndexWriter w = openWriter();
+        if (sessions > 0) {
+            // kept open until the last series of updates has finished
+            writer = w;
+        }
+        return w;
+    }
+
+    /**
+     * Give back a writer obtained via {@link #getWriter()}. Updates outside
+     * of a series started with {@link #begin()} get committed right away.
+     */
+    private static void releaseWriter(IndexWriter w) throws IOException {
+        if (w != writer) {
+            try {
+                w.close();
+            } finally {
+                w.getDirectory().close();
+            }
+        }
+    }
+
+    private static IndexWriter openWriter() throws IOException {
+        IndexWriterConfig iwc = new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION, new HistoryAnalyzer());
+        iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+        return new IndexWriter(FSDirectory.open(getIndexDir()), iwc);
+    }
+
+    private static Document createDocument(String repo, String id,
+            HistoryEntry e) {
+        Document doc = new Document();
+        doc.add(new StringField(REPOSITORY, repo, Field.Store.NO));
+        doc.add(new StringField(ID, id, Field.Store.NO));
+        doc.add(new StoredField(REVISION, e.getRevision()));
+        doc.add(new StringField(QueryBuilder.DATE, DateTools.timeToString(
+                e.getDate().getTime(), DateTools.Resolution.MILLISECOND),
+                Field.Store.YES));
+        if (e.getAuthor() != null) {
+            doc.add(new StoredField(AUTHOR, e.getAuthor()));
+        }
+        doc.add(new StoredField(MESSAGE, e.getMessage()));
+        // the same text as indexed per file without the history index
+        doc.add(new TextField(QueryBuilder.HIST, e.getLine(), Field.Store.NO));
+        for (String file : e.getFiles()) {
+            doc.add(new StringField(FILES, file, Field.Store.YES));
+        }
+        return doc;
+    }
+
+    private static HistoryEntry createEntry(Document doc) throws IOException {
+        HistoryEntry e;
+        try {
+            e = new HistoryEntry(doc.get(REVISION),
+                    DateTools.stringToDate(doc.get(QueryBuilder.DATE)),
+                    doc.get(AUTHOR), null, doc.get(MESSAGE), true);
+        } catch (ParseException ex) {
+            throw new IOException("Invalid date in history index", ex);
+        }
+        TreeSet<String> files = new TreeSet<String>();
+        for (String file : doc.getValues(FILES)) {
+            files.add(file);
+        }
+        e.setFiles(files);
+        return e;
+    }
+}
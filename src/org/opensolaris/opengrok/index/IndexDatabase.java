@@ -31,7 +31,9 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -42,11 +44,6 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.spell.LuceneDictionary;
-import org.apache.lucene.search.spell.SpellChecker;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.LockFactory;
 import org.apache.lucene.store.NoLockFactory;
@@ -61,8 +58,10 @@ import org.opensolaris.opengrok.configuration.Project;
 import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 import org.opensolaris.opengrok.history.HistoryException;
 import org.opensolaris.opengrok.history.HistoryGuru;
+import org.opensolaris.opengrok.search.Completions;
 import org.opensolaris.opengrok.search.QueryBuilder;
 import org.opensolaris.opengrok.search.SearchEngine;
+import org.opensolaris.opengrok.util.IOUtils;
 import org.opensolaris.opengrok.web.Util;
 
 /**
@@ -75,8 +74,10 @@ import org.opensolaris.opengrok.web.Util;
 public class IndexDatabase {
 
     private Project project;
+    /** the index directory, see {@link IndexGenerations} */
+    private File indexDir;
+    /** the generation of the index read or written */
     private FSDirectory indexDirectory;
-    private FSDirectory spellDirectory;
     private IndexWriter writer;
     private TermsEnum uidIter;
     private IgnoredNames ignoredNames;
@@ -88,11 +89,19 @@ public class IndexDatabase {
     private File dirtyFile;
     private final Object lock = new Object();
     private boolean dirty;
+    /** whether documents got added or removed by the running update */
+    private boolean changed;
     private boolean running;
     private List<String> directories;
     static final Logger log = Logger.getLogger(IndexDatabase.class.getName());
     private Ctags ctags;
     private LockFactory lockfact;
+    /**
+     * If {@code true}, documents of unchanged files get re-added to the index
+     * to add the sort fields missing in indexes created by older versions
+     * or the reversed tokens fields missing since they got enabled.
+     */
+    private boolean reAddDocuments;
 
     /**
      * Create a new instance of the Index Database. Use this constructor if you
@@ -231,10 +240,8 @@ public class IndexDatabase {
         synchronized (this) {
             RuntimeEnvironment env = RuntimeEnvironment.getInstance();
             File indexDir = new File(env.getDataRootFile(), "index");
-            File spellDir = new File(env.getDataRootFile(), "spellIndex");
             if (project != null) {
                 indexDir = new File(indexDir, project.getPath());
-                spellDir = new File(spellDir, project.getPath());
             }
 
             if (!indexDir.exists() && !indexDir.mkdirs()) {
@@ -244,17 +251,12 @@ public class IndexDatabase {
                 }
             }
 
-            if (!spellDir.exists() && !spellDir.mkdirs()) {
-                if (!spellDir.exists()) {
-                    throw new FileNotFoundException("Failed to create root directory [" + spellDir.getAbsolutePath() + "]");
-                }
-            }
-
             if (!env.isUsingLuceneLocking()) {
                 lockfact = NoLockFactory.getNoLockFactory();
             }
-            indexDirectory = FSDirectory.open(indexDir, lockfact);
-            spellDirectory = FSDirectory.open(spellDir, lockfact);
+            this.indexDir = indexDir;
+            indexDirectory = FSDirectory.open(
+                    IndexGenerations.getCurrent(indexDir), lockfact);
             ignoredNames = env.getIgnoredNames();
             includedNames = env.getIncludedNames();
             analyzerGuru = new AnalyzerGuru();
@@ -305,6 +307,7 @@ public class IndexDatabase {
             }
             running = true;
             interrupted = false;
+            changed = false;
         }
 
         String ctgs = RuntimeEnvironment.getInstance().getCtags();
@@ -323,7 +326,13 @@ public class IndexDatabase {
             }
         }
 
+        File generation = null;
+        boolean existed = false;
+        boolean optimized = false;
+        boolean success = false;
         try {
+            existed = DirectoryReader.indexExists(indexDirectory);
+            generation = openGeneration();
             //TODO we might need to add writer.commit after certain phases of index generation, right now it will only happen in the end
             Analyzer analyzer = AnalyzerGuru.getAnalyzer();
             IndexWriterConfig iwc = new IndexWriterConfig(SearchEngine.LUCENE_VERSION, analyzer);
@@ -362,6 +371,25 @@ public class IndexDatabase {
                 Terms termsa;
                 //terms.
                 termsa = SlowCompositeReaderWrapper.wrap(reader).terms("u"); //new Term("u", startuid)
+                reAddDocuments = false;
+                if (numDocs > 0 && !hasSortFields(reader)) {
+                    log.log(Level.INFO, "Index of {0} lacks sort fields, "
+                            + "all of its documents get re-added", dir);
+                    reAddDocuments = true;
+                } else if (numDocs > 0
+                        && RuntimeEnvironment.getInstance().isIndexReversedTokens()
+                        && getReversedFields(reader).size()
+                            < QueryBuilder.REVERSIBLE_FIELDS.size()) {
+                    log.log(Level.INFO, "Index of {0} lacks reversed tokens, "
+                            + "all of its documents get re-added", dir);
+                    reAddDocuments = true;
+                } else if (numDocs > 0
+                        && RuntimeEnvironment.getInstance().isIndexTrigrams()
+                        && !hasTrigrams(reader)) {
+                    log.log(Level.INFO, "Index of {0} lacks trigrams, "
+                            + "all of its documents get re-added", dir);
+                    reAddDocuments = true;
+                }
                 try {
                     if (numDocs > 0) {
                         uidIter = terms.iterator(null);
@@ -394,14 +422,28 @@ public class IndexDatabase {
                     reader.close();
                 }
             }
+
+            if (!isInterrupted() && isDirty()
+                    && RuntimeEnvironment.getInstance().isOptimizeDatabase()) {
+                // before publishing, so that readers never see the unmerged index
+                log.info("Optimizing the index ... ");
+                writer.forceMerge(1);
+                log.info("done");
+                optimized = true;
+            }
+            success = true;
         } finally {
             if (writer != null) {
                 try {
                     writer.close();
                 } catch (IOException e) {
                     log.log(Level.WARNING, "An error occured while closing writer", e);
+                    success = false;
                 }
             }
+            if (generation != null) {
+                closeGeneration(generation, success && (changed || !existed));
+            }
 
             if (ctags != null) {
                 try {
@@ -417,11 +459,14 @@ public class IndexDatabase {
         }
 
         if (!isInterrupted() && isDirty()) {
-            if (RuntimeEnvironment.getInstance().isOptimizeDatabase()) {
-                optimize();
+            if (optimized) {
+                clearDirty();
             }
-            createSpellingSuggestions();
+            createCompletions();
             RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+            if (env.isIndexReversedTokens()) {
+                logReversedFieldsOverhead();
+            }
             File timestamp = new File(env.getDataRootFile(), "timestamp");
             if (timestamp.exists()) {
                 if (!timestamp.setLastModified(System.currentTimeMillis())) {
@@ -481,8 +526,11 @@ public class IndexDatabase {
             running = true;
         }
         IndexWriter wrt = null;
+        File generation = null;
+        boolean success = false;
         try {
             log.info("Optimizing the index ... ");
+            generation = openGeneration();
             Analyzer analyzer = new StandardAnalyzer(SearchEngine.LUCENE_VERSION);
             IndexWriterConfig conf = new IndexWriterConfig(SearchEngine.LUCENE_VERSION, analyzer);
             conf.setOpenMode(OpenMode.CREATE_OR_APPEND);
@@ -490,12 +538,7 @@ public class IndexDatabase {
             wrt = new IndexWriter(indexDirectory, conf);
             wrt.forceMerge(1); // this is deprecated and not needed anymore
             log.info("done");
-            synchronized (lock) {
-                if (dirtyFile.exists() && !dirtyFile.delete()) {
-                    log.log(Level.FINE, "Failed to remove \"dirty-file\": {0}", dirtyFile.getAbsolutePath());
-                }
-                dirty = false;
-            }
+            success = true;
         } catch (IOException e) {
             log.log(Level.SEVERE, "ERROR: optimizing index: {0}", e);
         } finally {
@@ -504,8 +547,15 @@ public class IndexDatabase {
                     wrt.close();
                 } catch (IOException e) {
                     log.log(Level.WARNING, "An error occured while closing writer", e);
+                    success = false;
                 }
             }
+            if (generation != null) {
+                closeGeneration(generation, success);
+            }
+            if (success) {
+                clearDirty();
+            }
             synchronized (lock) {
                 running = false;
             }
@@ -513,24 +563,18 @@ public class IndexDatabase {
     }
 
     /**
-     * Generate a spelling suggestion for the definitions stored in defs
+     * Generate the completion data for definitions and paths (see
+     * {@link Completions}).
      */
-    public void createSpellingSuggestions() {
+    public void createCompletions() {
         IndexReader indexReader = null;
-        SpellChecker checker;
-
         try {
-            log.info("Generating spelling suggestion index ... ");
+            log.info("Generating completion data ... ");
             indexReader = DirectoryReader.open(indexDirectory);
-            checker = new SpellChecker(spellDirectory);
-            //TODO below seems only to index "defs" , possible bug ?
-            Analyzer analyzer = AnalyzerGuru.getAnalyzer();
-            IndexWriterConfig iwc = new IndexWriterConfig(SearchEngine.LUCENE_VERSION, analyzer);
-            iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
-            checker.indexDictionary(new LuceneDictionary(indexReader, QueryBuilder.DEFS), iwc, false);
+            Completions.build(indexReader, Completions.getDir(project));
             log.info("done");
         } catch (IOException e) {
-            log.log(Level.SEVERE, "ERROR: Generating spelling: {0}", e);
+            log.log(Level.SEVERE, "ERROR: Generating completion data", e);
         } finally {
             if (indexReader != null) {
                 try {
@@ -539,9 +583,53 @@ public class IndexDatabase {
                     log.log(Level.WARNING, "An error occured while closing reader", e);
                 }
             }
-            if (spellDirectory != null) {
-                spellDirectory.close();
+        }
+    }
+
+    /**
+     * Create a new generation of the index (see {@link IndexGenerations})
+     * and switch {@link #indexDirectory} to it, so that the index read by
+     * searchers does not change while it gets written.
+     *
+     * @return the directory of the new generation
+     * @throws IOException if the generation could not be created
+     */
+    private File openGeneration() throws IOException {
+        File generation = IndexGenerations.create(indexDir);
+        indexDirectory.close();
+        indexDirectory = FSDirectory.open(generation, lockfact);
+        return generation;
+    }
+
+    /**
+     * Publish the generation created via {@link #openGeneration()}, or
+     * discard it and switch {@link #indexDirectory} back to the current one.
+     *
+     * @param generation the directory of the generation
+     * @param publish whether to publish the generation
+     */
+    private void closeGeneration(File generation, boolean publish) {
+        try {
+            if (publish) {
+                IndexGenerations.publish(indexDir, generation);
+            } else {
+                IndexGenerations.discard(generation);
+                indexDirectory.close();
+                indexDirectory = FSDirectory.open(
+                        IndexGenerations.getCurrent(indexDir), lockfact);
+            }
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Failed to publish index generation "
+                    + generation, e);
+        }
+    }
+
+    private void clearDirty() {
+        synchronized (lock) {
+            if (dirtyFile.exists() && !dirtyFile.delete()) {
+                log.log(Level.FINE, "Failed to remove \"dirty-file\": {0}", dirtyFile.getAbsolutePath());
             }
+            dirty = false;
         }
     }
 
@@ -553,6 +641,7 @@ public class IndexDatabase {
 
     private void setDirty() {
         synchronized (lock) {
+            changed = true;
             try {
                 if (!dirty && !dirtyFile.createNewFile()) {
                     if (!dirtyFile.exists()) {
@@ -657,6 +746,9 @@ public class IndexDatabase {
                 }
                 fa.writeXref(xrefDir, path);
             }
+            if (RuntimeEnvironment.getInstance().isPrecomputeAnnotations()) {
+                HistoryGuru.getInstance().precomputeAnnotation(file);
+            }
             setDirty();
             for (IndexChangedListener listener : listeners) {
                 listener.fileAdded(path, fa.getClass().getSimpleName());
@@ -864,7 +956,11 @@ public class IndexDatabase {
                         if (uidIter.term() != null
                                 && uidIter.term().bytesEquals(buid)) {
                             uidIter.next(); // keep matching docs
-                            continue;
+                            if (!reAddDocuments) {
+                                continue;
+                            }
+                            // outdated document format: replace it
+                            writer.deleteDocuments(new Term(QueryBuilder.U, buid));
                         }
                     }
                     try {
@@ -1059,15 +1155,125 @@ public class IndexDatabase {
     }
 
     /**
-     * Get an indexReader for the Index database where a given file
+     * Check whether all segments of the given index contain the DocValues
+     * fields used to sort search results. Indexes created before these fields
+     * were introduced don't have them and need to be sorted the old way until
+     * they get updated.
      *
-     * @param path the file to get the database for
-     * @return The index database where the file should be located or null if it
-     * cannot be located.
+     * @param reader the index to check
+     * @return {@code true} if {@link QueryBuilder#SORT_DATE} and
+     * {@link QueryBuilder#SORT_PATH} may be used to sort the whole index.
      */
-    public static IndexReader getIndexReader(String path) {
-        IndexReader ret = null;
+    public static boolean hasSortFields(IndexReader reader) {
+        for (AtomicReaderContext ctx : reader.leaves()) {
+            FieldInfos infos = ctx.reader().getFieldInfos();
+            FieldInfo date = infos.fieldInfo(QueryBuilder.SORT_DATE);
+            FieldInfo path = infos.fieldInfo(QueryBuilder.SORT_PATH);
+            if (date == null || !date.hasDocValues()
+                    || path == null || !path.hasDocValues()) {
+                return false;
+            }
+        }
+        return true;
+    }
 
+    /**
+     * Get the fields whose reversed tokens can be used to answer queries, i.e.
+     * every segment of the index, which contains the field, contains the
+     * reversed tokens field as well (see {@link QueryBuilder#REVERSED_SUFFIX}).
+     *
+     * @param reader the reader of the index to check
+     * @return a possibly empty set of field names
+     */
+    public static Set<String> getReversedFields(IndexReader reader) {
+        Set<String> ret = new HashSet<String>();
+        for (String name : QueryBuilder.REVERSIBLE_FIELDS) {
+            boolean complete = true;
+            for (AtomicReaderContext ctx : reader.leaves()) {
+                FieldInfos infos = ctx.reader().getFieldInfos();
+                if (infos.fieldInfo(name) != null && infos.fieldInfo(
+                        name + QueryBuilder.REVERSED_SUFFIX) == null) {
+                    complete = false;
+                    break;
+                }
+            }
+            if (complete) {
+                ret.add(name);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Check whether the given index supports regular expression searches,
+     * i.e. every segment with a {@link QueryBuilder#FULL} field has a
+     * {@link QueryBuilder#TRIGRAMS} field as well.
+     *
+     * @param reader the reader of the index to check
+     * @return {@code true} if trigrams are available
+     */
+    public static boolean hasTrigrams(IndexReader reader) {
+        for (AtomicReaderContext ctx : reader.leaves()) {
+            FieldInfos infos = ctx.reader().getFieldInfos();
+            if (infos.fieldInfo(QueryBuilder.FULL) != null
+                    && infos.fieldInfo(QueryBuilder.TRIGRAMS) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Log how many terms and postings the reversed tokens fields add to the
+     * index, so that the costs of enabling them can be judged.
+     */
+    private void logReversedFieldsOverhead() {
+        IndexReader reader = null;
+        try {
+            reader = DirectoryReader.open(indexDirectory);
+            long terms = 0, revTerms = 0, postings = 0, revPostings = 0;
+            for (AtomicReaderContext ctx : reader.leaves()) {
+                Fields fields = ctx.reader().fields();
+                if (fields == null) {
+                    continue;
+                }
+                for (String field : fields) {
+                    Terms t = fields.terms(field);
+                    long size = Math.max(t.size(), 0);
+                    long docFreqs = Math.max(t.getSumDocFreq(), 0);
+                    terms += size;
+                    postings += docFreqs;
+                    if (field.endsWith(QueryBuilder.REVERSED_SUFFIX)) {
+                        revTerms += size;
+                        revPostings += docFreqs;
+                    }
+                }
+            }
+            long bytes = 0;
+            for (String file : indexDirectory.listAll()) {
+                bytes += indexDirectory.fileLength(file);
+            }
+            log.log(Level.INFO, "Reversed tokens in {0}: {1} of {2} terms, "
+                    + "{3} of {4} postings (index size: {5} bytes)",
+                    new Object[]{indexDirectory.getDirectory(), revTerms,
+                        terms, revPostings, postings, bytes});
+        } catch (IOException e) {
+            log.log(Level.WARNING,
+                    "Failed to determine the size of the reversed tokens", e);
+        } finally {
+            IOUtils.close(reader);
+        }
+    }
+
+    /**
+     * Get the directory of the index database where a given file should be
+     * located.
+     *
+     * @param path the file to get the database for
+     * @return the index directory or null if the file does not belong to any
+     * project (if projects are in use).
+     */
+    public static File getIndexDir(String path) {
         RuntimeEnvironment env = RuntimeEnvironment.getInstance();
         File indexDir = new File(env.getDataRootFile(), "index");
 
@@ -1078,8 +1284,27 @@ public class IndexDatabase {
             }
             indexDir = new File(indexDir, p.getPath());
         }
+        return indexDir;
+    }
+
+    /**
+     * Get an indexReader for the Index database where a given file
+     *
+     * @param path the file to get the database for
+     * @return The index database where the file should be located or null if it
+     * cannot be located.
+     */
+    public static IndexReader getIndexReader(String path) {
+        IndexReader ret = null;
+
+        File indexDir = getIndexDir(path);
+        if (indexDir == null) {
+            return null;
+        }
         try {
-            FSDirectory fdir = FSDirectory.open(indexDir, NoLockFactory.getNoLockFactory());
+            FSDirectory fdir = FSDirectory.open(
+                    IndexGenerations.getCurrent(indexDir),
+                    NoLockFactory.getNoLockFactory());
             if (indexDir.exists() && DirectoryReader.indexExists(fdir)) {
                 ret = DirectoryReader.open(fdir);
             }
@@ -1091,7 +1316,8 @@ public class IndexDatabase {
     }
 
     /**
-     * Get the latest definitions for a file from the index.
+     * Get the latest definitions for a file from the index. Lookups are
+     * answered by the shared {@link DefinitionsCache}.
      *
      * @param file the file whose definitions to find
      * @return definitions for the file, or {@code null} if they could not be
@@ -1105,38 +1331,7 @@ public class IndexDatabase {
             throws IOException, ParseException, ClassNotFoundException {
         RuntimeEnvironment env = RuntimeEnvironment.getInstance();
         String path = env.getPathRelativeToSourceRoot(file, 0);
-
-        IndexReader ireader = getIndexReader(path);
-
-        if (ireader == null) {
-            // No index, no definitions...
-            return null;
-        }
-
-        try {
-            Query q = new QueryBuilder().setPath(path).build();
-            IndexSearcher searcher = new IndexSearcher(ireader);
-            TopDocs top = searcher.search(q, 1);
-            if (top.totalHits == 0) {
-                // No hits, no definitions...
-                return null;
-            }
-            Document doc = searcher.doc(top.scoreDocs[0].doc);
-            String foundPath = doc.get(QueryBuilder.PATH);
-
-            // Only use the definitions if we found an exact match.
-            if (path.equals(foundPath)) {
-                IndexableField tags = doc.getField(QueryBuilder.TAGS);
-                if (tags != null) {
-                    return Definitions.deserialize(tags.binaryValue().bytes);
-                }
-            }
-        } finally {
-            ireader.close();
-        }
-
-        // Didn't find any definitions.
-        return null;
+        return DefinitionsCache.getInstance().get(path);
     }
 
     @Override
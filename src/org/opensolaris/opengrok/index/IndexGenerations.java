@@ -0,0 +1,267 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.index;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.NoLockFactory;
+
+/**
+ * Manages the generations of an index database. The indexer never modifies
+ * the index the web application reads from: each run builds a new generation
+ * in a sub directory of the index directory, which starts out with hard links
+ * to the files of the latest commit of the current generation (Lucene never
+ * modifies the files of a commit, so only new and merged segments take up
+ * additional space). When done, the new generation gets published by
+ * atomically replacing the {@link #POINTER} file naming the current
+ * generation. Readers resolve the directory to open via
+ * {@link #getCurrent(File)} and thus always see a completely written index.
+ * <p>
+ * Older generations get removed when a new one is published, except for the
+ * one published before, which may still be in use by searchers. Those get
+ * removed via {@link #retire(File, File)} once their last reader is closed.
+ * <p>
+ * Index directories without a {@link #POINTER} file (as written by older
+ * versions) contain the index themselves. The first generation gets created
+ * from such an index.
+ */
+public final class IndexGenerations {
+
+    /** name of the file naming the current generation */
+    public static final String POINTER = "current";
+    private static final String PREFIX = "gen-";
+    private static final Logger log = Logger.getLogger(IndexGenerations.class.getName());
+
+    private IndexGenerations() {
+        // utility class
+    }
+
+    /**
+     * Get the directory containing the currently published generation of
+     * the given index.
+     *
+     * @param indexDir the index directory
+     * @return the directory of the current generation, or {@code indexDir}
+     * itself if no generation has been published yet
+     */
+    public static File getCurrent(File indexDir) {
+        File pointer = new File(indexDir, POINTER);
+        String name = null;
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(pointer), "UTF-8"));
+            try {
+                name = in.readLine();
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            return indexDir;
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to read " + pointer, e);
+        }
+        File gen = name == null ? null : new File(indexDir, name.trim());
+        if (gen == null || !gen.isDirectory()) {
+            log.log(Level.WARNING, "{0} does not name a generation, using {1}",
+                    new Object[]{pointer, indexDir});
+            return indexDir;
+        }
+        return gen;
+    }
+
+    /**
+     * Create a new, unpublished generation of the given index, which
+     * contains the latest commit of the current generation.
+     *
+     * @param indexDir the index directory
+     * @return the directory of the new generation
+     * @throws IOException if the generation could not be created
+     */
+    public static File create(File indexDir) throws IOException {
+        int max = 0;
+        File[] files = indexDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                max = Math.max(max, getNumber(f));
+            }
+        }
+        File gen = new File(indexDir, PREFIX + (max + 1));
+        if (!gen.mkdirs()) {
+            throw new IOException("Failed to create " + gen);
+        }
+        File current = getCurrent(indexDir);
+        FSDirectory dir = FSDirectory.open(current,
+                NoLockFactory.getNoLockFactory());
+        try {
+            if (DirectoryReader.indexExists(dir)) {
+                List<IndexCommit> commits = DirectoryReader.listCommits(dir);
+                IndexCommit latest = commits.get(commits.size() - 1);
+                for (String file : latest.getFileNames()) {
+                    link(new File(current, file), new File(gen, file));
+                }
+            }
+        } catch (IOException e) {
+            remove(gen);
+            throw e;
+        } finally {
+            dir.close();
+        }
+        return gen;
+    }
+
+    /**
+     * Publish a generation created via {@link #create(File)}, so that it
+     * gets used by all readers opening the index from now on. Generations
+     * which are neither the new nor the previous one get removed.
+     *
+     * @param indexDir the index directory
+     * @param gen the generation to publish
+     * @throws IOException if the generation could not be published
+     */
+    public static void publish(File indexDir, File gen) throws IOException {
+        File previous = getCurrent(indexDir);
+        File tmp = new File(indexDir, POINTER + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            out.write(gen.getName());
+            out.write('\n');
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), new File(indexDir, POINTER).toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        File[] files = indexDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (getNumber(f) > 0 && !f.equals(gen) && !f.equals(previous)) {
+                    remove(f);
+                }
+            }
+        }
+        if (!previous.equals(indexDir)) {
+            // the index of older versions is not in use anymore
+            retire(indexDir, indexDir);
+        }
+    }
+
+    /**
+     * Remove a generation which is not used anymore. Nothing happens if it
+     * is the current one.
+     *
+     * @param indexDir the index directory
+     * @param gen the generation to remove. If it is {@code indexDir} itself,
+     * the index files written by older versions get removed.
+     */
+    public static void retire(File indexDir, File gen) {
+        if (gen.equals(getCurrent(indexDir))) {
+            return;
+        }
+        if (!gen.equals(indexDir)) {
+            remove(gen);
+            return;
+        }
+        File[] files = indexDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (f.isFile() && (name.startsWith("_")
+                        || name.startsWith("segments")
+                        || name.equals("write.lock"))) {
+                    remove(f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Discard a generation created via {@link #create(File)}, which has not
+     * been published.
+     *
+     * @param gen the generation to discard
+     */
+    public static void discard(File gen) {
+        remove(gen);
+    }
+
+    /**
+     * Get the number of the generation in the given directory.
+     *
+     * @return the number, {@code 0} if the file is not a generation
+     */
+    private static int getNumber(File f) {
+        String name = f.getName();
+        if (!name.startsWith(PREFIX) || !f.isDirectory()) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(name.substring(PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Hard link the given file, or copy it if the file system does not
+     * support links.
+     */
+    private static void link(File from, File to) throws IOException {
+        try {
+            Files.createLink(to.toPath(), from.toPath());
+        } catch (UnsupportedOperationException e) {
+            Files.copy(from.toPath(), to.toPath());
+        } catch (IOException e) {
+            log.log(Level.FINE, "Failed to link {0}, copying it: {1}",
+                    new Object[]{from, e.getMessage()});
+            Files.copy(from.toPath(), to.toPath());
+        }
+    }
+
+    private static void remove(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                remove(child);
+            }
+        }
+        if (!file.delete() && file.exists()) {
+            // e.g. still opened on Windows, retried on the next publish
+            log.log(Level.FINE, "Failed to remove {0}", file);
+        }
+    }
+}
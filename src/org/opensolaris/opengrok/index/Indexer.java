@@ -198,6 +198,9 @@ public final class Indexer {
                         case 'D':
                             cfg.setHistoryCacheInDB(true);
                             break;
+                        case 'E':
+                            cfg.setHistoryCacheInLogStore(true);
+                            break;
                         case 'j':
                             databaseDriver = getopt.getOptarg();
                             // Should be a full class name, but we also accept
@@ -516,6 +519,8 @@ public final class Indexer {
                 System.err.println("Exception: " + e.getLocalizedMessage());
                 log.log(Level.SEVERE, "Unexpected Exception", e);
                 System.exit(1);
+            } finally {
+                HistoryGuru.getInstance().stopHelperProcesses();
             }
         }
 
@@ -0,0 +1,328 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.spell.TermFreqIterator;
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.apache.lucene.search.suggest.fst.WFSTCompletionLookup;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.opensolaris.opengrok.configuration.Project;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.web.Util;
+
+/**
+ * Prefix completion of symbol definitions and file paths. At the end of
+ * indexing a weighted FST gets built per project for each of the
+ * {@link #FIELDS} and stored in the {@link #DIR} directory of the data root.
+ * Definitions are weighted by the number of files defining them, so the most
+ * common ones get suggested first. Paths are complete paths relative to the
+ * source root.
+ * <p>
+ * The webapp loads each FST once and keeps it in memory until the file gets
+ * replaced by the indexer. At most {@link #getMaxCached()} FSTs are kept,
+ * the least recently used ones get dropped.
+ */
+public final class Completions {
+
+    /** name of the directory in the data root containing the FSTs */
+    public static final String DIR = "completion";
+    /** the fields completions are provided for */
+    public static final List<String> FIELDS = Collections.unmodifiableList(
+            Arrays.asList(QueryBuilder.DEFS, QueryBuilder.PATH));
+    /** min. number of FSTs kept in memory, unless configured otherwise */
+    static final int MIN_CACHED = 64;
+    private static final String SUFFIX = ".fst";
+    /** the loaded FSTs by file, least recently used first */
+    private static final Map<File, Entry> cache =
+            new LinkedHashMap<File, Entry>(16, 0.75f, true);
+
+    private Completions() {
+        // utility class
+    }
+
+    /**
+     * Get the directory containing the completion data of a project.
+     *
+     * @param project the project in question. {@code null} if projects are
+     * not used.
+     * @return the directory, which might not exist
+     */
+    public static File getDir(Project project) {
+        File dir = new File(RuntimeEnvironment.getInstance().getDataRootFile(),
+                DIR);
+        return project == null ? dir : new File(dir, project.getPath());
+    }
+
+    /**
+     * Build the completion data for all {@link #FIELDS} from the given index
+     * and replace the ones stored in the given directory.
+     *
+     * @param reader the index to read
+     * @param dir the directory to store the data to
+     * @throws IOException if the index could not be read or the data could
+     * not be written
+     */
+    public static void build(IndexReader reader, File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Failed to create directory " + dir);
+        }
+        for (String field : FIELDS) {
+            WFSTCompletionLookup lookup = new WFSTCompletionLookup(true);
+            lookup.build(new LiveTermsIterator(reader, field));
+            File file = new File(dir, field + SUFFIX);
+            File tmp = new File(dir, field + SUFFIX + ".tmp");
+            OutputStream out =
+                    new BufferedOutputStream(new FileOutputStream(tmp));
+            try {
+                lookup.store(out);
+            } finally {
+                out.close();
+            }
+            // replace the old file in one step, so readers never see a
+            // partially written one
+            if (!tmp.renameTo(file)) {
+                if (!file.delete() || !tmp.renameTo(file)) {
+                    throw new IOException("Failed to rename " + tmp
+                            + " to " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the completions for the given prefix. The results of all given
+     * directories are merged, i.e. a key found in more than one directory is
+     * returned once, weighted by the sum of its weights.
+     *
+     * @param field the field to complete. One of {@link #FIELDS}.
+     * @param prefix the text to complete
+     * @param max max. number of results to return
+     * @param dirs the directories containing the completion data to use (see
+     * {@link #getDir(Project)})
+     * @return a list of completions, most relevant first
+     * @throws IOException if the completion data could not be read
+     */
+    public static List<String> lookup(String field, String prefix, int max,
+            Collection<File> dirs) throws IOException {
+        if (prefix == null || prefix.length() == 0 || max <= 0
+                || !FIELDS.contains(field)) {
+            return Collections.emptyList();
+        }
+        Map<String, Long> merged = new HashMap<String, Long>();
+        for (File dir : dirs) {
+            WFSTCompletionLookup lookup = get(new File(dir, field + SUFFIX));
+            if (lookup == null) {
+                continue;
+            }
+            Set<String> seen = new HashSet<String>();
+            for (LookupResult res : lookup.lookup(prefix, true, max)) {
+                String key = res.key.toString();
+                if (!seen.add(key)) {
+                    // an exact match may be reported twice
+                    continue;
+                }
+                Long weight = merged.get(key);
+                merged.put(key,
+                        weight == null ? res.value : weight + res.value);
+            }
+        }
+        List<Map.Entry<String, Long>> sorted =
+                new ArrayList<Map.Entry<String, Long>>(merged.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<String, Long>>() {
+
+            @Override
+            public int compare(Map.Entry<String, Long> e1,
+                    Map.Entry<String, Long> e2) {
+                int cmp = e2.getValue().compareTo(e1.getValue());
+                return cmp == 0 ? e1.getKey().compareTo(e2.getKey()) : cmp;
+            }
+        });
+        List<String> ret = new ArrayList<String>(Math.min(max, sorted.size()));
+        for (Map.Entry<String, Long> e : sorted) {
+            if (ret.size() == max) {
+                break;
+            }
+            ret.add(e.getKey());
+        }
+        return ret;
+    }
+
+    /**
+     * Get the completion data stored in the given file, loading it if it is
+     * not cached yet or has been replaced since it got loaded. The file gets
+     * loaded without holding the lock of the cache, so that lookups of
+     * other files don't have to wait for it.
+     *
+     * @return {@code null} if the file does not exist
+     */
+    private static WFSTCompletionLookup get(File file) throws IOException {
+        long lastModified = file.lastModified();
+        synchronized (cache) {
+            if (lastModified == 0) {
+                cache.remove(file);
+                return null;
+            }
+            Entry entry = cache.get(file);
+            if (entry != null && entry.lastModified == lastModified) {
+                return entry.lookup;
+            }
+        }
+        WFSTCompletionLookup lookup = new WFSTCompletionLookup(true);
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            lookup.load(in);
+        } finally {
+            in.close();
+        }
+        synchronized (cache) {
+            // don't replace data loaded from a newer file in the meantime
+            Entry entry = cache.get(file);
+            if (entry == null || entry.lastModified < lastModified) {
+                cache.put(file, new Entry(lastModified, lookup));
+                int max = getMaxCached();
+                for (Iterator<File> it = cache.keySet().iterator();
+                        cache.size() > max && it.hasNext();) {
+                    it.next();
+                    it.remove();
+                }
+            }
+        }
+        return lookup;
+    }
+
+    /**
+     * Get the max. number of FSTs kept in memory. Unless configured with
+     * {@link RuntimeEnvironment#setCompletionCacheSize(int)}, there is room
+     * for the FSTs of all projects, so that completing in a selection of
+     * many projects doesn't load them from disk over and over.
+     *
+     * @return the max. number of FSTs
+     */
+    static int getMaxCached() {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        int max = env.getCompletionCacheSize();
+        if (max > 0) {
+            return max;
+        }
+        List<Project> projects = env.getProjects();
+        return Math.max(MIN_CACHED,
+                projects == null ? 0 : projects.size() * FIELDS.size());
+    }
+
+    /**
+     * Get the number of FSTs currently kept in memory.
+     */
+    static int getCachedCount() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private static final class Entry {
+
+        final long lastModified;
+        final WFSTCompletionLookup lookup;
+
+        Entry(long lastModified, WFSTCompletionLookup lookup) {
+            this.lastModified = lastModified;
+            this.lookup = lookup;
+        }
+    }
+
+    /**
+     * Iterates over the terms of a field, which occur in at least one live
+     * document. The weight of a term is the number of these documents. Terms
+     * of the {@link QueryBuilder#U} field get converted into paths.
+     */
+    private static final class LiveTermsIterator implements TermFreqIterator {
+
+        private final TermsEnum terms;
+        private final Bits liveDocs;
+        private final boolean uid;
+        private DocsEnum docs;
+        private long weight;
+
+        LiveTermsIterator(IndexReader reader, String field)
+                throws IOException {
+            uid = QueryBuilder.PATH.equals(field);
+            Terms t = MultiFields.getTerms(reader, uid ? QueryBuilder.U : field);
+            terms = t == null ? TermsEnum.EMPTY : t.iterator(null);
+            liveDocs = MultiFields.getLiveDocs(reader);
+        }
+
+        @Override
+        public BytesRef next() throws IOException {
+            BytesRef term;
+            while ((term = terms.next()) != null) {
+                docs = terms.docs(liveDocs, docs, 0);
+                weight = 0;
+                while (docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    weight++;
+                }
+                if (weight > 0) {
+                    return uid
+                            ? new BytesRef(Util.uid2url(term.utf8ToString()))
+                            : term;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public long weight() {
+            return weight;
+        }
+
+        @Override
+        public Comparator<BytesRef> getComparator() {
+            return null;
+        }
+    }
+}
@@ -23,8 +23,12 @@
  */
 package org.opensolaris.opengrok.search;
 
+import java.util.Collections;
+import java.util.Set;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.MultiTermQuery;
 import org.apache.lucene.search.Query;
 import org.opensolaris.opengrok.analysis.CompatibleAnalyser;
 import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
@@ -34,12 +38,27 @@ import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
  */
 class CustomQueryParser extends QueryParser {
 
+    private final Set<String> reversedFields;
+
     /**
      * Create a query parser customized for OpenGrok.
      *
      * @param field default field for unqualified query terms
      */
     CustomQueryParser(String field) {
+        this(field, null, Collections.<String>emptySet());
+    }
+
+    /**
+     * Create a query parser customized for OpenGrok.
+     *
+     * @param field default field for unqualified query terms
+     * @param rewriteMethod the rewrite method to use for wildcard, prefix and
+     * similar queries. If {@code null}, lucene's default gets used.
+     * @param reversedFields the fields whose reversed tokens are indexed
+     */
+    CustomQueryParser(String field, MultiTermQuery.RewriteMethod rewriteMethod,
+            Set<String> reversedFields) {
         super(SearchEngine.LUCENE_VERSION, field, new CompatibleAnalyser());
         setDefaultOperator(AND_OPERATOR);
         setAllowLeadingWildcard(
@@ -47,6 +66,10 @@ class CustomQueryParser extends QueryParser {
         // Convert terms to lower case manually to prevent changing the case
         // if the field is case sensitive.
         setLowercaseExpandedTerms(false);
+        if (rewriteMethod != null) {
+            setMultiTermRewriteMethod(rewriteMethod);
+        }
+        this.reversedFields = reversedFields;
     }
 
     /**
@@ -108,6 +131,34 @@ class CustomQueryParser extends QueryParser {
     @Override
     protected Query getWildcardQuery(String field, String term)
             throws ParseException {
-        return super.getWildcardQuery(field, getCanonicalTerm(field, term));
+        String canonical = getCanonicalTerm(field, term);
+        if (reversedFields.contains(field) && isSuffixPattern(canonical)) {
+            // leading wildcards are cheap on the reversed tokens, so they
+            // are fine even if not allowed otherwise
+            ReversedWildcardQuery query =
+                    new ReversedWildcardQuery(new Term(field, canonical));
+            query.setRewriteMethod(getMultiTermRewriteMethod());
+            return query;
+        }
+        return super.getWildcardQuery(field, canonical);
+    }
+
+    /**
+     * Check whether the given wildcard pattern starts but does not end with
+     * a wildcard, i.e. can be matched faster against the reversed tokens.
+     * Patterns with escaped characters are not considered.
+     *
+     * @param pattern the wildcard pattern to check
+     * @return {@code true} if the pattern should be reversed
+     */
+    private static boolean isSuffixPattern(String pattern) {
+        int len = pattern.length();
+        return len > 1 && isWildcard(pattern.charAt(0))
+                && !isWildcard(pattern.charAt(len - 1))
+                && pattern.indexOf('\\') == -1;
+    }
+
+    private static boolean isWildcard(char c) {
+        return c == '*' || c == '?';
     }
 }
@@ -0,0 +1,147 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.TermsFilter;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.ToStringUtils;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.index.HistoryIndex;
+
+/**
+ * A query against the {@code hist} field, which gets answered via the
+ * {@link HistoryIndex}: it matches the files touched by the changesets
+ * matching the wrapped query. Files whose history is indexed in their
+ * {@code hist} field, because it is not in the history index (e.g. the
+ * history of repositories without history for directories), are matched by
+ * the wrapped query as well. If there is no history index, the wrapped
+ * query gets executed as is.
+ */
+public class HistoryQuery extends Query {
+
+    private final Query query;
+    private final int maxFiles;
+    private Query rewritten;
+    private volatile boolean truncated;
+
+    /**
+     * Create a new query.
+     *
+     * @param query the query against the {@code hist} field
+     */
+    public HistoryQuery(Query query) {
+        this(query, 0);
+    }
+
+    /**
+     * Create a new query, which matches at most the given number of files.
+     *
+     * @param query the query against the {@code hist} field
+     * @param maxFiles max. number of files to match, like
+     * {@link RuntimeEnvironment#getMaxExpandedTerms()}. {@code 0} means no
+     * limit.
+     */
+    public HistoryQuery(Query query, int maxFiles) {
+        this.query = query;
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Check whether the files matched by this query have been cut off,
+     * because the changesets matching the wrapped query touched more files
+     * than allowed. Only valid after the query has been rewritten.
+     *
+     * @return {@code true} if some matching files have been dropped
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Get the wrapped query, i.e. the one to use when looking for matches in
+     * the history.
+     *
+     * @return the query against the {@code hist} field
+     */
+    public Query getQuery() {
+        return query;
+    }
+
+    @Override
+    public synchronized Query rewrite(IndexReader reader) throws IOException {
+        // the same for all indexes, so the history index needs to be
+        // searched only once per query
+        if (rewritten == null) {
+            Set<String> files = HistoryIndex.getFiles(query, maxFiles);
+            if (files == null) {
+                rewritten = query;
+            } else {
+                String root = RuntimeEnvironment.getInstance()
+                        .getSourceRootFile().getAbsolutePath();
+                TermsFilter filter = new TermsFilter();
+                int count = 0;
+                // sorted, so that the same files get dropped every time
+                for (String file : new TreeSet<String>(files)) {
+                    if (maxFiles > 0 && count++ >= maxFiles) {
+                        truncated = true;
+                        break;
+                    }
+                    filter.addTerm(new Term(QueryBuilder.FULLPATH, root + file));
+                }
+                BooleanQuery bq = new BooleanQuery();
+                bq.add(query, BooleanClause.Occur.SHOULD);
+                bq.add(new ConstantScoreQuery(filter), BooleanClause.Occur.SHOULD);
+                bq.setBoost(getBoost());
+                rewritten = bq;
+            }
+        }
+        return rewritten;
+    }
+
+    @Override
+    public String toString(String field) {
+        return query.toString(field) + ToStringUtils.boost(getBoost());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!super.equals(obj)) {
+            return false;
+        }
+        HistoryQuery other = (HistoryQuery) obj;
+        return maxFiles == other.maxFiles && query.equals(other.query);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * super.hashCode() + query.hashCode()) + maxFiles;
+    }
+}
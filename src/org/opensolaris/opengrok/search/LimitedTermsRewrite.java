@@ -0,0 +1,108 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Rewrite method for wildcard, prefix and similar queries, which stops the
+ * enumeration of matching terms as soon as a given number of distinct terms
+ * has been found. Queries like {@code *a*} would otherwise walk through the
+ * whole term dictionary and match almost every document of the index. The
+ * rewritten query is a constant score query over the collected terms, i.e.
+ * it scores like lucene's default rewrite method.
+ * <p>
+ * One instance should be used for the queries of a single search only, since
+ * it remembers whether any of them got truncated.
+ */
+public class LimitedTermsRewrite extends MultiTermQuery.RewriteMethod {
+
+    private final int maxTerms;
+    private volatile boolean truncated;
+
+    /**
+     * Create a new rewrite method.
+     *
+     * @param maxTerms max. number of distinct terms a single query may expand
+     * to. Values greater than {@link BooleanQuery#getMaxClauseCount()} get
+     * reduced to the max. clause count.
+     */
+    public LimitedTermsRewrite(int maxTerms) {
+        this.maxTerms = Math.min(maxTerms, BooleanQuery.getMaxClauseCount());
+    }
+
+    /**
+     * Check whether the expansion of at least one query rewritten by this
+     * instance has been cut off.
+     *
+     * @return {@code true} if some matching terms have been dropped.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader, MultiTermQuery query)
+            throws IOException {
+        String field = query.getField();
+        Set<BytesRef> collected = new TreeSet<BytesRef>();
+        AttributeSource atts = new AttributeSource();
+        for (AtomicReaderContext ctx : reader.leaves()) {
+            Terms terms = ctx.reader().terms(field);
+            if (terms == null) {
+                continue;
+            }
+            TermsEnum iter = getTermsEnum(query, terms, atts);
+            BytesRef term;
+            while ((term = iter.next()) != null) {
+                if (collected.size() >= maxTerms && !collected.contains(term)) {
+                    truncated = true;
+                    break;
+                }
+                collected.add(BytesRef.deepCopyOf(term));
+            }
+        }
+        BooleanQuery bq = new BooleanQuery(true);
+        for (BytesRef term : collected) {
+            bq.add(new TermQuery(new Term(field, term)), Occur.SHOULD);
+        }
+        Query result = new ConstantScoreQuery(bq);
+        result.setBoost(query.getBoost());
+        return result;
+    }
+}
@@ -26,14 +26,18 @@
 package org.opensolaris.opengrok.search;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 
 /**
  * Helper class that builds a Lucene query based on provided search terms for
@@ -49,6 +53,10 @@ public class QueryBuilder {
     public static final String REFS = "refs";
     public static final String PATH = "path";
     public static final String HIST = "hist";
+    /**
+     * Pseudo field for regular expression searches (see {@link Trigrams}).
+     */
+    public static final String REGEXP = "regexp";
     /**
      * Fields we use in lucene internal ones
      */
@@ -58,6 +66,23 @@ public class QueryBuilder {
     public static final String FULLPATH = "fullpath";
     public static final String PROJECT = "project";
     public static final String DATE = "date";
+    public static final String TRIGRAMS = "trigrams";
+    /**
+     * DocValues fields used to sort results by date (numeric, milliseconds
+     * since the epoch) and by path (sorted bytes).
+     */
+    public static final String SORT_DATE = "sortdate";
+    public static final String SORT_PATH = "sortpath";
+    /**
+     * Suffix of the fields containing the distinct reversed tokens of the
+     * {@link #FULL}, {@link #DEFS} and {@link #REFS} fields (if enabled).
+     */
+    public static final String REVERSED_SUFFIX = "_rev";
+    /**
+     * The fields, whose tokens may get indexed in reversed form, too.
+     */
+    public static final List<String> REVERSIBLE_FIELDS =
+            Collections.unmodifiableList(Arrays.asList(FULL, DEFS, REFS));
     /**
      * A map containing the query text for each field. (We use a sorted map here
      * only because we have tests that check the generated query string. If we
@@ -65,6 +90,17 @@ public class QueryBuilder {
      * platforms and it would be harder to test.)
      */
     private final Map<String, String> queries = new TreeMap<String, String>();
+    /**
+     * The rewrite method used to limit the number of terms wildcard and
+     * prefix queries expand to (if such a limit is configured).
+     */
+    private LimitedTermsRewrite rewriteMethod;
+    /** the history query of the query last built, if any */
+    private HistoryQuery historyQuery;
+    /**
+     * The fields whose reversed tokens are available in the index.
+     */
+    private Set<String> reversedFields = Collections.emptySet();
 
     /**
      * Set search string for the "full" field.
@@ -161,6 +197,27 @@ public class QueryBuilder {
         return getQueryText(HIST);
     }
 
+    /**
+     * Set the regular expression to search for. It gets matched against each
+     * line of the source files.
+     *
+     * @param regexp the regular expression in {@link java.util.regex.Pattern}
+     * syntax
+     * @return this instance
+     */
+    public QueryBuilder setRegexp(String regexp) {
+        return addQueryText(REGEXP, regexp);
+    }
+
+    /**
+     * Get the regular expression to search for.
+     *
+     * @return {@code null} if not set, the regular expression otherwise.
+     */
+    public String getRegexp() {
+        return getQueryText(REGEXP);
+    }
+
     /**
      * Get a map containing the query text for each of the fields that have been
      * set.
@@ -180,6 +237,21 @@ public class QueryBuilder {
         return queries.size();
     }
 
+    /**
+     * Set the fields, whose reversed tokens are available in all segments of
+     * the index to search (see {@link #REVERSED_SUFFIX}). Wildcard queries
+     * with a leading but no trailing wildcard against these fields get
+     * answered via the reversed tokens, i.e. they do not need to scan the
+     * whole term dictionary.
+     *
+     * @param fields the fields with reversed tokens (must not be {@code null})
+     * @return this instance
+     */
+    public QueryBuilder setReversedFields(Set<String> fields) {
+        reversedFields = fields;
+        return this;
+    }
+
     /**
      * Build a new query based on the query text that has been passed in to this
      * builder.
@@ -192,6 +264,9 @@ public class QueryBuilder {
             // We don't have any text to parse
             return null;
         }
+        int maxTerms = RuntimeEnvironment.getInstance().getMaxExpandedTerms();
+        rewriteMethod = maxTerms > 0 ? new LimitedTermsRewrite(maxTerms) : null;
+        historyQuery = null;
         // Parse each of the query texts separately
         ArrayList<Query> queryList = new ArrayList<Query>(queries.size());
         for (Map.Entry<String, String> entry : queries.entrySet()) {
@@ -263,6 +338,10 @@ public class QueryBuilder {
      * @return the escaped query string
      */
     private String escapeQueryString(String field, String query) {
+        if (REGEXP.equals(field)) {
+            // not parsed by the query parser
+            return query;
+        }
         return FULL.equals(field)
                 // The free text field may contain terms qualified with other
                 // field names, so we don't escape single colons.
@@ -282,7 +361,32 @@ public class QueryBuilder {
      */
     private Query buildQuery(String field, String queryText)
             throws ParseException {
-        return new CustomQueryParser(field).parse(queryText);
+        if (REGEXP.equals(field)) {
+            return Trigrams.toQuery(queryText);
+        }
+        Query query = new CustomQueryParser(field, rewriteMethod, reversedFields)
+                .parse(queryText);
+        if (HIST.equals(field)
+                && RuntimeEnvironment.getInstance().isHistoryIndex()) {
+            historyQuery = new HistoryQuery(query, Math.max(0,
+                    RuntimeEnvironment.getInstance().getMaxExpandedTerms()));
+            return historyQuery;
+        }
+        return query;
+    }
+
+    /**
+     * Check whether the expansion of a wildcard or prefix query of the query
+     * last {@link #build() built} has been cut off, because it matched more
+     * terms than allowed (see {@link RuntimeEnvironment#getMaxExpandedTerms()}),
+     * or whether the files matched by its history query have been cut off
+     * for the same reason. Only valid after the query has been executed.
+     *
+     * @return {@code true} if the search results might be incomplete.
+     */
+    public boolean isTruncated() {
+        return (rewriteMethod != null && rewriteMethod.isTruncated())
+                || (historyQuery != null && historyQuery.isTruncated());
     }
 
     /**
@@ -18,7 +18,7 @@
  */
 
 /*
- * Copyright (c) 2005, 2011, Oracle and/or its affiliates. All rights reserved.
+ * Copyright (c) 2005, 2012, Oracle and/or its affiliates. All rights reserved.
  *
  * Portions Copyright 2011 Jens Elkner.
  */
@@ -31,10 +31,21 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.zip.GZIPInputStream;
 import org.apache.lucene.document.Document;
@@ -46,7 +57,11 @@ import org.opensolaris.opengrok.OpenGrokLogger;
 import org.opensolaris.opengrok.analysis.Definitions;
 import org.opensolaris.opengrok.analysis.FileAnalyzer.Genre;
 import org.opensolaris.opengrok.analysis.TagFilter;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 import org.opensolaris.opengrok.history.HistoryException;
+import org.opensolaris.opengrok.search.SearchStatistics.Phase;
+import org.opensolaris.opengrok.search.context.Context;
+import org.opensolaris.opengrok.search.context.HistoryContext;
 import org.opensolaris.opengrok.util.IOUtils;
 import org.opensolaris.opengrok.web.Prefix;
 import org.opensolaris.opengrok.web.SearchHelper;
@@ -123,6 +138,182 @@ public final class Results {
         return "";
     }
 
+    /**
+     * The context generators used to render the context of a single hit.
+     * {@link Context} and {@link HistoryContext} keep per-call state, so each
+     * thread rendering hits concurrently needs its own set.
+     */
+    private static final class HitContext {
+
+        final Context sourceContext;
+        final Summarizer summarizer;
+        final HistoryContext historyContext;
+
+        private HitContext(Context sourceContext, Summarizer summarizer,
+                HistoryContext historyContext) {
+            this.sourceContext = sourceContext;
+            this.summarizer = summarizer;
+            this.historyContext = historyContext;
+        }
+
+        /**
+         * Use the context generators of the given search helper as is.
+         *
+         * @param sh the search helper whose generators to use
+         * @return the generators of the search helper
+         */
+        static HitContext of(SearchHelper sh) {
+            return new HitContext(sh.sourceContext, sh.summerizer,
+                    sh.historyContext);
+        }
+
+        /**
+         * Create a new set of context generators equivalent to the one of the
+         * given search helper. The summarizer is stateless and thus shared.
+         *
+         * @param sh the search helper whose generators to duplicate
+         * @return new generators which may be used concurrently with the
+         * ones of the search helper
+         */
+        static HitContext copyOf(SearchHelper sh) {
+            return new HitContext(sh.sourceContext == null
+                    ? null : new Context(sh.query, sh.builder.getQueries()),
+                    sh.summerizer, sh.historyContext == null
+                    ? null : new HistoryContext(sh.query));
+        }
+    }
+
+    /**
+     * Write the context of the given hit document.
+     *
+     * @param out write destination
+     * @param sh search helper which has all required fields set
+     * @param ctx the context generators to use
+     * @param doc the document to write the context for
+     * @param xrefDataDir the directory containing the xref files
+     * @throws HistoryException
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private static void printContext(Writer out, SearchHelper sh,
+            HitContext ctx, Document doc, File xrefDataDir)
+            throws HistoryException, IOException, ClassNotFoundException {
+        String rpath = doc.get("path");
+        if (ctx.sourceContext != null) {
+            Genre genre = Genre.get(doc.get("t"));
+            Definitions tags = null;
+            IndexableField tagsField = doc.getField("tags");
+            if (tagsField != null) {
+                tags = Definitions.deserialize(tagsField.binaryValue().bytes);
+            }
+            long phaseStart = System.nanoTime();
+            if (Genre.XREFABLE == genre && ctx.summarizer != null) {
+                String xtags = getTags(xrefDataDir, rpath, sh.compressed);
+                // FIXME use Highlighter from lucene contrib here,
+                // instead of summarizer, we'd also get rid of
+                // apache lucene in whole source ...
+                out.write(ctx.summarizer.getSummary(xtags).toString());
+                sh.timing.add(Phase.SUMMARY, phaseStart);
+            } else if (Genre.HTML == genre && ctx.summarizer != null) {
+                String htags = getTags(sh.sourceRoot, rpath, false);
+                out.write(ctx.summarizer.getSummary(htags).toString());
+                sh.timing.add(Phase.SUMMARY, phaseStart);
+            } else {
+                FileReader r = genre == Genre.PLAIN
+                        ? new FileReader(new File(sh.sourceRoot, rpath))
+                        : null;
+                ctx.sourceContext.getContext(r, out,
+                        sh.contextPath + Prefix.XREF_P,
+                        sh.contextPath + Prefix.MORE_P, rpath, tags, true,
+                        null);
+                sh.timing.add(Phase.CONTEXT, phaseStart);
+            }
+        }
+        if (ctx.historyContext != null) {
+            long phaseStart = System.nanoTime();
+            ctx.historyContext.getContext(new File(sh.sourceRoot, rpath),
+                    rpath, out, sh.contextPath);
+            sh.timing.add(Phase.CONTEXT, phaseStart);
+        }
+    }
+
+    /**
+     * Render the context of the given hit documents in parallel using the
+     * executor shared by all searches.
+     *
+     * @param sh search helper which has all required fields set
+     * @param docs the documents to render the context for
+     * @param xrefDataDir the directory containing the xref files
+     * @return the pending context of each document in the order given
+     */
+    private static List<Future<String>> submitContexts(final SearchHelper sh,
+            List<Document> docs, final File xrefDataDir) {
+        ExecutorService executor =
+                RuntimeEnvironment.getInstance().getSearchExecutor();
+        // context generators not in use by any task right now
+        final BlockingQueue<HitContext> idle =
+                new LinkedBlockingQueue<HitContext>();
+        List<Future<String>> futures =
+                new ArrayList<Future<String>>(docs.size());
+        for (final Document doc : docs) {
+            futures.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    HitContext ctx = idle.poll();
+                    if (ctx == null) {
+                        ctx = HitContext.copyOf(sh);
+                    }
+                    try {
+                        StringWriter sw = new StringWriter();
+                        printContext(sw, sh, ctx, doc, xrefDataDir);
+                        return sw.toString();
+                    } finally {
+                        idle.offer(ctx);
+                    }
+                }
+            }));
+        }
+        return futures;
+    }
+
+    /**
+     * Get the context rendered by the given task. Waits at most until the
+     * given deadline is reached. If the task did not complete in time, it gets
+     * cancelled and an empty string is returned, i.e. the hit degrades to a
+     * path-only result.
+     *
+     * @param task the task rendering the context
+     * @param deadline the point in time ({@link System#currentTimeMillis()})
+     * until the task is allowed to finish
+     * @param path the path of the document the context belongs to
+     * @return the rendered context, which might be empty
+     */
+    static String getContext(Future<String> task, long deadline,
+            String path) {
+        try {
+            long remaining = deadline - System.currentTimeMillis();
+            return remaining > 0
+                    ? task.get(remaining, TimeUnit.MILLISECONDS)
+                    : task.isDone() ? task.get() : timeout(task, path);
+        } catch (TimeoutException e) {
+            return timeout(task, path);
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            OpenGrokLogger.getLogger().log(Level.WARNING,
+                    "Failed to get the context of " + path, e.getCause());
+        }
+        return "";
+    }
+
+    private static String timeout(Future<String> task, String path) {
+        task.cancel(true);
+        OpenGrokLogger.getLogger().log(Level.FINE,
+                "Context of {0} not rendered in time", path);
+        return "";
+    }
+
     /**
      * Prints out results in html form. The following search helper fields are
      * required to be properly initialized: <ul>
@@ -134,7 +325,15 @@ public final class Results {
      * <li>{@link SearchHelper#summerizer} (if sourceContext is not
      * {@code null})</li> <li>{@link SearchHelper#compressed} (if sourceContext
      * is not {@code null})</li> <li>{@link SearchHelper#sourceRoot} (if
-     * sourceContext or historyContext is not {@code null})</li> </ul>
+     * sourceContext or historyContext is not {@code null})</li>
+     * <li>{@link SearchHelper#query} and {@link SearchHelper#builder} (if
+     * {@link SearchHelper#contextTimeout} is {@code > 0})</li> </ul>
+     * <p> If {@link SearchHelper#contextTimeout} is {@code > 0}, the context
+     * of all hits gets rendered in parallel. Hits whose context is not
+     * available when the timeout is over are printed without any context.
+     * If writing to {@code out} fails, the search gets
+     * {@link SearchHelper#cancel() cancelled} and pending renderings are
+     * dropped.
      *
      * @param out write destination
      * @param sh search helper which has all required fields set
@@ -148,77 +347,77 @@ public final class Results {
             int end)
             throws HistoryException, IOException, ClassNotFoundException {
         String ctxE = Util.URIEncodePath(sh.contextPath);
-        String xrefPrefix = sh.contextPath + Prefix.XREF_P;
-        String morePrefix = sh.contextPath + Prefix.MORE_P;
         String xrefPrefixE = ctxE + Prefix.XREF_P;
         String histPrefixE = ctxE + Prefix.HIST_L;
         String rawPrefixE = ctxE + Prefix.RAW_P;
         File xrefDataDir = new File(sh.dataRoot, Prefix.XREF_P.toString());
 
-        for (Map.Entry<String, ArrayList<Document>> entry :
-                createMap(sh.searcher, sh.hits, start, end).entrySet()) {
-            String parent = entry.getKey();
-            out.write("<tr class=\"dir\"><td colspan=\"3\"><a href=\"");
-            out.write(xrefPrefixE);
-            out.write(Util.URIEncodePath(parent));
-            out.write("/\">");
-            out.write(parent); // htmlize ???
-            out.write("/</a>");
-            if (sh.desc != null) {
-                out.write(" - <i>");
-                out.write(sh.desc.get(parent)); // htmlize ???
-                out.write("</i>");
+        Map<String, ArrayList<Document>> dirHash =
+                createMap(sh.searcher, sh.hits, start, end);
+        boolean hasContext =
+                sh.sourceContext != null || sh.historyContext != null;
+        Iterator<Future<String>> contexts = null;
+        long deadline = 0;
+        if (hasContext && sh.contextTimeout > 0) {
+            List<Document> docs = new ArrayList<Document>(end - start);
+            for (ArrayList<Document> dirDocs : dirHash.values()) {
+                docs.addAll(dirDocs);
             }
-            out.write("</td></tr>");
-            for (Document doc : entry.getValue()) {
-                String rpath = doc.get("path");
-                String rpathE = Util.URIEncodePath(rpath);
-                out.write("<tr><td class=\"q\"><a href=\"");
-                out.write(histPrefixE);
-                out.write(rpathE);
-                out.write("\" title=\"History\">H</a> <a href=\"");
-                out.write(xrefPrefixE);
-                out.write(rpathE);
-                out.write("?a=true\" title=\"Annotate\">A</a> <a href=\"");
-                out.write(rawPrefixE);
-                out.write(rpathE);
-                out.write("\" title=\"Download\">D</a>");
-                out.write("</td>");
-                out.write("<td class=\"f\"><a href=\"");
+            deadline = System.currentTimeMillis() + sh.contextTimeout;
+            contexts = submitContexts(sh, docs, xrefDataDir).iterator();
+        }
+        HitContext ctx = HitContext.of(sh);
+
+        try {
+            for (Map.Entry<String, ArrayList<Document>> entry : dirHash.entrySet()) {
+                String parent = entry.getKey();
+                out.write("<tr class=\"dir\"><td colspan=\"3\"><a href=\"");
                 out.write(xrefPrefixE);
-                out.write(rpathE);
-                out.write("\">");
-                out.write(rpath.substring(rpath.lastIndexOf('/') + 1)); // htmlize ???
-                out.write("</a></td><td><tt class=\"con\">");
-                if (sh.sourceContext != null) {
-                    Genre genre = Genre.get(doc.get("t"));
-                    Definitions tags = null;
-                    IndexableField tagsField = doc.getField("tags");
-                    if (tagsField != null) {
-                        tags = Definitions.deserialize(tagsField.binaryValue().bytes);
-                    }
-                    if (Genre.XREFABLE == genre && sh.summerizer != null) {
-                        String xtags = getTags(xrefDataDir, rpath, sh.compressed);
-                        // FIXME use Highlighter from lucene contrib here,
-                        // instead of summarizer, we'd also get rid of
-                        // apache lucene in whole source ...
-                        out.write(sh.summerizer.getSummary(xtags).toString());
-                    } else if (Genre.HTML == genre && sh.summerizer != null) {
-                        String htags = getTags(sh.sourceRoot, rpath, false);
-                        out.write(sh.summerizer.getSummary(htags).toString());
-                    } else {
-                        FileReader r = genre == Genre.PLAIN
-                                ? new FileReader(new File(sh.sourceRoot, rpath))
-                                : null;
-                        sh.sourceContext.getContext(r, out, xrefPrefix,
-                                morePrefix, rpath, tags, true, null);
-                    }
+                out.write(Util.URIEncodePath(parent));
+                out.write("/\">");
+                out.write(parent); // htmlize ???
+                out.write("/</a>");
+                if (sh.desc != null) {
+                    out.write(" - <i>");
+                    out.write(sh.desc.get(parent)); // htmlize ???
+                    out.write("</i>");
                 }
-                if (sh.historyContext != null) {
-                    sh.historyContext.getContext(new File(sh.sourceRoot, rpath),
-                            rpath, out, sh.contextPath);
+                out.write("</td></tr>");
+                for (Document doc : entry.getValue()) {
+                    String rpath = doc.get("path");
+                    String rpathE = Util.URIEncodePath(rpath);
+                    out.write("<tr><td class=\"q\"><a href=\"");
+                    out.write(histPrefixE);
+                    out.write(rpathE);
+                    out.write("\" title=\"History\">H</a> <a href=\"");
+                    out.write(xrefPrefixE);
+                    out.write(rpathE);
+                    out.write("?a=true\" title=\"Annotate\">A</a> <a href=\"");
+                    out.write(rawPrefixE);
+                    out.write(rpathE);
+                    out.write("\" title=\"Download\">D</a>");
+                    out.write("</td>");
+                    out.write("<td class=\"f\"><a href=\"");
+                    out.write(xrefPrefixE);
+                    out.write(rpathE);
+                    out.write("\">");
+                    out.write(rpath.substring(rpath.lastIndexOf('/') + 1)); // htmlize ???
+                    out.write("</a></td><td><tt class=\"con\">");
+                    if (contexts != null) {
+                        out.write(getContext(contexts.next(), deadline, rpath));
+                    } else if (hasContext) {
+                        printContext(out, sh, ctx, doc, xrefDataDir);
+                    }
+                    out.write("</tt></td></tr>\n");
                 }
-                out.write("</tt></td></tr>\n");
+            }
+        } catch (IOException e) {
+            // most likely the client went away - no need to go on
+            sh.cancel();
+            throw e;
+        } finally {
+            while (contexts != null && contexts.hasNext()) {
+                contexts.next().cancel(true);
             }
         }
     }
@@ -0,0 +1,70 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.util.ToStringUtils;
+
+/**
+ * A wildcard query with a leading wildcard, which gets evaluated against the
+ * reversed tokens of a field (see {@link QueryBuilder#REVERSED_SUFFIX}). E.g.
+ * {@code full:*Handler} gets executed as {@code full_rev:reldnaH*}, which is
+ * a cheap prefix scan of the term dictionary instead of a full one.
+ */
+public class ReversedWildcardQuery extends WildcardQuery {
+
+    private final Term original;
+
+    /**
+     * Create a new query.
+     *
+     * @param original the wildcard term as given by the user
+     */
+    public ReversedWildcardQuery(Term original) {
+        super(new Term(original.field() + QueryBuilder.REVERSED_SUFFIX,
+                new StringBuilder(original.text()).reverse().toString()));
+        this.original = original;
+    }
+
+    /**
+     * Get the wildcard term as given by the user, i.e. the one to use when
+     * looking for matches in the source.
+     *
+     * @return the original term
+     */
+    public Term getOriginalTerm() {
+        return original;
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        if (!original.field().equals(field)) {
+            buffer.append(original.field()).append(':');
+        }
+        buffer.append(original.text());
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+}
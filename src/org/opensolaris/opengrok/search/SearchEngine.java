@@ -25,8 +25,6 @@ package org.opensolaris.opengrok.search;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.zip.GZIPInputStream;
 import org.apache.lucene.document.Document;
@@ -48,6 +46,8 @@ import org.opensolaris.opengrok.analysis.TagFilter;
 import org.opensolaris.opengrok.configuration.Project;
 import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 import org.opensolaris.opengrok.history.HistoryException;
+import org.opensolaris.opengrok.index.IndexGenerations;
+import org.opensolaris.opengrok.search.SearchStatistics.Phase;
 import org.opensolaris.opengrok.search.Summary.Fragment;
 import org.opensolaris.opengrok.search.context.Context;
 import org.opensolaris.opengrok.search.context.HistoryContext;
@@ -117,6 +117,17 @@ public class SearchEngine {
     private TopScoreDocCollector collector;
     private IndexSearcher searcher;
     boolean allCollected;
+    /**
+     * the time spent in the phases of the current search, including the
+     * rendering of its first results
+     */
+    private SearchStatistics.Timing timing = new SearchStatistics.Timing();
+    /** start time of the current search */
+    private long started;
+    /** the projects searched by the current search */
+    private List<String> searchedProjects;
+    /** set once {@link #timing} has been recorded */
+    private boolean recorded = true;
 
     /**
      * Creates a new instance of SearchEngine
@@ -160,8 +171,12 @@ public class SearchEngine {
      * @throws IOException
      */
     private void searchSingleDatabase(File root, boolean paging) throws IOException {
-        IndexReader ireader = DirectoryReader.open(FSDirectory.open(root));
+        long phaseStart = System.nanoTime();
+        IndexReader ireader = DirectoryReader.open(
+                FSDirectory.open(IndexGenerations.getCurrent(root)));
         searcher = new IndexSearcher(ireader);
+        timing.add(Phase.READER, phaseStart);
+        phaseStart = System.nanoTime();
         collector = TopScoreDocCollector.create(hitsPerPage * cachePages, docsScoredInOrder);
         searcher.search(query, collector);
         totalHits = collector.getTotalHits();
@@ -175,6 +190,7 @@ public class SearchEngine {
             Document d = searcher.doc(docId);
             docs.add(d);
         }
+        timing.add(Phase.SEARCH, phaseStart);
     }
 
     /**
@@ -185,21 +201,24 @@ public class SearchEngine {
      * @throws IOException
      */
     private void searchMultiDatabase(List<Project> root, boolean paging) throws IOException {
+        long phaseStart = System.nanoTime();
         IndexReader[] subreaders = new IndexReader[root.size()];
         File droot = new File(RuntimeEnvironment.getInstance().getDataRootFile(), "index");
         int ii = 0;
         for (Project project : root) {
-            IndexReader ireader = (DirectoryReader.open(FSDirectory.open(new File(droot, project.getPath()))));
+            IndexReader ireader = (DirectoryReader.open(FSDirectory.open(
+                    IndexGenerations.getCurrent(new File(droot, project.getPath())))));
             subreaders[ii++] = ireader;
         }
         MultiReader searchables = new MultiReader(subreaders, true);
         if (Runtime.getRuntime().availableProcessors() > 1) {
-            int noThreads = 2 + (2 * Runtime.getRuntime().availableProcessors()); //TODO there might be a better way for counting this - or we should honor the command line option here too!
-            ExecutorService executor = Executors.newFixedThreadPool(noThreads);
-            searcher = new IndexSearcher(searchables, executor);
+            searcher = new IndexSearcher(searchables,
+                    RuntimeEnvironment.getInstance().getSearchExecutor());
         } else {
             searcher = new IndexSearcher(searchables);
         }
+        timing.add(Phase.READER, phaseStart);
+        phaseStart = System.nanoTime();
         collector = TopScoreDocCollector.create(hitsPerPage * cachePages, docsScoredInOrder);
         searcher.search(query, collector);
         totalHits = collector.getTotalHits();
@@ -213,6 +232,7 @@ public class SearchEngine {
             Document d = searcher.doc(docId);
             docs.add(d);
         }
+        timing.add(Phase.SEARCH, phaseStart);
     }
 
     public String getQuery() {
@@ -231,11 +251,18 @@ public class SearchEngine {
         source = RuntimeEnvironment.getInstance().getSourceRootPath();
         data = RuntimeEnvironment.getInstance().getDataRootPath();
         docs.clear();
+        timing = new SearchStatistics.Timing();
+        started = System.currentTimeMillis();
+        recorded = false;
+        List<String> projects = new ArrayList<String>();
+        searchedProjects = projects;
 
         QueryBuilder queryBuilder = createQueryBuilder();
 
         try {
+            long phaseStart = System.nanoTime();
             query = queryBuilder.build();
+            timing.add(Phase.PARSE, phaseStart);
             if (query != null) {
                 RuntimeEnvironment env = RuntimeEnvironment.getInstance();
                 File root = new File(env.getDataRootFile(), "index");
@@ -244,6 +271,9 @@ public class SearchEngine {
                     // search all projects
                     //TODO support paging per project (in search.java)
                     //TODO optimize if only one project by falling back to SingleDatabase ?
+                    for (Project p : env.getProjects()) {
+                        projects.add(p.getDescription());
+                    }
                     searchMultiDatabase(env.getProjects(), false);
                 } else {
                     // search the index database
@@ -279,6 +309,10 @@ public class SearchEngine {
             }
         }
         int count = hits == null ? 0 : hits.length;
+        if (count == 0) {
+            // nothing to render, so the search is complete
+            record();
+        }
         return count;
     }
 
@@ -306,6 +340,7 @@ public class SearchEngine {
         //TODO check if below fits for if end=old hits.length, or it should include it
         if (end > hits.length & !allCollected) {
             //do the requery, we want more than 5 pages
+            long phaseStart = System.nanoTime();
             collector = TopScoreDocCollector.create(totalHits, docsScoredInOrder);
             try {
                 searcher.search(query, collector);
@@ -326,6 +361,7 @@ public class SearchEngine {
                 docs.add(d);
             }
             allCollected = true;
+            timing.add(Phase.SEARCH, phaseStart);
         }
 
         //TODO generation of ret(results) could be cashed and consumers of engine would just print them in whatever form they need, this way we could get rid of docs
@@ -346,12 +382,15 @@ public class SearchEngine {
                 int nhits = docs.size();
 
                 if (sourceContext != null) {
+                    long phaseStart = System.nanoTime();
+                    Phase phase = Phase.CONTEXT;
                     try {
                         if (Genre.PLAIN == genre && (source != null)) {
                             hasContext = sourceContext.getContext(new InputStreamReader(new FileInputStream(source
                                     + filename)), null, null, null, filename,
                                     tags, nhits > 100, ret);
                         } else if (Genre.XREFABLE == genre && data != null && summarizer != null) {
+                            phase = Phase.SUMMARY;
                             int l = 0;
                             Reader r;
                             if (RuntimeEnvironment.getInstance().isCompressXref()) {
@@ -384,10 +423,14 @@ public class SearchEngine {
                     } catch (FileNotFoundException exp) {
                         OpenGrokLogger.getLogger().log(Level.WARNING, "Couldn''t read summary from {0} ({1})", new Object[]{filename, exp.getMessage()});
                         hasContext |= sourceContext.getContext(null, null, null, null, filename, tags, false, ret);
+                    } finally {
+                        timing.add(phase, phaseStart);
                     }
                 }
                 if (historyContext != null) {
+                    long phaseStart = System.nanoTime();
                     hasContext |= historyContext.getContext(source + filename, filename, ret);
+                    timing.add(Phase.CONTEXT, phaseStart);
                 }
                 if (!hasContext) {
                     ret.add(new Hit(filename, "...", "", false, alt));
@@ -403,7 +446,22 @@ public class SearchEngine {
                         Level.WARNING, SEARCH_EXCEPTION_MSG, e);
             }
         }
+        record();
+    }
 
+    /**
+     * Record the timing of the current search in the {@link SearchStatistics},
+     * unless it has been recorded already. Searches get recorded once their
+     * first results have been rendered, so the time spent on later pages
+     * does not count.
+     */
+    private void record() {
+        if (query != null && !recorded) {
+            recorded = true;
+            SearchStatistics.getInstance().record(timing,
+                    System.currentTimeMillis() - started, query,
+                    searchedProjects);
+        }
     }
 
     /**
@@ -0,0 +1,287 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.opensolaris.opengrok.OpenGrokLogger;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+
+/**
+ * Collects the time spent in the phases of searches. The numbers are kept as
+ * histograms, which get exposed via JMX once {@link #register()} has been
+ * called. Searches taking longer than the
+ * {@link RuntimeEnvironment#getSlowQueryThreshold() slow query threshold} get
+ * logged with their phase breakdown to the {@link #SLOW_QUERY_LOGGER} logger.
+ */
+public final class SearchStatistics implements SearchStatisticsMBean {
+
+    /** the phases of a search */
+    public enum Phase {
+        /** parsing the query */
+        PARSE,
+        /** opening the index readers */
+        READER,
+        /** searching and sorting the hits */
+        SEARCH,
+        /** rendering the source and history context of hits */
+        CONTEXT,
+        /** creating summaries of hits from their xref */
+        SUMMARY
+    }
+
+    /**
+     * The time spent in the phases of a single search. Phases may be entered
+     * several times and concurrently (e.g. when rendering the context of
+     * hits in parallel), in which case the times get accumulated.
+     */
+    public static final class Timing {
+
+        private final long[] nanos = new long[Phase.values().length];
+        private final boolean[] measured = new boolean[nanos.length];
+
+        /**
+         * Add time spent in the given phase.
+         *
+         * @param phase the phase in question
+         * @param start the start of the time spent as returned by
+         * {@link System#nanoTime()}. The end is now.
+         */
+        public synchronized void add(Phase phase, long start) {
+            nanos[phase.ordinal()] += System.nanoTime() - start;
+            measured[phase.ordinal()] = true;
+        }
+
+        /**
+         * Get the time spent in the given phase.
+         *
+         * @param phase the phase in question
+         * @return time in nanoseconds, {@code -1} if the phase has not been
+         * entered
+         */
+        public synchronized long get(Phase phase) {
+            return measured[phase.ordinal()] ? nanos[phase.ordinal()] : -1;
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Phase p : Phase.values()) {
+                if (measured[p.ordinal()]) {
+                    sb.append(sb.length() == 0 ? "" : " ")
+                            .append(p.name().toLowerCase(Locale.ENGLISH))
+                            .append('=').append(String.format(Locale.ENGLISH,
+                            "%.1f", nanos[p.ordinal()] / 1e6)).append("ms");
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /** name of the logger slow queries get logged to */
+    public static final String SLOW_QUERY_LOGGER =
+            "org.opensolaris.opengrok.search.slowquery";
+    /** name of the MBean registered via {@link #register()} */
+    public static final String OBJECT_NAME =
+            "org.opensolaris.opengrok:type=SearchStatistics";
+    private static final long[] BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500,
+        1000, 2000, 5000, 10000};
+    private static final SearchStatistics instance = new SearchStatistics();
+    private static final Logger slowLog = Logger.getLogger(SLOW_QUERY_LOGGER);
+    private final int buckets = BOUNDS.length + 1;
+    private final AtomicLongArray histograms =
+            new AtomicLongArray(Phase.values().length * buckets);
+    private final AtomicLongArray totals =
+            new AtomicLongArray(Phase.values().length);
+    private final AtomicLongArray counts =
+            new AtomicLongArray(Phase.values().length);
+    private final AtomicLongArray max =
+            new AtomicLongArray(Phase.values().length);
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong slowSearches = new AtomicLong();
+
+    private SearchStatistics() {
+        // singleton
+    }
+
+    /**
+     * Get the one and only instance.
+     *
+     * @return the shared statistics
+     */
+    public static SearchStatistics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Record the phase times of a finished search. If the search took longer
+     * than the slow query threshold, it gets logged.
+     *
+     * @param timing the time spent per phase
+     * @param elapsed the (wall clock) time the whole search took in
+     * milliseconds
+     * @param query the query searched for
+     * @param projects the projects searched. {@code null} or empty if
+     * projects are not used.
+     */
+    public void record(Timing timing, long elapsed, Object query,
+            Collection<String> projects) {
+        searches.incrementAndGet();
+        for (Phase p : Phase.values()) {
+            long nanos = timing.get(p);
+            if (nanos < 0) {
+                continue;
+            }
+            int i = p.ordinal();
+            long ms = nanos / 1000000;
+            int bucket = 0;
+            while (bucket < BOUNDS.length && ms >= BOUNDS[bucket]) {
+                bucket++;
+            }
+            histograms.incrementAndGet(i * buckets + bucket);
+            totals.addAndGet(i, nanos);
+            counts.incrementAndGet(i);
+            long m;
+            while ((m = max.get(i)) < nanos && !max.compareAndSet(i, m, nanos)) {
+                // retry
+            }
+        }
+        int threshold = getSlowQueryThreshold();
+        if (threshold > 0 && elapsed >= threshold) {
+            slowSearches.incrementAndGet();
+            slowLog.log(Level.INFO, "{0} ms for query [{1}] in projects {2}: {3}",
+                    new Object[]{elapsed, query,
+                        projects == null ? "[]" : projects, timing});
+        }
+    }
+
+    /**
+     * Register this instance with the platform MBean server.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            OpenGrokLogger.getLogger().log(Level.WARNING,
+                    "Failed to register the search statistics MBean", e);
+        }
+    }
+
+    /**
+     * Remove this instance from the platform MBean server.
+     */
+    public void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            OpenGrokLogger.getLogger().log(Level.WARNING,
+                    "Failed to unregister the search statistics MBean", e);
+        }
+    }
+
+    @Override
+    public long getSearchCount() {
+        return searches.get();
+    }
+
+    @Override
+    public long getSlowSearchCount() {
+        return slowSearches.get();
+    }
+
+    @Override
+    public String[] getPhases() {
+        String[] ret = new String[Phase.values().length];
+        for (Phase p : Phase.values()) {
+            ret[p.ordinal()] = p.name();
+        }
+        return ret;
+    }
+
+    @Override
+    public long[] getBucketBounds() {
+        return BOUNDS.clone();
+    }
+
+    @Override
+    public long[] getHistogram(String phase) {
+        int i = Phase.valueOf(phase).ordinal();
+        long[] ret = new long[buckets];
+        for (int k = 0; k < buckets; k++) {
+            ret[k] = histograms.get(i * buckets + k);
+        }
+        return ret;
+    }
+
+    @Override
+    public double getAverageTime(String phase) {
+        int i = Phase.valueOf(phase).ordinal();
+        long n = counts.get(i);
+        return n == 0 ? 0 : totals.get(i) / 1e6 / n;
+    }
+
+    @Override
+    public long getMaxTime(String phase) {
+        return max.get(Phase.valueOf(phase).ordinal()) / 1000000;
+    }
+
+    @Override
+    public int getSlowQueryThreshold() {
+        return RuntimeEnvironment.getInstance().getSlowQueryThreshold();
+    }
+
+    @Override
+    public void setSlowQueryThreshold(int threshold) {
+        RuntimeEnvironment.getInstance().setSlowQueryThreshold(threshold);
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < histograms.length(); i++) {
+            histograms.set(i, 0);
+        }
+        for (int i = 0; i < totals.length(); i++) {
+            totals.set(i, 0);
+            counts.set(i, 0);
+            max.set(i, 0);
+        }
+        searches.set(0);
+        slowSearches.set(0);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+/**
+ * MBean exposing the time spent in the phases of searches.
+ */
+public interface SearchStatisticsMBean {
+
+    /**
+     * Get the number of searches recorded so far.
+     *
+     * @return number of searches
+     */
+    long getSearchCount();
+
+    /**
+     * Get the number of searches, which took longer than the
+     * {@link #getSlowQueryThreshold() slow query threshold}.
+     *
+     * @return number of slow searches
+     */
+    long getSlowSearchCount();
+
+    /**
+     * Get the names of the phases times are recorded for.
+     *
+     * @return the phase names
+     */
+    String[] getPhases();
+
+    /**
+     * Get the upper bounds of the histogram buckets.
+     *
+     * @return bounds in milliseconds. The histograms have one more bucket for
+     * all times exceeding the last bound.
+     */
+    long[] getBucketBounds();
+
+    /**
+     * Get the histogram of the times spent in the given phase.
+     *
+     * @param phase name of the phase (see {@link #getPhases()})
+     * @return the number of searches per bucket (see
+     * {@link #getBucketBounds()})
+     */
+    long[] getHistogram(String phase);
+
+    /**
+     * Get the average time spent in the given phase.
+     *
+     * @param phase name of the phase (see {@link #getPhases()})
+     * @return average time in milliseconds
+     */
+    double getAverageTime(String phase);
+
+    /**
+     * Get the max. time spent in the given phase.
+     *
+     * @param phase name of the phase (see {@link #getPhases()})
+     * @return max. time in milliseconds
+     */
+    long getMaxTime(String phase);
+
+    /**
+     * Get the time a search may take before it gets logged as slow query.
+     *
+     * @return time in milliseconds, {@code <= 0} if disabled
+     */
+    int getSlowQueryThreshold();
+
+    /**
+     * Set the time a search may take before it gets logged as slow query.
+     *
+     * @param threshold time in milliseconds. Use {@code 0} to disable.
+     */
+    void setSlowQueryThreshold(int threshold);
+
+    /**
+     * Drop all numbers recorded so far.
+     */
+    void reset();
+}
@@ -0,0 +1,415 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+/**
+ * Trigram support for regular expression searches. The indexer stores the
+ * distinct trigrams of each line of a source file (lower cased) in the
+ * {@link QueryBuilder#TRIGRAMS} field. A regular expression gets translated
+ * into a query over the trigrams of the literal text it requires, which
+ * selects the documents that may contain a match. These candidates need to
+ * be verified against the source afterwards.
+ * <p>
+ * Regular expressions are matched per line (like grep does), i.e. matches
+ * spanning multiple lines are not found.
+ */
+public final class Trigrams {
+
+    /** max. number of trigrams used per literal text of a regexp */
+    private static final int MAX_TRIGRAMS_PER_LITERAL = 64;
+
+    private Trigrams() {
+        // utility class
+    }
+
+    /**
+     * Get the distinct trigrams of all lines of the given input.
+     *
+     * @param in the input to read. Gets not closed.
+     * @return a sorted set of lower cased trigrams
+     * @throws IOException if the input could not be read
+     */
+    public static Set<String> extract(Reader in) throws IOException {
+        Set<String> ret = new TreeSet<String>();
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            add(line, ret, Integer.MAX_VALUE);
+        }
+        return ret;
+    }
+
+    private static void add(CharSequence text, Set<String> trigrams, int max) {
+        char[] buf = new char[3];
+        for (int i = 0; i + 3 <= text.length() && trigrams.size() < max; i++) {
+            for (int k = 0; k < 3; k++) {
+                buf[k] = Character.toLowerCase(text.charAt(i + k));
+            }
+            trigrams.add(new String(buf));
+        }
+    }
+
+    /**
+     * Compile the given regular expression as it is used to verify the
+     * candidate documents.
+     *
+     * @param regexp the regular expression as given by the user
+     * @return the compiled pattern
+     * @throws ParseException if the regular expression is invalid
+     */
+    public static Pattern compile(String regexp) throws ParseException {
+        try {
+            return Pattern.compile(regexp);
+        } catch (PatternSyntaxException e) {
+            throw new ParseException(e.getDescription() + " at index "
+                    + e.getIndex() + " of regular expression " + regexp);
+        }
+    }
+
+    /**
+     * Build the query selecting the documents, which might contain a match of
+     * the given regular expression.
+     *
+     * @param regexp the regular expression as given by the user
+     * @return a query over the {@link QueryBuilder#TRIGRAMS} field
+     * @throws ParseException if the regular expression is invalid or does not
+     * require a literal text of at least 3 characters
+     */
+    public static Query toQuery(String regexp) throws ParseException {
+        compile(regexp);
+        Parser parser = new Parser(regexp);
+        Query query = parser.parseAlternation();
+        if (parser.commentsMode) {
+            // white space and comments are not literal text in this mode
+            query = null;
+        }
+        if (query == null) {
+            throw new ParseException("Regular expression " + regexp
+                    + " needs to contain a literal text of at least 3 "
+                    + "characters");
+        }
+        return query;
+    }
+
+    /**
+     * A conservative analyzer of {@link Pattern} syntax. It only collects
+     * the literal text every match must contain - anything it does not
+     * understand is treated as "matches anything".
+     */
+    private static final class Parser {
+
+        /** the regexp can only match once or more often */
+        private static final int REPEATED = 2;
+        private final String re;
+        private int pos;
+        /** set if (?x) is used somewhere */
+        boolean commentsMode;
+
+        Parser(String re) {
+            this.re = re;
+        }
+
+        private boolean more() {
+            return pos < re.length();
+        }
+
+        private char peek() {
+            return re.charAt(pos);
+        }
+
+        /**
+         * @return the query required by the alternation starting at the
+         * current position or {@code null} if anything may match
+         */
+        Query parseAlternation() {
+            List<Query> branches = new ArrayList<Query>();
+            boolean any = false;
+            while (true) {
+                Query branch = parseSequence();
+                if (branch == null) {
+                    any = true;
+                } else {
+                    branches.add(branch);
+                }
+                if (more() && peek() == '|') {
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            if (any) {
+                return null;
+            }
+            if (branches.size() == 1) {
+                return branches.get(0);
+            }
+            BooleanQuery bq = new BooleanQuery();
+            for (Query branch : branches) {
+                bq.add(branch, Occur.SHOULD);
+            }
+            return bq;
+        }
+
+        private Query parseSequence() {
+            List<Query> required = new ArrayList<Query>();
+            StringBuilder literal = new StringBuilder();
+            while (more() && peek() != '|' && peek() != ')') {
+                int lit = -1;
+                Query atom = null;
+                char c = re.charAt(pos++);
+                if (c == '(') {
+                    if (!parseGroupPrefix()) {
+                        // flags only, e.g. (?i)
+                        continue;
+                    }
+                    atom = parseAlternation();
+                    if (more() && peek() == ')') {
+                        pos++;
+                    }
+                } else if (c == '[') {
+                    skipClass();
+                } else if (c == '\\' && more() && peek() == 'Q') {
+                    // quoted literal text up to \E
+                    int end = re.indexOf("\\E", ++pos);
+                    if (end < 0) {
+                        end = re.length();
+                    }
+                    String quoted = re.substring(pos, end);
+                    pos = Math.min(end + 2, re.length());
+                    if (quoted.isEmpty()) {
+                        continue;
+                    }
+                    // a quantifier only applies to the last character
+                    literal.append(quoted, 0, quoted.length() - 1);
+                    lit = quoted.charAt(quoted.length() - 1);
+                } else if (c == '\\') {
+                    lit = parseEscape();
+                } else if (c == '^' || c == '$') {
+                    flush(literal, required);
+                    continue;
+                } else if (c != '.') {
+                    lit = c;
+                }
+                int min = parseQuantifier();
+                if (lit >= 0 && min > 0) {
+                    literal.append((char) lit);
+                }
+                if (lit < 0 || min != 1) {
+                    flush(literal, required);
+                }
+                if (atom != null && min > 0) {
+                    required.add(atom);
+                }
+            }
+            flush(literal, required);
+            if (required.isEmpty()) {
+                return null;
+            }
+            if (required.size() == 1) {
+                return required.get(0);
+            }
+            BooleanQuery bq = new BooleanQuery();
+            for (Query q : required) {
+                bq.add(q, Occur.MUST);
+            }
+            return bq;
+        }
+
+        /**
+         * Skip the special constructs at the start of a group.
+         *
+         * @return {@code false} if the group only sets flags and has been
+         * consumed completely
+         */
+        private boolean parseGroupPrefix() {
+            if (!more() || peek() != '?') {
+                return true;
+            }
+            pos++;
+            if (more() && (peek() == '=' || peek() == '!' || peek() == '<'
+                    || peek() == '>' || peek() == ':')) {
+                if (peek() == '<' && pos + 1 < re.length()
+                        && Character.isLetter(re.charAt(pos + 1))) {
+                    // named group
+                    pos = re.indexOf('>', pos) + 1;
+                    return true;
+                }
+                boolean lookaround = peek() != ':' && peek() != '>';
+                pos += peek() == '<' ? 2 : 1;
+                if (lookaround) {
+                    // zero width, may not be relied on
+                    parseAlternation();
+                    if (more() && peek() == ')') {
+                        pos++;
+                    }
+                    return false;
+                }
+                return true;
+            }
+            // flags like (?i) or (?i:...)
+            while (more() && peek() != ':' && peek() != ')') {
+                if (peek() == 'x') {
+                    commentsMode = true;
+                }
+                pos++;
+            }
+            if (more() && peek() == ')') {
+                pos++;
+                return false;
+            }
+            pos++;
+            return true;
+        }
+
+        private void skipClass() {
+            int depth = 1;
+            if (more() && peek() == '^') {
+                pos++;
+            }
+            if (more() && peek() == ']') {
+                pos++;
+            }
+            while (more() && depth > 0) {
+                char c = re.charAt(pos++);
+                if (c == '\\') {
+                    pos++;
+                } else if (c == '[') {
+                    depth++;
+                } else if (c == ']') {
+                    depth--;
+                }
+            }
+        }
+
+        /**
+         * @return the literal character of the escape sequence, or -1 if it
+         * does not stand for a single literal character
+         */
+        private int parseEscape() {
+            if (!more()) {
+                return -1;
+            }
+            char c = re.charAt(pos++);
+            if (!Character.isLetterOrDigit(c)) {
+                return c;
+            }
+            switch (c) {
+                case 'p':
+                case 'P':
+                    if (more() && peek() == '{') {
+                        pos = re.indexOf('}', pos) + 1;
+                    } else {
+                        pos++;
+                    }
+                    return -1;
+                case 'x':
+                    if (more() && peek() == '{') {
+                        pos = re.indexOf('}', pos) + 1;
+                    } else {
+                        pos += 2;
+                    }
+                    return -1;
+                case 'u':
+                    pos += 4;
+                    return -1;
+                case 'c':
+                    pos++;
+                    return -1;
+                case 'k':
+                    pos = re.indexOf('>', pos) + 1;
+                    return -1;
+                default:
+                    while (c == '0' && more() && peek() >= '0' && peek() <= '7') {
+                        pos++;
+                    }
+                    return -1;
+            }
+        }
+
+        /**
+         * @return 0 if the quantifier at the current position allows the
+         * atom to be absent, 1 if the atom is required exactly once (no
+         * quantifier) and {@link #REPEATED} otherwise
+         */
+        private int parseQuantifier() {
+            if (!more()) {
+                return 1;
+            }
+            int min;
+            char c = peek();
+            if (c == '*' || c == '?') {
+                min = 0;
+                pos++;
+            } else if (c == '+') {
+                min = REPEATED;
+                pos++;
+            } else if (c == '{') {
+                int end = re.indexOf('}', pos);
+                String spec = re.substring(pos + 1, end);
+                int comma = spec.indexOf(',');
+                int n = Integer.parseInt(comma < 0 ? spec
+                        : spec.substring(0, comma));
+                min = n == 1 && comma < 0 ? 1 : Math.min(n, REPEATED);
+                pos = end + 1;
+            } else {
+                return 1;
+            }
+            // lazy or possessive
+            if (more() && (peek() == '?' || peek() == '+')) {
+                pos++;
+            }
+            return min;
+        }
+
+        private void flush(StringBuilder literal, List<Query> required) {
+            if (literal.length() >= 3) {
+                Set<String> trigrams = new TreeSet<String>();
+                add(literal, trigrams, MAX_TRIGRAMS_PER_LITERAL);
+                BooleanQuery bq = new BooleanQuery();
+                for (String t : trigrams) {
+                    bq.add(new TermQuery(new Term(QueryBuilder.TRIGRAMS, t)),
+                            Occur.MUST);
+                }
+                required.add(trigrams.size() == 1
+                        ? bq.getClauses()[0].getQuery() : bq);
+            }
+            literal.setLength(0);
+        }
+    }
+}
@@ -29,6 +29,7 @@
  */
 package org.opensolaris.opengrok.search.context;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
@@ -37,17 +38,23 @@ import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import org.apache.lucene.search.Query;
 import org.opensolaris.opengrok.OpenGrokLogger;
 import org.opensolaris.opengrok.analysis.Definitions;
 import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 import org.opensolaris.opengrok.search.Hit;
+import org.opensolaris.opengrok.search.QueryBuilder;
 import org.opensolaris.opengrok.util.IOUtils;
 import org.opensolaris.opengrok.web.Util;
 
 public class Context {
 
     private final LineMatcher[] m;
+    /** the regular expression to search for, if any */
+    private Pattern regexp;
     static final int MAXFILEREAD = 1024 * 1024;
     private char[] buffer;
     PlainLineTokenizer tokens;
@@ -74,7 +81,18 @@ public class Context {
     public Context(Query query, Map<String, String> queryStrings) {
         QueryMatchers qm = new QueryMatchers();
         m = qm.getMatchers(query, tokenFields);
-        if (m != null) {
+        String re = queryStrings.get(QueryBuilder.REGEXP);
+        if (re != null) {
+            try {
+                regexp = Pattern.compile(re);
+            } catch (PatternSyntaxException e) {
+                // not searched at all, so there is nothing to show
+                regexp = null;
+            }
+        }
+        if (regexp != null) {
+            buildQueryAsURI(queryStrings);
+        } else if (m != null) {
             buildQueryAsURI(queryStrings);
             //System.err.println("Found Matchers = "+ m.length + " for " + query);
             buffer = new char[MAXFILEREAD];
@@ -83,7 +101,7 @@ public class Context {
     }
 
     public boolean isEmpty() {
-        return m == null;
+        return m == null && regexp == null;
     }
 
     /**
@@ -129,6 +147,10 @@ public class Context {
             String morePrefix, String path, Definitions tags,
             boolean limit, List<Hit> hits) {
         alt = !alt;
+        if (regexp != null) {
+            return getRegexpContext(in, out, urlPrefix, morePrefix, path,
+                    limit, hits);
+        }
         if (m == null) {
             IOUtils.close(in);
             return false;
@@ -281,4 +303,108 @@ public class Context {
         }
         return anything;
     }
+
+    /**
+     * Get the context of a regular expression search, i.e. the lines of the
+     * given input matching {@link #regexp}. It takes precedence over all
+     * other terms of the query. Closes the given <var>in</var> reader on
+     * return.
+     *
+     * @see #getContext(Reader, Writer, String, String, String, Definitions,
+     * boolean, List)
+     */
+    private boolean getRegexpContext(Reader in, Writer out, String urlPrefix,
+            String morePrefix, String path, boolean limit, List<Hit> hits) {
+        if (in == null) {
+            return false;
+        }
+        String urlPrefixE =
+                (urlPrefix == null) ? "" : Util.URIEncodePath(urlPrefix);
+        String pathE = Util.URIEncodePath(path);
+        boolean lim = limit
+                && RuntimeEnvironment.getInstance().isQuickContextScan();
+        int matchedLines = 0;
+        boolean more = false;
+        try {
+            BufferedReader reader = new BufferedReader(in);
+            Matcher matcher = regexp.matcher("");
+            String line;
+            int lineNo = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNo++;
+                if (!matcher.reset(line).find()) {
+                    continue;
+                }
+                if (lim && matchedLines == 10) {
+                    more = true;
+                    break;
+                }
+                matchedLines++;
+                String num = String.valueOf(lineNo);
+                String text = highlight(line, matcher);
+                if (hits != null) {
+                    hits.add(new Hit(path, text, num, false, alt));
+                } else if (out != null) {
+                    out.write("<a class=\"s\" href=\"");
+                    out.write(urlPrefixE);
+                    out.write(pathE);
+                    out.write("#");
+                    out.write(num);
+                    out.write("\"><span class=\"l\">");
+                    out.write(num);
+                    out.write("</span> ");
+                    out.write(text);
+                    out.write("</a><br/>");
+                }
+            }
+            if (more && out != null) {
+                out.write("<a href=\"" + Util.URIEncodePath(morePrefix) + pathE
+                        + "?" + queryAsURI + "\">[all...]</a>");
+            }
+        } catch (IOException e) {
+            OpenGrokLogger.getLogger().log(Level.WARNING, "Could not get context for " + path, e);
+        } finally {
+            IOUtils.close(in);
+            if (out != null) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    OpenGrokLogger.getLogger().log(Level.WARNING, "Failed to flush stream: ", e);
+                }
+            }
+        }
+        return matchedLines > 0;
+    }
+
+    /**
+     * Htmlize the given line and highlight the matches of the given matcher.
+     * Text more than 100 characters after the first match gets cut off.
+     *
+     * @param line the line to format
+     * @param matcher a matcher, which has just found the first match in line
+     * @return the formatted line
+     */
+    private static String highlight(String line, Matcher matcher) {
+        StringBuilder sb = new StringBuilder();
+        int cut = Math.min(line.length(), matcher.end() + 100);
+        int last = 0;
+        do {
+            if (matcher.start() >= cut) {
+                break;
+            }
+            if (matcher.end() > matcher.start()) {
+                int end = Math.min(matcher.end(), cut);
+                sb.append(Util.htmlize(line.substring(last, matcher.start())))
+                    .append("<b>")
+                    .append(Util.htmlize(line.substring(matcher.start(), end)))
+                    .append("</b>");
+                last = end;
+            }
+        } while (matcher.find());
+        sb.append(Util.htmlize(line.substring(last, cut)));
+        if (cut < line.length()) {
+            sb.append("&hellip;");
+        }
+        return sb.toString();
+    }
 }
@@ -34,10 +34,12 @@ import java.util.Map;
 import java.util.logging.Level;
 import org.apache.lucene.search.Query;
 import org.opensolaris.opengrok.OpenGrokLogger;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 import org.opensolaris.opengrok.history.History;
 import org.opensolaris.opengrok.history.HistoryEntry;
 import org.opensolaris.opengrok.history.HistoryException;
 import org.opensolaris.opengrok.history.HistoryGuru;
+import org.opensolaris.opengrok.index.HistoryIndex;
 import org.opensolaris.opengrok.search.Hit;
 import org.opensolaris.opengrok.web.Constants;
 
@@ -75,8 +77,7 @@ public class HistoryContext {
             return false;
         }
         File f = new File(filename);
-        return getHistoryContext(HistoryGuru.getInstance().getHistory(f),
-                                 path, null, hits,null);
+        return getHistoryContext(getHistory(f, path), path, null, hits, null);
 
     }
 
@@ -106,10 +107,34 @@ public class HistoryContext {
         if (m == null) {
             return false;
         }
-        History hist = HistoryGuru.getInstance().getHistory(src);
+        History hist = getHistory(src, path);
         return getHistoryContext(hist, path, out, null,context);
     }
 
+    /**
+     * Get the history of a file, preferably from the {@link HistoryIndex}.
+     *
+     * @param file the source file
+     * @param path the path of the file (rooted at SOURCE_ROOT)
+     * @return the history of the file
+     * @throws HistoryException if the history could not be read
+     */
+    private static History getHistory(File file, String path)
+            throws HistoryException {
+        if (RuntimeEnvironment.getInstance().isHistoryIndex()) {
+            try {
+                History hist = HistoryIndex.getHistory(path);
+                if (hist != null && !hist.getHistoryEntries().isEmpty()) {
+                    return hist;
+                }
+            } catch (IOException e) {
+                OpenGrokLogger.getLogger().log(Level.WARNING,
+                        "Failed to read the history index", e);
+            }
+        }
+        return HistoryGuru.getInstance().getHistory(file);
+    }
+
     /**
      * Writes matching History log entries from 'in' to 'out' or to 'hits'
      * @param in the history to fetch entries from
@@ -36,6 +36,8 @@ import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.WildcardQuery;
+import org.opensolaris.opengrok.search.HistoryQuery;
+import org.opensolaris.opengrok.search.ReversedWildcardQuery;
 
 /**
  * Utility class used to extract the terms used in a query
@@ -89,6 +91,8 @@ public final class QueryMatchers {
             getTerm((TermQuery) query);
         } else if (query instanceof PrefixQuery) {
             getPrefix((PrefixQuery) query);
+        } else if (query instanceof HistoryQuery) {
+            getTerms(((HistoryQuery) query).getQuery());
         }
     }
 
@@ -126,7 +130,9 @@ public final class QueryMatchers {
     }
 
     private void getWildTerm(WildcardQuery query) {
-        Term term = query.getTerm();
+        Term term = query instanceof ReversedWildcardQuery
+                ? ((ReversedWildcardQuery) query).getOriginalTerm()
+                : query.getTerm();
         if (useTerm(term)) {
             matchers.add(
                     new WildCardMatcher(term.text(), isCaseInsensitive(term)));
@@ -46,6 +46,12 @@ import org.opensolaris.opengrok.OpenGrokLogger;
 public class Executor {
 
     private static final Logger log = Logger.getLogger(Executor.class.getName());
+    /**
+     * The max. number of bytes kept from the error stream of a process. It
+     * is only used for messages, and must not use up the memory if a
+     * process writes lots of output there.
+     */
+    private static final int MAX_ERROR_SIZE = 64 * 1024;
     private List<String> cmdList;
     private File workingDirectory;
     private byte[] stdout;
@@ -131,7 +137,7 @@ public class Executor {
             process = processBuilder.start();
 
             final InputStream errorStream = process.getErrorStream();
-            final SpoolHandler err = new SpoolHandler();
+            final SpoolHandler err = new SpoolHandler(MAX_ERROR_SIZE);
             Thread thread = new Thread(new Runnable() {
 
                 @Override
@@ -284,6 +290,19 @@ public class Executor {
     private static class SpoolHandler implements StreamHandler {
 
         private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final int limit;
+
+        SpoolHandler() {
+            this(Integer.MAX_VALUE);
+        }
+
+        /**
+         * Create a handler which keeps at most {@code limit} bytes, and
+         * discards the rest of the stream.
+         */
+        SpoolHandler(int limit) {
+            this.limit = limit;
+        }
 
         public byte[] getBytes() {
             return bytes.toByteArray();
@@ -295,6 +314,7 @@ public class Executor {
             int len;
 
             while ((len = in.read(buffer)) != -1) {
+                len = Math.min(len, limit - bytes.size());
                 if (len > 0) {
                     bytes.write(buffer, 0, len);
                 }
@@ -463,7 +463,7 @@ public final class PageConfig {
      */
     public QueryBuilder getQueryBuilder() {
         if (queryBuilder == null) {
-            queryBuilder = new QueryBuilder().setFreetext(req.getParameter("q")).setDefs(req.getParameter("defs")).setRefs(req.getParameter("refs")).setPath(req.getParameter("path")).setHist(req.getParameter("hist"));
+            queryBuilder = new QueryBuilder().setFreetext(req.getParameter("q")).setDefs(req.getParameter("defs")).setRefs(req.getParameter("refs")).setPath(req.getParameter("path")).setHist(req.getParameter("hist")).setRegexp(req.getParameter("regexp"));
 
             // This is for backward compatibility with links created by OpenGrok
             // 0.8.x and earlier. We used to concatenate the entire query into a
@@ -1173,6 +1173,9 @@ public final class PageConfig {
         sh.contextPath = req.getContextPath();
         // jel: this should be IMHO a config param since not only core dependend
         sh.parallel = Runtime.getRuntime().availableProcessors() > 1;
+        sh.federated = env.isFederatedSearch();
+        sh.contextTimeout = env.getSearchContextTimeout();
+        sh.timeout = env.getSearchTimeout();
         sh.isCrossRefSearch = getPrefix() == Prefix.SEARCH_R;
         sh.compressed = env.isCompressXref();
         sh.desc = getEftarReader();
@@ -68,6 +68,8 @@ public enum Prefix {
     SEARCH_R("/s"),
     /** opensearch description page */
     SEARCH_O("/opensearch"),
+    /** completion of definitions and paths for the search form */
+    COMPLETE_P("/complete"),
     /** related source file or directory not found/unavailable/ignored */
     NOT_FOUND("/enoent"),
     /** misc error occurred */
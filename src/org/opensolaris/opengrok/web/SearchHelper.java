@@ -23,31 +23,47 @@
  */
 package org.opensolaris.opengrok.web;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.MultiReader;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.*;
-import org.apache.lucene.search.spell.SpellChecker;
-import org.apache.lucene.store.FSDirectory;
 import org.opensolaris.opengrok.OpenGrokLogger;
 import org.opensolaris.opengrok.analysis.CompatibleAnalyser;
 import org.opensolaris.opengrok.analysis.Definitions;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.index.IndexDatabase;
 import org.opensolaris.opengrok.search.QueryBuilder;
+import org.opensolaris.opengrok.search.SearchStatistics;
+import org.opensolaris.opengrok.search.SearchStatistics.Phase;
 import org.opensolaris.opengrok.search.Summarizer;
+import org.opensolaris.opengrok.search.Trigrams;
 import org.opensolaris.opengrok.search.context.Context;
 import org.opensolaris.opengrok.search.context.HistoryContext;
 import org.opensolaris.opengrok.util.IOUtils;
@@ -100,9 +116,29 @@ public class SearchHelper {
      */
     public SortOrder order;
     /**
-     * if {@code true} multi-threaded search will be used.
+     * if {@code true} and more than one project is selected, the segments of
+     * the project indexes get searched in parallel.
      */
     public boolean parallel;
+    /**
+     * if {@code true} and more than one project is selected, each project
+     * index gets searched on its own and the top hits get merged afterwards.
+     */
+    public boolean federated;
+    /**
+     * the time in milliseconds
+     * {@link org.opensolaris.opengrok.search.Results#prettyPrint} may spend on
+     * rendering the context of the hits to show. If {@code <= 0}, the context
+     * gets rendered sequentially without any time limit.
+     */
+    public int contextTimeout;
+    /**
+     * the time in milliseconds {@link #executeQuery()} may spend on searching.
+     * If the time is exceeded, the search gets {@link #cancel() cancelled},
+     * the hits found so far get returned and {@link #truncated} is set. If
+     * {@code <= 0}, the search is not limited.
+     */
+    public int timeout;
     /**
      * Indicate, whether this is search from a cross reference. If {@code true}
      * {@link #executeQuery()} sets {@link #redirect} if certain conditions are
@@ -134,6 +170,18 @@ public class SearchHelper {
      * total number of hits
      */
     public int totalHits;
+    /**
+     * {@code true} if the search has been stopped early (time limit exceeded
+     * or {@link #cancel() cancelled}) or did not consider all terms a wildcard
+     * query expands to. In this case {@link #hits} and {@link #totalHits} may
+     * be incomplete. Set via {@link #executeQuery()}.
+     */
+    public boolean truncated;
+    /**
+     * the number of hits per project, if a {@link #federated} search has
+     * been done. {@code null} otherwise. Set via {@link #executeQuery()}.
+     */
+    public SortedMap<String, Integer> projectHits;
     /**
      * the query created by the used {@link QueryBuilder} via
      * {@link #prepareExec(SortedSet)}.
@@ -149,6 +197,16 @@ public class SearchHelper {
      * {@link #prepareExec(SortedSet)}.
      */
     public SortedSet<String> projects;
+    /**
+     * the index readers of the {@link #projects} in the same order, if more
+     * than one project is selected
+     */
+    private IndexReader[] subreaders;
+    /**
+     * the shared searchers of the selected index(es), which need to be
+     * released via {@link #destroy()}
+     */
+    private IndexSearcher[] acquired;
     /**
      * opengrok summary context. Usually created via {@link #prepareSummary()}.
      */
@@ -161,11 +219,41 @@ public class SearchHelper {
      * history context usually created via {@link #prepareSummary()}.
      */
     public HistoryContext historyContext;
+    /**
+     * the time spent in the phases of this search. Gets recorded in the
+     * {@link SearchStatistics} via {@link #destroy()}.
+     */
+    public final SearchStatistics.Timing timing = new SearchStatistics.Timing();
+    /** creation time of this instance */
+    private final long created = System.currentTimeMillis();
+    /** set once {@link #timing} has been recorded */
+    private boolean recorded;
     /**
      * Default query parse error message prefix
      */
     public static final String PARSE_ERROR_MSG = "Unable to parse your query: ";
-    private ExecutorService executor = null;
+    private volatile boolean cancelled;
+    /** cancels searches which exceed their {@link #timeout} */
+    private static final ScheduledThreadPoolExecutor watchdog =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "search-watchdog");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        watchdog.setRemoveOnCancelPolicy(true);
+    }
+    /**
+     * max. number of candidate documents verified for a regular expression
+     * search
+     */
+    private static final int MAX_REGEXP_CANDIDATES = 1000;
+    /** the compiled regular expression to search for (if any) */
+    private Pattern regexp;
     private static final Logger log = Logger.getLogger(SearchHelper.class.getName());
 
     /**
@@ -191,56 +279,66 @@ public class SearchHelper {
         }
         // the Query created by the QueryBuilder
         try {
+            long phaseStart = System.nanoTime();
             query = builder.build();
+            timing.add(Phase.PARSE, phaseStart);
             if (projects == null) {
                 errorMsg = "No project selected!";
                 return this;
             }
             this.projects = projects;
+            phaseStart = System.nanoTime();
             File indexDir = new File(dataRoot, "index");
             if (projects.isEmpty()) {
                 //no project setup
-                FSDirectory dir = FSDirectory.open(indexDir);
-                searcher = new IndexSearcher(DirectoryReader.open(dir));
+                acquire(indexDir);
+                searcher = acquired[0];
             } else if (projects.size() == 1) {
                 // just 1 project selected
-                FSDirectory dir =
-                        FSDirectory.open(new File(indexDir, projects.first()));
-                searcher = new IndexSearcher(DirectoryReader.open(dir));
+                acquire(new File(indexDir, projects.first()));
+                searcher = acquired[0];
             } else {
                 //more projects                                
-                IndexReader[] subreaders = new IndexReader[projects.size()];
+                File[] dirs = new File[projects.size()];
                 int ii = 0;
                 //TODO might need to rewrite to Project instead of
                 // String , need changes in projects.jspf too
                 for (String proj : projects) {
-                    FSDirectory dir = FSDirectory.open(new File(indexDir, proj));
-                    subreaders[ii++] = DirectoryReader.open(dir);
+                    dirs[ii++] = new File(indexDir, proj);
+                }
+                acquire(dirs);
+                IndexReader[] subreaders = new IndexReader[acquired.length];
+                for (ii = 0; ii < acquired.length; ii++) {
+                    subreaders[ii] = acquired[ii].getIndexReader();
                 }
-                MultiReader searchables = new MultiReader(subreaders, true);
-                if (parallel) {
-                    int noThreads = 2 + (2 * Runtime.getRuntime().availableProcessors()); //TODO there might be a better way for counting this
-                    executor = Executors.newFixedThreadPool(noThreads);
+                this.subreaders = subreaders;
+                // the readers are shared, so they must not get closed
+                searcher = new IndexSearcher(
+                        new MultiReader(subreaders, false));
+            }
+            timing.add(Phase.READER, phaseStart);
+            phaseStart = System.nanoTime();
+            Set<String> reversed =
+                    IndexDatabase.getReversedFields(searcher.getIndexReader());
+            if (!reversed.isEmpty()) {
+                // leading wildcards may be answered via the reversed tokens
+                query = builder.setReversedFields(reversed).build();
+            }
+            if (builder.getRegexp() != null) {
+                if (IndexDatabase.hasTrigrams(searcher.getIndexReader())) {
+                    regexp = Trigrams.compile(builder.getRegexp());
+                } else {
+                    errorMsg = "Regular expression search is not supported "
+                            + "by the index of the selected project(s).";
                 }
-                searcher = parallel
-                        ? new IndexSearcher(searchables, executor)
-                        : new IndexSearcher(searchables);
             }
+            timing.add(Phase.PARSE, phaseStart);
             // TODO check if below is somehow reusing sessions so we don't
             // requery again and again, I guess 2min timeout sessions could be
             // usefull, since you click on the next page within 2mins, if not,
             // then wait ;)
-            switch (order) {
-                case LASTMODIFIED:
-                    sort = new Sort(new SortField("date", SortField.Type.STRING, true));
-                    break;
-                case BY_PATH:
-                    sort = new Sort(new SortField("fullpath", SortField.Type.STRING));
-                    break;
-                default:
-                    sort = Sort.RELEVANCE;
-                    break;
-            }
+            sort = getSort(order,
+                    IndexDatabase.hasSortFields(searcher.getIndexReader()));
         } catch (ParseException e) {
             errorMsg = PARSE_ERROR_MSG + e.getMessage();
         } catch (FileNotFoundException e) {
@@ -252,6 +350,54 @@ public class SearchHelper {
         return this;
     }
 
+    /**
+     * Acquire the shared searchers of the given index directories. They get
+     * released via {@link #destroy()}.
+     *
+     * @param dirs the index directories
+     * @throws FileNotFoundException if there is no index in one of them
+     */
+    private void acquire(File... dirs) throws IOException {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        acquired = new IndexSearcher[dirs.length];
+        for (int i = 0; i < dirs.length; i++) {
+            acquired[i] = env.acquireSearcher(dirs[i]);
+            if (acquired[i] == null) {
+                throw new FileNotFoundException(dirs[i].getPath());
+            }
+        }
+    }
+
+    /**
+     * Get the lucene sort instruction for the given order.
+     *
+     * @param order the order to use
+     * @param docValues if {@code true} the DocValues sort fields get used,
+     * otherwise the sort is done on the indexed terms, which requires lucene
+     * to load them all into the FieldCache.
+     * @return the sort instruction to use
+     * @see IndexDatabase#hasSortFields(IndexReader)
+     */
+    static Sort getSort(SortOrder order, boolean docValues) {
+        SortField field;
+        switch (order) {
+            case LASTMODIFIED:
+                field = docValues
+                        ? new SortField(QueryBuilder.SORT_DATE, SortField.Type.INT, true)
+                        : new SortField(QueryBuilder.DATE, SortField.Type.STRING, true);
+                break;
+            case BY_PATH:
+                field = docValues
+                        ? new SortField(QueryBuilder.SORT_PATH, SortField.Type.STRING)
+                        : new SortField(QueryBuilder.FULLPATH, SortField.Type.STRING);
+                break;
+            default:
+                return Sort.RELEVANCE;
+        }
+        field.setUseIndexValues(docValues);
+        return new Sort(field);
+    }
+
     /**
      * Start the search prepared by {@link #prepareExec(SortedSet)}. It does
      * nothing if {@link #redirect} or {@link #errorMsg} have a
@@ -259,9 +405,11 @@ public class SearchHelper {
      * this time: <ul> <li>all fields required for and populated by
      * {@link #prepareExec(SortedSet)})</li> <li>{@link #start} (default:
      * 0)</li> <li>{@link #maxItems} (default: 0)</li>
-     * <li>{@link #isCrossRefSearch} (default: false)</li> </ul> Populates/sets:
-     * <ul> <li>{@link #hits} (see {@link TopFieldDocs#scoreDocs})</li>
-     * <li>{@link #totalHits} (see {@link TopFieldDocs#totalHits})</li>
+     * <li>{@link #isCrossRefSearch} (default: false)</li>
+     * <li>{@link #timeout} (default: 0)</li> </ul> Populates/sets:
+     * <ul> <li>{@link #hits} (see {@link TopDocs#scoreDocs})</li>
+     * <li>{@link #totalHits} (see {@link TopDocs#totalHits})</li>
+     * <li>{@link #truncated}</li>
      * <li>{@link #contextPath}</li> <li>{@link #errorMsg} if an error
      * occurs</li> <li>{@link #redirect} if certain conditions are met</li>
      * </ul>
@@ -272,10 +420,43 @@ public class SearchHelper {
         if (redirect != null || errorMsg != null) {
             return this;
         }
+        long startTime = System.currentTimeMillis();
+        long phaseStart = System.nanoTime();
+        ScheduledFuture<?> deadline = null;
+        if (timeout > 0) {
+            // stops all parts of the search, not just the collection of hits
+            deadline = watchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    cancel();
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
         try {
-            TopFieldDocs fdocs = searcher.search(query, null, start + maxItems, sort);
-            totalHits = fdocs.totalHits;
-            hits = fdocs.scoreDocs;
+            // regexp searches need to verify the candidates found first
+            int n = regexp == null ? start + maxItems : MAX_REGEXP_CANDIDATES;
+            TopDocs fdocs;
+            if (subreaders == null) {
+                fdocs = search(searcher, n,
+                        TimeLimitingCollector.getGlobalCounter().get());
+            } else if (federated) {
+                fdocs = searchProjects(n);
+            } else if (parallel) {
+                fdocs = searchParallel(n);
+            } else {
+                fdocs = search(searcher, n,
+                        TimeLimitingCollector.getGlobalCounter().get());
+            }
+            truncated |= builder.isTruncated();
+            if (regexp == null) {
+                totalHits = fdocs.totalHits;
+                hits = fdocs.scoreDocs;
+            } else {
+                truncated |= fdocs.totalHits > fdocs.scoreDocs.length;
+                hits = verify(fdocs.scoreDocs,
+                        timeout > 0 ? startTime + timeout : Long.MAX_VALUE);
+                totalHits = hits.length;
+            }
             // Bug #3900: Check if this is a search for a single term, and that
             // term is a definition. If that's the case, and we only have one match,
             // we'll generate a direct link instead of a listing.
@@ -308,22 +489,322 @@ public class SearchHelper {
             errorMsg = "Too many results for wildcard!";
         } catch (Exception e) {
             errorMsg = e.getMessage();
+        } finally {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            truncated |= cancelled;
+            timing.add(Phase.SEARCH, phaseStart);
         }
         return this;
     }
-    private static final Pattern TABSPACE = Pattern.compile("[\t ]+");
 
-    private static void getSuggestion(String term, SpellChecker checker,
-            List<String> result) throws IOException {
-        if (term == null) {
-            return;
+    /**
+     * Search the given index for the top hits of {@link #query} wrt. to
+     * {@link #timeout} and {@link #cancel()}.
+     *
+     * @param searcher the searcher to use
+     * @param n max. number of hits to return
+     * @param baseline the start time of the search in ticks of
+     * {@link TimeLimitingCollector#getGlobalCounter()}
+     * @return the top hits sorted according to {@link #sort}
+     */
+    TopFieldDocs search(IndexSearcher searcher, int n, long baseline)
+            throws IOException {
+        TopFieldCollector collector =
+                TopFieldCollector.create(sort, n, true, false, false, false);
+        try {
+            searcher.search(query, limit(collector, baseline));
+        } catch (TimeLimitingCollector.TimeExceededException e) {
+            log.log(Level.INFO, "Search for {0} stopped after {1} ms",
+                    new Object[]{query, e.getTimeElapsed()});
+            truncated = true;
+        } catch (SearchCancelledException e) {
+            log.log(Level.FINE, "Search for {0} cancelled", query);
+            truncated = true;
+        }
+        return (TopFieldDocs) collector.topDocs();
+    }
+
+    /**
+     * Search a segment of {@link #searcher} for the top hits of the given
+     * weight wrt. to {@link #timeout} and {@link #cancel()}.
+     *
+     * @param leaf the segment to search
+     * @param weight the weight of {@link #query} created by {@link #searcher}
+     * @param n max. number of hits to return
+     * @param baseline the start time of the search in ticks of
+     * {@link TimeLimitingCollector#getGlobalCounter()}
+     * @return the top hits sorted according to {@link #sort}
+     */
+    private TopFieldDocs search(AtomicReaderContext leaf, Weight weight,
+            int n, long baseline) throws IOException {
+        TopFieldCollector collector =
+                TopFieldCollector.create(sort, n, true, false, false, false);
+        Collector c = limit(collector, baseline);
+        try {
+            // the same as IndexSearcher does for each segment
+            c.setNextReader(leaf);
+            Scorer scorer = weight.scorer(leaf, !c.acceptsDocsOutOfOrder(),
+                    true, leaf.reader().getLiveDocs());
+            if (scorer != null) {
+                scorer.score(c);
+            }
+        } catch (TimeLimitingCollector.TimeExceededException e) {
+            log.log(Level.INFO, "Search for {0} stopped after {1} ms",
+                    new Object[]{query, e.getTimeElapsed()});
+            truncated = true;
+        } catch (SearchCancelledException e) {
+            log.log(Level.FINE, "Search for {0} cancelled", query);
+            truncated = true;
+        }
+        return (TopFieldDocs) collector.topDocs();
+    }
+
+    /**
+     * Wrap a collector, so that it stops the search once {@link #timeout}
+     * has passed or the search got cancelled.
+     */
+    private Collector limit(Collector collector, long baseline) {
+        Collector c = new CancellableCollector(collector);
+        if (timeout > 0) {
+            TimeLimitingCollector tlc = new TimeLimitingCollector(c,
+                    TimeLimitingCollector.getGlobalCounter(), timeout);
+            tlc.setBaseline(baseline);
+            c = tlc;
+        }
+        return c;
+    }
+
+    /**
+     * Search the segments of {@link #searcher} in parallel and merge their
+     * top hits. Unlike {@link #searchProjects(int)}, the query gets weighted
+     * once for all projects, so the hits are scored and ranked exactly like
+     * the ones of a search over all of them at once.
+     *
+     * @param n max. number of hits to return
+     * @return the top hits
+     */
+    private TopDocs searchParallel(final int n) throws Exception {
+        final long baseline = TimeLimitingCollector.getGlobalCounter().get();
+        final Weight weight = searcher.createNormalizedWeight(query);
+        List<AtomicReaderContext> leaves =
+                searcher.getTopReaderContext().leaves();
+        ExecutorService executor =
+                RuntimeEnvironment.getInstance().getSearchExecutor();
+        List<Future<TopFieldDocs>> futures =
+                new ArrayList<Future<TopFieldDocs>>(leaves.size());
+        for (final AtomicReaderContext leaf : leaves) {
+            futures.add(executor.submit(new Callable<TopFieldDocs>() {
+
+                @Override
+                public TopFieldDocs call() throws IOException {
+                    return search(leaf, weight, n, baseline);
+                }
+            }));
         }
-        String[] toks = TABSPACE.split(term, 0);
-        for (int j = 0; j < toks.length; j++) {
-            if (toks[j].length() <= 3) {
-                continue;
+        TopDocs[] leafHits = new TopDocs[leaves.size()];
+        try {
+            for (int i = 0; i < leafHits.length; i++) {
+                leafHits[i] = futures.get(i).get();
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception
+                    ? (Exception) e.getCause() : e;
+        } finally {
+            for (Future<TopFieldDocs> f : futures) {
+                f.cancel(true);
             }
-            result.addAll(Arrays.asList(checker.suggestSimilar(toks[j].toLowerCase(), 5)));
+        }
+        // the document numbers are the ones of the searcher already
+        return TopDocs.merge(sort, n, leafHits);
+    }
+
+    /**
+     * Search the index of each project on its own in parallel and merge their
+     * top hits, for a {@link #federated} search. Sets {@link #projectHits}.
+     *
+     * @param n max. number of hits to return
+     * @return the top hits with document numbers wrt. to {@link #searcher}
+     */
+    private TopDocs searchProjects(final int n) throws Exception {
+        final long baseline = TimeLimitingCollector.getGlobalCounter().get();
+        ExecutorService executor =
+                RuntimeEnvironment.getInstance().getSearchExecutor();
+        List<Future<TopFieldDocs>> futures =
+                new ArrayList<Future<TopFieldDocs>>(subreaders.length);
+        for (final IndexSearcher shard : acquired) {
+            futures.add(executor.submit(new Callable<TopFieldDocs>() {
+
+                @Override
+                public TopFieldDocs call() throws IOException {
+                    return search(shard, n, baseline);
+                }
+            }));
+        }
+        TopDocs[] shardHits = new TopDocs[subreaders.length];
+        int[] docBase = new int[subreaders.length];
+        SortedMap<String, Integer> counts = new TreeMap<String, Integer>();
+        int i = 0;
+        try {
+            for (String proj : projects) {
+                shardHits[i] = futures.get(i).get();
+                docBase[i] = i == 0 ? 0
+                        : docBase[i - 1] + subreaders[i - 1].maxDoc();
+                counts.put(proj, shardHits[i].totalHits);
+                i++;
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception
+                    ? (Exception) e.getCause() : e;
+        } finally {
+            for (Future<TopFieldDocs> f : futures) {
+                f.cancel(true);
+            }
+        }
+        projectHits = counts;
+        TopDocs merged = TopDocs.merge(sort, n, shardHits);
+        // the document numbers of the MultiReader used for rendering
+        for (ScoreDoc sd : merged.scoreDocs) {
+            sd.doc += docBase[sd.shardIndex];
+        }
+        return merged;
+    }
+
+    /**
+     * Check in parallel which of the given candidates of a regular expression
+     * search really contain a line matching {@link #regexp}. Candidates not
+     * verified until the deadline are dropped and {@link #truncated} is set.
+     *
+     * @param candidates the documents found via the trigram query
+     * @param deadline the point in time ({@link System#currentTimeMillis()})
+     * until the verification may take
+     * @return the matching documents in the order given
+     */
+    private ScoreDoc[] verify(ScoreDoc[] candidates, long deadline) {
+        ExecutorService executor =
+                RuntimeEnvironment.getInstance().getSearchExecutor();
+        List<Future<Boolean>> tasks =
+                new ArrayList<Future<Boolean>>(candidates.length);
+        for (final ScoreDoc sd : candidates) {
+            tasks.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    String path = searcher.doc(sd.doc).get(QueryBuilder.PATH);
+                    return !cancelled
+                            && matches(new File(sourceRoot, path), regexp);
+                }
+            }));
+        }
+        List<ScoreDoc> ret = new ArrayList<ScoreDoc>();
+        int i = 0;
+        try {
+            for (; i < candidates.length; i++) {
+                long remaining = deadline - System.currentTimeMillis();
+                try {
+                    if (tasks.get(i).get(Math.max(remaining, 0),
+                            TimeUnit.MILLISECONDS)) {
+                        ret.add(candidates[i]);
+                    }
+                } catch (ExecutionException e) {
+                    log.log(Level.WARNING, "Failed to verify candidate",
+                            e.getCause());
+                }
+            }
+        } catch (TimeoutException e) {
+            log.log(Level.INFO, "Verification of {0} stopped after {1} of {2} "
+                    + "candidates", new Object[]{regexp, i, candidates.length});
+            truncated = true;
+        } catch (InterruptedException e) {
+            truncated = true;
+            Thread.currentThread().interrupt();
+        } finally {
+            for (; i < candidates.length; i++) {
+                tasks.get(i).cancel(true);
+            }
+        }
+        return ret.toArray(new ScoreDoc[ret.size()]);
+    }
+
+    /**
+     * Check whether any line of the given file matches the given pattern.
+     *
+     * @param file the file to check
+     * @param pattern the pattern to find
+     * @return {@code true} if there is at least one match
+     * @throws IOException if the file could not be read
+     */
+    private static boolean matches(File file, Pattern pattern)
+            throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            Matcher m = pattern.matcher("");
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (m.reset(line).find()) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            IOUtils.close(in);
+        }
+    }
+
+    /**
+     * Stop a running {@link #executeQuery()} as soon as possible. The hits
+     * collected so far are kept and {@link #truncated} gets set. May be called
+     * from any thread; it gets called when the {@link #timeout} is over.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Thrown by {@link CancellableCollector} to abort a cancelled search.
+     */
+    private static class SearchCancelledException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Collector wrapper which aborts the search once {@link #cancel()} has
+     * been called.
+     */
+    private class CancellableCollector extends Collector {
+
+        private final Collector collector;
+
+        CancellableCollector(Collector collector) {
+            this.collector = collector;
+        }
+
+        @Override
+        public void setScorer(Scorer scorer) throws IOException {
+            collector.setScorer(scorer);
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            if (cancelled) {
+                throw new SearchCancelledException();
+            }
+            collector.collect(doc);
+        }
+
+        @Override
+        public void setNextReader(AtomicReaderContext context)
+                throws IOException {
+            if (cancelled) {
+                throw new SearchCancelledException();
+            }
+            collector.setNextReader(context);
+        }
+
+        @Override
+        public boolean acceptsDocsOutOfOrder() {
+            return collector.acceptsDocsOutOfOrder();
         }
     }
 
@@ -341,61 +822,31 @@ public class SearchHelper {
         if (projects == null) {
             return new ArrayList<Suggestion>(0);
         }
-        File[] spellIndex = null;
+        File indexDir = new File(dataRoot, "index");
+        Map<String, File> indexes = new TreeMap<String, File>();
         if (projects.isEmpty()) {
-            spellIndex = new File[]{new File(dataRoot, "spellIndex")};
-        } else if (projects.size() == 1) {
-            spellIndex = new File[]{
-                new File(dataRoot, "spellIndex/" + projects.first())
-            };
+            indexes.put("spellIndex", indexDir);
         } else {
-            spellIndex = new File[projects.size()];
-            int ii = 0;
-            File indexDir = new File(dataRoot, "spellIndex");
             for (String proj : projects) {
-                spellIndex[ii++] = new File(indexDir, proj);
+                indexes.put(proj, new File(indexDir, proj));
             }
         }
+        SuggestionCache cache = SuggestionCache.getInstance();
         List<Suggestion> res = new ArrayList<Suggestion>();
-        List<String> dummy = new ArrayList<String>();
-        for (int idx = 0; idx < spellIndex.length; idx++) {
-            if (!spellIndex[idx].exists()) {
-                continue;
-            }
-            FSDirectory spellDirectory = null;
-            SpellChecker checker = null;
-            Suggestion s = new Suggestion(spellIndex[idx].getName());
+        for (Map.Entry<String, File> e : indexes.entrySet()) {
+            Suggestion s = new Suggestion(e.getKey());
             try {
-                spellDirectory = FSDirectory.open(spellIndex[idx]);
-                checker = new SpellChecker(spellDirectory);
-                getSuggestion(builder.getFreetext(), checker, dummy);
-                s.freetext = dummy.toArray(new String[dummy.size()]);
-                dummy.clear();
-                getSuggestion(builder.getRefs(), checker, dummy);
-                s.refs = dummy.toArray(new String[dummy.size()]);
-                dummy.clear();
-                // TODO it seems the only true spellchecker is for
-                // below field, see IndexDatabase
-                // createspellingsuggestions ...
-                getSuggestion(builder.getDefs(), checker, dummy);
-                s.defs = dummy.toArray(new String[dummy.size()]);
-                dummy.clear();
+                s.freetext = cache.get(e.getValue(), QueryBuilder.FULL,
+                        builder.getFreetext());
+                s.refs = cache.get(e.getValue(), QueryBuilder.REFS,
+                        builder.getRefs());
+                s.defs = cache.get(e.getValue(), QueryBuilder.DEFS,
+                        builder.getDefs());
                 if (s.freetext.length > 0 || s.defs.length > 0 || s.refs.length > 0) {
                     res.add(s);
                 }
-            } catch (IOException e) {
-                log.log(Level.WARNING, "Got excption while getting spelling suggestions: ", e);
-            } finally {
-                if (spellDirectory != null) {
-                    spellDirectory.close();
-                }
-                if (checker != null) {
-                    try {
-                        checker.close();
-                    } catch (Exception x) {
-                        log.log(Level.WARNING, "Got excption while closing spelling suggestions: ", x);
-                    }
-                }
+            } catch (IOException x) {
+                log.log(Level.WARNING, "Got excption while getting spelling suggestions: ", x);
             }
         }
         return res;
@@ -432,23 +883,44 @@ public class SearchHelper {
     }
 
     /**
-     * Free any resources associated with this helper (that includes closing the
-     * used {@link #searcher}).
+     * Free any resources associated with this helper (that includes releasing
+     * the shared searchers the {@link #searcher} is based on). The executor
+     * shared by all searches (see
+     * {@link RuntimeEnvironment#getSearchExecutor()}) is left alone. If a
+     * query has been built, its {@link #timing} gets recorded in the
+     * {@link SearchStatistics} and, if it succeeded, it is remembered for
+     * warming up new searchers (see {@link SearcherWarmer}).
      */
     public void destroy() {
-        if (searcher != null) {
+        if (subreaders != null && searcher != null) {
+            // the MultiReader, not the shared readers
             IOUtils.close(searcher.getIndexReader());
         }
-
-        if (executor != null) {
-            try {
-                executor.shutdown();
-            } catch (SecurityException se) {
-                log.warning(se.getLocalizedMessage());
-                if (log.isLoggable(Level.FINE)) {
-                    log.log(Level.FINE, "destroy", se);
+        if (acquired != null) {
+            for (int i = 0; i < acquired.length; i++) {
+                if (acquired[i] != null) {
+                    try {
+                        RuntimeEnvironment.getInstance()
+                                .releaseSearcher(acquired[i]);
+                    } catch (IOException e) {
+                        OpenGrokLogger.getLogger().log(Level.WARNING,
+                                "Failed to release searcher", e);
+                    }
                 }
             }
+            acquired = null;
+            subreaders = null;
+            searcher = null;
+        }
+        if (query != null && !recorded) {
+            recorded = true;
+            SearchStatistics.getInstance().record(timing,
+                    System.currentTimeMillis() - created, query, projects);
+            if (errorMsg == null && !truncated && builder != null
+                    && order != null) {
+                // truncated searches would stall each warm-up again
+                SearcherWarmer.getInstance().record(builder, order);
+            }
         }
     }
 }
@@ -0,0 +1,360 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.web;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TimeLimitingCollector;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldCollector;
+import org.opensolaris.opengrok.OpenGrokLogger;
+import org.opensolaris.opengrok.configuration.Project;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.index.IndexDatabase;
+import org.opensolaris.opengrok.search.QueryBuilder;
+
+/**
+ * Warms up index searchers before they get used by requests. Each searcher
+ * created for {@link RuntimeEnvironment#acquireSearcher(File)} sorts the
+ * whole index once by every {@link SortOrder}, which populates the caches
+ * used for sorting, and replays a sample of recent queries, which loads the
+ * index files into the OS page cache. The sample consists of the most recent
+ * distinct queries searched for, at most
+ * {@link RuntimeEnvironment#getSearchWarmupQueries()}, and gets replayed
+ * until {@link RuntimeEnvironment#getSearchWarmupTimeout()} is over. It can
+ * be saved to and loaded from a file, so that it survives restarts of the
+ * web application.
+ */
+public final class SearcherWarmer extends SearcherFactory {
+
+    /** name of the file in the data root the sample gets saved to */
+    public static final String FILE_NAME = "warmup-queries";
+    private static final Logger log = OpenGrokLogger.getLogger();
+    private static final String ENCODING = "UTF-8";
+    private static final int PAGE_SIZE = 25;
+    private static final SearcherWarmer instance = new SearcherWarmer();
+    /**
+     * the recorded queries. The key is the line written to the file, the
+     * value the query text per field.
+     */
+    private final LinkedHashMap<String, Map<String, String>> queries =
+            new LinkedHashMap<String, Map<String, String>>(16, 0.75f, true);
+
+    private SearcherWarmer() {
+        // singleton
+    }
+
+    /**
+     * Get the one and only instance.
+     *
+     * @return the shared warmer
+     */
+    public static SearcherWarmer getInstance() {
+        return instance;
+    }
+
+    @Override
+    public IndexSearcher newSearcher(IndexReader reader) throws IOException {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        if (RuntimeEnvironment.getInstance().getSearchWarmupQueries() > 0) {
+            warm(searcher);
+        }
+        return searcher;
+    }
+
+    /**
+     * Record a query searched for by a user. Only the most recent distinct
+     * queries are kept.
+     *
+     * @param builder the query searched for
+     * @param order the order the hits were sorted by
+     */
+    public void record(QueryBuilder builder, SortOrder order) {
+        int max = RuntimeEnvironment.getInstance().getSearchWarmupQueries();
+        if (max <= 0 || builder.getSize() == 0) {
+            return;
+        }
+        Map<String, String> fields = builder.getQueries();
+        StringBuilder key = new StringBuilder(order.toString());
+        try {
+            for (Map.Entry<String, String> e : fields.entrySet()) {
+                key.append('\t').append(e.getKey()).append('=')
+                        .append(URLEncoder.encode(e.getValue(), ENCODING));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        synchronized (queries) {
+            queries.put(key.toString(), new LinkedHashMap<String, String>(fields));
+            trim(max);
+        }
+    }
+
+    /**
+     * Get the recorded queries.
+     *
+     * @return the queries and the order they were sorted by, least recent
+     * first
+     */
+    List<String> getRecorded() {
+        synchronized (queries) {
+            return new ArrayList<String>(queries.keySet());
+        }
+    }
+
+    /**
+     * Drop all recorded queries.
+     */
+    public void clear() {
+        synchronized (queries) {
+            queries.clear();
+        }
+    }
+
+    /**
+     * Save the recorded queries to the given file.
+     *
+     * @param file the file to write
+     * @throws IOException if the file could not be written
+     */
+    public void save(File file) throws IOException {
+        List<String> lines = getRecorded();
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), ENCODING);
+        try {
+            for (String line : lines) {
+                out.write(line);
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Add the queries saved via {@link #save(File)} to the recorded ones.
+     * Lines which cannot be parsed are ignored.
+     *
+     * @param file the file to read
+     * @throws IOException if the file exists, but could not be read
+     */
+    public void load(File file) throws IOException {
+        BufferedReader in;
+        try {
+            in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), ENCODING));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] cols = line.split("\t");
+                if (cols.length < 2 || SortOrder.get(cols[0]) == null) {
+                    continue;
+                }
+                Map<String, String> fields = new LinkedHashMap<String, String>();
+                for (int i = 1; i < cols.length; i++) {
+                    int eq = cols[i].indexOf('=');
+                    if (eq > 0) {
+                        fields.put(cols[i].substring(0, eq), URLDecoder.decode(
+                                cols[i].substring(eq + 1), ENCODING));
+                    }
+                }
+                synchronized (queries) {
+                    queries.put(line, fields);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        synchronized (queries) {
+            trim(RuntimeEnvironment.getInstance().getSearchWarmupQueries());
+        }
+    }
+
+    /**
+     * Open (and thereby warm up) the searchers of all indexes of the given
+     * environment, i.e. of all projects or of the one index, if projects are
+     * not used.
+     *
+     * @param env the environment whose indexes to open
+     */
+    public void warmAll(RuntimeEnvironment env) {
+        List<File> dirs = new ArrayList<File>();
+        if (env.hasProjects()) {
+            for (Project p : env.getProjects()) {
+                dirs.add(IndexDatabase.getIndexDir(p.getPath()));
+            }
+        } else {
+            dirs.add(new File(env.getDataRootFile(), "index"));
+        }
+        for (File dir : dirs) {
+            try {
+                IndexSearcher searcher = env.acquireSearcher(dir);
+                if (searcher != null) {
+                    env.releaseSearcher(searcher);
+                }
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to open index " + dir, e);
+            }
+        }
+    }
+
+    /**
+     * Remove the least recent queries until at most {@code max} are left.
+     * Must be called while holding the lock on {@link #queries}.
+     */
+    private void trim(int max) {
+        while (queries.size() > Math.max(max, 0)) {
+            queries.remove(queries.keySet().iterator().next());
+        }
+    }
+
+    private void warm(IndexSearcher searcher) throws IOException {
+        long start = System.currentTimeMillis();
+        int timeout = RuntimeEnvironment.getInstance().getSearchWarmupTimeout();
+        long baseline = TimeLimitingCollector.getGlobalCounter().get();
+        IndexReader reader = searcher.getIndexReader();
+        boolean docValues = IndexDatabase.hasSortFields(reader);
+        Set<String> reversed = IndexDatabase.getReversedFields(reader);
+        List<String> lines = getRecorded();
+        int count = 0;
+        boolean stopped = false;
+        try {
+            for (SortOrder order : SortOrder.values()) {
+                search(searcher, new MatchAllDocsQuery(), 1,
+                        SearchHelper.getSort(order, docValues), timeout, baseline);
+            }
+            for (String line : lines) {
+                if (timeout > 0 && System.currentTimeMillis() - start > timeout) {
+                    stopped = true;
+                    break;
+                }
+                Map<String, String> fields;
+                synchronized (queries) {
+                    fields = queries.get(line);
+                }
+                Query query = fields == null ? null : buildQuery(fields, reversed);
+                if (query == null) {
+                    continue;
+                }
+                SortOrder order = SortOrder.get(line.substring(0, line.indexOf('\t')));
+                try {
+                    TopDocs top = search(searcher, query, PAGE_SIZE,
+                            SearchHelper.getSort(order, docValues), timeout, baseline);
+                    // the stored fields of the hits get read for rendering
+                    for (ScoreDoc sd : top.scoreDocs) {
+                        searcher.doc(sd.doc);
+                    }
+                    count++;
+                } catch (BooleanQuery.TooManyClauses e) {
+                    log.log(Level.FINE, "Skipping warm-up query {0}: {1}",
+                            new Object[]{query, e.getMessage()});
+                }
+            }
+        } catch (TimeLimitingCollector.TimeExceededException e) {
+            // keep the partially warmed up searcher
+            stopped = true;
+        }
+        if (stopped) {
+            log.log(Level.INFO, "Warm-up of searcher stopped after {0} ms with"
+                    + " {1} of {2} queries", new Object[]{
+                        System.currentTimeMillis() - start, count, lines.size()});
+        } else {
+            log.log(Level.FINE, "Warmed up searcher with {0} queries in {1} ms",
+                    new Object[]{count, System.currentTimeMillis() - start});
+        }
+    }
+
+    /**
+     * Search the top hits of a query, but stop once {@code timeout}
+     * milliseconds have passed since {@code baseline}.
+     */
+    private static TopDocs search(IndexSearcher searcher, Query query, int n,
+            Sort sort, int timeout, long baseline) throws IOException {
+        TopFieldCollector top =
+                TopFieldCollector.create(sort, n, true, false, false, false);
+        Collector c = top;
+        if (timeout > 0) {
+            TimeLimitingCollector tlc = new TimeLimitingCollector(top,
+                    TimeLimitingCollector.getGlobalCounter(), timeout);
+            tlc.setBaseline(baseline);
+            c = tlc;
+        }
+        searcher.search(query, c);
+        return top.topDocs();
+    }
+
+    private static Query buildQuery(Map<String, String> fields,
+            Set<String> reversed) {
+        QueryBuilder builder = new QueryBuilder().setReversedFields(reversed);
+        for (Map.Entry<String, String> e : fields.entrySet()) {
+            String field = e.getKey();
+            if (QueryBuilder.FULL.equals(field)) {
+                builder.setFreetext(e.getValue());
+            } else if (QueryBuilder.DEFS.equals(field)) {
+                builder.setDefs(e.getValue());
+            } else if (QueryBuilder.REFS.equals(field)) {
+                builder.setRefs(e.getValue());
+            } else if (QueryBuilder.PATH.equals(field)) {
+                builder.setPath(e.getValue());
+            } else if (QueryBuilder.HIST.equals(field)) {
+                builder.setHist(e.getValue());
+            } else if (QueryBuilder.REGEXP.equals(field)) {
+                builder.setRegexp(e.getValue());
+            }
+        }
+        try {
+            return builder.build();
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.web;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.spell.DirectSpellChecker;
+import org.apache.lucene.search.spell.SuggestWord;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.search.QueryBuilder;
+
+/**
+ * Provides spelling suggestions for search terms. The suggestions get
+ * computed directly from the term dictionary of the index using the searchers
+ * shared via {@link RuntimeEnvironment#acquireSearcher(File)}, so no
+ * separate spelling index needs to be opened. Results are kept in a LRU
+ * cache keyed by the index, its version, the field and the text to check.
+ */
+public final class SuggestionCache {
+
+    /** default max. number of cached entries */
+    static final int DEFAULT_SIZE = 1000;
+    /** max. number of suggestions per token */
+    private static final int MAX_SUGGESTIONS = 5;
+    private static final String[] NONE = new String[0];
+    private static final Pattern TABSPACE = Pattern.compile("[\t ]+");
+    private static final SuggestionCache instance =
+            new SuggestionCache(DEFAULT_SIZE);
+    /** for fields, which are lower cased when indexed */
+    private final DirectSpellChecker lowerCaseChecker;
+    /** for case sensitive fields */
+    private final DirectSpellChecker checker;
+    private final Map<String, String[]> cache;
+
+    SuggestionCache(final int size) {
+        lowerCaseChecker = new DirectSpellChecker();
+        checker = new DirectSpellChecker();
+        checker.setLowerCaseTerms(false);
+        cache = new LinkedHashMap<String, String[]>(size / 4, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, String[]> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    /**
+     * Get the one and only instance of this cache.
+     *
+     * @return the shared cache
+     */
+    public static SuggestionCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Get spelling suggestions for the tokens of the given text, which are
+     * longer than 3 characters.
+     *
+     * @param indexDir the index to use
+     * @param field the field to use
+     * @param text the text as entered by the user. May be {@code null}.
+     * @return a possibly empty array of suggestions, which must not be
+     * modified
+     * @throws IOException if an error happens when accessing the index
+     */
+    public String[] get(File indexDir, String field, String text)
+            throws IOException {
+        if (text == null) {
+            return NONE;
+        }
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        IndexSearcher searcher = env.acquireSearcher(indexDir);
+        if (searcher == null) {
+            return NONE;
+        }
+        try {
+            DirectoryReader reader = (DirectoryReader) searcher.getIndexReader();
+            String key = indexDir.getPath() + ':' + reader.getVersion() + ':'
+                    + field + ':' + text;
+            String[] res;
+            synchronized (cache) {
+                res = cache.get(key);
+            }
+            if (res == null) {
+                res = suggest(reader, field, text);
+                synchronized (cache) {
+                    cache.put(key, res);
+                }
+            }
+            return res;
+        } finally {
+            env.releaseSearcher(searcher);
+        }
+    }
+
+    /**
+     * Drop all cached entries.
+     */
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private String[] suggest(DirectoryReader reader, String field,
+            String text) throws IOException {
+        DirectSpellChecker sc = QueryBuilder.FULL.equals(field)
+                ? lowerCaseChecker : checker;
+        List<String> res = new ArrayList<String>();
+        for (String tok : TABSPACE.split(text, 0)) {
+            if (tok.length() <= 3) {
+                continue;
+            }
+            for (SuggestWord w : sc.suggestSimilar(new Term(field, tok),
+                    MAX_SUGGESTIONS, reader)) {
+                res.add(w.string);
+            }
+        }
+        return res.isEmpty() ? NONE : res.toArray(new String[res.size()]);
+    }
+}
@@ -34,6 +34,8 @@ import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 import org.opensolaris.opengrok.OpenGrokLogger;
 import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.history.HistoryGuru;
+import org.opensolaris.opengrok.search.SearchStatistics;
 
 /**
  * Populate the Mercurial Repositories
@@ -80,10 +82,43 @@ public final class WebappListener implements ServletContextListener {
                 }
             }
         }
+        SearchStatistics.getInstance().register();
+
+        final File dataRoot = env.getDataRootFile();
+        if (dataRoot != null && env.getSearchWarmupQueries() > 0) {
+            // open and warm up the searchers before the first request
+            Thread warmer = new Thread("SearcherWarmer") {
+
+                @Override
+                public void run() {
+                    SearcherWarmer warmer = SearcherWarmer.getInstance();
+                    try {
+                        warmer.load(new File(dataRoot, SearcherWarmer.FILE_NAME));
+                    } catch (IOException ex) {
+                        OpenGrokLogger.getLogger().log(Level.WARNING, "Failed to load the warm-up queries: ", ex);
+                    }
+                    warmer.warmAll(RuntimeEnvironment.getInstance());
+                }
+            };
+            warmer.setDaemon(true);
+            warmer.start();
+        }
     }
 
     @Override
     public void contextDestroyed(final ServletContextEvent servletContextEvent) {
         RuntimeEnvironment.getInstance().stopConfigurationListenerThread();
+        RuntimeEnvironment.getInstance().shutdownSearchExecutor();
+        File dataRoot = RuntimeEnvironment.getInstance().getDataRootFile();
+        if (dataRoot != null && RuntimeEnvironment.getInstance().getSearchWarmupQueries() > 0) {
+            try {
+                SearcherWarmer.getInstance().save(new File(dataRoot, SearcherWarmer.FILE_NAME));
+            } catch (IOException ex) {
+                OpenGrokLogger.getLogger().log(Level.WARNING, "Failed to save the warm-up queries: ", ex);
+            }
+        }
+        RuntimeEnvironment.getInstance().closeSearcherManagers();
+        HistoryGuru.getInstance().stopHelperProcesses();
+        SearchStatistics.getInstance().unregister();
     }
 }
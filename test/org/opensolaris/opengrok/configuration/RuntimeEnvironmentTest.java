@@ -171,6 +171,97 @@ public class RuntimeEnvironmentTest {
         assertEquals(50, instance.getHistoryReaderTimeLimit());
     }
 
+    @Test
+    public void testSearchContextTimeout() {
+        RuntimeEnvironment instance = RuntimeEnvironment.getInstance();
+        assertEquals(3000, instance.getSearchContextTimeout());
+        instance.setSearchContextTimeout(0);
+        assertEquals(0, instance.getSearchContextTimeout());
+    }
+
+    @Test
+    public void testSearchLimits() {
+        RuntimeEnvironment instance = RuntimeEnvironment.getInstance();
+        assertEquals(0, instance.getSearchTimeout());
+        instance.setSearchTimeout(2000);
+        assertEquals(2000, instance.getSearchTimeout());
+        assertEquals(0, instance.getMaxExpandedTerms());
+        instance.setMaxExpandedTerms(512);
+        assertEquals(512, instance.getMaxExpandedTerms());
+    }
+
+    @Test
+    public void testFederatedSearch() {
+        RuntimeEnvironment instance = RuntimeEnvironment.getInstance();
+        assertFalse(instance.isFederatedSearch());
+        instance.setFederatedSearch(true);
+        assertTrue(instance.isFederatedSearch());
+    }
+
+    @Test
+    public void testSearchWarmupQueries() {
+        RuntimeEnvironment instance = RuntimeEnvironment.getInstance();
+        assertEquals(20, instance.getSearchWarmupQueries());
+        instance.setSearchWarmupQueries(0);
+        assertEquals(0, instance.getSearchWarmupQueries());
+    }
+
+    @Test
+    public void testSearchWarmupTimeout() {
+        RuntimeEnvironment instance = RuntimeEnvironment.getInstance();
+        assertEquals(10000, instance.getSearchWarmupTimeout());
+        instance.setSearchWarmupTimeout(0);
+        assertEquals(0, instance.getSearchWarmupTimeout());
+    }
+
+    @Test
+    public void testHistoryIndex() {
+        RuntimeEnvironment instance = RuntimeEnvironment.getInstance();
+        assertFalse(instance.isHistoryIndex());
+        instance.setHistoryIndex(true);
+        assertTrue(instance.isHistoryIndex());
+    }
+
+    @Test
+    public void testHistoryCacheBatchSize() {
+        RuntimeEnvironment instance = RuntimeEnvironment.getInstance();
+        assertEquals(1000, instance.getHistoryCacheBatchSize());
+        instance.setHistoryCacheBatchSize(50);
+        assertEquals(50, instance.getHistoryCacheBatchSize());
+    }
+
+    @Test
+    public void testHistoryMemoryCacheSize() {
+        RuntimeEnvironment instance = RuntimeEnvironment.getInstance();
+        assertEquals(16, instance.getHistoryMemoryCacheSize());
+        instance.setHistoryMemoryCacheSize(0);
+        assertEquals(0, instance.getHistoryMemoryCacheSize());
+    }
+
+    @Test
+    public void testAnnotationCacheSize() {
+        RuntimeEnvironment instance = RuntimeEnvironment.getInstance();
+        assertEquals(64, instance.getAnnotationCacheSize());
+        instance.setAnnotationCacheSize(0);
+        assertEquals(0, instance.getAnnotationCacheSize());
+    }
+
+    @Test
+    public void testCompletionCacheSize() {
+        RuntimeEnvironment instance = RuntimeEnvironment.getInstance();
+        assertEquals(0, instance.getCompletionCacheSize());
+        instance.setCompletionCacheSize(100);
+        assertEquals(100, instance.getCompletionCacheSize());
+    }
+
+    @Test
+    public void testPrecomputeAnnotations() {
+        RuntimeEnvironment instance = RuntimeEnvironment.getInstance();
+        assertFalse(instance.isPrecomputeAnnotations());
+        instance.setPrecomputeAnnotations(true);
+        assertTrue(instance.isPrecomputeAnnotations());
+    }
+
     @Test
     public void testUseHistoryCache() {
         RuntimeEnvironment instance = RuntimeEnvironment.getInstance();
@@ -187,6 +278,14 @@ public class RuntimeEnvironmentTest {
         assertTrue(env.storeHistoryCacheInDB());
     }
 
+    @Test
+    public void testStoreHistoryCacheInLogStore() {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        assertFalse(env.storeHistoryCacheInLogStore());
+        env.setStoreHistoryCacheInLogStore(true);
+        assertTrue(env.storeHistoryCacheInLogStore());
+    }
+
     @Test
     public void testGenerateHtml() {
         RuntimeEnvironment instance = RuntimeEnvironment.getInstance();
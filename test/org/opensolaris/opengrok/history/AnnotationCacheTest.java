@@ -0,0 +1,213 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.util.FileUtilities;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the AnnotationCache class.
+ */
+public class AnnotationCacheTest {
+
+    private File root;
+    private File source;
+    private String oldSourceRoot;
+    private String oldDataRoot;
+    private int oldSize;
+
+    @Before
+    public void setUp() throws IOException {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        oldSourceRoot = env.getSourceRootPath();
+        oldDataRoot = env.getDataRootPath();
+        oldSize = env.getAnnotationCacheSize();
+        root = FileUtilities.createTemporaryDirectory("annotationcache")
+                .getCanonicalFile();
+        source = new File(root, "src");
+        assertTrue(new File(source, "dir").mkdirs());
+        assertTrue(new File(root, "data").mkdirs());
+        env.setSourceRoot(source.getPath());
+        env.setDataRoot(new File(root, "data").getPath());
+        env.setAnnotationCacheSize(1);
+    }
+
+    @After
+    public void tearDown() {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        if (oldSourceRoot != null) {
+            env.setSourceRoot(oldSourceRoot);
+        }
+        if (oldDataRoot != null) {
+            env.setDataRoot(oldDataRoot);
+        }
+        env.setAnnotationCacheSize(oldSize);
+        FileUtilities.removeDirs(root);
+    }
+
+    private File createFile(String name) throws IOException {
+        File file = new File(source, name);
+        assertTrue(file.createNewFile());
+        return file;
+    }
+
+    private static Annotation annotation(String name, int lines) {
+        Annotation a = new Annotation(name);
+        for (int i = 0; i < lines; i++) {
+            // random revisions, so that the cache files don't compress well
+            a.addLine(UUID.randomUUID().toString(), "jdoe" + (i % 3),
+                    i % 2 == 0);
+        }
+        return a;
+    }
+
+    private static void assertAnnotationEquals(Annotation expected,
+            Annotation actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getFilename(), actual.getFilename());
+        assertEquals(expected.size(), actual.size());
+        for (int i = 1; i <= expected.size(); i++) {
+            assertEquals(expected.getRevision(i), actual.getRevision(i));
+            assertEquals(expected.getAuthor(i), actual.getAuthor(i));
+            assertEquals(expected.isEnabled(i), actual.isEnabled(i));
+        }
+        assertEquals(expected.getWidestRevision(),
+                actual.getWidestRevision());
+        assertEquals(expected.getWidestAuthor(), actual.getWidestAuthor());
+    }
+
+    @Test
+    public void testGetAndPut() throws IOException {
+        AnnotationCache cache = new AnnotationCache();
+        File file = createFile("dir/a.c");
+        assertNull(cache.get(file, null));
+        assertNull(cache.get(file, "1:abc"));
+
+        Annotation head = annotation("a.c", 10);
+        Annotation old = annotation("a.c", 5);
+        cache.put(file, null, head);
+        cache.put(file, "1:abc", old);
+        assertAnnotationEquals(head, cache.get(file, null));
+        assertAnnotationEquals(old, cache.get(file, "1:abc"));
+        assertNull(cache.get(file, "2:def"));
+        // other instances read the same files
+        assertAnnotationEquals(old, new AnnotationCache().get(file, "1:abc"));
+
+        // the annotation of the current revision is out of date once the
+        // file changes, the ones of other revisions are not
+        assertTrue(file.setLastModified(file.lastModified() - 10000));
+        assertNull(cache.get(file, null));
+        assertAnnotationEquals(old, cache.get(file, "1:abc"));
+
+        // nothing is cached if the cache is disabled
+        RuntimeEnvironment.getInstance().setAnnotationCacheSize(0);
+        assertNull(cache.get(file, "1:abc"));
+        cache.put(file, null, head);
+        RuntimeEnvironment.getInstance().setAnnotationCacheSize(1);
+        assertNull(cache.get(file, null));
+    }
+
+    /**
+     * Test that empty annotations, which are usually the result of a failed
+     * annotate command, don't get cached.
+     */
+    @Test
+    public void testEmptyAnnotation() throws IOException {
+        AnnotationCache cache = new AnnotationCache();
+        File file = createFile("empty.c");
+        cache.put(file, null, annotation("empty.c", 0));
+        cache.put(file, "1", annotation("empty.c", 0));
+        assertNull(cache.get(file, null));
+        assertNull(cache.get(file, "1"));
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        AnnotationCache cache = new AnnotationCache();
+        File a = createFile("a.c");
+        File b = createFile("b.c");
+        File c = createFile("c.c");
+        // each annotation takes more than a third of the 1 MB cache
+        Annotation annotation = annotation("x.c", 20000);
+        cache.put(a, "1", annotation);
+        cache.put(b, "1", annotation);
+        assertNotNull(cache.get(a, "1"));
+        cache.put(c, "1", annotation);
+        // b is the least recently used annotation
+        assertNull(cache.get(b, "1"));
+        assertNotNull(cache.get(a, "1"));
+        assertNotNull(cache.get(c, "1"));
+        assertFalse(new File(RuntimeEnvironment.getInstance()
+                .getDataRootFile(), "annotationcache/b.c/r-1").exists());
+    }
+
+    /**
+     * Test that annotations of symbolic revisions, which may refer to
+     * another changeset tomorrow, don't get cached.
+     */
+    @Test
+    public void testSymbolicRevision() throws IOException {
+        AnnotationCache cache = new AnnotationCache();
+        File file = createFile("sym.c");
+        for (String rev : new String[]{"HEAD", "tip", "master", "HEAD~1"}) {
+            assertFalse(rev, AnnotationCache.isCacheable(rev));
+            cache.put(file, rev, annotation("sym.c", 5));
+            assertNull(rev, cache.get(file, rev));
+        }
+        for (String rev : new String[]{"42", "1.3.2.1", "7:3fd5c5d5b2b7",
+                    "3fd5c5d5b2b70c54e22aae7b3c4a3e2f9b1d2b5a"}) {
+            assertTrue(rev, AnnotationCache.isCacheable(rev));
+        }
+        assertTrue(AnnotationCache.isCacheable(null));
+    }
+
+    /**
+     * Test that files added by another process, e.g. the indexer, count
+     * towards the size of the cache.
+     */
+    @Test
+    public void testOtherProcess() throws IOException {
+        AnnotationCache cache = new AnnotationCache();
+        AnnotationCache other = new AnnotationCache();
+        File a = createFile("a.c");
+        File b = createFile("b.c");
+        File c = createFile("c.c");
+        // each annotation takes more than a third of the 1 MB cache
+        Annotation annotation = annotation("x.c", 20000);
+        cache.put(a, "1", annotation);
+        other.put(b, "1", annotation);
+        assertNotNull(cache.get(b, "1"));
+        cache.put(c, "1", annotation);
+        // a is the least recently used annotation
+        assertNull(cache.get(a, "1"));
+        assertNotNull(cache.get(b, "1"));
+        assertNotNull(cache.get(c, "1"));
+    }
+}
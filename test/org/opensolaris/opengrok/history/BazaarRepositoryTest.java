@@ -23,13 +23,17 @@
  */
 package org.opensolaris.opengrok.history;
 
+import java.io.File;
 import java.io.Reader;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.opensolaris.opengrok.util.TestRepository;
 import static org.junit.Assert.*;
 
 /**
@@ -113,4 +117,63 @@ public class BazaarRepositoryTest {
         assertTrue(result);
     }
 
+    /**
+     * Test that streamHistory() passes the same history as getHistory(), in
+     * chunks of the requested size.
+     */
+    @Test
+    public void testStreamHistory() throws Exception {
+        TestRepository repositories = new TestRepository();
+        repositories.create(getClass().getResourceAsStream("repositories.zip"));
+        try {
+            File root = new File(repositories.getSourceRoot(), "bazaar");
+            BazaarRepository repos =
+                    (BazaarRepository) RepositoryFactory.getRepository(root);
+            if (repos == null || !repos.isWorking()) {
+                // bzr is not available
+                return;
+            }
+            List<HistoryEntry> expected =
+                    repos.getHistory(root).getHistoryEntries();
+
+            final List<History> chunks = new ArrayList<History>();
+            HistoryChunkHandler handler = new HistoryChunkHandler() {
+                @Override
+                public void handle(History history) {
+                    chunks.add(history);
+                }
+            };
+            repos.streamHistory(root, null, 2, handler);
+            assertTrue(chunks.size() > 1);
+
+            // The chunks are passed oldest first, the changesets in each
+            // of them most recent first.
+            List<HistoryEntry> actual = new ArrayList<HistoryEntry>();
+            for (int i = chunks.size() - 1; i >= 0; i--) {
+                List<HistoryEntry> chunk = chunks.get(i).getHistoryEntries();
+                assertTrue(chunk.size() <= 2);
+                actual.addAll(chunk);
+            }
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getRevision(),
+                        actual.get(i).getRevision());
+                assertEquals(expected.get(i).getFiles(),
+                        actual.get(i).getFiles());
+            }
+
+            // an unknown revision is an error, and nothing gets passed on
+            chunks.clear();
+            try {
+                repos.streamHistory(root, "999", 2, handler);
+                fail("unknown revision should fail");
+            } catch (HistoryException e) {
+                // expected
+            }
+            assertTrue(chunks.isEmpty());
+        } finally {
+            repositories.destroy();
+        }
+    }
+
 }
@@ -0,0 +1,182 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.util.FileUtilities;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the FileHistoryCache class.
+ */
+public class FileHistoryCacheTest {
+
+    private File root;
+    private File source;
+    private Repository repository;
+    private String oldSourceRoot;
+    private String oldDataRoot;
+
+    @Before
+    public void setUp() throws IOException {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        oldSourceRoot = env.getSourceRootPath();
+        oldDataRoot = env.getDataRootPath();
+        root = FileUtilities.createTemporaryDirectory("filehistorycache")
+                .getCanonicalFile();
+        source = new File(root, "src");
+        File repo = new File(source, "repo");
+        assertTrue(repo.mkdirs());
+        assertTrue(new File(root, "data").mkdirs());
+        for (String name : new String[]{"a.c", "b.c"}) {
+            File f = new File(repo, name);
+            assertTrue(f.createNewFile());
+            // older than the cache files
+            assertTrue(f.setLastModified(1000));
+        }
+        env.setSourceRoot(source.getPath());
+        env.setDataRoot(new File(root, "data").getPath());
+        repository = new GitRepository();
+        repository.setDirectoryName(repo.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        if (oldSourceRoot != null) {
+            env.setSourceRoot(oldSourceRoot);
+        }
+        if (oldDataRoot != null) {
+            env.setDataRoot(oldDataRoot);
+        }
+        FileUtilities.removeDirs(root);
+    }
+
+    private static HistoryEntry entry(String rev, String... files) {
+        HistoryEntry e = new HistoryEntry(rev,
+                new Date(Integer.parseInt(rev) * 1000L), "jdoe", null,
+                "revision " + rev, true);
+        for (String file : files) {
+            e.addFile(file);
+        }
+        return e;
+    }
+
+    private static History history(HistoryEntry... entries) {
+        return new History(new ArrayList<HistoryEntry>(Arrays.asList(entries)));
+    }
+
+    private List<String> revisions(FileHistoryCache cache, String path)
+            throws HistoryException {
+        List<String> revs = new ArrayList<String>();
+        for (HistoryEntry e : cache.get(new File(source, path), repository,
+                false).getHistoryEntries()) {
+            revs.add(e.getRevision());
+        }
+        return revs;
+    }
+
+    @Test
+    public void testIncrementalStore() throws HistoryException {
+        FileHistoryCache cache = new FileHistoryCache();
+        assertNull(cache.getLatestCachedRevision(repository));
+
+        cache.store(history(entry("2", "/repo/a.c", "/repo/b.c"),
+                entry("1", "/repo/a.c")), repository);
+        assertEquals("2", cache.getLatestCachedRevision(repository));
+        assertEquals(Arrays.asList("2", "1"), revisions(cache, "repo/a.c"));
+        assertEquals(Arrays.asList("2"), revisions(cache, "repo/b.c"));
+
+        // the changesets after the latest revision get merged, changesets
+        // stored again are not duplicated
+        cache.store(history(entry("4", "/repo/a.c"),
+                entry("3", "/repo/b.c"), entry("2", "/repo/b.c")), repository);
+        assertEquals("4", cache.getLatestCachedRevision(repository));
+        assertEquals(Arrays.asList("4", "2", "1"), revisions(cache, "repo/a.c"));
+        assertEquals(Arrays.asList("3", "2"), revisions(cache, "repo/b.c"));
+        assertEquals("revision 1", cache.get(new File(source, "repo/a.c"),
+                repository, false).getHistoryEntries().get(2).getMessage());
+
+        // the first entries can be read separately
+        assertEquals(1, cache.getLatest(new File(source, "repo/a.c"),
+                repository, 1).getHistoryEntries().size());
+        assertNull(cache.getLatest(new File(source, "repo"), repository, 1));
+
+        // nothing new
+        cache.store(history(), repository);
+        assertEquals("4", cache.getLatestCachedRevision(repository));
+
+        cache.clear(repository);
+        assertNull(cache.getLatestCachedRevision(repository));
+        assertNull(cache.getLatest(new File(source, "repo/a.c"),
+                repository, 1));
+
+        // a complete history replaces the cached one
+        cache.store(history(entry("5", "/repo/a.c")), repository);
+        assertEquals(Arrays.asList("5"), revisions(cache, "repo/a.c"));
+    }
+
+    @Test
+    public void testParallelStore() throws Exception {
+        // enough files to be written in several batches per directory
+        List<String> paths = new ArrayList<String>();
+        for (String dir : new String[]{"x", "y/z"}) {
+            File d = new File(source, "repo/" + dir);
+            assertTrue(d.mkdirs());
+            for (int i = 0; i < 250; i++) {
+                File f = new File(d, i + ".c");
+                assertTrue(f.createNewFile());
+                assertTrue(f.setLastModified(1000));
+                paths.add("/repo/" + dir + "/" + i + ".c");
+            }
+        }
+        String[] all = paths.toArray(new String[paths.size()]);
+        FileHistoryCache cache = new FileHistoryCache();
+        cache.store(history(entry("2", all), entry("1", all[0], all[499])),
+                repository);
+        assertEquals(Arrays.asList("2", "1"), revisions(cache, "repo/x/0.c"));
+        assertEquals(Arrays.asList("2", "1"), revisions(cache, "repo/y/z/249.c"));
+        assertEquals(Arrays.asList("2"), revisions(cache, "repo/y/z/100.c"));
+
+        cache.store(history(entry("3", all)), repository);
+        File dir = new File(RuntimeEnvironment.getInstance().getDataRootFile(),
+                "historycache/repo/y/z");
+        // no temporary files left behind
+        assertEquals(250, dir.list().length);
+        for (String path : paths) {
+            assertEquals("3", cache.getLatest(new File(source, path),
+                    repository, 1).getHistoryEntries().get(0).getRevision());
+        }
+        assertEquals(Arrays.asList("3", "2", "1"),
+                revisions(cache, "repo/x/0.c"));
+    }
+}
@@ -23,13 +23,20 @@
  */
 package org.opensolaris.opengrok.history;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.Reader;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.opensolaris.opengrok.util.FileUtilities;
+import org.opensolaris.opengrok.util.TestRepository;
 import static org.junit.Assert.*;
 
 /**
@@ -112,4 +119,143 @@ public class GitRepositoryTest {
         assertTrue(result);
     }
 
+    /**
+     * Test that streamHistory() passes the same history as getHistory(), in
+     * chunks of the requested size.
+     */
+    @Test
+    public void testStreamHistory() throws Exception {
+        TestRepository repositories = new TestRepository();
+        repositories.create(getClass().getResourceAsStream("repositories.zip"));
+        try {
+            File root = new File(repositories.getSourceRoot(), "git");
+            GitRepository repos =
+                    (GitRepository) RepositoryFactory.getRepository(root);
+            if (repos == null || !repos.isWorking()) {
+                // git is not available
+                return;
+            }
+            List<HistoryEntry> expected =
+                    repos.getHistory(root).getHistoryEntries();
+
+            final List<History> chunks = new ArrayList<History>();
+            repos.streamHistory(root, null, 2, new HistoryChunkHandler() {
+                @Override
+                public void handle(History history) {
+                    chunks.add(history);
+                }
+            });
+            assertTrue(chunks.size() > 1);
+
+            // The chunks are passed oldest first, the changesets in each
+            // of them most recent first.
+            List<HistoryEntry> actual = new ArrayList<HistoryEntry>();
+            for (int i = chunks.size() - 1; i >= 0; i--) {
+                List<HistoryEntry> chunk = chunks.get(i).getHistoryEntries();
+                assertTrue(chunk.size() <= 2);
+                actual.addAll(chunk);
+            }
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getRevision(),
+                        actual.get(i).getRevision());
+                assertEquals(expected.get(i).getFiles(),
+                        actual.get(i).getFiles());
+            }
+
+            // an unknown revision is an error, and nothing gets passed on
+            chunks.clear();
+            try {
+                repos.streamHistory(root, "0123456789abcdef", 2,
+                        new HistoryChunkHandler() {
+                    @Override
+                    public void handle(History history) {
+                        chunks.add(history);
+                    }
+                });
+                fail("unknown revision should fail");
+            } catch (HistoryException e) {
+                // expected
+            }
+            assertTrue(chunks.isEmpty());
+        } finally {
+            repositories.destroy();
+        }
+    }
+
+    /**
+     * Test that revisions are read through the git cat-file helpers.
+     */
+    @Test
+    public void testHistoryGet() throws Exception {
+        TestRepository repositories = new TestRepository();
+        repositories.create(getClass().getResourceAsStream("repositories.zip"));
+        try {
+            File root = new File(repositories.getSourceRoot(), "git");
+            GitRepository repos =
+                    (GitRepository) RepositoryFactory.getRepository(root);
+            if (repos == null || !repos.isWorking()) {
+                // git is not available
+                return;
+            }
+            byte[] expected = FileUtilities.readAll(new FileInputStream(
+                    new File(root, "main.c")));
+            assertArrayEquals(expected, FileUtilities.readAll(repos.getHistoryGet(
+                    root.getPath(), "main.c", "HEAD")));
+            // the helper gets reused
+            assertArrayEquals(expected, FileUtilities.readAll(repos.getHistoryGet(
+                    root.getPath(), "main.c", "HEAD")));
+            assertEquals(0, FileUtilities.readAll(repos.getHistoryGet(
+                    root.getPath(), "nonexistent.c", "HEAD")).length);
+
+            // several requests at once, missing objects and trees give null
+            GitCatFile catFile = GitCatFile.getInstance(
+                    repos.cmd, root);
+            List<byte[]> contents = catFile.read(Arrays.asList(
+                    "HEAD:main.c", "HEAD:nonexistent.c", "HEAD:", "HEAD:main.c"));
+            assertEquals(4, contents.size());
+            assertArrayEquals(expected, contents.get(0));
+            assertNull(contents.get(1));
+            assertNull(contents.get(2));
+            assertArrayEquals(expected, contents.get(3));
+        } finally {
+            repositories.destroy();
+        }
+    }
+
+    /**
+     * Test that idle git cat-file helpers get stopped.
+     */
+    @Test
+    public void testCatFileLifecycle() throws Exception {
+        TestRepository repositories = new TestRepository();
+        repositories.create(getClass().getResourceAsStream("repositories.zip"));
+        try {
+            File root = new File(repositories.getSourceRoot(), "git");
+            GitRepository repos =
+                    (GitRepository) RepositoryFactory.getRepository(root);
+            if (repos == null || !repos.isWorking()) {
+                // git is not available
+                return;
+            }
+            GitCatFile catFile = GitCatFile.getInstance(repos.cmd, root);
+            assertNotNull(catFile.read("HEAD:main.c"));
+            assertEquals(1, catFile.getProcesses());
+            // not idle long enough
+            GitCatFile.reapAll(60 * 1000);
+            assertEquals(1, catFile.getProcesses());
+            GitCatFile.reapAll(0);
+            assertEquals(0, catFile.getProcesses());
+            // a new helper gets started when needed
+            assertNotNull(catFile.read("HEAD:main.c"));
+            assertEquals(1, catFile.getProcesses());
+
+            HistoryGuru.getInstance().stopHelperProcesses();
+            assertEquals(0, catFile.getProcesses());
+            assertNotSame(catFile, GitCatFile.getInstance(repos.cmd, root));
+        } finally {
+            HistoryGuru.getInstance().stopHelperProcesses();
+            repositories.destroy();
+        }
+    }
 }
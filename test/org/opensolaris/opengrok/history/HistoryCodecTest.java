@@ -0,0 +1,145 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.beans.XMLEncoder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the HistoryCodec class.
+ */
+public class HistoryCodecTest {
+
+    private static History createHistory(int size) {
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        for (int i = size; i > 0; i--) {
+            HistoryEntry e = new HistoryEntry("1." + i,
+                    new Date(1300000000000L + i * 3600000L),
+                    i % 2 == 0 ? "jdoe" : "åsa", i == size ? "v1.0" : null,
+                    "change " + i + "\nwith a second line", i != 3);
+            e.addFile("/repo/dir/file.c");
+            if (i % 3 == 0) {
+                e.addFile("/repo/dir/other.c");
+                e.addChangeRequest("6543210");
+            }
+            entries.add(e);
+        }
+        // entries without date or revision
+        entries.add(new HistoryEntry(null, null, null, null, "", true));
+        return new History(entries);
+    }
+
+    private static byte[] write(History history) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HistoryCodec.write(history, out);
+        return out.toByteArray();
+    }
+
+    private static void assertEntryEquals(HistoryEntry expected,
+            HistoryEntry actual) {
+        assertEquals(expected.getRevision(), actual.getRevision());
+        assertEquals(expected.getDate(), actual.getDate());
+        assertEquals(expected.getAuthor(), actual.getAuthor());
+        assertEquals(expected.getTags(), actual.getTags());
+        assertEquals(expected.getMessage(), actual.getMessage());
+        assertEquals(expected.isActive(), actual.isActive());
+        assertEquals(expected.getFiles(), actual.getFiles());
+        assertEquals(expected.getChangeRequests(), actual.getChangeRequests());
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        History history = createHistory(10);
+        byte[] bytes = write(history);
+        assertTrue(HistoryCodec.hasHeader(new ByteArrayInputStream(bytes)));
+
+        List<HistoryEntry> expected = history.getHistoryEntries();
+        List<HistoryEntry> actual = HistoryCodec.read(
+                new ByteArrayInputStream(bytes), 0).getHistoryEntries();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEntryEquals(expected.get(i), actual.get(i));
+        }
+
+        assertEquals(0, HistoryCodec.read(new ByteArrayInputStream(
+                write(new History())), 0).getHistoryEntries().size());
+    }
+
+    @Test
+    public void testReadFirst() throws IOException {
+        History history = createHistory(10);
+        byte[] bytes = write(history);
+        // the first entries can be read from a truncated stream
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes, 0,
+                bytes.length / 2);
+        List<HistoryEntry> entries =
+                HistoryCodec.read(in, 3).getHistoryEntries();
+        assertEquals(3, entries.size());
+        for (int i = 0; i < 3; i++) {
+            assertEntryEquals(history.getHistoryEntries().get(i), entries.get(i));
+        }
+        try {
+            HistoryCodec.read(new ByteArrayInputStream(bytes, 0,
+                    bytes.length / 2), 0);
+            fail("truncated stream should not be read completely");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReadXML() throws IOException {
+        History history = createHistory(5);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XMLEncoder e = new XMLEncoder(out);
+        e.writeObject(history);
+        e.close();
+        byte[] xml = out.toByteArray();
+        assertFalse(HistoryCodec.hasHeader(new ByteArrayInputStream(xml)));
+
+        List<HistoryEntry> entries = HistoryCodec.read(
+                new ByteArrayInputStream(xml), 0).getHistoryEntries();
+        assertEquals(history.getHistoryEntries().size(), entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEntryEquals(history.getHistoryEntries().get(i), entries.get(i));
+        }
+        assertEquals(2, HistoryCodec.read(new ByteArrayInputStream(xml), 2)
+                .getHistoryEntries().size());
+        // the binary format is much smaller
+        assertTrue(write(history).length * 4 < xml.length);
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnsupportedVersion() throws IOException {
+        byte[] bytes = write(createHistory(1));
+        bytes[HistoryCodec.MAGIC.length] = HistoryCodec.VERSION + 1;
+        HistoryCodec.read(new ByteArrayInputStream(bytes), 0);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the HistoryMemoryCache class.
+ */
+public class HistoryMemoryCacheTest {
+
+    private static History history(String rev) {
+        HistoryEntry e = new HistoryEntry(rev, new Date(1000), "jdoe", null,
+                "revision " + rev, true);
+        e.addFile("/repo/a.c");
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        entries.add(e);
+        return new History(entries);
+    }
+
+    private static String revision(History history) {
+        return history.getHistoryEntries().get(0).getRevision();
+    }
+
+    @Test
+    public void testGetAndPut() {
+        HistoryMemoryCache cache = new HistoryMemoryCache(1024 * 1024);
+        assertNull(cache.getHistory("/repo", "/repo/a.c", false));
+        cache.putHistory("/repo", "/repo/a.c", false, history("1"), 0);
+        assertEquals("1", revision(cache.getHistory("/repo", "/repo/a.c", false)));
+        // the history without files can't be used when files are needed
+        assertNull(cache.getHistory("/repo", "/repo/a.c", true));
+        cache.putHistory("/repo", "/repo/a.c", true, history("2"), 0);
+        assertEquals("2", revision(cache.getHistory("/repo", "/repo/a.c", false)));
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        // modifying the returned objects doesn't affect the cache
+        History h = cache.getHistory("/repo", "/repo/a.c", true);
+        h.getHistoryEntries().get(0).setRevision("3");
+        h.getHistoryEntries().get(0).getFiles().clear();
+        h = cache.getHistory("/repo", "/repo/a.c", true);
+        assertEquals("2", revision(h));
+        assertEquals(1, h.getHistoryEntries().get(0).getFiles().size());
+
+        Map<String, Date> times = new HashMap<String, Date>();
+        times.put("a.c", new Date(1000));
+        cache.putLastModifiedTimes("/repo", "/repo", times, 0);
+        times.clear();
+        assertEquals(new Date(1000),
+                cache.getLastModifiedTimes("/repo", "/repo").get("a.c"));
+        assertNull(cache.getLastModifiedTimes("/repo", "/repo/dir"));
+    }
+
+    @Test
+    public void testInvalidate() {
+        HistoryMemoryCache cache = new HistoryMemoryCache(1024 * 1024);
+        long gen = cache.getGeneration("/repo");
+        cache.putHistory("/repo", "/repo/a.c", true, history("1"), gen);
+        cache.putHistory("/other", "/other/a.c", true, history("1"), 0);
+        cache.invalidate("/repo");
+        assertNull(cache.getHistory("/repo", "/repo/a.c", true));
+        assertNotNull(cache.getHistory("/other", "/other/a.c", true));
+
+        // history read before the invalidation is not added
+        cache.putHistory("/repo", "/repo/a.c", true, history("1"), gen);
+        assertNull(cache.getHistory("/repo", "/repo/a.c", true));
+        cache.putHistory("/repo", "/repo/a.c", true, history("2"),
+                cache.getGeneration("/repo"));
+        assertEquals("2", revision(cache.getHistory("/repo", "/repo/a.c", true)));
+    }
+
+    @Test
+    public void testEviction() {
+        // room for a few histories only
+        HistoryMemoryCache cache = new HistoryMemoryCache(1500);
+        for (int i = 0; i < 20; i++) {
+            cache.putHistory("/repo", "/repo/" + i + ".c", true, history("1"), 0);
+            // keep the first one in use
+            assertNotNull(cache.getHistory("/repo", "/repo/0.c", true));
+        }
+        assertNotNull(cache.getHistory("/repo", "/repo/19.c", true));
+        assertNull(cache.getHistory("/repo", "/repo/1.c", true));
+    }
+}
@@ -28,6 +28,7 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
@@ -37,6 +38,7 @@ import java.util.List;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 import org.opensolaris.opengrok.util.Executor;
 import org.opensolaris.opengrok.util.TestRepository;
 
@@ -241,6 +243,32 @@ public class JDBCHistoryCacheTest extends TestCase {
                 cache.get(reposRoot, repos, true).getHistoryEntries());
     }
 
+    /**
+     * Test that {@code getLatest()} returns the newest changesets of a
+     * directory only.
+     */
+    public void testGetLatest() throws Exception {
+        File reposRoot = new File(repositories.getSourceRoot(), "mercurial");
+        Repository repos = new MercurialRepository();
+        repos.setDirectoryName(reposRoot.getAbsolutePath());
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        for (int i = 3; i > 0; i--) {
+            HistoryEntry e = new HistoryEntry(i + ":" + i, new Date(i * 60000L),
+                    "xyz", null, "Change " + i, true);
+            e.addFile("/mercurial/main.c");
+            entries.add(e);
+        }
+        cache.store(new History(entries), repos);
+
+        assertSameEntries(entries.subList(0, 1),
+                cache.getLatest(reposRoot, repos, 1).getHistoryEntries());
+        // the limit must not stick to the reused statement
+        assertSameEntries(entries,
+                cache.get(reposRoot, repos, true).getHistoryEntries());
+        assertSameEntries(entries, cache.getLatest(
+                reposRoot, repos, entries.size() + 1).getHistoryEntries());
+    }
+
     /**
      * Test that {@code getLatestCachedRevision()} returns the correct
      * revision.
@@ -433,4 +461,43 @@ public class JDBCHistoryCacheTest extends TestCase {
                 entries,
                 cache.get(reposRoot, r, true).getHistoryEntries());
     }
+
+    /**
+     * Test that histories larger than the batch size get stored completely
+     * and in the right order, both initially and incrementally.
+     */
+    public void testStoreInBatches() throws Exception {
+        File reposRoot = new File(repositories.getSourceRoot(), "git");
+        Repository r = new GitRepository();
+        r.setDirectoryName(reposRoot.getAbsolutePath());
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        int batchSize = env.getHistoryCacheBatchSize();
+        env.setHistoryCacheBatchSize(3);
+        try {
+            LinkedList<HistoryEntry> entries = new LinkedList<HistoryEntry>();
+            for (int i = 1; i <= 10; i++) {
+                HistoryEntry e = new HistoryEntry(String.valueOf(i),
+                        new Date(i * 1000L), "author" + (i % 2), null,
+                        "change " + i, true);
+                e.addFile(i % 3 == 0 ? "/git/dir/b.txt" : "/git/a.txt");
+                entries.addFirst(e);
+            }
+            List<HistoryEntry> initial = new ArrayList<HistoryEntry>(
+                    entries.subList(3, entries.size()));
+            cache.store(new History(initial), r);
+            assertEquals("7", cache.getLatestCachedRevision(r));
+            assertSameEntries(initial,
+                    cache.get(reposRoot, r, true).getHistoryEntries());
+
+            cache.store(new History(new ArrayList<HistoryEntry>(
+                    entries.subList(0, 3))), r);
+            assertEquals("10", cache.getLatestCachedRevision(r));
+            assertSameEntries(entries,
+                    cache.get(reposRoot, r, true).getHistoryEntries());
+            assertEquals(3, cache.get(new File(reposRoot, "dir/b.txt"), r,
+                    true).getHistoryEntries().size());
+        } finally {
+            env.setHistoryCacheBatchSize(batchSize);
+        }
+    }
 }
@@ -0,0 +1,232 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.util.FileUtilities;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the LogHistoryCache class.
+ */
+public class LogHistoryCacheTest {
+
+    private File root;
+    private File source;
+    private Repository repository;
+    private String oldSourceRoot;
+    private String oldDataRoot;
+
+    @Before
+    public void setUp() throws IOException {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        oldSourceRoot = env.getSourceRootPath();
+        oldDataRoot = env.getDataRootPath();
+        root = FileUtilities.createTemporaryDirectory("loghistorycache")
+                .getCanonicalFile();
+        source = new File(root, "src");
+        File repo = new File(source, "repo");
+        assertTrue(new File(repo, "dir/sub").mkdirs());
+        assertTrue(new File(root, "data").mkdirs());
+        for (String name : new String[]{"a.c", "dir/b.c", "dir/sub/c.c"}) {
+            assertTrue(new File(repo, name).createNewFile());
+        }
+        env.setSourceRoot(source.getPath());
+        env.setDataRoot(new File(root, "data").getPath());
+        repository = new GitRepository();
+        repository.setDirectoryName(repo.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        if (oldSourceRoot != null) {
+            env.setSourceRoot(oldSourceRoot);
+        }
+        if (oldDataRoot != null) {
+            env.setDataRoot(oldDataRoot);
+        }
+        FileUtilities.removeDirs(root);
+    }
+
+    private static HistoryEntry entry(String rev, String... files) {
+        HistoryEntry e = new HistoryEntry(rev,
+                new Date(Integer.parseInt(rev) * 1000L), "jdoe",
+                rev.equals("1") ? "v1.0" : null, "revision " + rev, true);
+        for (String file : files) {
+            e.addFile(file);
+        }
+        return e;
+    }
+
+    private static History history(HistoryEntry... entries) {
+        return new History(new ArrayList<HistoryEntry>(Arrays.asList(entries)));
+    }
+
+    private List<String> revisions(HistoryCache cache, String path)
+            throws HistoryException {
+        List<String> revs = new ArrayList<String>();
+        for (HistoryEntry e : cache.get(new File(source, path), repository,
+                false).getHistoryEntries()) {
+            revs.add(e.getRevision());
+        }
+        return revs;
+    }
+
+    /**
+     * Check the contents of the cache, either read from the changesets not
+     * indexed yet or from the index.
+     */
+    private void checkHistory(HistoryCache cache) throws HistoryException {
+        assertEquals(Arrays.asList("4", "2", "1"), revisions(cache, "repo/a.c"));
+        assertEquals(Arrays.asList("3", "2"), revisions(cache, "repo/dir/b.c"));
+        assertEquals(Arrays.asList("3"), revisions(cache, "repo/dir/sub/c.c"));
+        assertEquals(Arrays.asList("3", "2"), revisions(cache, "repo/dir"));
+        assertEquals(Arrays.asList("4", "3", "2", "1"),
+                revisions(cache, "repo"));
+
+        HistoryEntry e = cache.get(new File(source, "repo/dir"), repository,
+                true).getHistoryEntries().get(0);
+        assertEquals("3", e.getRevision());
+        assertEquals(new Date(3000), e.getDate());
+        assertEquals("jdoe", e.getAuthor());
+        assertEquals("revision 3", e.getMessage());
+        assertEquals(Arrays.asList("/repo/dir/b.c", "/repo/dir/sub/c.c"),
+                new ArrayList<String>(e.getFiles()));
+        assertEquals("v1.0", cache.get(new File(source, "repo/a.c"),
+                repository, false).getHistoryEntries().get(2).getTags());
+
+        History latest = cache.getLatest(new File(source, "repo"),
+                repository, 2);
+        assertEquals(2, latest.getHistoryEntries().size());
+        assertEquals("3", latest.getHistoryEntries().get(1).getRevision());
+
+        Map<String, Date> times = cache.getLastModifiedTimes(
+                new File(source, "repo"), repository);
+        assertEquals(2, times.size());
+        assertEquals(new Date(4000), times.get("a.c"));
+        assertEquals(new Date(3000), times.get("dir"));
+        times = cache.getLastModifiedTimes(
+                new File(source, "repo/dir"), repository);
+        assertEquals(2, times.size());
+        assertEquals(new Date(3000), times.get("b.c"));
+        assertEquals(new Date(3000), times.get("sub"));
+
+        assertTrue(cache.hasCacheForDirectory(
+                new File(source, "repo/dir/sub"), repository));
+        assertEquals("4", cache.getLatestCachedRevision(repository));
+    }
+
+    @Test
+    public void testStoreAndGet() throws HistoryException {
+        // never compact on its own
+        LogHistoryCache cache = new LogHistoryCache(Integer.MAX_VALUE);
+        assertNull(cache.getLatestCachedRevision(repository));
+        assertTrue(revisions(cache, "repo/a.c").isEmpty());
+        assertFalse(cache.hasCacheForDirectory(
+                new File(source, "repo"), repository));
+
+        cache.store(history(entry("2", "/repo/a.c", "/repo/dir/b.c"),
+                entry("1", "/repo/a.c")), repository);
+        assertEquals("2", cache.getLatestCachedRevision(repository));
+        assertFalse(cache.hasCacheForDirectory(
+                new File(source, "repo/dir/sub"), repository));
+        cache.store(history(entry("4", "/repo/a.c"),
+                entry("3", "/repo/dir/b.c", "/repo/dir/sub/c.c")), repository);
+        checkHistory(cache);
+
+        // the same results from the index
+        cache.optimize();
+        checkHistory(cache);
+        checkHistory(new LogHistoryCache());
+
+        cache.clear(repository);
+        assertNull(cache.getLatestCachedRevision(repository));
+        assertTrue(revisions(cache, "repo/a.c").isEmpty());
+        cache.store(history(entry("5", "/repo/a.c")), repository);
+        assertEquals(Arrays.asList("5"), revisions(cache, "repo/a.c"));
+        assertEquals(Arrays.asList("5"), revisions(cache, "repo"));
+    }
+
+    @Test
+    public void testCompaction() throws HistoryException {
+        // the index gets rewritten after every second changeset
+        LogHistoryCache cache = new LogHistoryCache(2);
+        cache.store(history(entry("1", "/repo/a.c")), repository);
+        cache.store(history(entry("2", "/repo/a.c", "/repo/dir/b.c")),
+                repository);
+        cache.store(history(entry("3", "/repo/dir/b.c", "/repo/dir/sub/c.c")),
+                repository);
+        cache.store(history(entry("4", "/repo/a.c")), repository);
+        checkHistory(cache);
+
+        File store = new File(RuntimeEnvironment.getInstance()
+                .getDataRootFile(), "historylog/repo.d");
+        int indexes = 0;
+        for (String name : store.list()) {
+            if (name.startsWith("index-")) {
+                indexes++;
+            }
+        }
+        // older indexes than the previous one get removed, no temporary
+        // files left behind
+        assertEquals(2, indexes);
+        assertEquals(7, store.list().length);
+    }
+
+    @Test
+    public void testLargeCompaction() throws HistoryException {
+        LogHistoryCache cache = new LogHistoryCache(Integer.MAX_VALUE);
+        // more changesets than get collected in memory at once
+        int count = LogHistoryStore.RUN_SIZE * 2 + 10;
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>(count);
+        for (int i = count; i > 0; i--) {
+            entries.add(i % 1000 == 0
+                    ? entry(Integer.toString(i), "/repo/a.c", "/repo/dir/b.c")
+                    : entry(Integer.toString(i), "/repo/a.c"));
+        }
+        cache.store(new History(entries), repository);
+        cache.optimize();
+
+        List<String> expected = new ArrayList<String>();
+        for (int i = count - count % 1000; i > 0; i -= 1000) {
+            expected.add(Integer.toString(i));
+        }
+        assertEquals(expected, revisions(cache, "repo/dir/b.c"));
+        assertEquals(expected, revisions(new LogHistoryCache(), "repo/dir"));
+        List<String> all = revisions(cache, "repo/a.c");
+        assertEquals(count, all.size());
+        assertEquals(Integer.toString(count), all.get(0));
+        assertEquals("1", all.get(count - 1));
+    }
+}
@@ -24,11 +24,17 @@
 
 package org.opensolaris.opengrok.history;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import org.junit.After;
 import org.junit.Test;
+import org.opensolaris.opengrok.util.FileUtilities;
 import org.opensolaris.opengrok.util.TestRepository;
 import static org.junit.Assert.*;
 
@@ -137,4 +143,129 @@ public class MercurialRepositoryTest {
         }
     }
 
+    /**
+     * Test that streamHistory() passes the same history as getHistory(), in
+     * chunks of the requested size.
+     */
+    @Test
+    public void testStreamHistory() throws Exception {
+        setUpTestRepository();
+        File root = new File(repository.getSourceRoot(), "mercurial");
+        MercurialRepository mr =
+                (MercurialRepository) RepositoryFactory.getRepository(root);
+        if (mr == null || !mr.isWorking()) {
+            // hg is not available
+            return;
+        }
+
+        final List<History> chunks = new ArrayList<History>();
+        HistoryChunkHandler handler = new HistoryChunkHandler() {
+            @Override
+            public void handle(History history) {
+                chunks.add(history);
+            }
+        };
+        mr.streamHistory(root, null, 2, handler);
+        // The chunks are passed oldest first, the changesets in each of
+        // them most recent first.
+        assertEquals(2, chunks.size());
+        List<HistoryEntry> actual = new ArrayList<HistoryEntry>();
+        actual.addAll(chunks.get(1).getHistoryEntries());
+        actual.addAll(chunks.get(0).getHistoryEntries());
+        assertEquals(REVISIONS.length, actual.size());
+        for (int i = 0; i < actual.size(); i++) {
+            assertEquals(REVISIONS[i], actual.get(i).getRevision());
+            assertFalse(actual.get(i).getFiles().isEmpty());
+        }
+
+        // only the changesets after the given one
+        chunks.clear();
+        mr.streamHistory(root, REVISIONS[REVISIONS.length - 1], 2, handler);
+        assertEquals(1, chunks.size());
+        actual = chunks.get(0).getHistoryEntries();
+        assertEquals(REVISIONS.length - 1, actual.size());
+        assertEquals(REVISIONS[0], actual.get(0).getRevision());
+
+        // an unknown changeset is an error, and nothing gets passed on
+        chunks.clear();
+        try {
+            mr.streamHistory(root, "3:585a1b3f2efb", 2, handler);
+            fail("unknown changeset should fail");
+        } catch (HistoryException e) {
+            // expected
+        }
+        assertTrue(chunks.isEmpty());
+    }
+
+    /**
+     * Test that commands run through the command servers give the same
+     * results as the hg commands.
+     */
+    @Test
+    public void testCommandServer() throws Exception {
+        setUpTestRepository();
+        File root = new File(repository.getSourceRoot(), "mercurial");
+        MercurialRepository mr =
+                (MercurialRepository) RepositoryFactory.getRepository(root);
+        if (mr == null || !mr.isWorking() || mr.getCommandServer() == null) {
+            // hg or its command server is not available
+            return;
+        }
+        HgCommandServer server = mr.getCommandServer();
+        long commands = server.getCommands();
+
+        byte[] expected = FileUtilities.readAll(new FileInputStream(new File(root, "main.c")));
+        assertArrayEquals(expected,
+                FileUtilities.readAll(mr.getHistoryGet(root.getPath(), "main.c", "2")));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertFalse(server.runCommand(
+                Arrays.asList("cat", "-r", "2", "nonexistent.c"), out) == 0);
+        assertEquals(0, out.size());
+        // a failing command falls back to running hg, which fails as well
+        InputStream missing =
+                mr.getHistoryGet(root.getPath(), "nonexistent.c", "2");
+        assertTrue(missing == null || FileUtilities.readAll(missing).length == 0);
+
+        Annotation annotation = mr.annotate(new File(root, "main.c"), null);
+        assertNotNull(annotation);
+        assertTrue(annotation.size() > 0);
+
+        List<HistoryEntry> entries =
+                mr.getHistory(root, REVISIONS[1]).getHistoryEntries();
+        assertEquals(1, entries.size());
+        assertEquals(REVISIONS[0], entries.get(0).getRevision());
+
+        assertEquals(commands + 5, server.getCommands());
+        assertEquals(0, server.getFailures());
+    }
+
+    /**
+     * Test that a command server which cannot be started is not tried again
+     * for a while, and that a new pool tries again.
+     */
+    @Test
+    public void testCommandServerNotAvailable() throws Exception {
+        setUpTestRepository();
+        File root = new File(repository.getSourceRoot(), "mercurial");
+        String cmd = new File(root, "no-such-hg").getPath();
+        HgCommandServer server = HgCommandServer.getInstance(cmd, root);
+        try {
+            assertTrue(server.isAvailable());
+            try {
+                server.runCommand(Arrays.asList("root"),
+                        new ByteArrayOutputStream());
+                fail("the command server should not start");
+            } catch (IOException e) {
+                // expected
+            }
+            assertFalse(server.isAvailable());
+            assertEquals(0, server.getProcesses());
+            assertEquals(1, server.getFailures());
+
+            HistoryGuru.getInstance().stopHelperProcesses();
+            assertTrue(HgCommandServer.getInstance(cmd, root).isAvailable());
+        } finally {
+            HistoryGuru.getInstance().stopHelperProcesses();
+        }
+    }
 }
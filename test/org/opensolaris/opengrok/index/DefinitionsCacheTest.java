@@ -0,0 +1,146 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensolaris.opengrok.analysis.CompatibleAnalyser;
+import org.opensolaris.opengrok.analysis.Definitions;
+import org.opensolaris.opengrok.configuration.Project;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.search.QueryBuilder;
+import org.opensolaris.opengrok.search.SearchEngine;
+import org.opensolaris.opengrok.util.FileUtilities;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the DefinitionsCache class.
+ */
+public class DefinitionsCacheTest {
+
+    private File root;
+    private String oldDataRoot;
+    private List<Project> oldProjects;
+
+    @Before
+    public void setUp() throws IOException {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        oldDataRoot = env.getDataRootPath();
+        oldProjects = env.getProjects();
+        root = FileUtilities.createTemporaryDirectory("definitionscache");
+        env.setDataRoot(root.getPath());
+        env.setProjects(null);
+        addFiles("/a.c", "/b.c", "/c.c", "/dir/a.c");
+    }
+
+    @After
+    public void tearDown() {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        env.closeSearcherManagers();
+        env.setProjects(oldProjects);
+        if (oldDataRoot != null) {
+            env.setDataRoot(oldDataRoot);
+        }
+        FileUtilities.removeDirs(root);
+    }
+
+    /**
+     * Add documents with a definition of {@code main} to the index.
+     */
+    private void addFiles(String... paths) throws IOException {
+        FSDirectory dir = FSDirectory.open(new File(root, "index"));
+        IndexWriter w = new IndexWriter(dir, new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new CompatibleAnalyser()));
+        for (String path : paths) {
+            Definitions defs = new Definitions();
+            defs.addTag(1, "main", "function", "int main(void)");
+            Document doc = new Document();
+            doc.add(new TextField(QueryBuilder.PATH, path, Field.Store.YES));
+            doc.add(new StoredField(QueryBuilder.TAGS, defs.serialize()));
+            w.addDocument(doc);
+        }
+        w.close();
+        dir.close();
+    }
+
+    @Test
+    public void testCachedLookup() throws Exception {
+        DefinitionsCache cache = new DefinitionsCache(10);
+        Definitions a = cache.get("/a.c");
+        assertNotNull(a);
+        assertTrue(a.hasSymbol("main"));
+        // repeated lookups are answered from the cache
+        assertSame(a, cache.get("/a.c"));
+        // only exact matches of the path are used
+        Definitions dirA = cache.get("/dir/a.c");
+        assertNotNull(dirA);
+        assertNotSame(a, dirA);
+        assertSame(a, cache.get("/a.c"));
+        // files without definitions are cached, too
+        assertNull(cache.get("/none.c"));
+        assertNull(cache.get("/none.c"));
+        cache.clear();
+        assertNotSame(a, cache.get("/a.c"));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        DefinitionsCache cache = new DefinitionsCache(2);
+        Definitions a = cache.get("/a.c");
+        Definitions b = cache.get("/b.c");
+        // make b the least recently used entry, and evict it
+        assertSame(a, cache.get("/a.c"));
+        Definitions c = cache.get("/c.c");
+        assertSame(a, cache.get("/a.c"));
+        assertSame(c, cache.get("/c.c"));
+        Definitions b2 = cache.get("/b.c");
+        assertNotNull(b2);
+        assertNotSame(b, b2);
+    }
+
+    @Test
+    public void testIndexUpdate() throws Exception {
+        DefinitionsCache cache = new DefinitionsCache(10);
+        Definitions a = cache.get("/a.c");
+        assertSame(a, cache.get("/a.c"));
+        // a new version of the index invalidates the cached entries
+        addFiles("/d.c");
+        Definitions a2 = cache.get("/a.c");
+        assertNotNull(a2);
+        assertNotSame(a, a2);
+        assertSame(a2, cache.get("/a.c"));
+        assertNotNull(cache.get("/d.c"));
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.history.History;
+import org.opensolaris.opengrok.history.HistoryEntry;
+import org.opensolaris.opengrok.search.HistoryQuery;
+import org.opensolaris.opengrok.search.QueryBuilder;
+import org.opensolaris.opengrok.search.SearchEngine;
+import org.opensolaris.opengrok.util.FileUtilities;
+import org.opensolaris.opengrok.web.SearcherWarmer;
+import org.opensolaris.opengrok.web.SortOrder;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the HistoryIndex class.
+ */
+public class HistoryIndexTest {
+
+    private File root;
+    private File repository;
+    private String oldSourceRoot;
+    private String oldDataRoot;
+    private int oldMaxExpandedTerms;
+
+    @Before
+    public void setUp() throws IOException {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        oldSourceRoot = env.getSourceRootPath();
+        oldDataRoot = env.getDataRootPath();
+        oldMaxExpandedTerms = env.getMaxExpandedTerms();
+        root = FileUtilities.createTemporaryDirectory("historyindex");
+        File src = new File(root, "src");
+        repository = new File(src, "repo");
+        assertTrue(repository.mkdirs());
+        assertTrue(new File(root, "data").mkdirs());
+        env.setSourceRoot(src.getPath());
+        env.setDataRoot(new File(root, "data").getPath());
+    }
+
+    @After
+    public void tearDown() {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        env.closeSearcherManagers();
+        env.setHistoryIndex(false);
+        env.setMaxExpandedTerms(oldMaxExpandedTerms);
+        SearcherWarmer.getInstance().clear();
+        if (oldSourceRoot != null) {
+            env.setSourceRoot(oldSourceRoot);
+        }
+        if (oldDataRoot != null) {
+            env.setDataRoot(oldDataRoot);
+        }
+        FileUtilities.removeDirs(root);
+    }
+
+    private static HistoryEntry entry(String rev, long date, String message,
+            String... files) {
+        HistoryEntry e = new HistoryEntry(rev, new Date(date), "jdoe", null,
+                message, true);
+        for (String file : files) {
+            e.addFile(file);
+        }
+        return e;
+    }
+
+    private static History history(HistoryEntry... entries) {
+        History h = new History();
+        h.setHistoryEntries(new ArrayList<HistoryEntry>(Arrays.asList(entries)));
+        return h;
+    }
+
+    private static Query hist(String text) throws Exception {
+        return new QueryBuilder().setHist(text).build();
+    }
+
+    @Test
+    public void testAddAndSearch() throws Exception {
+        assertNull(HistoryIndex.getFiles(hist("leak")));
+        HistoryIndex.add(repository.getPath(), history(
+                entry("2", 2000, "fix memory leak", "/repo/a.c", "/repo/b.c"),
+                entry("1", 1000, "initial import", "/repo/a.c")), false);
+
+        assertEquals(new HashSet<String>(Arrays.asList("/repo/a.c", "/repo/b.c")),
+                HistoryIndex.getFiles(hist("leak")));
+        assertEquals(new HashSet<String>(Arrays.asList("/repo/a.c")),
+                HistoryIndex.getFiles(hist("initial")));
+        // the author is searchable like in the hist field of files
+        assertEquals(2, HistoryIndex.getFiles(hist("jdoe")).size());
+        assertTrue(HistoryIndex.getFiles(hist("nothing")).isEmpty());
+
+        List<HistoryEntry> entries =
+                HistoryIndex.getHistory("/repo/a.c").getHistoryEntries();
+        assertEquals(2, entries.size());
+        assertEquals("2", entries.get(0).getRevision());
+        assertEquals("fix memory leak", entries.get(0).getMessage());
+        assertEquals("jdoe", entries.get(0).getAuthor());
+        assertEquals(2000, entries.get(0).getDate().getTime());
+        assertEquals(2, entries.get(0).getFiles().size());
+        assertEquals("1", entries.get(1).getRevision());
+        assertTrue(HistoryIndex.getHistory("/repo/c.c")
+                .getHistoryEntries().isEmpty());
+
+        // incremental updates replace known changesets
+        HistoryIndex.add(repository.getPath(), history(
+                entry("2", 2000, "fix memory leak again", "/repo/a.c")), false);
+        assertEquals(2, HistoryIndex.getHistory("/repo/a.c")
+                .getHistoryEntries().size());
+        assertEquals(new HashSet<String>(Arrays.asList("/repo/a.c")),
+                HistoryIndex.getFiles(hist("leak")));
+
+        // full updates replace the whole history of the repository
+        HistoryIndex.add(repository.getPath(), history(
+                entry("3", 3000, "rewrite", "/repo/c.c")), true);
+        assertTrue(HistoryIndex.getFiles(hist("leak")).isEmpty());
+        assertEquals(1, HistoryIndex.getHistory("/repo/c.c")
+                .getHistoryEntries().size());
+
+        HistoryIndex.clear(repository.getPath());
+        assertTrue(HistoryIndex.getFiles(hist("rewrite")).isEmpty());
+    }
+
+    @Test
+    public void testHistoryQuery() throws Exception {
+        RuntimeEnvironment.getInstance().setHistoryIndex(true);
+        Query query = new QueryBuilder().setHist("leak").build();
+        assertTrue(query instanceof HistoryQuery);
+        assertEquals("hist:leak", query.toString());
+        // no history index: the hist field gets searched
+        assertEquals("hist:leak", query.rewrite(null).toString());
+
+        HistoryIndex.add(repository.getPath(), history(
+                entry("1", 1000, "fix leak", "/repo/a.c")), false);
+        query = new QueryBuilder().setHist("leak").build();
+        assertTrue(query.rewrite(null) instanceof BooleanQuery);
+
+        // it matches the files touched
+        List<String> found = search(query, "a.c", "b.c");
+        assertEquals(Arrays.asList(
+                new File(repository, "a.c").getAbsolutePath()), found);
+
+        // and the files whose history is not in the history index
+        found = search(query, Collections.singletonMap("c.c", "leak"),
+                "a.c", "b.c", "c.c");
+        assertEquals(new HashSet<String>(Arrays.asList(
+                new File(repository, "a.c").getAbsolutePath(),
+                new File(repository, "c.c").getAbsolutePath())),
+                new HashSet<String>(found));
+    }
+
+    @Test
+    public void testHistoryQueryEquals() throws Exception {
+        Query query = hist("leak");
+        assertEquals(new HistoryQuery(query, 2), new HistoryQuery(query, 2));
+        assertEquals(new HistoryQuery(query, 2).hashCode(),
+                new HistoryQuery(query, 2).hashCode());
+        assertFalse(new HistoryQuery(query, 2).equals(
+                new HistoryQuery(query, 3)));
+    }
+
+    /**
+     * Search the given query in an index of files of the repository.
+     *
+     * @return the full paths of the files found
+     */
+    private List<String> search(Query query, String... names)
+            throws IOException {
+        return search(query, Collections.<String, String>emptyMap(), names);
+    }
+
+    /**
+     * Search the given query in an index of files of the repository, some
+     * of which have their history in the {@code hist} field.
+     *
+     * @param hist the text of the {@code hist} field per file name
+     * @return the full paths of the files found
+     */
+    private List<String> search(Query query, Map<String, String> hist,
+            String... names) throws IOException {
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter w = new IndexWriter(dir, new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new WhitespaceAnalyzer(SearchEngine.LUCENE_VERSION)));
+        for (String name : names) {
+            Document doc = new Document();
+            doc.add(new StringField(QueryBuilder.FULLPATH, new File(repository,
+                    name).getAbsolutePath(), Field.Store.YES));
+            if (hist.containsKey(name)) {
+                doc.add(new TextField(QueryBuilder.HIST, hist.get(name),
+                        Field.Store.NO));
+            }
+            w.addDocument(doc);
+        }
+        w.close();
+        IndexReader reader = DirectoryReader.open(dir);
+        try {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            TopDocs top = searcher.search(query, 10);
+            List<String> found = new ArrayList<String>();
+            for (int i = 0; i < top.scoreDocs.length; i++) {
+                found.add(searcher.doc(top.scoreDocs[i].doc)
+                        .get(QueryBuilder.FULLPATH));
+            }
+            return found;
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testMaxFiles() throws Exception {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        env.setHistoryIndex(true);
+        env.setMaxExpandedTerms(2);
+        HistoryIndex.add(repository.getPath(), history(
+                entry("1", 1000, "fix leak", "/repo/a.c", "/repo/b.c",
+                "/repo/c.c")), false);
+        QueryBuilder builder = new QueryBuilder().setHist("leak");
+        Query query = builder.build();
+        assertEquals(2, search(query, "a.c", "b.c", "c.c").size());
+        assertTrue(builder.isTruncated());
+
+        env.setMaxExpandedTerms(3);
+        builder = new QueryBuilder().setHist("leak");
+        query = builder.build();
+        assertEquals(3, search(query, "a.c", "b.c", "c.c").size());
+        assertFalse(builder.isTruncated());
+    }
+
+    @Test
+    public void testGetFilesLimit() throws Exception {
+        HistoryIndex.add(repository.getPath(), history(
+                entry("1", 1000, "fix leak", "/repo/a.c"),
+                entry("2", 2000, "fix leak", "/repo/b.c"),
+                entry("3", 3000, "fix leak", "/repo/c.c"),
+                entry("4", 4000, "fix leak", "/repo/d.c")), false);
+        assertEquals(4, HistoryIndex.getFiles(hist("leak"), 0).size());
+        assertEquals(4, HistoryIndex.getFiles(hist("leak"), 4).size());
+        // one more than wanted tells that there are more
+        assertEquals(2, HistoryIndex.getFiles(hist("leak"), 1).size());
+    }
+
+    @Test
+    public void testSeriesOfUpdates() throws Exception {
+        HistoryIndex.begin();
+        try {
+            HistoryIndex.add(repository.getPath(), history(
+                    entry("1", 1000, "fix leak", "/repo/a.c")), false);
+            HistoryIndex.add(repository.getPath(), history(
+                    entry("2", 2000, "fix leak", "/repo/b.c")), false);
+            // not committed yet
+            assertNull(HistoryIndex.getFiles(hist("leak")));
+        } finally {
+            HistoryIndex.finish();
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("/repo/a.c",
+                "/repo/b.c")), HistoryIndex.getFiles(hist("leak")));
+        // updates outside of a series get committed right away
+        HistoryIndex.add(repository.getPath(), history(
+                entry("3", 3000, "fix leak", "/repo/c.c")), false);
+        assertEquals(3, HistoryIndex.getFiles(hist("leak")).size());
+    }
+
+    @Test
+    public void testHasRepository() throws Exception {
+        assertFalse(HistoryIndex.hasRepository(repository.getPath()));
+        File other = new File(repository.getParentFile(), "other");
+        assertTrue(other.mkdir());
+        HistoryIndex.add(other.getPath(), history(
+                entry("1", 1000, "initial import", "/other/a.c")), false);
+        assertFalse(HistoryIndex.hasRepository(repository.getPath()));
+        assertTrue(HistoryIndex.hasRepository(other.getPath()));
+        HistoryIndex.add(repository.getPath(), history(
+                entry("1", 1000, "initial import", "/repo/a.c")), false);
+        assertTrue(HistoryIndex.hasRepository(repository.getPath()));
+        HistoryIndex.clear(repository.getPath());
+        assertFalse(HistoryIndex.hasRepository(repository.getPath()));
+    }
+
+    /**
+     * Test that history queries among the warm-up queries of the searchers
+     * don't need a warmed up searcher of the history index, which would
+     * recurse endlessly.
+     */
+    @Test
+    public void testWarmUp() throws Exception {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        Query query = hist("leak");
+        env.setHistoryIndex(true);
+        HistoryIndex.add(repository.getPath(), history(
+                entry("1", 1000, "fix leak", "/repo/a.c")), false);
+        SearcherWarmer.getInstance().record(
+                new QueryBuilder().setHist("leak"), SortOrder.RELEVANCY);
+
+        assertEquals(Collections.singleton("/repo/a.c"),
+                HistoryIndex.getFiles(query));
+
+        // the searchers of other indexes run the history query when
+        // warmed up
+        File indexDir = new File(env.getDataRootFile(), "index");
+        FSDirectory dir = FSDirectory.open(indexDir);
+        IndexWriter w = new IndexWriter(dir, new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new WhitespaceAnalyzer(SearchEngine.LUCENE_VERSION)));
+        w.addDocument(new Document());
+        w.close();
+        dir.close();
+        env.closeSearcherManagers();
+        IndexSearcher searcher = env.acquireSearcher(indexDir);
+        assertNotNull(searcher);
+        env.releaseSearcher(searcher);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.search.QueryBuilder;
+import org.opensolaris.opengrok.search.SearchEngine;
+import org.opensolaris.opengrok.util.FileUtilities;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the IndexGenerations class.
+ */
+public class IndexGenerationsTest {
+
+    private File indexDir;
+
+    @Before
+    public void setUp() throws IOException {
+        indexDir = FileUtilities.createTemporaryDirectory("generations");
+        addDocument(indexDir, "/a");
+    }
+
+    @After
+    public void tearDown() {
+        RuntimeEnvironment.getInstance().closeSearcherManagers();
+        FileUtilities.removeDirs(indexDir);
+    }
+
+    private static void addDocument(File dir, String path) throws IOException {
+        FSDirectory fsdir = FSDirectory.open(dir);
+        IndexWriter w = new IndexWriter(fsdir, new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new WhitespaceAnalyzer(SearchEngine.LUCENE_VERSION)));
+        Document doc = new Document();
+        doc.add(new StringField(QueryBuilder.PATH, path, Field.Store.YES));
+        w.addDocument(doc);
+        w.close();
+        fsdir.close();
+    }
+
+    private int numDocs() throws IOException {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        IndexSearcher searcher = env.acquireSearcher(indexDir);
+        try {
+            return searcher.getIndexReader().numDocs();
+        } finally {
+            env.releaseSearcher(searcher);
+        }
+    }
+
+    @Test
+    public void testPublish() throws IOException {
+        // an index written by older versions is used as is
+        assertEquals(indexDir, IndexGenerations.getCurrent(indexDir));
+
+        File gen1 = IndexGenerations.create(indexDir);
+        assertEquals(indexDir, IndexGenerations.getCurrent(indexDir));
+        addDocument(gen1, "/b");
+        IndexGenerations.publish(indexDir, gen1);
+        assertEquals(gen1, IndexGenerations.getCurrent(indexDir));
+
+        File gen2 = IndexGenerations.create(indexDir);
+        addDocument(gen2, "/c");
+        IndexGenerations.publish(indexDir, gen2);
+        assertEquals(gen2, IndexGenerations.getCurrent(indexDir));
+        // the previous generation may still be in use
+        assertTrue(gen1.isDirectory());
+        File[] legacy = indexDir.listFiles();
+        int segments = 0;
+        for (File f : legacy) {
+            if (f.getName().startsWith("segments_")) {
+                segments++;
+            }
+        }
+        assertEquals(0, segments);
+
+        File gen3 = IndexGenerations.create(indexDir);
+        IndexGenerations.publish(indexDir, gen3);
+        assertFalse(gen1.exists());
+        assertTrue(gen2.isDirectory());
+        // the current generation is never retired
+        IndexGenerations.retire(indexDir, gen3);
+        assertTrue(gen3.isDirectory());
+        IndexGenerations.retire(indexDir, gen2);
+        assertFalse(gen2.exists());
+
+        File gen4 = IndexGenerations.create(indexDir);
+        IndexGenerations.discard(gen4);
+        assertFalse(gen4.exists());
+        assertEquals(gen3, IndexGenerations.getCurrent(indexDir));
+    }
+
+    @Test
+    public void testSearcherSwap() throws IOException {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        assertEquals(1, numDocs());
+        IndexSearcher inUse = env.acquireSearcher(indexDir);
+
+        File gen1 = IndexGenerations.create(indexDir);
+        addDocument(gen1, "/b");
+        // not visible before it is published
+        IndexSearcher searcher = env.acquireSearcher(indexDir);
+        assertSame(inUse.getIndexReader(), searcher.getIndexReader());
+        env.releaseSearcher(searcher);
+        IndexGenerations.publish(indexDir, gen1);
+        File gen2 = IndexGenerations.create(indexDir);
+        addDocument(gen2, "/c");
+        IndexGenerations.publish(indexDir, gen2);
+
+        assertEquals(3, numDocs());
+        // searchers in use keep working on their generation
+        assertEquals(1, inUse.getIndexReader().numDocs());
+        assertTrue(gen1.isDirectory());
+        env.releaseSearcher(inUse);
+    }
+
+    /**
+     * Test that searchers can be acquired while new generations get
+     * published, without running into managers closed in the meantime.
+     */
+    @Test
+    public void testConcurrentSwap() throws Exception {
+        final AtomicBoolean done = new AtomicBoolean();
+        final List<Throwable> errors =
+                Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            assertTrue(numDocs() > 0);
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        try {
+            for (int i = 0; i < 10; i++) {
+                File gen = IndexGenerations.create(indexDir);
+                addDocument(gen, "/x" + i);
+                IndexGenerations.publish(indexDir, gen);
+            }
+        } finally {
+            done.set(true);
+            for (Thread t : threads) {
+                t.join();
+            }
+        }
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(11, numDocs());
+    }
+}
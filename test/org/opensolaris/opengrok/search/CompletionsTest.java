@@ -0,0 +1,192 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensolaris.opengrok.configuration.Project;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.util.FileUtilities;
+import org.opensolaris.opengrok.web.Util;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the Completions class.
+ */
+public class CompletionsTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = FileUtilities.createTemporaryDirectory("completions");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtilities.removeDirs(dir);
+    }
+
+    private static void add(IndexWriter w, String path, String defs)
+            throws IOException {
+        Document doc = new Document();
+        doc.add(new StringField(QueryBuilder.U, Util.path2uid(path, "20120101"),
+                Field.Store.NO));
+        doc.add(new TextField(QueryBuilder.DEFS, defs, Field.Store.NO));
+        w.addDocument(doc);
+    }
+
+    private static void build(File dest, String... pathsAndDefs)
+            throws IOException {
+        RAMDirectory ram = new RAMDirectory();
+        IndexWriter w = new IndexWriter(ram, new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new WhitespaceAnalyzer(SearchEngine.LUCENE_VERSION)));
+        for (int i = 0; i < pathsAndDefs.length; i += 2) {
+            add(w, pathsAndDefs[i], pathsAndDefs[i + 1]);
+        }
+        add(w, "/deleted.c", "deletedFunc");
+        w.deleteDocuments(new Term(QueryBuilder.U,
+                Util.path2uid("/deleted.c", "20120101")));
+        w.close();
+        DirectoryReader reader = DirectoryReader.open(ram);
+        try {
+            Completions.build(reader, dest);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testLookup() throws IOException {
+        build(dir, "/a/main.c", "main init", "/a/util.c", "init initAll");
+        List<File> dirs = Collections.singletonList(dir);
+        // most common definitions first
+        assertEquals(Arrays.asList("init", "initAll"),
+                Completions.lookup(QueryBuilder.DEFS, "in", 10, dirs));
+        assertEquals(Arrays.asList("init"),
+                Completions.lookup(QueryBuilder.DEFS, "in", 1, dirs));
+        assertEquals(Arrays.asList("/a/main.c", "/a/util.c"),
+                Completions.lookup(QueryBuilder.PATH, "/a/", 10, dirs));
+        // no deleted documents, unknown fields or empty prefixes
+        assertTrue(Completions.lookup(QueryBuilder.DEFS, "del", 10, dirs)
+                .isEmpty());
+        assertTrue(Completions.lookup(QueryBuilder.REFS, "in", 10, dirs)
+                .isEmpty());
+        assertTrue(Completions.lookup(QueryBuilder.DEFS, "", 10, dirs)
+                .isEmpty());
+    }
+
+    @Test
+    public void testMerge() throws IOException {
+        File d1 = new File(dir, "p1");
+        File d2 = new File(dir, "p2");
+        build(d1, "/p1/x.c", "foo fooBar");
+        build(d2, "/p2/x.c", "fooBar", "/p2/y.c", "fooBaz");
+        List<File> dirs = Arrays.asList(d1, d2, new File(dir, "missing"));
+        assertEquals(Arrays.asList("fooBar", "foo", "fooBaz"),
+                Completions.lookup(QueryBuilder.DEFS, "foo", 10, dirs));
+        assertEquals(Arrays.asList("/p1/x.c", "/p2/x.c", "/p2/y.c"),
+                Completions.lookup(QueryBuilder.PATH, "/p", 10, dirs));
+    }
+
+    @Test
+    public void testReload() throws IOException {
+        List<File> dirs = Collections.singletonList(dir);
+        build(dir, "/x.c", "alpha");
+        assertEquals(Arrays.asList("alpha"),
+                Completions.lookup(QueryBuilder.DEFS, "a", 10, dirs));
+        build(dir, "/x.c", "alpha2");
+        // make sure the modification time differs from the cached one
+        for (String field : Completions.FIELDS) {
+            File f = new File(dir, field + ".fst");
+            assertTrue(f.setLastModified(f.lastModified() + 2000));
+        }
+        assertEquals(Arrays.asList("alpha2"),
+                Completions.lookup(QueryBuilder.DEFS, "a", 10, dirs));
+    }
+
+    @Test
+    public void testCacheBounded() throws IOException {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        env.setCompletionCacheSize(4);
+        try {
+            assertEquals(4, Completions.getMaxCached());
+            for (int i = 0; i <= 4; i++) {
+                File d = new File(dir, "p" + i);
+                build(d, "/p" + i + "/x.c", "func" + i);
+                assertEquals(Arrays.asList("func" + i),
+                        Completions.lookup(QueryBuilder.DEFS, "func", 10,
+                        Collections.singletonList(d)));
+                assertTrue(Completions.getCachedCount() <= 4);
+            }
+            // evicted data gets loaded again when needed
+            assertEquals(Arrays.asList("func0"),
+                    Completions.lookup(QueryBuilder.DEFS, "func", 10,
+                    Collections.singletonList(new File(dir, "p0"))));
+        } finally {
+            env.setCompletionCacheSize(0);
+        }
+    }
+
+    /**
+     * Test that there is room for the FSTs of all projects by default.
+     */
+    @Test
+    public void testMaxCachedProjects() {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        List<Project> old = env.getProjects();
+        try {
+            env.setProjects(new ArrayList<Project>());
+            assertEquals(Completions.MIN_CACHED, Completions.getMaxCached());
+            List<Project> projects = new ArrayList<Project>();
+            for (int i = 0; i < 900; i++) {
+                Project p = new Project();
+                p.setPath("/p" + i);
+                projects.add(p);
+            }
+            env.setProjects(projects);
+            assertEquals(900 * Completions.FIELDS.size(),
+                    Completions.getMaxCached());
+        } finally {
+            env.setProjects(old);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.IOException;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@code LimitedTermsRewrite} class.
+ */
+public class LimitedTermsRewriteTest {
+
+    private static Directory dir;
+    private static IndexReader reader;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        dir = new RAMDirectory();
+        IndexWriter w = new IndexWriter(dir, new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new WhitespaceAnalyzer(SearchEngine.LUCENE_VERSION)));
+        // ten terms matching a*, spread over two segments
+        for (int i = 0; i < 10; i++) {
+            Document doc = new Document();
+            doc.add(new TextField("f", "a" + i + " b" + i, Field.Store.NO));
+            w.addDocument(doc);
+            if (i == 4) {
+                w.commit();
+            }
+        }
+        w.close();
+        reader = DirectoryReader.open(dir);
+        assertEquals(2, reader.leaves().size());
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws IOException {
+        reader.close();
+        dir.close();
+    }
+
+    private static int clauses(Query rewritten) {
+        assertTrue(rewritten instanceof ConstantScoreQuery);
+        return ((BooleanQuery) ((ConstantScoreQuery) rewritten).getQuery())
+                .clauses().size();
+    }
+
+    @Test
+    public void testNotTruncated() throws IOException {
+        LimitedTermsRewrite rewrite = new LimitedTermsRewrite(10);
+        WildcardQuery q = new WildcardQuery(new Term("f", "a*"));
+        q.setRewriteMethod(rewrite);
+        q.setBoost(2f);
+        Query rewritten = q.rewrite(reader);
+        assertEquals(10, clauses(rewritten));
+        assertEquals(2f, rewritten.getBoost(), 0f);
+        assertFalse(rewrite.isTruncated());
+        assertEquals(10, new IndexSearcher(reader).search(q, 20).totalHits);
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        LimitedTermsRewrite rewrite = new LimitedTermsRewrite(3);
+        WildcardQuery q = new WildcardQuery(new Term("f", "a*"));
+        q.setRewriteMethod(rewrite);
+        assertEquals(3, clauses(q.rewrite(reader)));
+        assertTrue(rewrite.isTruncated());
+        assertEquals(3, new IndexSearcher(reader).search(q, 20).totalHits);
+
+        // queries matching few terms are not affected, but the instance
+        // stays truncated
+        WildcardQuery b = new WildcardQuery(new Term("f", "b1"));
+        b.setRewriteMethod(rewrite);
+        assertEquals(1, clauses(b.rewrite(reader)));
+        assertTrue(rewrite.isTruncated());
+    }
+
+    @Test
+    public void testMaxClauseCount() throws IOException {
+        int max = BooleanQuery.getMaxClauseCount();
+        try {
+            BooleanQuery.setMaxClauseCount(4);
+            LimitedTermsRewrite rewrite = new LimitedTermsRewrite(100);
+            WildcardQuery q = new WildcardQuery(new Term("f", "a*"));
+            q.setRewriteMethod(rewrite);
+            assertEquals(4, clauses(q.rewrite(reader)));
+            assertTrue(rewrite.isTruncated());
+        } finally {
+            BooleanQuery.setMaxClauseCount(max);
+        }
+    }
+}
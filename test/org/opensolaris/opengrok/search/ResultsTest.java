@@ -0,0 +1,164 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensolaris.opengrok.analysis.CompatibleAnalyser;
+import org.opensolaris.opengrok.analysis.FileAnalyzer.Genre;
+import org.opensolaris.opengrok.util.FileUtilities;
+import org.opensolaris.opengrok.web.SearchHelper;
+import org.opensolaris.opengrok.web.SortOrder;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@code Results} class.
+ */
+public class ResultsTest {
+
+    private File root;
+    private File source;
+    private File data;
+
+    @Before
+    public void setUp() throws IOException {
+        root = FileUtilities.createTemporaryDirectory("results");
+        source = new File(root, "src");
+        data = new File(root, "data");
+        assertTrue(new File(source, "dir").mkdirs());
+
+        FSDirectory dir = FSDirectory.open(new File(data, "index"));
+        IndexWriter w = new IndexWriter(dir, new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION, new CompatibleAnalyser()));
+        for (int i = 0; i < 20; i++) {
+            String path = "/dir/file" + i + ".c";
+            FileWriter out = new FileWriter(new File(source, path));
+            out.write("int x;\nint main(int argc) {\n  return " + i
+                    + ";\n}\n");
+            out.close();
+            Document doc = new Document();
+            doc.add(new StringField(QueryBuilder.PATH, path, Field.Store.YES));
+            doc.add(new StringField(QueryBuilder.FULLPATH, path,
+                    Field.Store.NO));
+            doc.add(new StringField("t", Genre.PLAIN.typeName(),
+                    Field.Store.YES));
+            doc.add(new TextField(QueryBuilder.FULL, "int x int main argc",
+                    Field.Store.NO));
+            w.addDocument(doc);
+        }
+        w.close();
+        dir.close();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtilities.removeDirs(root);
+    }
+
+    private String render(int contextTimeout) throws Exception {
+        SearchHelper sh = new SearchHelper();
+        sh.dataRoot = data;
+        sh.sourceRoot = source;
+        sh.contextPath = "/source";
+        sh.builder = new QueryBuilder().setFreetext("main");
+        sh.order = SortOrder.BY_PATH;
+        sh.maxItems = 20;
+        sh.contextTimeout = contextTimeout;
+        try {
+            sh.prepareExec(new TreeSet<String>()).executeQuery()
+                    .prepareSummary();
+            assertNull(sh.errorMsg);
+            assertEquals(20, sh.hits.length);
+            StringWriter out = new StringWriter();
+            Results.prettyPrint(out, sh, 0, sh.hits.length);
+            return out.toString();
+        } finally {
+            sh.destroy();
+        }
+    }
+
+    /**
+     * Test that rendering the context of the hits in parallel gives the same
+     * result as rendering it one hit after the other.
+     */
+    @Test
+    public void testParallelRendering() throws Exception {
+        String sequential = render(0);
+        assertTrue(sequential.contains("<b>main</b>"));
+        assertEquals(sequential, render(60000));
+    }
+
+    /**
+     * Test that a hit whose context is not rendered before the deadline
+     * gets printed without context, and the rendering gets cancelled.
+     */
+    @Test
+    public void testDeadline() {
+        FutureTask<String> done = new FutureTask<String>(
+                new Callable<String>() {
+            @Override
+            public String call() {
+                return "context";
+            }
+        });
+        done.run();
+        FutureTask<String> pending = new FutureTask<String>(
+                new Callable<String>() {
+            @Override
+            public String call() {
+                return "too late";
+            }
+        });
+        long now = System.currentTimeMillis();
+
+        assertEquals("context", Results.getContext(done, now + 60000, "/a"));
+        // finished renderings are used even if the deadline has passed
+        assertEquals("context", Results.getContext(done, now - 1, "/a"));
+
+        assertEquals("", Results.getContext(pending, now + 50, "/b"));
+        assertTrue(pending.isCancelled());
+        pending = new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() {
+                return "too late";
+            }
+        });
+        assertEquals("", Results.getContext(pending, now - 1, "/b"));
+        assertTrue(pending.isCancelled());
+    }
+}
@@ -169,6 +169,8 @@ public class SearchEngineTest {
             assertEquals(noHits, hits.size());
         }
 
+        SearchStatistics stats = SearchStatistics.getInstance();
+        long searches = stats.getSearchCount();
         instance = new SearchEngine();
         instance.setSymbol("printf");
         instance.setFile("main.c");
@@ -176,6 +178,9 @@ public class SearchEngineTest {
         assertEquals(8, noHits);
         hits.clear();
         instance.results(0, noHits, hits);
+        // the rendering gets recorded together with the search, once
+        instance.results(0, noHits, new ArrayList<Hit>());
+        assertEquals(searches + 1, stats.getSearchCount());
         for (Hit hit : hits) {
             assertEquals("main.c", hit.getFilename());
             assertEquals(1, 1);
@@ -0,0 +1,133 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.search.SearchStatistics.Phase;
+import org.opensolaris.opengrok.search.SearchStatistics.Timing;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SearchStatistics class.
+ */
+public class SearchStatisticsTest {
+
+    private final List<LogRecord> logged = new ArrayList<LogRecord>();
+    private final Handler handler = new Handler() {
+
+        @Override
+        public void publish(LogRecord record) {
+            logged.add(record);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Before
+    public void setUp() {
+        SearchStatistics.getInstance().reset();
+        Logger.getLogger(SearchStatistics.SLOW_QUERY_LOGGER).addHandler(handler);
+    }
+
+    @After
+    public void tearDown() {
+        Logger.getLogger(SearchStatistics.SLOW_QUERY_LOGGER)
+                .removeHandler(handler);
+        RuntimeEnvironment.getInstance().setSlowQueryThreshold(0);
+        SearchStatistics.getInstance().unregister();
+    }
+
+    @Test
+    public void testRecord() {
+        SearchStatistics stats = SearchStatistics.getInstance();
+        Timing timing = new Timing();
+        assertEquals(-1, timing.get(Phase.PARSE));
+        // 3 ms in two steps
+        timing.add(Phase.SEARCH, System.nanoTime() - 1000000);
+        timing.add(Phase.SEARCH, System.nanoTime() - 2000000);
+        assertTrue(timing.get(Phase.SEARCH) >= 3000000);
+        assertTrue(timing.toString().matches("search=3\\.\\dms"));
+
+        stats.record(timing, 3, "full:foo", null);
+        assertEquals(1, stats.getSearchCount());
+        assertEquals(0, stats.getSlowSearchCount());
+        assertTrue(logged.isEmpty());
+        long[] search = stats.getHistogram("SEARCH");
+        assertEquals(stats.getBucketBounds().length + 1, search.length);
+        assertEquals(1, search[2]);
+        assertEquals(3, stats.getMaxTime("SEARCH"));
+        assertTrue(stats.getAverageTime("SEARCH") >= 3.0);
+        // phases not entered are not recorded
+        assertEquals(0, stats.getAverageTime("PARSE"), 0);
+        for (long n : stats.getHistogram("PARSE")) {
+            assertEquals(0, n);
+        }
+        assertTrue(Arrays.asList(stats.getPhases()).contains("CONTEXT"));
+    }
+
+    @Test
+    public void testSlowQueryLog() {
+        SearchStatistics stats = SearchStatistics.getInstance();
+        stats.setSlowQueryThreshold(100);
+        assertEquals(100, RuntimeEnvironment.getInstance().getSlowQueryThreshold());
+        Timing timing = new Timing();
+        timing.add(Phase.PARSE, System.nanoTime());
+        stats.record(timing, 99, "full:foo", Arrays.asList("p1"));
+        assertTrue(logged.isEmpty());
+        stats.record(timing, 100, "full:foo", Arrays.asList("p1"));
+        assertEquals(1, logged.size());
+        assertEquals(1, stats.getSlowSearchCount());
+        Object[] params = logged.get(0).getParameters();
+        assertEquals("full:foo", params[1]);
+        assertEquals(Arrays.asList("p1"), params[2]);
+        assertTrue(params[3].toString().startsWith("parse="));
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        ObjectName name = new ObjectName(SearchStatistics.OBJECT_NAME);
+        SearchStatistics.getInstance().register();
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        assertEquals(0L, ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(name, "SearchCount"));
+        SearchStatistics.getInstance().unregister();
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.TreeSet;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the Trigrams class.
+ */
+public class TrigramsTest {
+
+    @Test
+    public void testExtract() throws Exception {
+        assertEquals(new TreeSet<String>(Arrays.asList("abc", "bcd", "xyz")),
+                Trigrams.extract(new StringReader("aBcD\nab\nxyz\n")));
+    }
+
+    private static String query(String regexp) throws ParseException {
+        return Trigrams.toQuery(regexp).toString();
+    }
+
+    @Test
+    public void testToQuery() throws ParseException {
+        assertEquals("+trigrams:abc +trigrams:bcd", query("aBcd"));
+        assertEquals("trigrams:abc", query("^abc$"));
+        // char classes, dots and optional atoms split the literal text
+        assertEquals("+trigrams:get +(+trigrams:and +trigrams:dle "
+                + "+trigrams:han +trigrams:ler +trigrams:ndl)",
+                query("get[A-Z].*Handler"));
+        assertEquals("+trigrams:abc +trigrams:def", query("abcx?def"));
+        assertEquals("+trigrams:abc +trigrams:def", query("abc\\d+def"));
+        // a repeated char is required once
+        assertEquals("trigrams:abc", query("abc+"));
+        // escaped and quoted characters are literal text
+        assertEquals("+trigrams:.b( +trigrams:a.b", query("a\\.b\\("));
+        assertEquals("+trigrams:.*b +trigrams:a.*", query("\\Qa.*b\\E"));
+        // alternatives and groups
+        assertEquals("trigrams:foo trigrams:bar", query("foo|bar"));
+        assertEquals("+trigrams:xyz +(trigrams:foo trigrams:bar)",
+                query("xyz(foo|bar)"));
+        assertEquals("trigrams:xyz", query("xyz(foo|bar)?"));
+        assertEquals("trigrams:foo", query("(?i)foo"));
+        assertEquals("trigrams:foo", query("(?:foo)"));
+    }
+
+    @Test
+    public void testTooGeneral() {
+        for (String re : new String[]{"ab", "a.c", "foo|b", "(abc)*",
+                    "[abc]+", "\\w+", "(?x) abc"}) {
+            try {
+                Trigrams.toQuery(re);
+                fail("ParseException expected for " + re);
+            } catch (ParseException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = ParseException.class)
+    public void testInvalid() throws ParseException {
+        Trigrams.toQuery("abc(");
+    }
+}
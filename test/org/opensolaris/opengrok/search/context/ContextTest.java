@@ -29,9 +29,11 @@ import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import javax.xml.parsers.DocumentBuilderFactory;
 import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Query;
 import org.junit.After;
 import static org.junit.Assert.*;
 import org.junit.Before;
@@ -40,6 +42,7 @@ import org.opensolaris.opengrok.analysis.Definitions;
 import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 import org.opensolaris.opengrok.search.Hit;
 import org.opensolaris.opengrok.search.QueryBuilder;
+import org.opensolaris.opengrok.search.ReversedWildcardQuery;
 import org.w3c.dom.Document;
 
 public class ContextTest {
@@ -243,6 +246,49 @@ public class ContextTest {
         assertTrue("No match on line #1", s.contains("href=\"#1\""));
     }
 
+    /**
+     * Test that matches of leading wildcard queries, which get answered via
+     * the reversed tokens, are highlighted in the context.
+     */
+    @Test
+    public void testReversedWildcard() throws ParseException {
+        QueryBuilder qb = new QueryBuilder().setFreetext("*Handler")
+                .setReversedFields(Collections.singleton(QueryBuilder.FULL));
+        Query query = qb.build();
+        assertTrue(query instanceof ReversedWildcardQuery);
+        assertEquals("full_rev",
+                ((ReversedWildcardQuery) query).getTerm().field());
+        assertEquals("reldnah*",
+                ((ReversedWildcardQuery) query).getTerm().text());
+        assertEquals("*handler", query.toString(QueryBuilder.FULL));
+
+        Context c = new Context(query, qb.getQueries());
+        StringWriter out = new StringWriter();
+        boolean match = c.getContext(new StringReader("a MyHandler here"),
+                out, "", "", "", null, true, null);
+        assertTrue("No match found", match);
+        assertTrue("Match not highlighted",
+                out.toString().contains("<b>MyHandler</b>"));
+    }
+
+    /**
+     * Test that the lines matching a regular expression get listed.
+     */
+    @Test
+    public void testRegexp() throws ParseException {
+        QueryBuilder qb = new QueryBuilder().setRegexp("get[A-Z]\\w*r\\(");
+        Context c = new Context(qb.build(), qb.getQueries());
+        assertFalse(c.isEmpty());
+        StringWriter out = new StringWriter();
+        boolean match = c.getContext(
+                new StringReader("a = getFoo();\nb = getBar(<x>);\n"),
+                out, "/xref", "", "/p/f.c", null, true, null);
+        assertTrue("No match found", match);
+        assertEquals("<a class=\"s\" href=\"/xref/p/f.c#2\"><span "
+                + "class=\"l\">2</span> b = <b>getBar(</b>&lt;x&gt;);</a><br/>",
+                out.toString());
+    }
+
     /**
      * Test that we get the [all...] link if a very long line crosses the buffer
      * boundary. Bug 383.
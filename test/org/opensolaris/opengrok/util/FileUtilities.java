@@ -22,6 +22,7 @@
  */
 package org.opensolaris.opengrok.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -124,6 +125,23 @@ public class FileUtilities {
         return file;
     }
 
+    /**
+     * Read a stream to the end and close it.
+     *
+     * @param in the stream to read
+     * @return the bytes read
+     * @throws IOException if the stream cannot be read
+     */
+    public static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            copyFile(in, out);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
     private FileUtilities() {
     }
 
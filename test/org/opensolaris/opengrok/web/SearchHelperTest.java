@@ -23,7 +23,30 @@
 
 package org.opensolaris.opengrok.web;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TimeLimitingCollector;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Counter;
+import static org.junit.Assert.*;
 import org.junit.Test;
+import org.opensolaris.opengrok.search.QueryBuilder;
+import org.opensolaris.opengrok.search.SearchEngine;
+import org.opensolaris.opengrok.util.FileUtilities;
 
 /**
  * Unit tests for the {@code SearchHelper} class.
@@ -38,4 +61,207 @@ public class SearchHelperTest {
     public void testDestroyUninitializedInstance() {
         new SearchHelper().destroy();
     }
+
+    /**
+     * Test that the DocValues sort fields are only used if the index provides
+     * them.
+     */
+    @Test
+    public void testGetSort() {
+        assertSame(Sort.RELEVANCE,
+                SearchHelper.getSort(SortOrder.RELEVANCY, true));
+
+        SortField date = SearchHelper.getSort(SortOrder.LASTMODIFIED, true)
+                .getSort()[0];
+        assertEquals(QueryBuilder.SORT_DATE, date.getField());
+        assertTrue(date.getUseIndexValues());
+        assertTrue(date.getReverse());
+
+        SortField path = SearchHelper.getSort(SortOrder.BY_PATH, false)
+                .getSort()[0];
+        assertEquals(QueryBuilder.FULLPATH, path.getField());
+        assertFalse(path.getUseIndexValues());
+        assertFalse(path.getReverse());
+    }
+
+    private static void createIndex(File dir, String... paths)
+            throws IOException {
+        createIndexWithText(dir, "main", paths);
+    }
+
+    private static void createIndexWithText(File dir, String text,
+            String... paths)
+            throws IOException {
+        FSDirectory fsdir = FSDirectory.open(dir);
+        IndexWriter w = new IndexWriter(fsdir, new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new WhitespaceAnalyzer(SearchEngine.LUCENE_VERSION)));
+        for (String path : paths) {
+            Document doc = new Document();
+            doc.add(new StringField(QueryBuilder.PATH, path, Field.Store.YES));
+            doc.add(new StringField(QueryBuilder.FULLPATH, path,
+                    Field.Store.NO));
+            doc.add(new TextField(QueryBuilder.FULL, text, Field.Store.NO));
+            w.addDocument(doc);
+        }
+        w.close();
+        fsdir.close();
+    }
+
+    private static SearchHelper prepare(File dataRoot) {
+        SearchHelper sh = new SearchHelper();
+        sh.dataRoot = dataRoot;
+        sh.builder = new QueryBuilder().setFreetext("main");
+        sh.order = SortOrder.BY_PATH;
+        sh.maxItems = 3;
+        return sh;
+    }
+
+    private static SearchHelper search(File dataRoot, boolean federated,
+            boolean parallel) {
+        return search(dataRoot, federated, parallel, SortOrder.BY_PATH);
+    }
+
+    private static SearchHelper search(File dataRoot, boolean federated,
+            boolean parallel, SortOrder order) {
+        SearchHelper sh = prepare(dataRoot);
+        sh.order = order;
+        sh.federated = federated;
+        sh.parallel = parallel;
+        sh.prepareExec(new TreeSet<String>(Arrays.asList("p1", "p2")))
+                .executeQuery();
+        assertNull(sh.errorMsg);
+        return sh;
+    }
+
+    private static List<String> getPaths(SearchHelper sh) throws IOException {
+        List<String> paths = new ArrayList<String>();
+        try {
+            for (ScoreDoc hit : sh.hits) {
+                paths.add(sh.searcher.doc(hit.doc).get(QueryBuilder.PATH));
+            }
+        } finally {
+            sh.destroy();
+        }
+        return paths;
+    }
+
+    /**
+     * Test that a federated search over multiple projects finds the same top
+     * hits as a search over all of them at once.
+     */
+    @Test
+    public void testFederatedSearch() throws IOException {
+        File dataRoot = FileUtilities.createTemporaryDirectory("federated");
+        try {
+            createIndex(new File(dataRoot, "index/p1"), "/p1/b", "/p1/d");
+            createIndex(new File(dataRoot, "index/p2"), "/p2/a", "/p2/c",
+                    "/p2/e");
+            SearchHelper sh = search(dataRoot, false, false);
+            assertNull(sh.projectHits);
+            List<String> expected = getPaths(sh);
+            assertEquals(Arrays.asList("/p1/b", "/p1/d", "/p2/a"), expected);
+            sh = search(dataRoot, true, false);
+            assertEquals(5, sh.totalHits);
+            assertEquals(Integer.valueOf(2), sh.projectHits.get("p1"));
+            assertEquals(Integer.valueOf(3), sh.projectHits.get("p2"));
+            assertEquals(expected, getPaths(sh));
+            // parallel searches merge the hits of the projects, too
+            sh = search(dataRoot, false, true);
+            assertEquals(5, sh.totalHits);
+            assertNull(sh.projectHits);
+            assertEquals(expected, getPaths(sh));
+        } finally {
+            FileUtilities.removeDirs(dataRoot);
+        }
+    }
+
+    /**
+     * Test that a parallel search over multiple projects ranks the hits
+     * like a search over all of them at once, with statistics of all
+     * projects, while a federated search uses the ones of each project.
+     */
+    @Test
+    public void testParallelRelevance() throws IOException {
+        File dataRoot = FileUtilities.createTemporaryDirectory("relevance");
+        try {
+            createIndex(new File(dataRoot, "index/p1"), "/p1/a", "/p1/b",
+                    "/p1/c");
+            createIndex(new File(dataRoot, "index/p2"), "/p2/x");
+            createIndexWithText(new File(dataRoot, "index/p2"), "other",
+                    "/p2/y", "/p2/z", "/p2/w");
+            List<String> expected = getPaths(
+                    search(dataRoot, false, false, SortOrder.RELEVANCY));
+            assertEquals(Arrays.asList("/p1/a", "/p1/b", "/p1/c"), expected);
+            assertEquals(expected, getPaths(
+                    search(dataRoot, false, true, SortOrder.RELEVANCY)));
+            // main is rare in p2, so its hit scores best in p2 alone
+            assertEquals("/p2/x", getPaths(
+                    search(dataRoot, true, false, SortOrder.RELEVANCY))
+                    .get(0));
+        } finally {
+            FileUtilities.removeDirs(dataRoot);
+        }
+    }
+
+    /**
+     * Test that a search which exceeds its time limit returns the hits
+     * found so far and is marked as truncated.
+     */
+    @Test
+    public void testTimeLimit() throws IOException {
+        File dataRoot = FileUtilities.createTemporaryDirectory("timelimit");
+        try {
+            createIndex(new File(dataRoot, "index"), "/a", "/b", "/c");
+            SearchHelper sh = prepare(dataRoot);
+            sh.timeout = 1000;
+            sh.prepareExec(new TreeSet<String>());
+            assertNull(sh.errorMsg);
+            try {
+                Counter clock = TimeLimitingCollector.getGlobalCounter();
+                assertEquals(3, sh.search(sh.searcher, 3, clock.get())
+                        .totalHits);
+                assertFalse(sh.truncated);
+                // a search started long ago is out of time right away
+                assertEquals(0, sh.search(sh.searcher, 3,
+                        clock.get() - 100000).totalHits);
+                assertTrue(sh.truncated);
+            } finally {
+                sh.destroy();
+            }
+        } finally {
+            FileUtilities.removeDirs(dataRoot);
+        }
+    }
+
+    /**
+     * Test that a cancelled search stops collecting hits, with and without
+     * a time limit.
+     */
+    @Test
+    public void testCancel() throws IOException {
+        File dataRoot = FileUtilities.createTemporaryDirectory("cancel");
+        try {
+            createIndex(new File(dataRoot, "index"), "/a", "/b", "/c");
+            for (int timeout : new int[]{0, 60000}) {
+                SearchHelper sh = prepare(dataRoot);
+                sh.timeout = timeout;
+                sh.prepareExec(new TreeSet<String>());
+                sh.cancel();
+                sh.executeQuery();
+                assertNull(sh.errorMsg);
+                assertTrue(sh.truncated);
+                assertEquals(0, sh.hits.length);
+                sh.destroy();
+
+                sh = prepare(dataRoot);
+                sh.timeout = timeout;
+                sh.prepareExec(new TreeSet<String>()).executeQuery();
+                assertFalse(sh.truncated);
+                assertEquals(3, getPaths(sh).size());
+            }
+        } finally {
+            FileUtilities.removeDirs(dataRoot);
+        }
+    }
 }
@@ -0,0 +1,173 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.web;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.search.QueryBuilder;
+import org.opensolaris.opengrok.search.SearchEngine;
+import org.opensolaris.opengrok.util.FileUtilities;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SearcherWarmer class.
+ */
+public class SearcherWarmerTest {
+
+    private File indexDir;
+
+    @Before
+    public void setUp() throws IOException {
+        indexDir = FileUtilities.createTemporaryDirectory("warmer");
+        FSDirectory dir = FSDirectory.open(indexDir);
+        IndexWriter w = new IndexWriter(dir, new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new WhitespaceAnalyzer(SearchEngine.LUCENE_VERSION)));
+        Document doc = new Document();
+        doc.add(new StringField(QueryBuilder.PATH, "/p/main.c", Field.Store.YES));
+        doc.add(new StringField(QueryBuilder.FULLPATH, "/p/main.c", Field.Store.NO));
+        doc.add(new StringField(QueryBuilder.DATE, "20121001", Field.Store.YES));
+        doc.add(new TextField(QueryBuilder.FULL, "main handler", Field.Store.NO));
+        w.addDocument(doc);
+        w.close();
+        dir.close();
+    }
+
+    @After
+    public void tearDown() {
+        RuntimeEnvironment.getInstance().closeSearcherManagers();
+        RuntimeEnvironment.getInstance().setSearchWarmupQueries(20);
+        SearcherWarmer.getInstance().clear();
+        FileUtilities.removeDirs(indexDir);
+    }
+
+    @Test
+    public void testRecord() {
+        RuntimeEnvironment.getInstance().setSearchWarmupQueries(2);
+        SearcherWarmer warmer = SearcherWarmer.getInstance();
+        warmer.record(new QueryBuilder().setFreetext("a"), SortOrder.RELEVANCY);
+        warmer.record(new QueryBuilder().setDefs("b"), SortOrder.LASTMODIFIED);
+        warmer.record(new QueryBuilder().setFreetext("a"), SortOrder.RELEVANCY);
+        warmer.record(new QueryBuilder().setPath("c d"), SortOrder.BY_PATH);
+        // empty queries are ignored
+        warmer.record(new QueryBuilder(), SortOrder.RELEVANCY);
+        // the least recent one gets dropped
+        assertEquals(Arrays.asList("relevancy\tfull=a", "fullpath\tpath=c+d"),
+                warmer.getRecorded());
+
+        RuntimeEnvironment.getInstance().setSearchWarmupQueries(0);
+        warmer.clear();
+        warmer.record(new QueryBuilder().setFreetext("a"), SortOrder.RELEVANCY);
+        assertTrue(warmer.getRecorded().isEmpty());
+    }
+
+    @Test
+    public void testSaveLoad() throws IOException {
+        SearcherWarmer warmer = SearcherWarmer.getInstance();
+        warmer.record(new QueryBuilder().setFreetext("main"), SortOrder.LASTMODIFIED);
+        warmer.record(new QueryBuilder().setRefs("x").setHist("y\tz"),
+                SortOrder.RELEVANCY);
+        File file = new File(indexDir, SearcherWarmer.FILE_NAME);
+        warmer.save(file);
+        warmer.clear();
+        warmer.load(file);
+        assertEquals(2, warmer.getRecorded().size());
+        assertEquals("relevancy\thist=y%09z\trefs=x",
+                warmer.getRecorded().get(1));
+        // a missing file is not an error
+        warmer.clear();
+        warmer.load(new File(indexDir, "missing"));
+        assertTrue(warmer.getRecorded().isEmpty());
+    }
+
+    @Test
+    public void testNewSearcher() throws IOException {
+        SearcherWarmer warmer = SearcherWarmer.getInstance();
+        warmer.record(new QueryBuilder().setFreetext("handler"), SortOrder.LASTMODIFIED);
+        warmer.record(new QueryBuilder().setPath("main.c"), SortOrder.BY_PATH);
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        IndexSearcher searcher = env.acquireSearcher(indexDir);
+        assertNotNull(searcher);
+        try {
+            assertEquals(1, searcher.getIndexReader().numDocs());
+        } finally {
+            env.releaseSearcher(searcher);
+        }
+    }
+
+    @Test
+    public void testConcurrentNewSearcher() throws Exception {
+        SearcherWarmer.getInstance().record(
+                new QueryBuilder().setFreetext("handler"), SortOrder.RELEVANCY);
+        final RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        List<Future<IndexSearcher>> searchers =
+                new ArrayList<Future<IndexSearcher>>();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int i = 0; i < 8; i++) {
+                searchers.add(executor.submit(new Callable<IndexSearcher>() {
+
+                    @Override
+                    public IndexSearcher call() throws IOException {
+                        return env.acquireSearcher(indexDir);
+                    }
+                }));
+            }
+            // all callers get the searcher of the manager which has been
+            // published
+            IndexSearcher searcher = env.acquireSearcher(indexDir);
+            try {
+                assertEquals(1, searcher.getIndexReader().numDocs());
+                for (Future<IndexSearcher> f : searchers) {
+                    IndexSearcher s = f.get();
+                    assertSame(searcher.getIndexReader(), s.getIndexReader());
+                    env.releaseSearcher(s);
+                }
+            } finally {
+                env.releaseSearcher(searcher);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.web;
+
+import java.io.File;
+import java.io.IOException;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.search.QueryBuilder;
+import org.opensolaris.opengrok.search.SearchEngine;
+import org.opensolaris.opengrok.util.FileUtilities;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SuggestionCache class.
+ */
+public class SuggestionCacheTest {
+
+    private File indexDir;
+
+    @Before
+    public void setUp() throws IOException {
+        indexDir = FileUtilities.createTemporaryDirectory("suggestions");
+        FSDirectory dir = FSDirectory.open(indexDir);
+        IndexWriter w = new IndexWriter(dir, new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new WhitespaceAnalyzer(SearchEngine.LUCENE_VERSION)));
+        Document doc = new Document();
+        doc.add(new TextField(QueryBuilder.DEFS, "getHandler", Field.Store.NO));
+        doc.add(new TextField(QueryBuilder.FULL, "handler", Field.Store.NO));
+        w.addDocument(doc);
+        w.close();
+        dir.close();
+    }
+
+    @After
+    public void tearDown() {
+        RuntimeEnvironment.getInstance().closeSearcherManagers();
+        SuggestionCache.getInstance().clear();
+        FileUtilities.removeDirs(indexDir);
+    }
+
+    @Test
+    public void testGet() throws IOException {
+        SuggestionCache cache = SuggestionCache.getInstance();
+        // definitions are case sensitive, full text is lower cased
+        assertArrayEquals(new String[]{"getHandler"},
+                cache.get(indexDir, QueryBuilder.DEFS, "getHandlr"));
+        assertArrayEquals(new String[]{"handler"},
+                cache.get(indexDir, QueryBuilder.FULL, "Handlr"));
+        // short tokens and exact matches get no suggestions
+        assertEquals(0, cache.get(indexDir, QueryBuilder.DEFS, "get").length);
+        assertEquals(0,
+                cache.get(indexDir, QueryBuilder.DEFS, "getHandler").length);
+        assertEquals(0, cache.get(indexDir, QueryBuilder.REFS, null).length);
+        // cached results are shared
+        assertSame(cache.get(indexDir, QueryBuilder.DEFS, "getHandlr"),
+                cache.get(indexDir, QueryBuilder.DEFS, "getHandlr"));
+        assertEquals(0, cache.get(new File(indexDir, "missing"),
+                QueryBuilder.DEFS, "getHandlr").length);
+    }
+}
@@ -0,0 +1,71 @@
+<%--
+$Id$
+
+CDDL HEADER START
+
+The contents of this file are subject to the terms of the
+Common Development and Distribution License (the "License").
+You may not use this file except in compliance with the License.
+
+See LICENSE.txt included in this distribution for the specific
+language governing permissions and limitations under the License.
+
+When distributing Covered Code, include this CDDL HEADER in each
+file and include the License file at LICENSE.txt.
+If applicable, add the following below this CDDL HEADER, with the
+fields enclosed by brackets "[]" replaced with your own identifying
+information: Portions Copyright [yyyy] [name of copyright owner]
+
+CDDL HEADER END
+
+Copyright (c) 2012, Oracle and/or its affiliates. All rights reserved.
+
+--%><%@page session="false" errorPage="error.jsp" import="
+java.io.File,
+java.util.ArrayList,
+java.util.List,
+
+org.opensolaris.opengrok.configuration.Project,
+org.opensolaris.opengrok.search.Completions,
+org.opensolaris.opengrok.web.PageConfig"
+%><%@
+
+include file="pageconfig.jspf"
+
+%><%
+/* ---------------------- complete.jsp start --------------------- */
+{
+    // Completions for the search form in the format expected by
+    // jquery.autocomplete: one per line. Parameters:
+    //   field   - the field to complete (defs or path)
+    //   q       - the prefix to complete
+    //   limit   - max. number of completions (default: 10, max: 100)
+    //   project - the project(s) to use
+    if (request.getCharacterEncoding() == null) {
+        request.setCharacterEncoding("UTF-8");
+    }
+    cfg = PageConfig.get(request);
+    List<File> dirs = new ArrayList<File>();
+    if (cfg.getEnv().hasProjects()) {
+        for (String name : cfg.getRequestedProjects()) {
+            Project p = Project.getByDescription(name);
+            if (p != null) {
+                dirs.add(Completions.getDir(p));
+            }
+        }
+    } else {
+        dirs.add(Completions.getDir(null));
+    }
+    int limit = Math.min(Math.max(cfg.getIntParam("limit", 10), 0), 100);
+    response.setContentType("text/plain; charset=UTF-8");
+    for (String s : Completions.lookup(request.getParameter("field"),
+            request.getParameter("q"), limit, dirs)) {
+        // line breaks and pipes are delimiters of the response format
+        if (s.indexOf('\n') < 0 && s.indexOf('|') < 0) {
+            out.write(s);
+            out.write('\n');
+        }
+    }
+}
+/* ---------------------- complete.jsp end --------------------- */
+%>
@@ -135,6 +135,12 @@ So searching for <b>\+1</b> or <b>\+ 1</b> will both find <b>+1</b> and <b>+ 1</
 <dd>History log comments.</dd>
     </dl>
 
+<p>The <dfn>Regexp</dfn> field takes a Java regular expression, which gets
+matched against each line of the plain text source files (like grep does).
+It must contain a literal text of at least 3 characters, e.g.
+<b>get[A-Z]\w*Handler</b> or <b>(?i)todo:.*fixme</b>. This search is only
+available if the index has been created with trigrams enabled.</p>
+
 <p>
 the term(phrases) can be boosted (making it more relevant) using a caret
 <b>^</b> , e.g. help^4 opengrok - will make term help boosted
@@ -73,7 +73,11 @@ include file="pageconfig.jspf"
     if(cfg.isDir()) {
         hist = new DirectoryHistoryReader(cfg.getHistoryDirs()).getHistory();
     } else {
-        hist = HistoryGuru.getInstance().getHistory(cfg.getResourceFile());
+        hist = HistoryGuru.getInstance()
+            .getLatestHistory(cfg.getResourceFile(), 20);
+        if (hist == null) {
+            hist = HistoryGuru.getInstance().getHistory(cfg.getResourceFile());
+        }
     }
     if (hist != null) {
         int i = 20;
@@ -45,6 +45,7 @@ include file="projects.jspf"
             Util.appendQuery(url, "refs", qb.getRefs());
             Util.appendQuery(url, "path", qb.getPath());
             Util.appendQuery(url, "hist", qb.getHist());
+            Util.appendQuery(url, "regexp", qb.getRegexp());
         }
         if (sh.projects != null && sh.projects.size() != 0) {
             Util.appendQuery(url, "project", cfg.getRequestedProjectsAsString());
@@ -144,7 +145,11 @@ include file="menu.jspf"
         %></p><%
         }
         %>
-        <p> Your search <b><%= searchHelper.query %></b> did not match any files.
+        <p> Your search <b><%= searchHelper.query %></b> did not match any files.<%
+        if (searchHelper.truncated) {
+            %> The search has been stopped early, though.<%
+        }
+        %>
             <br/> Suggestions:<br/>
         </p>
         <ul>
@@ -200,7 +205,22 @@ include file="menu.jspf"
         <p class="pagetitle">Searched <b><%= searchHelper.query
             %></b> (Results <b> <%= start + 1 %> - <%= thispage + start
             %></b> of <b><%= totalHits %></b>) sorted by <%=
-            searchHelper.order.getDesc() %></p><%
+            searchHelper.order.getDesc() %><%
+            if (searchHelper.truncated) {
+            %> - <i>search stopped early, results may be incomplete</i><%
+            }
+            %></p><%
+        if (searchHelper.projectHits != null) {
+            %><p class="pagetitle">Hits per project:<%
+            for (Entry<String, Integer> e
+                    : searchHelper.projectHits.entrySet())
+            {
+                if (e.getValue() > 0) {
+            %> <%= Util.htmlize(e.getKey()) %> (<%= e.getValue() %>)<%
+                }
+            }
+            %></p><%
+        }
         if (slider.length() > 0) {
         %>
         <p class="slider"><%= slider %></p><%
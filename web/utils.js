@@ -110,6 +110,33 @@ function domReadyMenu() {
     // TODO  Bug 11749
     // var p = document.getElementById('project');
     // p.setAttribute("autocomplete", "off");
+    completeField("defs");
+    completeField("path");
+}
+
+/**
+ * Let the search form field with the given name suggest the definitions or
+ * paths of the selected projects, which start with the text entered so far.
+ */
+function completeField(field) {
+    $("#" + field).autocomplete(document.completePath, {
+        minChars: 2,
+        max: 20,
+        delay: 200,
+        matchSubset: false,
+        selectFirst: false,
+        extraParams: {
+            field: field,
+            project: function() {
+                var p = $("#project").val();
+                return $.isArray(p) ? p.join(",") : (p || "");
+            }
+        },
+        formatItem: function(row) {
+            return $("<div/>").text(row[0]).html();
+        },
+        width: "300px"
+    });
 }
 
 function domReadyHistory() {